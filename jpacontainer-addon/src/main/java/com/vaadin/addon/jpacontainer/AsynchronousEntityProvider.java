@@ -0,0 +1,163 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Entity provider that can run its most expensive queries in the background,
+ * so that the thread serving the UI does not have to wait for them. The
+ * queries are run using the executor of the entity provider, and can be
+ * cancelled through the returned {@link Future}s when their results are no
+ * longer needed, e.g. when the user changes the filter again. A timeout can be
+ * set for all the queries of the entity provider, so that a query that is no
+ * longer waited for does not keep the database busy for long.
+ * <p>
+ * The queries are only run in the background if the entity provider has an
+ * executor and gets its entity manager from an {@link EntityManagerProvider}
+ * that returns an entity manager that can be used in the threads of the
+ * executor. Otherwise, they are run at once in the calling thread, and the
+ * returned futures are already done.
+ * 
+ * @see JPAContainer#setAsynchronousSize(boolean, java.util.concurrent.Executor)
+ * @since 3.2
+ */
+public interface AsynchronousEntityProvider<T> extends EntityProvider<T> {
+
+    /**
+     * The JPA query hint used to pass the query timeout to the persistence
+     * provider.
+     */
+    public static final String QUERY_TIMEOUT_HINT = "javax.persistence.query.timeout";
+
+    /**
+     * Callback that is notified when an asynchronous query has finished. The
+     * callback is called in the thread that ran the query.
+     */
+    public interface Callback<V> {
+
+        /**
+         * Called when the query has returned <code>result</code>.
+         * 
+         * @param result
+         *            the result of the query.
+         */
+        public void completed(V result);
+
+        /**
+         * Called when the query has failed, e.g. because it timed out.
+         * 
+         * @param error
+         *            the exception thrown by the query.
+         */
+        public void failed(Throwable error);
+    }
+
+    /**
+     * Sets the executor to run the asynchronous queries with. The executor is
+     * not serialized.
+     * 
+     * @param executor
+     *            the executor, or null to run all queries in the calling
+     *            thread.
+     */
+    public void setQueryExecutor(Executor executor);
+
+    /**
+     * @return the executor to run the asynchronous queries with, or null if
+     *         none.
+     */
+    public Executor getQueryExecutor();
+
+    /**
+     * Sets the timeout of all the queries run by this entity provider, both
+     * synchronous and asynchronous. The timeout is passed to the persistence
+     * provider using the {@link #QUERY_TIMEOUT_HINT} hint, and a query that
+     * takes longer fails with a
+     * {@link javax.persistence.QueryTimeoutException}.
+     * 
+     * @param timeout
+     *            the timeout in milliseconds, or 0 for no timeout.
+     */
+    public void setQueryTimeout(int timeout);
+
+    /**
+     * @return the timeout of the queries in milliseconds, or 0 if none.
+     */
+    public int getQueryTimeout();
+
+    /**
+     * Asynchronous version of
+     * {@link #getEntityCount(EntityContainer, Filter)}.
+     * 
+     * @param entityContainer
+     *            the container that asks for the count, or null.
+     * @param filter
+     *            the filter, or null if all entities are counted.
+     * @param callback
+     *            the callback to notify when the query has finished, or null.
+     * @return the future result of the query (never null).
+     */
+    public Future<Integer> getEntityCountAsync(
+            EntityContainer<T> entityContainer, Filter filter,
+            Callback<Integer> callback);
+
+    /**
+     * Asynchronous version of
+     * {@link #getEntityIdentifiersInRange(EntityContainer, Filter, List, int, int)}
+     * .
+     * 
+     * @param entityContainer
+     *            the container that asks for the identifiers, or null.
+     * @param filter
+     *            the filter, or null if all entities are included.
+     * @param sortBy
+     *            the properties to sort by, if any.
+     * @param startIndex
+     *            the index of the first identifier.
+     * @param count
+     *            the maximum number of identifiers.
+     * @param callback
+     *            the callback to notify when the query has finished, or null.
+     * @return the future result of the query (never null).
+     */
+    public Future<List<Object>> getEntityIdentifiersInRangeAsync(
+            EntityContainer<T> entityContainer, Filter filter,
+            List<SortBy> sortBy, int startIndex, int count,
+            Callback<List<Object>> callback);
+
+    /**
+     * Asynchronous version of
+     * {@link #getEntities(EntityContainer, Collection)}.
+     * 
+     * @param entityContainer
+     *            the container that asks for the entities, or null.
+     * @param entityIds
+     *            the identifiers of the entities (must not be null).
+     * @param callback
+     *            the callback to notify when the query has finished, or null.
+     * @return the future result of the query (never null).
+     */
+    public Future<Map<Object, T>> getEntitiesAsync(
+            EntityContainer<T> entityContainer, Collection<Object> entityIds,
+            Callback<Map<Object, T>> callback);
+}
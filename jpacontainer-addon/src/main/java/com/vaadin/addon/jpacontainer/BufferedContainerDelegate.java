@@ -18,15 +18,19 @@ package com.vaadin.addon.jpacontainer;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import com.vaadin.data.Buffered.SourceException;
+import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Validator.InvalidValueException;
 
 /**
@@ -86,8 +90,19 @@ final class BufferedContainerDelegate<T> implements Serializable {
     // ... and a map for storing the actual entities.
     private Map<Object, T> addedEntitiesCache = new HashMap<Object, T>();
     // The same goes for the other caches
-    private HashMap<Object, Integer> deletedItemIdsCache = new HashMap<Object, Integer>();
+    private Set<Object> deletedItemIdsCache = new LinkedHashSet<Object>();
     private Map<Object, T> updatedEntitiesCache = new HashMap<Object, T>();
+    /**
+     * The indexes of the deleted items in the persistence storage, in
+     * ascending order, for the filter and sort order they were computed with.
+     * Deleted items that no longer match the filter are not included. The
+     * indexes are recomputed when first needed after the filter or the sort
+     * order has changed, and after deserialization.
+     */
+    private transient int[] deletedDbIndexes;
+    private transient int deletedDbIndexCount;
+    private transient Filter deletedDbIndexesFilter;
+    private transient List<SortBy> deletedDbIndexesSortBy;
 
     /**
      * Gets a list of IDs of added entity items. The IDs appear in the order in
@@ -105,7 +120,7 @@ final class BufferedContainerDelegate<T> implements Serializable {
      * @return an unmodifiable list of entity item IDs (never null).
      */
     public Collection<Object> getDeletedItemIds() {
-        return Collections.unmodifiableCollection(deletedItemIdsCache.keySet());
+        return Collections.unmodifiableCollection(deletedItemIdsCache);
     }
 
     /**
@@ -165,7 +180,7 @@ final class BufferedContainerDelegate<T> implements Serializable {
      */
     public boolean isDeleted(Object itemId) {
         assert itemId != null : "itemId must not be null";
-        return deletedItemIdsCache.containsKey(itemId);
+        return deletedItemIdsCache.contains(itemId);
     }
 
     /**
@@ -196,6 +211,7 @@ final class BufferedContainerDelegate<T> implements Serializable {
         addedItemIdsCache.clear();
         updatedEntitiesCache.clear();
         deletedItemIdsCache.clear();
+        deletedDbIndexes = null;
     }
 
     /**
@@ -286,13 +302,9 @@ final class BufferedContainerDelegate<T> implements Serializable {
         } else {
             removeUpdateDelta(itemId);
             deltaList.add(new Delta(DeltaType.DELETE, itemId, null));
-            List<Object> allDbEntityIdentifiers = container.getEntityProvider()
-                    .getAllEntityIdentifiers(container,
-                            container.getAppliedFiltersAsConjunction(),
-                            container.getSortByList());
-            int dbIndexOfDeletedItem = allDbEntityIdentifiers.indexOf(itemId);
-            deletedItemIdsCache.put(itemId, dbIndexOfDeletedItem);
-
+            if (deletedItemIdsCache.add(itemId) && isDeletedDbIndexesValid()) {
+                addDeletedDbIndex(getDbIndex(itemId));
+            }
         }
     }
 
@@ -329,20 +341,122 @@ final class BufferedContainerDelegate<T> implements Serializable {
         }
     }
 
+    /**
+     * Converts an index among the entities that have not been deleted to the
+     * index of the entity in the persistence storage, i.e. skips the deleted
+     * entities that come before it.
+     * 
+     * @param index
+     *            the index without the deleted entities.
+     * @return the index in the persistence storage.
+     */
     public int fixDbIndexWithDeletedItems(int index) {
-        Integer[] removedDbIndexes = getDbIndexesOfDeletedItems();
-        for (int i = 0; i < removedDbIndexes.length; i++) {
-            if (removedDbIndexes[i] <= index) {
-                index++;
+        int[] removedDbIndexes = getDeletedDbIndexes();
+        /*
+         * As the indexes are distinct and sorted, removedDbIndexes[i] - i is
+         * non-decreasing, and the deleted entities before the requested one
+         * are exactly those for which it is at most index.
+         */
+        int low = 0;
+        int high = deletedDbIndexCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (removedDbIndexes[mid] - mid <= index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return index + low;
+    }
+
+    /**
+     * Converts the index of an entity in the persistence storage to its index
+     * among the entities that have not been deleted. This is the inverse of
+     * {@link #fixDbIndexWithDeletedItems(int)}.
+     * 
+     * @param dbIndex
+     *            the index of an entity that has not been deleted.
+     * @return the index without the deleted entities.
+     * @since 3.2
+     */
+    public int unfixDbIndexWithDeletedItems(int dbIndex) {
+        return dbIndex - countDeletedDbIndexesBefore(dbIndex);
+    }
+
+    /**
+     * Returns the number of deleted indexes that are less than
+     * <code>dbIndex</code>, i.e. the position where <code>dbIndex</code>
+     * would be inserted.
+     */
+    private int countDeletedDbIndexesBefore(int dbIndex) {
+        int[] removedDbIndexes = getDeletedDbIndexes();
+        int position = Arrays.binarySearch(removedDbIndexes, 0,
+                deletedDbIndexCount, dbIndex);
+        return position < 0 ? -position - 1 : position;
+    }
+
+    /**
+     * Gets the sorted indexes of the deleted items, recomputing them if the
+     * filter or the sort order of the container has changed.
+     */
+    private int[] getDeletedDbIndexes() {
+        if (!isDeletedDbIndexesValid()) {
+            deletedDbIndexesFilter = container.getAppliedFiltersAsConjunction();
+            deletedDbIndexesSortBy = new ArrayList<SortBy>(
+                    container.getSortByList());
+            deletedDbIndexes = new int[Math.max(4, deletedItemIdsCache.size())];
+            deletedDbIndexCount = 0;
+            for (Object itemId : deletedItemIdsCache) {
+                int dbIndex = getDbIndex(itemId);
+                if (dbIndex >= 0) {
+                    deletedDbIndexes[deletedDbIndexCount++] = dbIndex;
+                }
             }
+            Arrays.sort(deletedDbIndexes, 0, deletedDbIndexCount);
+        }
+        return deletedDbIndexes;
+    }
+
+    private boolean isDeletedDbIndexesValid() {
+        if (deletedDbIndexes == null) {
+            return false;
         }
-        return index;
+        Filter filter = container.getAppliedFiltersAsConjunction();
+        return (filter == null ? deletedDbIndexesFilter == null : filter
+                .equals(deletedDbIndexesFilter))
+                && container.getSortByList().equals(deletedDbIndexesSortBy);
     }
 
-    private Integer[] getDbIndexesOfDeletedItems() {
-        Integer[] removedDbIndexes = new Integer[deletedItemIdsCache.size()];
-        removedDbIndexes = deletedItemIdsCache.values().toArray(
-                removedDbIndexes);
-        return removedDbIndexes;
+    /**
+     * Gets the index of the entity identified by <code>itemId</code> in the
+     * persistence storage, using a rank query instead of loading all the
+     * identifiers.
+     * 
+     * @return the index, or -1 if the entity does not match the filter.
+     */
+    private int getDbIndex(Object itemId) {
+        return container.getEntityProvider().getEntityIndex(container, itemId,
+                container.getAppliedFiltersAsConjunction(),
+                container.getSortByList());
+    }
+
+    private void addDeletedDbIndex(int dbIndex) {
+        if (dbIndex < 0) {
+            return;
+        }
+        int position = countDeletedDbIndexesBefore(dbIndex);
+        if (position < deletedDbIndexCount
+                && deletedDbIndexes[position] == dbIndex) {
+            return;
+        }
+        if (deletedDbIndexCount == deletedDbIndexes.length) {
+            deletedDbIndexes = Arrays.copyOf(deletedDbIndexes,
+                    deletedDbIndexes.length * 2);
+        }
+        System.arraycopy(deletedDbIndexes, position, deletedDbIndexes,
+                position + 1, deletedDbIndexCount - position);
+        deletedDbIndexes[position] = dbIndex;
+        deletedDbIndexCount++;
     }
 }
@@ -16,6 +16,11 @@
 
 package com.vaadin.addon.jpacontainer;
 
+import com.vaadin.addon.jpacontainer.cache.CacheFactory;
+import com.vaadin.addon.jpacontainer.cache.CacheStatistics;
+import com.vaadin.addon.jpacontainer.cache.ReadAheadPolicy;
+import com.vaadin.addon.jpacontainer.cache.SharedQueryCache;
+
 /**
  * Interface to be implemented by all <code>EntityProvider</code>s that perform
  * some kind of internal caching.
@@ -153,4 +158,189 @@ public interface CachingEntityProvider<T> extends EntityProvider<T> {
      */
     public void setCloneCachedEntities(boolean clone)
             throws UnsupportedOperationException;
+
+    /**
+     * Gets the factory that is used to create the internal caches. The
+     * factory determines the eviction policy of the caches.
+     * 
+     * @return the cache factory (never null).
+     * @since 3.2
+     */
+    public CacheFactory getCacheFactory();
+
+    /**
+     * Sets the factory that is used to create the internal caches, for example
+     * {@link com.vaadin.addon.jpacontainer.cache.TinyLfuCache.Factory} to keep
+     * frequently used entities cached while the user scrolls through large
+     * result sets. Any existing caches are flushed and re-created.
+     * 
+     * @param cacheFactory
+     *            the cache factory to use (must not be null).
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support changing the cache
+     *             factory.
+     * @since 3.2
+     */
+    public void setCacheFactory(CacheFactory cacheFactory)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets a snapshot of the hit, miss, eviction and load statistics of the
+     * entity cache.
+     * 
+     * @return the statistics (never null).
+     * @since 3.2
+     */
+    public CacheStatistics getEntityCacheStatistics();
+
+    /**
+     * Gets the cache of entity counts and identifiers that is shared with
+     * other entity providers.
+     * 
+     * @return the shared query cache, or null if none has been set.
+     * @since 3.2
+     */
+    public SharedQueryCache getSharedQueryCache();
+
+    /**
+     * Sets a cache of entity counts and identifiers that is shared with other
+     * entity providers, possibly in other user sessions. The shared cache is
+     * consulted before querying the database, but only if neither the entity
+     * provider nor the container has a {@link QueryModifierDelegate}. The
+     * shared cache is not serialized with the entity provider.
+     * 
+     * @param sharedQueryCache
+     *            the shared query cache, or null to not use one.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support a shared query
+     *             cache.
+     * @since 3.2
+     */
+    public void setSharedQueryCache(SharedQueryCache sharedQueryCache)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the policy for loading the next chunk of identifiers in the
+     * background while the user scrolls.
+     * 
+     * @return the read-ahead policy, or null if read-ahead is turned off.
+     * @since 3.2
+     */
+    public ReadAheadPolicy getReadAheadPolicy();
+
+    /**
+     * Sets the policy for loading the next chunk of identifiers (and
+     * optionally their entities) in the background when the identifiers are
+     * accessed sequentially. Read-ahead is only performed if the entity
+     * manager is obtained from an
+     * {@link com.vaadin.addon.jpacontainer.EntityManagerProvider}, as the
+     * queries are run in the threads of the executor of the policy. The policy
+     * is not serialized with the entity provider.
+     * 
+     * @param readAheadPolicy
+     *            the read-ahead policy, or null to turn read-ahead off.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support read-ahead.
+     * @since 3.2
+     */
+    public void setReadAheadPolicy(ReadAheadPolicy readAheadPolicy)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the number of entity identifiers that are loaded at a time when
+     * an identifier that is not in the cache is requested.
+     * 
+     * @return the chunk size.
+     * @since 3.2
+     */
+    public int getChunkSize();
+
+    /**
+     * Sets the number of entity identifiers that are loaded at a time. Large
+     * chunks suit databases with a high query latency, while small chunks
+     * keep the queries of fast databases short. If the adaptive chunk size
+     * is enabled, this is the smallest chunk size used.
+     * 
+     * @param chunkSize
+     *            the chunk size (must be greater than 0).
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support changing the chunk
+     *             size.
+     * @since 3.2
+     */
+    public void setChunkSize(int chunkSize)
+            throws UnsupportedOperationException;
+
+    /**
+     * Returns whether the chunk size is adjusted automatically. By default,
+     * it is not.
+     * 
+     * @return true if the adaptive chunk size is enabled, false otherwise.
+     * @since 3.2
+     */
+    public boolean isAdaptiveChunkSizeEnabled();
+
+    /**
+     * Turns the adaptive chunk size on or off. When it is on, the chunk size
+     * grows from the one set using {@link #setChunkSize(int)} based on the
+     * number of identifiers requested at a time (e.g. the page length of a
+     * table), the speed at which the user is scrolling and the time it takes
+     * to load a chunk, and shrinks back when they decrease. The chunk size
+     * never exceeds half of the entity cache size.
+     * 
+     * @param enabled
+     *            true to turn the adaptive chunk size on, false to turn it off.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support an adaptive chunk
+     *             size.
+     * @since 3.2
+     */
+    public void setAdaptiveChunkSizeEnabled(boolean enabled)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the maximum number of different filters whose results are cached.
+     * 
+     * @return the max size.
+     * @since 3.2
+     */
+    public int getFilterCacheMaxSize();
+
+    /**
+     * Sets the maximum number of different filters whose results are cached.
+     * Any existing caches are flushed and re-created.
+     * 
+     * @param maxSize
+     *            the new maximum size (must be greater than 0).
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support configuring the
+     *             filter cache size.
+     * @since 3.2
+     */
+    public void setFilterCacheMaxSize(int maxSize)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the maximum number of different sort orders whose identifier lists
+     * are cached for each filter.
+     * 
+     * @return the max size.
+     * @since 3.2
+     */
+    public int getSortByCacheMaxSize();
+
+    /**
+     * Sets the maximum number of different sort orders whose identifier lists
+     * are cached for each filter. Any existing caches are flushed and
+     * re-created.
+     * 
+     * @param maxSize
+     *            the new maximum size (must be greater than 0).
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support configuring the
+     *             sort order cache size.
+     * @since 3.2
+     */
+    public void setSortByCacheMaxSize(int maxSize)
+            throws UnsupportedOperationException;
 }
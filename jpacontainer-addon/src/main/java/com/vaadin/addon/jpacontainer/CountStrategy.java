@@ -0,0 +1,130 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+
+import javax.persistence.EntityManager;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Strategy that an {@link EntityProvider} uses to find out the number of
+ * entities that match a filter. By default, the entity provider runs an exact
+ * COUNT query every time, which may take a long time on very large tables.
+ * A strategy can instead cache the count, estimate it or return a lower bound
+ * that is refined later. When the count returned earlier to a container
+ * changes, the strategy calls {@link CountContext#countChanged()}, which makes
+ * the container fire an ItemSetChangeEvent so that it is asked again.
+ * <p>
+ * Note that a container that reports a count that is too large will return
+ * null for the indexes past the actual end of the entities.
+ * 
+ * @see EntityProvider#setCountStrategy(CountStrategy)
+ * @see com.vaadin.addon.jpacontainer.util.ExactCountStrategy
+ * @see com.vaadin.addon.jpacontainer.util.CachedCountStrategy
+ * @see com.vaadin.addon.jpacontainer.util.EstimatedCountStrategy
+ * @see com.vaadin.addon.jpacontainer.util.LowerBoundCountStrategy
+ * @since 3.2
+ */
+public interface CountStrategy extends Serializable {
+
+    /**
+     * The count that the entity provider has been asked for, and the means
+     * to query the database for it. A context must not be used after the
+     * entity provider has been serialized.
+     */
+    public interface CountContext {
+
+        /**
+         * @return the container that asked for the count, or null if not
+         *         known.
+         */
+        public EntityContainer<?> getEntityContainer();
+
+        /**
+         * @return the entity class.
+         */
+        public Class<?> getEntityClass();
+
+        /**
+         * @return the filter that the entities must match, or null if all
+         *         entities are counted.
+         */
+        public Filter getFilter();
+
+        /**
+         * @return the entity manager of the entity provider.
+         * @throws IllegalStateException
+         *             if the entity provider has no entity manager.
+         */
+        public EntityManager getEntityManager() throws IllegalStateException;
+
+        /**
+         * Runs an exact COUNT query.
+         * 
+         * @return the number of entities that match the filter.
+         */
+        public int getExactCount();
+
+        /**
+         * Counts the entities that match the filter, but stops at
+         * <code>maxCount</code>. This is much faster than
+         * {@link #getExactCount()} on large tables, as the database does not
+         * have to scan all the matching rows.
+         * 
+         * @param maxCount
+         *            the maximum count to return.
+         * @return the number of entities, or <code>maxCount</code> if there
+         *         are at least that many.
+         */
+        public int getCountUpTo(int maxCount);
+
+        /**
+         * Checks whether the database may be queried through this context in
+         * other threads, i.e. whether the entity provider gets its entity
+         * manager from an {@link EntityManagerProvider}.
+         * 
+         * @return true if the context may be used in other threads.
+         */
+        public boolean isConcurrentAccessSupported();
+
+        /**
+         * Tells the container that asked for the count that it has changed,
+         * so that it fires an ItemSetChangeEvent. This may be called from
+         * another thread, in which case the listeners of the container are
+         * notified in that thread as well.
+         */
+        public void countChanged();
+    }
+
+    /**
+     * Gets the number of entities that match the filter of
+     * <code>context</code>.
+     * 
+     * @param context
+     *            the count context (never null).
+     * @return the exact or approximate number of entities.
+     */
+    public int getEntityCount(CountContext context);
+
+    /**
+     * Discards all counts remembered by this strategy. Entity providers call
+     * this when they are refreshed, and mutable entity providers after
+     * entities have been added or removed through them.
+     */
+    public void invalidate();
+}
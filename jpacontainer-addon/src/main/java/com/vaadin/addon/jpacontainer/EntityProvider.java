@@ -17,7 +17,10 @@
 package com.vaadin.addon.jpacontainer;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 
@@ -62,6 +65,21 @@ public interface EntityProvider<T> extends Serializable {
      */
     public T getEntity(EntityContainer<T> entityContainer, Object entityId);
 
+    /**
+     * Loads all the entities identified by <code>entityIds</code> from the
+     * persistence storage. This is the bulk counterpart of
+     * {@link #getEntity(EntityContainer, Object)} and should be implemented
+     * using as few round trips to the persistence storage as possible.
+     * 
+     * @param entityIds
+     *            the entity identifiers (must not be null, may be empty).
+     * @return a map of the found entities keyed by their identifiers (never
+     *         null). Identifiers that were not found are not included.
+     * @since 3.2
+     */
+    public Map<Object, T> getEntities(EntityContainer<T> entityContainer,
+            Collection<Object> entityIds);
+
     /**
      * If this method returns true, all entities returned from this entity
      * provider are explicitly detached from the persistence context before
@@ -111,6 +129,87 @@ public interface EntityProvider<T> extends Serializable {
     public Object getEntityIdentifierAt(EntityContainer<T> entityContainer,
             Filter filter, List<SortBy> sortBy, int index);
 
+    /**
+     * Gets the identifiers of at most <code>count</code> entities, starting
+     * from position <code>startIndex</code> in the result set determined from
+     * <code>filter</code> and <code>sortBy</code>. This is the batched
+     * counterpart of
+     * {@link #getEntityIdentifierAt(EntityContainer, Filter, List, int)} and
+     * should be implemented using as few round trips to the persistence
+     * storage as possible.
+     * 
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @param startIndex
+     *            the index of the first entity identifier to fetch.
+     * @param count
+     *            the maximum number of entity identifiers to fetch.
+     * @return an unmodifiable list of entity identifiers (never null). The
+     *         list may contain less than <code>count</code> identifiers if the
+     *         end of the result set is reached.
+     * @since 3.2
+     */
+    public List<Object> getEntityIdentifiersInRange(
+            EntityContainer<T> entityContainer, Filter filter,
+            List<SortBy> sortBy, int startIndex, int count);
+
+    /**
+     * Gets the position of the entity identified by <code>entityId</code> in
+     * the result set determined from <code>filter</code> and
+     * <code>sortBy</code>. This is the inverse of
+     * {@link #getEntityIdentifierAt(EntityContainer, Filter, List, int)} and
+     * should be implemented without walking through the result set, e.g. by
+     * counting the entities that are sorted before the entity.
+     * 
+     * @param entityId
+     *            the entity identifier (must not be null).
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @return the index of the entity, or -1 if the entity does not exist or
+     *         is not matched by <code>filter</code>.
+     * @since 3.2
+     */
+    public int getEntityIndex(EntityContainer<T> entityContainer,
+            Object entityId, Filter filter, List<SortBy> sortBy);
+
+    /**
+     * Gets the values of the properties <code>propertyIds</code> of at most
+     * <code>count</code> entities, starting from position
+     * <code>startIndex</code> in the result set determined from
+     * <code>filter</code> and <code>sortBy</code>. Only the requested
+     * properties are loaded from the persistence storage, no entity instances
+     * are created. Nested properties (e.g. <code>address.street</code>) are
+     * supported.
+     * 
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @param startIndex
+     *            the index of the first entity to fetch.
+     * @param count
+     *            the maximum number of entities to fetch.
+     * @param propertyIds
+     *            the persistent properties to fetch (must not be null, may be
+     *            empty). Properties referring to collections must not be
+     *            included.
+     * @return an unmodifiable list of rows (never null). The first element of
+     *         every row is the entity identifier, followed by the values of
+     *         <code>propertyIds</code> in the same order.
+     * @since 3.2
+     */
+    public List<Object[]> getEntityPropertyValuesInRange(
+            EntityContainer<T> entityContainer, Filter filter,
+            List<SortBy> sortBy, int startIndex, int count,
+            List<String> propertyIds);
+
     /**
      * Gets the identifier of the first item in the list of entities determined
      * by <code>filter</code> and <code>sortBy</code>.
@@ -207,6 +306,24 @@ public interface EntityProvider<T> extends Serializable {
     public boolean containsEntity(EntityContainer<T> entityContainer,
             Object entityId, Filter filter);
 
+    /**
+     * Checks which of the entities identified by <code>entityIds</code> exist
+     * in the persistence storage and are also matched by <code>filter</code>.
+     * This is the bulk counterpart of
+     * {@link #containsEntity(EntityContainer, Object, Filter)} and should be
+     * implemented using as few round trips to the persistence storage as
+     * possible.
+     * 
+     * @param entityIds
+     *            the entity identifiers (must not be null, may be empty).
+     * @param filter
+     *            the filter that the entities should match (may be null).
+     * @return the identifiers of the entities that exist (never null).
+     * @since 3.2
+     */
+    public Set<Object> containsEntities(EntityContainer<T> entityContainer,
+            Collection<Object> entityIds, Filter filter);
+
     /**
      * Gets the number of entities that are matched by <code>filter</code>. If
      * no filter has been specified, the total number of entities is returned.
@@ -232,6 +349,25 @@ public interface EntityProvider<T> extends Serializable {
      */
     public QueryModifierDelegate getQueryModifierDelegate();
 
+    /**
+     * Sets the strategy used to find out the number of entities in
+     * {@link #getEntityCount(EntityContainer, Filter)}. By default, an exact
+     * COUNT query is run every time. Caching entity providers leave the
+     * counts returned by this method to the strategy, but still use exact
+     * counts internally.
+     * 
+     * @param countStrategy
+     *            the strategy, or null to always count the entities exactly.
+     * @since 3.2
+     */
+    public void setCountStrategy(CountStrategy countStrategy);
+
+    /**
+     * @return the registered {@link CountStrategy}, or null if none.
+     * @since 3.2
+     */
+    public CountStrategy getCountStrategy();
+
     /**
      * Returns identifier for given entity
      * 
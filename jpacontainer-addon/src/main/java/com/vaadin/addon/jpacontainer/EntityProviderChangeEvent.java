@@ -84,6 +84,17 @@ public interface EntityProviderChangeEvent<T> extends Serializable {
          * @return identifier of the modified property
          */
         public String getPropertyId();
+
+        /**
+         * Returns the identifiers of the updated entities if the property has
+         * been updated without loading the entities, in which case
+         * {@link #getAffectedEntities()} is empty.
+         * 
+         * @return the identifiers of the updated entities, or null if the
+         *         entities are available from {@link #getAffectedEntities()}.
+         * @since 3.2
+         */
+        public Collection<Object> getAffectedEntityIds();
     }
 
     /**
@@ -97,4 +108,17 @@ public interface EntityProviderChangeEvent<T> extends Serializable {
             EntityProviderChangeEvent<T> {
         // No additional methods
     }
+
+    /**
+     * Event indicating that the number of entities returned earlier by the
+     * entity provider has changed, even though the entities have not, e.g.
+     * because an approximate count has been refined by a
+     * {@link CountStrategy}.
+     * 
+     * @since 3.2
+     */
+    public interface EntityCountChangedEvent<T> extends
+            EntityProviderChangeEvent<T> {
+        // No additional methods
+    }
 }
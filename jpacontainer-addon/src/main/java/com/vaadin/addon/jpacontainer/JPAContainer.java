@@ -17,6 +17,7 @@
 package com.vaadin.addon.jpacontainer;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -27,14 +28,22 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntityPropertyUpdatedEvent;
 import com.vaadin.addon.jpacontainer.filter.util.AdvancedFilterableSupport;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
 import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
 import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
 import com.vaadin.addon.jpacontainer.util.CollectionUtil;
 import com.vaadin.data.Container;
 import com.vaadin.data.Item;
@@ -138,12 +147,21 @@ public class JPAContainer<T> implements EntityContainer<T>,
     private EntityProvider<T> entityProvider;
     private AdvancedFilterableSupport filterSupport;
     private LinkedList<ItemSetChangeListener> listeners;
+    private LinkedList<WriteFailedListener> writeFailedListeners;
     private EntityClassMetadata<T> entityClassMetadata;
     private List<SortBy> sortByList;
     private PropertyList<T> propertyList;
     private BufferedContainerDelegate<T> bufferingDelegate;
     private boolean readOnly = false;
     private boolean writeThrough = false;
+    private boolean projectionMode = false;
+
+    /**
+     * The rows fetched by the latest call to {@link #getItemIds(int, int)} in
+     * projection mode, keyed by item ID.
+     */
+    transient private Map<Object, Object[]> projectedRows;
+    transient private List<String> projectedPropertyIds;
 
     transient private HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>> itemRegistry;
 
@@ -176,6 +194,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
                     private static final long serialVersionUID = -23196201919497112L;
 
                     public void filtersApplied(AdvancedFilterableSupport sender) {
+                        cancelAsynchronousCount();
                         fireContainerItemSetChange(new FiltersAppliedEvent<JPAContainer<T>>(
                                 JPAContainer.this));
                     }
@@ -253,6 +272,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
     @SuppressWarnings("unchecked")
     protected void fireContainerItemSetChange(final ItemSetChangeEvent event) {
         assert event != null : "event must not be null";
+        clearProjectedRows();
         if (listeners == null || !fireContainerItemSetChangeEvents) {
             return;
         }
@@ -330,6 +350,8 @@ public class JPAContainer<T> implements EntityContainer<T>,
                     .removeListener(this);
         }
         this.entityProvider = entityProvider;
+        cancelAsynchronousCount();
+        previousAsynchronousCount = null;
         // Register listener with new provider
         registerProvider();
     }
@@ -376,14 +398,25 @@ public class JPAContainer<T> implements EntityContainer<T>,
     }
 
     public void entityProviderChange(EntityProviderChangeEvent<T> event) {
+        if (isItemSetChangeEvent(event)) {
+            cancelAsynchronousCount();
+        }
         if (isItemSetChangeEvent(event)
                 && isFireItemSetChangeOnProviderChange()) {
             fireContainerItemSetChange(new ProviderChangedEvent(event));
         } else {
             if (event instanceof EntityPropertyUpdatedEvent) {
+                clearProjectedRows();
                 // TODO fire itemSetChange event in case property of a sort
                 // column has changed
                 EntityPropertyUpdatedEvent<T> evt = (EntityPropertyUpdatedEvent<T>) event;
+                if (evt.getAffectedEntityIds() != null) {
+                    for (Object itemId : evt.getAffectedEntityIds()) {
+                        firePropertyValueChangeEvent(itemId,
+                                evt.getPropertyId());
+                    }
+                    return;
+                }
                 Collection<T> affectedEntities = evt.getAffectedEntities();
                 if (affectedEntities.isEmpty()) {
                     return;
@@ -787,6 +820,13 @@ public class JPAContainer<T> implements EntityContainer<T>,
             return null;
         }
         if (isWriteThrough() || !bufferingDelegate.isModified()) {
+            if (projectedRows != null) {
+                Object[] row = projectedRows.get(itemId);
+                if (row != null) {
+                    return new ProjectedEntityItem<T>(this, itemId,
+                            projectedPropertyIds, row);
+                }
+            }
             T entity = doGetEntityProvider().getEntity(this, itemId);
             return entity != null ? new JPAContainerItem<T>(this, entity)
                     : null;
@@ -908,9 +948,75 @@ public class JPAContainer<T> implements EntityContainer<T>,
         return result;
     }
 
+    private boolean asynchronousSize = false;
+    private transient Executor completionExecutor;
+    private transient volatile AsynchronousCount asynchronousCount;
+    /**
+     * The count that was cancelled last, whose result is returned by
+     * {@link #size()} while the entities are counted again for the same
+     * filters.
+     */
+    private transient volatile AsynchronousCount previousAsynchronousCount;
+
+    /**
+     * Specifies whether the container should count its items in the background
+     * instead of blocking {@link #size()} until the entities have been counted.
+     * This only works if the entity provider is an
+     * {@link AsynchronousEntityProvider} that has a query executor.
+     * <p>
+     * When the count is not yet known, {@link #size()} starts counting and
+     * returns the previous count if the same filters were counted before,
+     * e.g. before entities were added or removed, and 0 otherwise. The query
+     * is run by the query executor of the entity provider, without the
+     * session lock. When the query is done, its result is delivered through
+     * <code>completionExecutor</code>, which must run the tasks with the
+     * session locked, e.g. by passing them to <code>UI.access()</code>. The
+     * delivered task makes {@link #size()} return the count and fires an
+     * {@link ItemsCountedEvent}. If the filters change before the count is
+     * done, the query is cancelled and a new one is started the next time
+     * {@link #size()} is called, so that quickly changing filters do not
+     * queue up counts that are no longer needed. If the count fails,
+     * {@link #size()} keeps returning the previous count, and the items are
+     * counted again only when the container is refreshed, the entities are
+     * changed or the filters change. The completion executor is not
+     * serialized; after deserialization, the items are counted when
+     * {@link #size()} is called.
+     * 
+     * @see AsynchronousEntityProvider#setQueryExecutor(java.util.concurrent.Executor)
+     * @param asynchronousSize
+     *            true to count the items in the background, false to count
+     *            them when {@link #size()} is called (the default).
+     * @param completionExecutor
+     *            the executor that delivers the completed counts with the
+     *            session locked (must not be null if
+     *            <code>asynchronousSize</code> is true).
+     * @since 3.2
+     */
+    public void setAsynchronousSize(boolean asynchronousSize,
+            Executor completionExecutor) {
+        if (asynchronousSize && completionExecutor == null) {
+            throw new IllegalArgumentException(
+                    "completionExecutor must not be null");
+        }
+        this.asynchronousSize = asynchronousSize;
+        this.completionExecutor = asynchronousSize ? completionExecutor
+                : null;
+        if (!asynchronousSize) {
+            cancelAsynchronousCount();
+        }
+    }
+
+    /**
+     * @see #setAsynchronousSize(boolean, Executor)
+     * @return true if the items are counted in the background, false if not.
+     * @since 3.2
+     */
+    public boolean isAsynchronousSize() {
+        return asynchronousSize;
+    }
+
     public int size() {
-        int origSize = doGetEntityProvider().getEntityCount(this,
-                getAppliedFiltersAsConjunction());
+        int origSize = doGetEntityCount(getAppliedFiltersAsConjunction());
         if (isWriteThrough()) {
             return origSize;
         } else {
@@ -920,6 +1026,147 @@ public class JPAContainer<T> implements EntityContainer<T>,
         }
     }
 
+    /**
+     * Gets the number of entities that match <code>filter</code> from the
+     * entity provider, in the background if the size is asynchronous.
+     */
+    @SuppressWarnings("unchecked")
+    private int doGetEntityCount(Filter filter) {
+        EntityProvider<T> provider = doGetEntityProvider();
+        if (!asynchronousSize || completionExecutor == null
+                || !(provider instanceof AsynchronousEntityProvider)) {
+            return provider.getEntityCount(this, filter);
+        }
+        AsynchronousCount count = asynchronousCount;
+        if (count != null && count.isFor(filter)) {
+            return count.getKnownCount();
+        }
+        if (count != null) {
+            // The filters have changed
+            count.cancel();
+        } else {
+            count = previousAsynchronousCount;
+        }
+        Integer previousCount = null;
+        if (count != null && count.isFor(filter)) {
+            previousCount = count.getKnownCount();
+        }
+        previousAsynchronousCount = null;
+        count = new AsynchronousCount(filter, previousCount);
+        asynchronousCount = count;
+        count.start((AsynchronousEntityProvider<T>) provider);
+        return count.getKnownCount();
+    }
+
+    /**
+     * Cancels the count that is running in the background, if any, so that
+     * the items are counted again the next time {@link #size()} is called.
+     * Until the new count is done, the cancelled count is returned.
+     */
+    private void cancelAsynchronousCount() {
+        AsynchronousCount count = asynchronousCount;
+        if (count != null) {
+            asynchronousCount = null;
+            previousAsynchronousCount = count;
+            count.cancel();
+        }
+    }
+
+    /**
+     * A count that is run in the background for a certain filter.
+     */
+    private final class AsynchronousCount implements
+            AsynchronousEntityProvider.Callback<Integer> {
+
+        private final Filter filter;
+        private final Integer previousCount;
+        private final Executor completionExecutor = JPAContainer.this.completionExecutor;
+        private Future<Integer> future;
+        private Integer result;
+        /**
+         * The thread that is starting the count, or null when the provider has
+         * returned the future. A count that completes in this thread is run
+         * in the calling thread of {@link #size()}.
+         */
+        private Thread startingThread;
+
+        AsynchronousCount(Filter filter, Integer previousCount) {
+            this.filter = filter;
+            this.previousCount = previousCount;
+        }
+
+        boolean isFor(Filter filter) {
+            return this.filter == null ? filter == null : this.filter
+                    .equals(filter);
+        }
+
+        void start(AsynchronousEntityProvider<T> provider) {
+            synchronized (this) {
+                startingThread = Thread.currentThread();
+            }
+            Future<Integer> f;
+            try {
+                f = provider.getEntityCountAsync(JPAContainer.this, filter,
+                        this);
+            } finally {
+                synchronized (this) {
+                    startingThread = null;
+                }
+            }
+            synchronized (this) {
+                future = f;
+            }
+        }
+
+        /**
+         * @return the result of the count, or the previous count of the same
+         *         filters if the count is not done, or 0 if neither is known.
+         */
+        synchronized int getKnownCount() {
+            if (result != null) {
+                return result;
+            }
+            return previousCount == null ? 0 : previousCount;
+        }
+
+        void cancel() {
+            Future<Integer> f;
+            synchronized (this) {
+                f = future;
+            }
+            if (f != null) {
+                f.cancel(true);
+            }
+        }
+
+        public void completed(final Integer count) {
+            synchronized (this) {
+                if (startingThread == Thread.currentThread()) {
+                    // Counted in the calling thread of size()
+                    result = count;
+                    return;
+                }
+            }
+            completionExecutor.execute(new Runnable() {
+                public void run() {
+                    synchronized (AsynchronousCount.this) {
+                        result = count;
+                    }
+                    if (asynchronousCount == AsynchronousCount.this) {
+                        fireContainerItemSetChange(new ItemsCountedEvent(count));
+                    }
+                }
+            });
+        }
+
+        public void failed(Throwable error) {
+            // This count stays in place, so that size() keeps returning the
+            // previous count instead of counting again on every call
+            Logger.getLogger(JPAContainer.class.getName()).log(
+                    Level.WARNING, "Could not count the items", error);
+        }
+    }
+
     /**
      * Returns a conjunction (filter1 AND filter2 AND ... AND filterN) of all
      * the applied filters. If there are no applied filters, this method returns
@@ -1051,35 +1298,37 @@ public class JPAContainer<T> implements EntityContainer<T>,
     }
 
     /**
-     * <strong>This implementation does not use lazy loading and performs
-     * <b>extremely</b> bad when the number of items is large! Do not use unless
-     * you absolutely have to!</strong>
+     * Gets the index of <code>itemId</code> using
+     * {@link EntityProvider#getEntityIndex(EntityContainer, Object, Filter, List)}
+     * , which typically counts the entities that are sorted before the entity
+     * instead of walking through the items. When the container is buffered,
+     * the added items come first and the deleted items are skipped, just like
+     * in {@link #getIdByIndex(int)}.
      * <p>
      * {@inheritDoc }
      */
     public int indexOfId(Object itemId) {
-        /*
-         * This is intentionally an ugly implementation! This method should not
-         * be used!
-         */
-        int size = size();
-        if (size > 100) {
-            Logger.getLogger(getClass().getName())
-                    .warning(
-                            "(JPAContainer) WARNING! Invoking indexOfId() when size > 100 is not recommended!");
-        }
-        for (int i = 0; i < size; i++) {
-            Object id = getIdByIndex(i);
-            if (id == null) {
-                return -1;
-            } else if (id.equals(itemId)) {
-                if (!isWriteThrough() && bufferingDelegate.isDeleted(id)) {
-                    return -1;
-                }
-                return i;
-            }
+        if (itemId == null) {
+            return -1;
+        }
+        if (isWriteThrough()) {
+            return doGetEntityProvider().getEntityIndex(this, itemId,
+                    getAppliedFiltersAsConjunction(), getSortByList());
+        }
+        int addedIndex = bufferingDelegate.getAddedItemIds().indexOf(itemId);
+        if (addedIndex != -1) {
+            return addedIndex;
         }
-        return -1;
+        if (bufferingDelegate.isDeleted(itemId)) {
+            return -1;
+        }
+        int dbIndex = doGetEntityProvider().getEntityIndex(this, itemId,
+                getAppliedFiltersAsConjunction(), getSortByList());
+        if (dbIndex == -1) {
+            return -1;
+        }
+        return bufferingDelegate.getAddedItemIds().size()
+                + bufferingDelegate.unfixDbIndexWithDeletedItems(dbIndex);
     }
 
     /**
@@ -1218,10 +1467,19 @@ public class JPAContainer<T> implements EntityContainer<T>,
             requireWritableContainer();
 
             Object itemId = item.getItemId();
-            if (isWriteThrough()) {
-                ((MutableEntityProvider<T>) getEntityProvider())
+            if (isWriteThrough() && writeBehindDelegate != null) {
+                writeBehindDelegate.itemModified(item, propertyId);
+            } else if (isWriteThrough()) {
+                // Unbuffered edits are last-write-wins, but the item must know
+                // the new version so that it can be committed again
+                Object newVersion = ((MutableEntityProvider<T>) getEntityProvider())
                         .updateEntityProperty(itemId, propertyId, item
-                                .getItemProperty(propertyId).getValue());
+                                .getItemProperty(propertyId).getValue(), null);
+                EntityClassMetadata<T> metadata = getEntityClassMetadata();
+                if (newVersion != null && metadata.hasVersionProperty()) {
+                    metadata.setPropertyValue(item.getEntity(), metadata
+                            .getVersionProperty().getName(), newVersion);
+                }
                 item.setDirty(false);
             } else {
                 bufferingDelegate.updateEntity(itemId, item.getEntity());
@@ -1257,7 +1515,9 @@ public class JPAContainer<T> implements EntityContainer<T>,
             requireWritableContainer();
 
             Object itemId = item.getItemId();
-            if (isWriteThrough()) {
+            if (isWriteThrough() && writeBehindDelegate != null) {
+                writeBehindDelegate.itemModified(item, null);
+            } else if (isWriteThrough()) {
                 ((MutableEntityProvider<T>) getEntityProvider())
                         .updateEntity(item.getEntity());
                 item.setDirty(false);
@@ -1267,8 +1527,20 @@ public class JPAContainer<T> implements EntityContainer<T>,
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the changes are written behind, this writes all the pending changes
+     * in the calling thread.
+     * 
+     * @see #setWriteBehind(ScheduledExecutorService, long, Executor)
+     */
     public void commit() throws SourceException, InvalidValueException {
-        if (!isWriteThrough() && isModified()) {
+        if (isWriteThrough()) {
+            if (writeBehindDelegate != null) {
+                writeBehindDelegate.flush();
+            }
+        } else if (isModified()) {
             bufferingDelegate.commit();
             setFireItemSetChangeOnProviderChange(false);
             try {
@@ -1280,7 +1552,12 @@ public class JPAContainer<T> implements EntityContainer<T>,
     }
 
     public void discard() throws SourceException {
-        if (!isWriteThrough() && isModified()) {
+        if (isWriteThrough() && writeBehindDelegate != null) {
+            for (JPAContainerItem<T> item : writeBehindDelegate.discard()) {
+                item.refresh();
+                item.setDirty(false);
+            }
+        } else if (!isWriteThrough() && isModified()) {
             bufferingDelegate.discard();
             setFireItemSetChangeOnProviderChange(false);
             try {
@@ -1293,7 +1570,8 @@ public class JPAContainer<T> implements EntityContainer<T>,
 
     public boolean isModified() {
         if (isWriteThrough()) {
-            return false;
+            return writeBehindDelegate != null
+                    && writeBehindDelegate.isModified();
         } else {
             return bufferingDelegate.isModified();
         }
@@ -1335,6 +1613,9 @@ public class JPAContainer<T> implements EntityContainer<T>,
             this.writeThrough = writeThrough;
         } else {
             if (doGetEntityProvider() instanceof BatchableEntityProvider) {
+                if (writeBehindDelegate != null) {
+                    writeBehindDelegate.flush();
+                }
                 this.writeThrough = writeThrough;
             } else {
                 throw new UnsupportedOperationException(
@@ -1352,6 +1633,158 @@ public class JPAContainer<T> implements EntityContainer<T>,
         return isWriteThrough();
     }
 
+    private WriteBehindDelegate<T> writeBehindDelegate;
+
+    /**
+     * Specifies whether the changes made to the items in write-through mode
+     * should be written behind, i.e. in the background some time after they
+     * have been made, instead of in a transaction of their own as soon as a
+     * property value is changed. This is useful e.g. with tables that are
+     * edited inline, where every edited cell would otherwise be written
+     * separately.
+     * <p>
+     * The changes are coalesced per item ID, so that all the changes made to
+     * an item within <code>delay</code> milliseconds of the first one are
+     * written as a single update of the entity. The changes are then written
+     * in batched transactions using <code>executor</code>, or in the calling
+     * thread when {@link #commit()} is called. Until then,
+     * {@link #isModified()} returns true, and {@link #discard()} drops the
+     * pending changes and refreshes the items. If the entity of an item
+     * cannot be written, the {@link WriteFailedListener}s of the container
+     * are notified, and the item remains dirty and is written again the next
+     * time the changes are written.
+     * <p>
+     * The entity provider is used in the thread of the executor. As an entity
+     * manager must not be shared between threads, the changes are only
+     * written in the background if the entity provider gets its entity
+     * manager from an {@link EntityManagerProvider}; otherwise they are
+     * written at once, as if <code>delay</code> was 0 and {@link #commit()}
+     * was called after every change. The background thread never touches the
+     * items: every change takes a snapshot of the entity of the item, and
+     * only the snapshots are written. Entities that have a public
+     * <code>clone()</code> method are cloned, otherwise their persistent
+     * properties are copied to a new instance; collections and referenced
+     * entities are shared with the item, so they must not be changed while
+     * the changes are pending.
+     * <p>
+     * The results of the changes written in the background, i.e. the new
+     * versions of the entities, the dirty flags of the items and the
+     * {@link WriteFailedListener}s, are applied through
+     * <code>resultExecutor</code>, which must run the tasks with the session
+     * locked, e.g. by passing them to <code>UI.access()</code>. The results of
+     * the changes written by {@link #commit()} are applied in the calling
+     * thread. The executors are not serialized; after deserialization, the
+     * changes are written at once.
+     * 
+     * @param executor
+     *            the executor to write the changes with, or null to write the
+     *            changes at once (the default). Any pending changes are
+     *            written before the executor is changed.
+     * @param delay
+     *            the number of milliseconds to wait for more changes before
+     *            writing them, or 0 to write them only when {@link #commit()}
+     *            is called.
+     * @param resultExecutor
+     *            the executor that applies the results of the changes written
+     *            in the background with the session locked (must not be null
+     *            if <code>executor</code> is not null).
+     * @since 3.2
+     */
+    public void setWriteBehind(ScheduledExecutorService executor, long delay,
+            Executor resultExecutor) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay must not be negative");
+        }
+        if (executor != null && resultExecutor == null) {
+            throw new IllegalArgumentException(
+                    "resultExecutor must not be null");
+        }
+        if (writeBehindDelegate != null) {
+            writeBehindDelegate.flush();
+        }
+        writeBehindDelegate = executor == null ? null
+                : new WriteBehindDelegate<T>(this, executor, delay,
+                        resultExecutor);
+    }
+
+    /**
+     * @see #setWriteBehind(ScheduledExecutorService, long, Executor)
+     * @return true if the changes made to the items in write-through mode are
+     *         written behind, false if they are written at once.
+     * @since 3.2
+     */
+    public boolean isWriteBehind() {
+        return writeBehindDelegate != null
+                && writeBehindDelegate.getExecutor() != null;
+    }
+
+    /**
+     * @return true if the entity provider can be used in the thread of the
+     *         write-behind executor, i.e. if it gets its entity manager from
+     *         an {@link EntityManagerProvider} and no shared entity manager
+     *         has been set.
+     */
+    boolean isWriteBehindSupported() {
+        if (entityProvider instanceof LocalEntityProvider) {
+            return ((LocalEntityProvider<T>) entityProvider)
+                    .isEntityManagerProvided();
+        }
+        return entityProvider != null
+                && entityProvider.getEntityManagerProvider() != null;
+    }
+
+    /**
+     * Registers a new listener that is notified when the changes made to an
+     * item cannot be written behind.
+     * 
+     * @see #setWriteBehind(ScheduledExecutorService, long, Executor)
+     * @param listener
+     *            the listener to add (null listeners are ignored).
+     * @since 3.2
+     */
+    public void addWriteFailedListener(WriteFailedListener listener) {
+        if (listener == null) {
+            return;
+        }
+        if (writeFailedListeners == null) {
+            writeFailedListeners = new LinkedList<WriteFailedListener>();
+        }
+        writeFailedListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added with
+     * {@link #addWriteFailedListener(WriteFailedListener)}.
+     * 
+     * @param listener
+     *            the listener to remove.
+     * @since 3.2
+     */
+    public void removeWriteFailedListener(WriteFailedListener listener) {
+        if (listener != null && writeFailedListeners != null) {
+            writeFailedListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Called by the {@link WriteBehindDelegate} when the entity of
+     * <code>item</code> could not be written.
+     */
+    @SuppressWarnings("unchecked")
+    void writeBehindFailed(JPAContainerItem<T> item, RuntimeException error) {
+        if (writeFailedListeners == null || writeFailedListeners.isEmpty()) {
+            Logger.getLogger(JPAContainer.class.getName()).log(Level.WARNING,
+                    "Could not write item " + item.getItemId(), error);
+            return;
+        }
+        WriteFailedEvent event = new WriteFailedEvent(item, error);
+        LinkedList<WriteFailedListener> list = (LinkedList<WriteFailedListener>) writeFailedListeners
+                .clone();
+        for (WriteFailedListener l : list) {
+            l.writeFailed(event);
+        }
+    }
+
     private String parentProperty;
 
     private String parentIdProperty;
@@ -1585,6 +2018,36 @@ public class JPAContainer<T> implements EntityContainer<T>,
         }
     }
 
+    /**
+     * Event fired when the items of the container have been counted in the
+     * background.
+     * 
+     * @see JPAContainer#setAsynchronousSize(boolean, Executor)
+     * @since 3.2
+     */
+    public final class ItemsCountedEvent implements ItemSetChangeEvent {
+
+        private static final long serialVersionUID = 2493027617305612380L;
+        private final int count;
+
+        protected ItemsCountedEvent(int count) {
+            this.count = count;
+        }
+
+        public Container getContainer() {
+            return JPAContainer.this;
+        }
+
+        /**
+         * Gets the number of entities that the entity provider counted. The
+         * size of the container also includes the items that have been added
+         * or removed but not yet committed.
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
     /**
      * Abstract base class for events concerning single {@link EntityItem}s.
      * 
@@ -1661,6 +2124,76 @@ public class JPAContainer<T> implements EntityContainer<T>,
         }
     }
 
+    /**
+     * Event indicating that the changes made to an item could not be written
+     * behind. If the changes were written in the background, the event is
+     * fired through the result executor of the container.
+     * 
+     * @see JPAContainer#setWriteBehind(ScheduledExecutorService, long, Executor)
+     * @since 3.2
+     */
+    public final class WriteFailedEvent implements Serializable {
+
+        private static final long serialVersionUID = -1905724637214403376L;
+        private final EntityItem<T> item;
+        private final RuntimeException error;
+
+        protected WriteFailedEvent(EntityItem<T> item, RuntimeException error) {
+            this.item = item;
+            this.error = error;
+        }
+
+        /**
+         * @return the container whose item could not be written.
+         */
+        public JPAContainer<T> getContainer() {
+            return JPAContainer.this;
+        }
+
+        /**
+         * @return the ID of the item whose changes could not be written.
+         */
+        public Object getItemId() {
+            return item.getItemId();
+        }
+
+        /**
+         * Gets the item whose changes could not be written. The item still
+         * contains the changes.
+         * 
+         * @return the item.
+         */
+        public EntityItem<T> getItem() {
+            return item;
+        }
+
+        /**
+         * @return the exception thrown by the entity provider.
+         */
+        public RuntimeException getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Listener interface for receiving {@link WriteFailedEvent}s.
+     * 
+     * @see JPAContainer#addWriteFailedListener(WriteFailedListener)
+     * @since 3.2
+     */
+    public interface WriteFailedListener extends Serializable {
+
+        /**
+         * Called when the changes made to an item could not be written
+         * behind. The item remains dirty and is written again the next time
+         * the changes are written, unless they are discarded.
+         * 
+         * @param event
+         *            the event describing the failure.
+         */
+        void writeFailed(JPAContainer<?>.WriteFailedEvent event);
+    }
+
     public final class AllItemsRefreshedEvent implements ItemSetChangeEvent {
 
         private static final long serialVersionUID = 530180436710345623L;
@@ -1705,6 +2238,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
      * @see com.vaadin.addon.jpacontainer.EntityContainer#refresh()
      */
     public void refresh() {
+        cancelAsynchronousCount();
         doGetEntityProvider().refresh();
         bufferingDelegate.discard();
         synchronized (getItemRegistry()) {
@@ -1749,13 +2283,175 @@ public class JPAContainer<T> implements EntityContainer<T>,
         removeListener(listener);
     }
 
+    /**
+     * {@inheritDoc }
+     * <p>
+     * The identifiers are fetched from the entity provider using a single
+     * range query (see
+     * {@link EntityProvider#getEntityIdentifiersInRange(EntityContainer, Filter, List, int, int)}
+     * ). In buffered mode, added items are listed first and items marked for
+     * deletion are skipped, just like in {@link #getIdByIndex(int)}.
+     * <p>
+     * In projection mode (see {@link #setProjectionMode(boolean)}), the
+     * values of the container properties are fetched together with the
+     * identifiers.
+     */
     public List<?> getItemIds(int startIndex, int numberOfItems) {
-        // FIXME this should be optimized
-        ArrayList<Object> ids = new ArrayList<Object>();
-        for (int i = 0; i < numberOfItems; i++) {
-            ids.add(getIdByIndex(startIndex + i));
+        if (startIndex < 0) {
+            throw new IndexOutOfBoundsException("startIndex must not be < 0");
+        }
+        if (numberOfItems < 0) {
+            throw new IllegalArgumentException(
+                    "numberOfItems must not be < 0");
+        }
+        if (isProjectionMode()
+                && (isWriteThrough() || !bufferingDelegate.isModified())) {
+            return getProjectedItemIds(startIndex, numberOfItems);
+        }
+        if (isWriteThrough()) {
+            return doGetEntityProvider().getEntityIdentifiersInRange(this,
+                    getAppliedFiltersAsConjunction(), getSortByList(),
+                    startIndex, numberOfItems);
+        }
+        ArrayList<Object> ids = new ArrayList<Object>(numberOfItems);
+        List<Object> addedItemIds = bufferingDelegate.getAddedItemIds();
+        int index = startIndex;
+        while (index < addedItemIds.size() && ids.size() < numberOfItems) {
+            ids.add(addedItemIds.get(index++));
+        }
+        int remaining = numberOfItems - ids.size();
+        if (remaining > 0) {
+            int dbIndex = bufferingDelegate
+                    .fixDbIndexWithDeletedItems(index - addedItemIds.size());
+            // Fetch enough extra rows to be able to skip all deleted items
+            List<Object> dbIds = doGetEntityProvider()
+                    .getEntityIdentifiersInRange(this,
+                            getAppliedFiltersAsConjunction(), getSortByList(),
+                            dbIndex,
+                            remaining
+                                    + bufferingDelegate.getDeletedItemIds()
+                                            .size());
+            for (Object id : dbIds) {
+                if (ids.size() == numberOfItems) {
+                    break;
+                }
+                if (!bufferingDelegate.isDeleted(id)) {
+                    ids.add(id);
+                }
+            }
+        }
+        return Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * Fetches the rows of the items in the specified range using a single
+     * projection query and keeps them for {@link #getItem(Object)}.
+     */
+    private List<?> getProjectedItemIds(int startIndex, int numberOfItems) {
+        List<String> propertyIds = getProjectablePropertyIds();
+        List<Object[]> rows = doGetEntityProvider()
+                .getEntityPropertyValuesInRange(this,
+                        getAppliedFiltersAsConjunction(), getSortByList(),
+                        startIndex, numberOfItems, propertyIds);
+        ArrayList<Object> ids = new ArrayList<Object>(rows.size());
+        HashMap<Object, Object[]> rowMap = new HashMap<Object, Object[]>(
+                rows.size() * 2);
+        for (Object[] row : rows) {
+            ids.add(row[0]);
+            rowMap.put(row[0], row);
+        }
+        projectedPropertyIds = propertyIds;
+        projectedRows = rowMap;
+        return Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * Gets the container properties that can be fetched using a projection
+     * query, i.e. the persistent properties that are not collections and are
+     * not reached through collections. References to other entities are
+     * excluded as well, as fetching them would require loading the entities.
+     * 
+     * @return a list of property ids (never null).
+     */
+    protected List<String> getProjectablePropertyIds() {
+        List<String> propertyIds = new ArrayList<String>();
+        for (String propertyId : getContainerPropertyIds()) {
+            if (isProjectable(propertyId)) {
+                propertyIds.add(propertyId);
+            }
+        }
+        return propertyIds;
+    }
+
+    private boolean isProjectable(String propertyId) {
+        String[] path = propertyId.split("\\.");
+        ClassMetadata<?> metadata = entityClassMetadata;
+        for (int i = 0; i < path.length; i++) {
+            if (metadata == null) {
+                return false;
+            }
+            PropertyMetadata property = metadata.getProperty(path[i]);
+            if (!(property instanceof PersistentPropertyMetadata)) {
+                return false;
+            }
+            PropertyKind kind = property.getPropertyKind();
+            if (i == path.length - 1) {
+                return kind == PropertyKind.SIMPLE
+                        || kind == PropertyKind.EMBEDDED;
+            }
+            if (kind != PropertyKind.EMBEDDED
+                    && kind != PropertyKind.MANY_TO_ONE
+                    && kind != PropertyKind.ONE_TO_ONE) {
+                return false;
+            }
+            metadata = ((PersistentPropertyMetadata) property)
+                    .getTypeMetadata();
         }
-        return ids;
+        return false;
+    }
+
+    private void clearProjectedRows() {
+        projectedRows = null;
+        projectedPropertyIds = null;
+    }
+
+    /**
+     * Turns projection mode on or off. In projection mode, only the values of
+     * the container properties (see {@link #getContainerPropertyIds()}) are
+     * fetched when a range of items is requested using
+     * {@link #getItemIds(int, int)}, instead of complete entities. The items
+     * of that range are returned by {@link #getItem(Object)} as read-only
+     * {@link ProjectedEntityItem}s that only load their entity if it is
+     * explicitly requested.
+     * <p>
+     * This is intended for read-only tables showing a few columns of wide
+     * entities. Remove the unneeded properties from the container using
+     * {@link #removeContainerProperty(Object)} and add the shown nested
+     * properties using {@link #addNestedContainerProperty(String)}. Properties
+     * referring to other entities or to collections are never projected and
+     * are read from the entity when accessed.
+     * <p>
+     * Projection is not used while there are uncommitted changes in buffered
+     * mode.
+     * 
+     * @param projectionMode
+     *            true to turn projection mode on, false to turn it off.
+     * @since 3.2
+     */
+    public void setProjectionMode(boolean projectionMode) {
+        this.projectionMode = projectionMode;
+        clearProjectedRows();
+    }
+
+    /**
+     * Checks whether projection mode is turned on.
+     * 
+     * @see #setProjectionMode(boolean)
+     * @return true if projection mode is on, false otherwise.
+     * @since 3.2
+     */
+    public boolean isProjectionMode() {
+        return projectionMode;
     }
 
     @Override
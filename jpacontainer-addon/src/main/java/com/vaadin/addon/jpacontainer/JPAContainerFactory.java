@@ -24,6 +24,8 @@ import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 import javax.transaction.UserTransaction;
 
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.metadata.MetamodelMetadataFactory;
 import com.vaadin.addon.jpacontainer.provider.CachingBatchableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.CachingMutableLocalEntityProvider;
@@ -118,10 +120,56 @@ public class JPAContainerFactory {
      */
     public synchronized static EntityManager createEntityManagerForPersistenceUnit(
             String name) {
+        return getEntityManagerFactory(name).createEntityManager();
+    }
+
+    private synchronized static EntityManagerFactory getEntityManagerFactory(
+            String name) {
         if (!puToEmfMap.containsKey(name)) {
             puToEmfMap.put(name, Persistence.createEntityManagerFactory(name));
         }
-        return puToEmfMap.get(name).createEntityManager();
+        return puToEmfMap.get(name);
+    }
+
+    /**
+     * Makes all containers and entity providers that are created after this
+     * call build the metadata of the entities of the persistence unit from its
+     * JPA metamodel, instead of from the annotations of the entity classes.
+     * This should be called when the application starts. Metadata that has
+     * already been created is not affected.
+     * 
+     * @see MetamodelMetadataFactory
+     * @param entityManagerFactory
+     *            the entity manager factory of the persistence unit (must not
+     *            be null).
+     * @since 3.2
+     */
+    public synchronized static void useMetamodel(
+            EntityManagerFactory entityManagerFactory) {
+        assert entityManagerFactory != null : "entityManagerFactory must not be null";
+        MetadataFactory factory = MetadataFactory.getInstance();
+        if (factory instanceof MetamodelMetadataFactory) {
+            ((MetamodelMetadataFactory) factory)
+                    .addMetamodel(entityManagerFactory.getMetamodel());
+        } else {
+            MetadataFactory.setInstance(new MetamodelMetadataFactory(
+                    entityManagerFactory.getMetamodel()));
+        }
+    }
+
+    /**
+     * Makes all containers and entity providers that are created after this
+     * call build the metadata of the entities of the persistence unit from its
+     * JPA metamodel. The cached {@link EntityManagerFactory} of the
+     * persistence unit is used, and created if it does not exist yet.
+     * 
+     * @see #useMetamodel(EntityManagerFactory)
+     * @param persistenceUnitName
+     *            the name of the persistence unit.
+     * @since 3.2
+     */
+    public static void useMetamodel(String persistenceUnitName) {
+        useMetamodel(getEntityManagerFactory(persistenceUnitName));
     }
 
     /**
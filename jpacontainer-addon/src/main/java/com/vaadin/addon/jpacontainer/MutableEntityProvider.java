@@ -91,6 +91,39 @@ public interface MutableEntityProvider<T> extends EntityProvider<T> {
             Object propertyValue) throws IllegalArgumentException,
             RuntimeException;
 
+    /**
+     * Updates a single property value of a specific entity, provided that the
+     * version of the entity in the persistence storage is still
+     * <code>expectedVersion</code>. If the entity is not found, nothing
+     * happens.
+     * 
+     * @param entityId
+     *            the identifier of the entity (must not be null).
+     * @param propertyName
+     *            the name of the property to update (must not be null).
+     * @param propertyValue
+     *            the new property value.
+     * @param expectedVersion
+     *            the value of the version property of the entity that the
+     *            change is based on, or null to update the entity regardless
+     *            of its version.
+     * @return the new value of the version property of the entity, or null if
+     *         the entity has no version property, the entity was not found or
+     *         the new version is not known.
+     * @throws IllegalArgumentException
+     *             if <code>propertyName</code> is not a valid property name.
+     * @throws javax.persistence.OptimisticLockException
+     *             if the entity has been updated since
+     *             <code>expectedVersion</code>.
+     * @throws RuntimeException
+     *             if an error occurs while saving the change to the persistence
+     *             storage.
+     * @since 3.2
+     */
+    public Object updateEntityProperty(Object entityId, String propertyName,
+            Object propertyValue, Object expectedVersion)
+            throws IllegalArgumentException, RuntimeException;
+
     /**
      * Removes the entity identified by <code>entityId</code>. If no entity is
      * found, nothing happens.
@@ -0,0 +1,407 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.util.Collection;
+import java.util.EventObject;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Container.ItemSetChangeEvent;
+import com.vaadin.data.Property;
+import com.vaadin.data.Property.ValueChangeListener;
+import com.vaadin.data.Validator.InvalidValueException;
+
+/**
+ * Read-only {@link EntityItem}-implementation that is used by
+ * {@link JPAContainer} in projection mode. The item is backed by the property
+ * values fetched by
+ * {@link EntityProvider#getEntityPropertyValuesInRange(EntityContainer, com.vaadin.data.Container.Filter, List, int, int, List)}
+ * instead of an entity instance. The entity is only loaded if
+ * {@link #getEntity()} is called or a property that was not projected is
+ * accessed. Should not be used directly by clients.
+ * 
+ * @see JPAContainer#setProjectionMode(boolean)
+ * @since 3.2
+ */
+public final class ProjectedEntityItem<T> implements EntityItem<T> {
+
+    private static final long serialVersionUID = -5107624946203516473L;
+
+    /**
+     * Read-only {@link Property}-implementation that is used by
+     * {@link ProjectedEntityItem}. Should not be used directly by clients.
+     * 
+     * @since 3.2
+     */
+    final class ItemProperty implements EntityItemProperty {
+
+        private static final long serialVersionUID = 1745163938273659262L;
+        private String propertyId;
+        private List<ValueChangeListener> listeners;
+
+        /**
+         * Creates a new <code>ItemProperty</code>.
+         * 
+         * @param propertyId
+         *            the property id of the new property (must not be null).
+         */
+        ItemProperty(String propertyId) {
+            assert propertyId != null : "propertyId must not be null";
+            this.propertyId = propertyId;
+        }
+
+        public String getPropertyId() {
+            return propertyId;
+        }
+
+        public EntityItem<?> getItem() {
+            return ProjectedEntityItem.this;
+        }
+
+        public Class<?> getType() {
+            return propertyList.getPropertyType(propertyId);
+        }
+
+        public Object getValue() {
+            if (values.containsKey(propertyId)) {
+                return values.get(propertyId);
+            }
+            T entity = getEntity();
+            if (entity == null) {
+                return null;
+            }
+            return propertyList.getPropertyValue(entity, propertyId);
+        }
+
+        @Override
+        public String toString() {
+            final Object value = getValue();
+            if (value == null) {
+                return null;
+            }
+            return value.toString();
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        /**
+         * <strong>This functionality is not supported by this
+         * implementation.</strong>
+         * <p>
+         * {@inheritDoc }
+         */
+        public void setReadOnly(boolean newStatus) {
+            throw new UnsupportedOperationException(
+                    "The read only state cannot be changed");
+        }
+
+        public void setValue(Object newValue) throws ReadOnlyException {
+            throw new ReadOnlyException("Projected items are read only");
+        }
+
+        private class ValueChangeEvent extends EventObject implements
+                Property.ValueChangeEvent {
+
+            private static final long serialVersionUID = -1813749272813941728L;
+
+            private ValueChangeEvent(ItemProperty source) {
+                super(source);
+            }
+
+            public Property<?> getProperty() {
+                return (Property<?>) getSource();
+            }
+        }
+
+        /**
+         * Notifies all the listeners that the value of the property has
+         * changed.
+         */
+        public void fireValueChangeEvent() {
+            if (listeners != null) {
+                final Object[] l = listeners.toArray();
+                final Property.ValueChangeEvent event = new ValueChangeEvent(
+                        this);
+                for (int i = 0; i < l.length; i++) {
+                    ((Property.ValueChangeListener) l[i]).valueChange(event);
+                }
+            }
+        }
+
+        public void addValueChangeListener(ValueChangeListener listener) {
+            assert listener != null : "listener must not be null";
+            if (listeners == null) {
+                listeners = new LinkedList<ValueChangeListener>();
+            }
+            listeners.add(listener);
+        }
+
+        public void removeValueChangeListener(ValueChangeListener listener) {
+            assert listener != null : "listener must not be null";
+            if (listeners != null) {
+                listeners.remove(listener);
+                if (listeners.isEmpty()) {
+                    listeners = null;
+                }
+            }
+        }
+
+        /**
+         * @deprecated As of 7.0, replaced by
+         *             {@link #addValueChangeListener(ValueChangeListener)}
+         */
+        @Deprecated
+        public void addListener(ValueChangeListener listener) {
+            addValueChangeListener(listener);
+        }
+
+        /**
+         * @deprecated As of 7.0, replaced by
+         *             {@link #removeValueChangeListener(ValueChangeListener)}
+         */
+        @Deprecated
+        public void removeListener(ValueChangeListener listener) {
+            removeValueChangeListener(listener);
+        }
+    }
+
+    private JPAContainer<T> container;
+    private PropertyList<T> propertyList;
+    private Object itemId;
+    private Map<String, Object> values;
+    private Map<Object, ItemProperty> propertyMap;
+    private T entity;
+
+    /**
+     * Creates a new <code>ProjectedEntityItem</code>.
+     * 
+     * @param container
+     *            the container that holds the item (must not be null).
+     * @param itemId
+     *            the item ID, i.e. the entity identifier (must not be null).
+     * @param propertyIds
+     *            the projected property ids (must not be null).
+     * @param row
+     *            the row fetched by the entity provider, i.e. the entity
+     *            identifier followed by the values of <code>propertyIds</code>
+     *            (must not be null).
+     */
+    ProjectedEntityItem(JPAContainer<T> container, Object itemId,
+            List<String> propertyIds, Object[] row) {
+        assert container != null : "container must not be null";
+        assert itemId != null : "itemId must not be null";
+        assert propertyIds != null : "propertyIds must not be null";
+        assert row != null && row.length == propertyIds.size() + 1 : "row must contain the identifier and all projected values";
+        this.container = container;
+        this.propertyList = container.getPropertyList();
+        this.itemId = itemId;
+        this.values = new HashMap<String, Object>(propertyIds.size() * 2);
+        for (int i = 0; i < propertyIds.size(); i++) {
+            values.put(propertyIds.get(i), row[i + 1]);
+        }
+        this.propertyMap = new HashMap<Object, ItemProperty>();
+    }
+
+    public Object getItemId() {
+        return itemId;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public boolean addItemProperty(Object id, Property property)
+            throws UnsupportedOperationException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * <strong>This functionality is not supported by this
+     * implementation.</strong>
+     * <p>
+     * {@inheritDoc }
+     */
+    public void addNestedContainerProperty(String nestedProperty)
+            throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(
+                "Projected items are read only");
+    }
+
+    public EntityItemProperty getItemProperty(Object id) {
+        assert id != null : "id must not be null";
+        ItemProperty p = propertyMap.get(id);
+        if (p == null) {
+            if (!getItemPropertyIds().contains(id.toString())) {
+                return null;
+            }
+            p = new ItemProperty(id.toString());
+            propertyMap.put(id, p);
+        }
+        return p;
+    }
+
+    public Collection<String> getItemPropertyIds() {
+        return propertyList.getAllAvailablePropertyNames();
+    }
+
+    /**
+     * <strong>This functionality is not supported by this
+     * implementation.</strong>
+     * <p>
+     * {@inheritDoc }
+     */
+    public boolean removeItemProperty(Object id)
+            throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(
+                "Projected items are read only");
+    }
+
+    /**
+     * Checks whether the value of <code>propertyId</code> was fetched together
+     * with the item, i.e. can be read without loading the entity.
+     * 
+     * @param propertyId
+     *            the property id (must not be null).
+     * @return true if the property has been projected, false otherwise.
+     */
+    public boolean isProjected(String propertyId) {
+        return values.containsKey(propertyId);
+    }
+
+    public boolean isModified() {
+        return false;
+    }
+
+    public boolean isDirty() {
+        return false;
+    }
+
+    public boolean isPersistent() {
+        return true;
+    }
+
+    public boolean isDeleted() {
+        return false;
+    }
+
+    public EntityContainer<T> getContainer() {
+        return container;
+    }
+
+    /**
+     * {@inheritDoc }
+     * <p>
+     * The entity is loaded from the entity provider the first time this method
+     * is called.
+     */
+    public T getEntity() {
+        if (entity == null) {
+            entity = container.getEntityProvider().getEntity(container, itemId);
+        }
+        return entity;
+    }
+
+    public void commit() throws SourceException, InvalidValueException {
+        // Nothing to commit, the item is read only
+    }
+
+    public void discard() throws SourceException {
+        // Nothing to discard, the item is read only
+    }
+
+    public void setBuffered(boolean buffered) {
+        if (buffered) {
+            throw new UnsupportedOperationException(
+                    "Projected items cannot be buffered");
+        }
+    }
+
+    public boolean isBuffered() {
+        return false;
+    }
+
+    public void addValueChangeListener(ValueChangeListener listener) {
+        for (String propertyId : getItemPropertyIds()) {
+            ((Property.ValueChangeNotifier) getItemProperty(propertyId))
+                    .addValueChangeListener(listener);
+        }
+    }
+
+    public void removeValueChangeListener(ValueChangeListener listener) {
+        for (String propertyId : getItemPropertyIds()) {
+            ((Property.ValueChangeNotifier) getItemProperty(propertyId))
+                    .removeValueChangeListener(listener);
+        }
+    }
+
+    /**
+     * @deprecated As of 7.0, replaced by
+     *             {@link #addValueChangeListener(ValueChangeListener)}
+     */
+    @Deprecated
+    public void addListener(ValueChangeListener listener) {
+        addValueChangeListener(listener);
+    }
+
+    /**
+     * @deprecated As of 7.0, replaced by
+     *             {@link #removeValueChangeListener(ValueChangeListener)}
+     */
+    @Deprecated
+    public void removeListener(ValueChangeListener listener) {
+        removeValueChangeListener(listener);
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+
+    /**
+     * {@inheritDoc }
+     * <p>
+     * The projected values are replaced with the values of the refreshed
+     * entity.
+     */
+    @SuppressWarnings("serial")
+    public void refresh() {
+        T refreshedEntity = container.getEntityProvider().getEntity(container,
+                itemId);
+        if (refreshedEntity == null) {
+            /*
+             * Entity has been removed, fire item set change for the container
+             */
+            container.fireContainerItemSetChange(new ItemSetChangeEvent() {
+                public Container getContainer() {
+                    return container;
+                }
+            });
+            return;
+        }
+        entity = refreshedEntity;
+        for (String propertyId : values.keySet()) {
+            values.put(propertyId,
+                    propertyList.getPropertyValue(entity, propertyId));
+        }
+        for (ItemProperty prop : propertyMap.values()) {
+            prop.fireValueChangeEvent();
+        }
+    }
+}
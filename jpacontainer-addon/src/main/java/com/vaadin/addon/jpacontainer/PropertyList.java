@@ -55,13 +55,21 @@ final class PropertyList<T> implements Serializable {
 
     private static final long serialVersionUID = 372287057799712177L;
     private ClassMetadata<T> metadata;
-    private Set<String> propertyNames = new HashSet<String>();
-    private Set<String> persistentPropertyNames = new HashSet<String>();
+    /*
+     * A child list shares empty immutable collections until properties are
+     * added to it, which is the common case for the lists of container items.
+     */
+    private boolean collectionsCreated;
+    private Set<String> propertyNames = Collections.emptySet();
+    private Set<String> persistentPropertyNames = Collections.emptySet();
     // map from property name to the name of the property to be used to sort by
     // that property (in a format usable in JPQL - e.g. address.street)
-    private Map<String, String> sortablePropertyMap = new HashMap<String, String>();
-    private Set<String> nestedPropertyNames = new HashSet<String>();
-    private Set<String> allPropertyNames = new HashSet<String>();
+    private Map<String, String> sortablePropertyMap = Collections.emptyMap();
+    private Set<String> nestedPropertyNames = Collections.emptySet();
+    private Set<String> allPropertyNames = Collections.emptySet();
+    // incremented whenever the collections above are changed
+    private transient int modCount;
+    private transient volatile MergedView mergedView;
 
     /**
      * Creates a new <code>PropertyList</code> for the specified metadata.
@@ -74,6 +82,7 @@ final class PropertyList<T> implements Serializable {
     public PropertyList(ClassMetadata<T> metadata) {
         assert metadata != null : "metadata must not be null";
         this.metadata = metadata;
+        createCollections();
         for (PropertyMetadata pm : metadata.getProperties()) {
             propertyNames.add(pm.getName());
             allPropertyNames.add(pm.getName());
@@ -103,6 +112,17 @@ final class PropertyList<T> implements Serializable {
         this.metadata = parentList.getClassMetadata();
     }
 
+    private void createCollections() {
+        if (!collectionsCreated) {
+            propertyNames = new HashSet<String>();
+            persistentPropertyNames = new HashSet<String>();
+            sortablePropertyMap = new HashMap<String, String>();
+            nestedPropertyNames = new HashSet<String>();
+            allPropertyNames = new HashSet<String>();
+            collectionsCreated = true;
+        }
+    }
+
     /**
      * Gets the metadata for the class from which the properties should be
      * fetched.
@@ -156,6 +176,7 @@ final class PropertyList<T> implements Serializable {
             throws IllegalArgumentException {
         if (persistentPropertyNames.contains(propertyName)) {
             sortablePropertyMap.put(propertyName, sortPropertyName);
+            modCount++;
         } else {
             throw new IllegalArgumentException("Property " + propertyName
                     + " cannot be sorted based on " + sortPropertyName
@@ -199,6 +220,16 @@ final class PropertyList<T> implements Serializable {
             return; // Do nothing, the property already exists.
         }
 
+        createCollections();
+        try {
+            doAddNestedProperty(propertyName);
+        } finally {
+            modCount++;
+        }
+    }
+
+    private void doAddNestedProperty(String propertyName)
+            throws IllegalArgumentException {
         if (propertyName.endsWith("*")) {
             // We add a whole bunch of properties
             String parentPropertyName = propertyName.substring(0,
@@ -377,10 +408,17 @@ final class PropertyList<T> implements Serializable {
         }
     }
 
-    private Map<String, NestedProperty> nestedPropertyMap = new HashMap<String, NestedProperty>();
+    private Map<String, NestedProperty> nestedPropertyMap;
 
     private NestedProperty getNestedProperty(String propertyName)
             throws IllegalArgumentException {
+        if (!collectionsCreated) {
+            // No properties of our own, the parent can resolve all of them
+            return parentList.getNestedProperty(propertyName);
+        }
+        if (nestedPropertyMap == null) {
+            nestedPropertyMap = new HashMap<String, NestedProperty>();
+        }
         if (nestedPropertyMap.containsKey(propertyName)) {
             return nestedPropertyMap.get(propertyName);
         } else {
@@ -469,12 +507,16 @@ final class PropertyList<T> implements Serializable {
      */
     public boolean removeProperty(String propertyName) {
         assert propertyName != null : "propertyName must not be null";
+        if (!collectionsCreated) {
+            return false;
+        }
         boolean result = propertyNames.remove(propertyName);
         persistentPropertyNames.remove(propertyName);
         sortablePropertyMap.remove(propertyName);
         if (nestedPropertyNames.remove(propertyName)) {
             allPropertyNames.remove(propertyName);
         }
+        modCount++;
         // Do not remove from map of nested properties in case the property
         // is referenced by other nested properties.
         return result;
@@ -489,33 +531,94 @@ final class PropertyList<T> implements Serializable {
      * @return an unmodifiable set of property names (never null).
      */
     public Set<String> getAllAvailablePropertyNames() {
-        return Collections.unmodifiableSet(doGetAllAvailablePropertyNames());
+        return doGetAllAvailablePropertyNames();
     }
 
-    private <E> Set<E> union(Set<E>... sets) {
-        HashSet<E> newSet = new HashSet<E>();
-        for (Set<E> s : sets) {
-            newSet.addAll(s);
+    /**
+     * The unmodifiable sets returned by the getters. The sets of a root list
+     * are views of its own collections. The sets of a child list are the
+     * sets of its parent if it has no properties of its own, and copies of
+     * the union otherwise. The view is replaced when the version of the list
+     * or any of its parents changes.
+     */
+    private static final class MergedView {
+
+        final int version;
+        final Set<String> allPropertyNames;
+        final Set<String> propertyNames;
+        final Set<String> persistentPropertyNames;
+        final Map<String, String> sortablePropertyMap;
+        final Set<String> nestedPropertyNames;
+
+        MergedView(int version, Set<String> allPropertyNames,
+                Set<String> propertyNames,
+                Set<String> persistentPropertyNames,
+                Map<String, String> sortablePropertyMap,
+                Set<String> nestedPropertyNames) {
+            this.version = version;
+            this.allPropertyNames = allPropertyNames;
+            this.propertyNames = propertyNames;
+            this.persistentPropertyNames = persistentPropertyNames;
+            this.sortablePropertyMap = sortablePropertyMap;
+            this.nestedPropertyNames = nestedPropertyNames;
         }
-        return newSet;
     }
 
-    private <K, V> Map<K, V> union(Map<K, V>... maps) {
-        HashMap<K, V> newMap = new HashMap<K, V>();
-        for (Map<K, V> s : maps) {
-            newMap.putAll(s);
+    private int getVersion() {
+        if (parentList == null) {
+            return modCount;
+        } else {
+            return modCount + parentList.getVersion();
         }
-        return newMap;
     }
 
-    @SuppressWarnings("unchecked")
-    protected Set<String> doGetAllAvailablePropertyNames() {
-        if (parentList == null) {
-            return allPropertyNames;
-        } else {
-            return union(allPropertyNames,
-                    parentList.doGetAllAvailablePropertyNames());
+    private MergedView getMergedView() {
+        int version = getVersion();
+        MergedView view = mergedView;
+        if (view == null || view.version != version) {
+            if (parentList == null) {
+                view = new MergedView(version,
+                        Collections.unmodifiableSet(allPropertyNames),
+                        Collections.unmodifiableSet(propertyNames),
+                        Collections.unmodifiableSet(persistentPropertyNames),
+                        Collections.unmodifiableMap(sortablePropertyMap),
+                        Collections.unmodifiableSet(nestedPropertyNames));
+            } else {
+                MergedView parentView = parentList.getMergedView();
+                view = new MergedView(version, union(allPropertyNames,
+                        parentView.allPropertyNames), union(propertyNames,
+                        parentView.propertyNames), union(
+                        persistentPropertyNames,
+                        parentView.persistentPropertyNames), union(
+                        sortablePropertyMap, parentView.sortablePropertyMap),
+                        union(nestedPropertyNames,
+                                parentView.nestedPropertyNames));
+            }
+            mergedView = view;
         }
+        return view;
+    }
+
+    private static <E> Set<E> union(Set<E> own, Set<E> parent) {
+        if (own.isEmpty()) {
+            return parent;
+        }
+        HashSet<E> newSet = new HashSet<E>(parent);
+        newSet.addAll(own);
+        return Collections.unmodifiableSet(newSet);
+    }
+
+    private static <K, V> Map<K, V> union(Map<K, V> own, Map<K, V> parent) {
+        if (own.isEmpty()) {
+            return parent;
+        }
+        HashMap<K, V> newMap = new HashMap<K, V>(parent);
+        newMap.putAll(own);
+        return Collections.unmodifiableMap(newMap);
+    }
+
+    protected Set<String> doGetAllAvailablePropertyNames() {
+        return getMergedView().allPropertyNames;
     }
 
     /**
@@ -527,16 +630,11 @@ final class PropertyList<T> implements Serializable {
      * @return an unmodifiable set of property names (never null).
      */
     public Set<String> getPropertyNames() {
-        return Collections.unmodifiableSet(doGetPropertyNames());
+        return doGetPropertyNames();
     }
 
-    @SuppressWarnings("unchecked")
     protected Set<String> doGetPropertyNames() {
-        if (parentList == null) {
-            return propertyNames;
-        } else {
-            return union(propertyNames, parentList.doGetPropertyNames());
-        }
+        return getMergedView().propertyNames;
     }
 
     /**
@@ -546,17 +644,11 @@ final class PropertyList<T> implements Serializable {
      * @return an unmodifiable set of property names (never null).
      */
     public Set<String> getPersistentPropertyNames() {
-        return Collections.unmodifiableSet(doGetPersistentPropertyNames());
+        return doGetPersistentPropertyNames();
     }
 
-    @SuppressWarnings("unchecked")
     protected Set<String> doGetPersistentPropertyNames() {
-        if (parentList == null) {
-            return persistentPropertyNames;
-        } else {
-            return union(persistentPropertyNames,
-                    parentList.doGetPersistentPropertyNames());
-        }
+        return getMergedView().persistentPropertyNames;
     }
 
     /**
@@ -568,17 +660,11 @@ final class PropertyList<T> implements Serializable {
      *         properties (not necessarily in the list).
      */
     public Map<String, String> getSortablePropertyMap() {
-        return Collections.unmodifiableMap(doGetSortablePropertyMap());
+        return doGetSortablePropertyMap();
     }
 
-    @SuppressWarnings("unchecked")
     protected Map<String, String> doGetSortablePropertyMap() {
-        if (parentList == null) {
-            return sortablePropertyMap;
-        } else {
-            return union(sortablePropertyMap,
-                    parentList.doGetSortablePropertyMap());
-        }
+        return getMergedView().sortablePropertyMap;
     }
 
     /**
@@ -588,17 +674,11 @@ final class PropertyList<T> implements Serializable {
      * @return an unmodifiable set of property names (never null).
      */
     public Set<String> getNestedPropertyNames() {
-        return Collections.unmodifiableSet(doGetNestedPropertyNames());
+        return doGetNestedPropertyNames();
     }
 
-    @SuppressWarnings("unchecked")
     protected Set<String> doGetNestedPropertyNames() {
-        if (parentList == null) {
-            return nestedPropertyNames;
-        } else {
-            return union(nestedPropertyNames,
-                    parentList.doGetNestedPropertyNames());
-        }
+        return getMergedView().nestedPropertyNames;
     }
 
     /**
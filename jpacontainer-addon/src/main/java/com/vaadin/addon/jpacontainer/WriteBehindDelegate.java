@@ -0,0 +1,493 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider.BatchUpdateCallback;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+
+/**
+ * A delegate class used by {@link JPAContainer} to write the changes made to
+ * its items behind, i.e. some time after they have been made. This class is
+ * not part of the public API and should not be used outside of JPAContainer.
+ * <p>
+ * The changes are coalesced per item ID, so that an item that is edited many
+ * times before the changes are written is only updated once. The changes are
+ * written in transactions of at most {@link #MAX_BATCH_SIZE} entities if the
+ * entity provider is a {@link BatchableEntityProvider}, otherwise one entity
+ * at a time. If a transaction fails, its entities are written one at a time
+ * to find out which of them failed. The items that failed are queued again,
+ * so that they are written the next time the changes are flushed.
+ * <p>
+ * The entities of the items are only touched in the thread that changes the
+ * items: every change takes a snapshot of the entity, and only the snapshots
+ * are written. The results, i.e. the new versions of the entities, the dirty
+ * flags of the items and the {@link JPAContainer.WriteFailedListener}s, are
+ * applied in the calling thread when the changes are flushed explicitly, and
+ * through the result executor when they are written in the background.
+ * <p>
+ * The changes are only written in the background if the entity provider
+ * gets its entity manager from an {@link EntityManagerProvider}, as a shared
+ * entity manager must not be used in other threads. Otherwise, or if the
+ * executor is missing or rejects the task, they are written at once.
+ * 
+ * @see JPAContainer#setWriteBehind(ScheduledExecutorService, long, Executor)
+ * @since 3.2
+ */
+final class WriteBehindDelegate<T> implements Serializable {
+
+    private static final long serialVersionUID = 2719382604957121744L;
+
+    /**
+     * The maximum number of entities to update in a single transaction.
+     */
+    static final int MAX_BATCH_SIZE = 100;
+
+    private final JPAContainer<T> container;
+    private final transient ScheduledExecutorService executor;
+    private final transient Executor resultExecutor;
+    private final long delay;
+    /**
+     * The changes that have not been written yet, in the order in which the
+     * items were first changed.
+     */
+    private transient Map<Object, PendingWrite> pendingWrites;
+    /**
+     * The versions that have been written in the background but not yet
+     * applied to the entities of the items, mapped to the item IDs.
+     */
+    private transient Map<Object, Object> writtenVersions;
+    /**
+     * True when a task that writes the changes has been scheduled but has not
+     * yet started.
+     */
+    private transient boolean scheduled;
+
+    /**
+     * The changes made to a single item. If the item was changed through
+     * different {@link JPAContainerItem} instances, the changed properties are
+     * copied to the entity of the latest one.
+     */
+    private final class PendingWrite {
+
+        JPAContainerItem<T> item;
+        /**
+         * The changed properties, or null if the entire item was committed.
+         */
+        Set<String> propertyIds;
+        /**
+         * A snapshot of the entity of the item, taken when it was last
+         * changed. This is the instance that is written.
+         */
+        T entity;
+    }
+
+    /**
+     * Creates a new <code>WriteBehindDelegate</code>.
+     * 
+     * @param container
+     *            the <code>JPAContainer</code> (must not be null).
+     * @param executor
+     *            the executor to write the changes with (must not be null).
+     * @param delay
+     *            the number of milliseconds to wait for more changes before
+     *            writing them, or 0 to write them only when
+     *            {@link #flush()} is called.
+     * @param resultExecutor
+     *            the executor to apply the results of the changes written in
+     *            the background with (must not be null).
+     */
+    WriteBehindDelegate(JPAContainer<T> container,
+            ScheduledExecutorService executor, long delay,
+            Executor resultExecutor) {
+        assert container != null : "container must not be null";
+        assert executor != null : "executor must not be null";
+        assert delay >= 0 : "delay must not be negative";
+        assert resultExecutor != null : "resultExecutor must not be null";
+        this.container = container;
+        this.executor = executor;
+        this.delay = delay;
+        this.resultExecutor = resultExecutor;
+    }
+
+    /**
+     * @return the executor to write the changes with, or null if the delegate
+     *         has been deserialized.
+     */
+    ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the executor to apply the results of the changes written in the
+     *         background with, or null if the delegate has been deserialized.
+     */
+    Executor getResultExecutor() {
+        return resultExecutor;
+    }
+
+    /**
+     * @return the number of milliseconds to wait for more changes.
+     */
+    long getDelay() {
+        return delay;
+    }
+
+    private Map<Object, PendingWrite> getPendingWrites() {
+        if (pendingWrites == null) {
+            pendingWrites = new LinkedHashMap<Object, PendingWrite>();
+        }
+        return pendingWrites;
+    }
+
+    private Map<Object, Object> getWrittenVersions() {
+        if (writtenVersions == null) {
+            writtenVersions = new HashMap<Object, Object>();
+        }
+        return writtenVersions;
+    }
+
+    /**
+     * Records that <code>propertyId</code> of <code>item</code> has been
+     * changed, and takes a snapshot of the entity of the item to write. This
+     * method must be called in the thread that changes the items.
+     * 
+     * @param item
+     *            the changed item (must not be null and must have an item ID).
+     * @param propertyId
+     *            the changed property, or null if the entire item has been
+     *            committed.
+     */
+    void itemModified(JPAContainerItem<T> item, String propertyId) {
+        assert item != null : "item must not be null";
+        assert item.getItemId() != null : "item must have an ID";
+        boolean schedule = false;
+        boolean writeNow = false;
+        synchronized (this) {
+            PendingWrite write = getPendingWrites().get(item.getItemId());
+            if (write == null) {
+                write = new PendingWrite();
+                write.propertyIds = new HashSet<String>();
+                getPendingWrites().put(item.getItemId(), write);
+            } else if (write.item != item && write.propertyIds != null) {
+                copyChangedProperties(write, item, propertyId);
+            }
+            write.item = item;
+            if (propertyId == null) {
+                write.propertyIds = null;
+            } else if (write.propertyIds != null) {
+                write.propertyIds.add(propertyId);
+            }
+            write.entity = snapshot(item.getEntity());
+            Object writtenVersion = getWrittenVersions().get(
+                    item.getItemId());
+            if (writtenVersion != null) {
+                setVersion(write.entity, writtenVersion);
+            }
+            if (!scheduled && delay > 0) {
+                if (executor != null && container.isWriteBehindSupported()) {
+                    scheduled = true;
+                    schedule = true;
+                } else {
+                    writeNow = true;
+                }
+            }
+        }
+        if (writeNow) {
+            flush();
+        } else if (schedule) {
+            try {
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        synchronized (WriteBehindDelegate.this) {
+                            scheduled = false;
+                        }
+                        flush(true);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    scheduled = false;
+                }
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Copies the properties that have been changed through an earlier item
+     * instance to the entity of <code>item</code>, except
+     * <code>propertyId</code>, which has just been changed through
+     * <code>item</code>.
+     */
+    private void copyChangedProperties(PendingWrite write,
+            JPAContainerItem<T> item, String propertyId) {
+        PropertyList<T> propertyList = container.getPropertyList();
+        T from = write.entity;
+        T to = item.getEntity();
+        for (String changedPropertyId : write.propertyIds) {
+            if (!changedPropertyId.equals(propertyId)) {
+                propertyList.setPropertyValue(to, changedPropertyId,
+                        propertyList.getPropertyValue(from, changedPropertyId));
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of <code>entity</code> that is not changed when the item
+     * is changed. Entities that have a public <code>clone()</code> method are
+     * cloned; otherwise a new instance is created and the persistent
+     * properties are copied to it, including the properties of embedded
+     * objects. Collections and referenced entities are shared with the item.
+     */
+    @SuppressWarnings("unchecked")
+    private T snapshot(T entity) {
+        if (entity instanceof Cloneable) {
+            try {
+                Method m = entity.getClass().getMethod("clone");
+                return (T) m.invoke(entity);
+            } catch (NoSuchMethodException e) {
+                // Object.clone() is protected, copy the properties instead
+            } catch (Exception e) {
+                throw new UnsupportedOperationException(
+                        "Could not clone entity", e);
+            }
+        }
+        return copy(container.getEntityClassMetadata(), entity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E copy(ClassMetadata<E> metadata, E from) {
+        E to;
+        try {
+            Constructor<E> constructor = (Constructor<E>) from
+                    .getClass().getDeclaredConstructor();
+            constructor.setAccessible(true);
+            to = constructor.newInstance();
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Could not copy entity", e);
+        }
+        for (PersistentPropertyMetadata property : metadata
+                .getPersistentProperties()) {
+            Object value = metadata.getPropertyValue(from, property.getName());
+            if (value != null
+                    && property.getPropertyKind() == PropertyKind.EMBEDDED) {
+                value = copy((ClassMetadata<Object>) property.getTypeMetadata(),
+                        value);
+            }
+            metadata.setPropertyValue(to, property.getName(), value);
+        }
+        return to;
+    }
+
+    private void setVersion(T entity, Object version) {
+        EntityClassMetadata<T> metadata = container.getEntityClassMetadata();
+        metadata.setPropertyValue(entity, metadata.getVersionProperty()
+                .getName(), version);
+    }
+
+    /**
+     * @return true if there are changes that have not been written yet.
+     */
+    synchronized boolean isModified() {
+        return pendingWrites != null && !pendingWrites.isEmpty();
+    }
+
+    /**
+     * Writes all the pending changes in the calling thread, and applies the
+     * results in the calling thread. Failures are reported to the container,
+     * which notifies its {@link JPAContainer.WriteFailedListener}s of each
+     * item that could not be written, and the items are queued again.
+     */
+    void flush() {
+        flush(false);
+    }
+
+    /**
+     * Writes all the pending changes in the calling thread. If
+     * <code>inBackground</code> is true, the results are applied through the
+     * result executor, otherwise in the calling thread.
+     */
+    private void flush(boolean inBackground) {
+        List<PendingWrite> writes;
+        synchronized (this) {
+            if (!isModified()) {
+                return;
+            }
+            writes = new ArrayList<PendingWrite>(pendingWrites.values());
+            pendingWrites.clear();
+        }
+        final List<Runnable> results = new ArrayList<Runnable>(writes.size());
+        for (int i = 0; i < writes.size(); i += MAX_BATCH_SIZE) {
+            write(writes.subList(i,
+                    Math.min(writes.size(), i + MAX_BATCH_SIZE)), results);
+        }
+        Runnable applyResults = new Runnable() {
+            public void run() {
+                for (Runnable result : results) {
+                    result.run();
+                }
+            }
+        };
+        if (inBackground) {
+            resultExecutor.execute(applyResults);
+        } else {
+            applyResults.run();
+        }
+    }
+
+    /**
+     * Discards all the pending changes without writing them.
+     * 
+     * @return the items whose changes were discarded (never null).
+     */
+    synchronized List<JPAContainerItem<T>> discard() {
+        List<JPAContainerItem<T>> items = new ArrayList<JPAContainerItem<T>>();
+        if (pendingWrites != null) {
+            for (PendingWrite write : pendingWrites.values()) {
+                items.add(write.item);
+            }
+            pendingWrites.clear();
+        }
+        return items;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(final List<PendingWrite> writes, List<Runnable> results) {
+        MutableEntityProvider<T> provider = (MutableEntityProvider<T>) container
+                .getEntityProvider();
+        if (writes.size() > 1 && provider instanceof BatchableEntityProvider) {
+            final List<T> updatedEntities = new ArrayList<T>(writes.size());
+            try {
+                ((BatchableEntityProvider<T>) provider)
+                        .batchUpdate(new BatchUpdateCallback<T>() {
+
+                            private static final long serialVersionUID = -3386241796356146412L;
+
+                            public void batchUpdate(
+                                    MutableEntityProvider<T> batchEnabledEntityProvider) {
+                                for (PendingWrite write : writes) {
+                                    updatedEntities
+                                            .add(batchEnabledEntityProvider
+                                                    .updateEntity(write.entity));
+                                }
+                            }
+                        });
+            } catch (RuntimeException e) {
+                // Find out which of the items failed
+                for (PendingWrite write : writes) {
+                    write(provider, write, results);
+                }
+                return;
+            }
+            for (int i = 0; i < writes.size(); i++) {
+                written(writes.get(i), updatedEntities.get(i), results);
+            }
+        } else {
+            for (PendingWrite write : writes) {
+                write(provider, write, results);
+            }
+        }
+    }
+
+    private void write(MutableEntityProvider<T> provider,
+            final PendingWrite write, List<Runnable> results) {
+        T updatedEntity;
+        try {
+            updatedEntity = provider.updateEntity(write.entity);
+        } catch (final RuntimeException e) {
+            failed(write);
+            results.add(new Runnable() {
+                public void run() {
+                    container.writeBehindFailed(write.item, e);
+                }
+            });
+            return;
+        }
+        written(write, updatedEntity, results);
+    }
+
+    /**
+     * Queues <code>write</code> again after its entity could not be written,
+     * unless the item has been changed again in the meantime, in which case it
+     * has already been queued.
+     */
+    private synchronized void failed(PendingWrite write) {
+        if (!getPendingWrites().containsKey(write.item.getItemId())) {
+            getPendingWrites().put(write.item.getItemId(), write);
+        }
+    }
+
+    /**
+     * Copies the new version of the entity to the pending snapshot of the item
+     * at once, so that it can be written again, and adds a result that copies
+     * the version to the entity of the item and marks the item as untouched
+     * unless it has been changed again in the meantime.
+     */
+    private void written(final PendingWrite write, T updatedEntity,
+            List<Runnable> results) {
+        EntityClassMetadata<T> metadata = container.getEntityClassMetadata();
+        final Object itemId = write.item.getItemId();
+        final Object version = updatedEntity != null
+                && metadata.hasVersionProperty() ? metadata.getPropertyValue(
+                updatedEntity, metadata.getVersionProperty().getName()) : null;
+        if (version != null) {
+            synchronized (this) {
+                PendingWrite pending = getPendingWrites().get(itemId);
+                if (pending != null) {
+                    setVersion(pending.entity, version);
+                }
+                getWrittenVersions().put(itemId, version);
+            }
+        }
+        results.add(new Runnable() {
+            public void run() {
+                synchronized (WriteBehindDelegate.this) {
+                    PendingWrite pending = getPendingWrites().get(itemId);
+                    if (version != null) {
+                        setVersion(write.item.getEntity(), version);
+                        if (pending != null && pending.item != write.item) {
+                            setVersion(pending.item.getEntity(), version);
+                        }
+                        if (getWrittenVersions().get(itemId) == version) {
+                            getWrittenVersions().remove(itemId);
+                        }
+                    }
+                    if (pending == null) {
+                        write.item.setDirty(false);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+/**
+ * Base class for {@link Cache} implementations that takes care of the bounds
+ * and the statistics. All public methods of subclasses should be synchronized
+ * on the cache instance.
+ * 
+ * @since 3.2
+ */
+public abstract class AbstractCache<K, V> implements Cache<K, V> {
+
+    private static final long serialVersionUID = -2340287725785306131L;
+
+    /**
+     * {@link Weigher} that gives every entry the weight 1, which makes the
+     * weight of the cache equal to its size.
+     */
+    @SuppressWarnings("rawtypes")
+    static final class SingletonWeigher implements Weigher {
+
+        private static final long serialVersionUID = 7046011744413522981L;
+
+        public int weigh(Object key, Object value) {
+            return 1;
+        }
+    }
+
+    private final long maximumWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long loadCount;
+    private long totalLoadTime;
+
+    /**
+     * Creates a new cache bounded by the number of entries.
+     * 
+     * @param maxSize
+     *            the maximum number of entries, or -1 for an unbounded cache.
+     */
+    @SuppressWarnings("unchecked")
+    protected AbstractCache(int maxSize) {
+        this(maxSize, new SingletonWeigher());
+    }
+
+    /**
+     * Creates a new cache bounded by the total weight of the entries.
+     * 
+     * @param maximumWeight
+     *            the maximum total weight, or -1 for an unbounded cache.
+     * @param weigher
+     *            the weigher used to calculate the weight of every entry (must
+     *            not be null).
+     */
+    protected AbstractCache(long maximumWeight,
+            Weigher<? super K, ? super V> weigher) {
+        assert weigher != null : "weigher must not be null";
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return the maximum total weight, or a negative number if the cache is
+     *         unbounded.
+     */
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * @return true if the cache is bounded, false otherwise.
+     */
+    protected boolean isBounded() {
+        return maximumWeight >= 0;
+    }
+
+    /**
+     * Calculates the weight of an entry.
+     */
+    protected int weigh(K key, V value) {
+        int weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalStateException("Negative weight for key " + key);
+        }
+        return weight;
+    }
+
+    protected synchronized void recordHit() {
+        hitCount++;
+    }
+
+    protected synchronized void recordMiss() {
+        missCount++;
+    }
+
+    protected synchronized void recordEviction() {
+        evictionCount++;
+    }
+
+    public synchronized void recordLoad(long loadTimeNanos) {
+        loadCount++;
+        totalLoadTime += loadTimeNanos;
+    }
+
+    public synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(hitCount, missCount, evictionCount,
+                loadCount, totalLoadTime);
+    }
+}
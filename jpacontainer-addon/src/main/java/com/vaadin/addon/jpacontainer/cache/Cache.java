@@ -0,0 +1,125 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * A bounded key-value cache, as used internally by the caching entity
+ * providers. When the cache is full, entries are evicted according to the
+ * policy of the implementation. The cache is bounded either by the number of
+ * entries or by the total weight of the entries, as determined by a
+ * {@link Weigher}.
+ * <p>
+ * Implementations must be thread-safe. Null keys and values are not
+ * supported.
+ * 
+ * @see LruCache
+ * @see TinyLfuCache
+ * @see CacheFactory
+ * @since 3.2
+ */
+public interface Cache<K, V> extends Serializable {
+
+    /**
+     * Gets the value stored for <code>key</code>. The lookup is recorded as a
+     * hit or miss in the statistics and counts as an access for the eviction
+     * policy.
+     * 
+     * @param key
+     *            the key (must not be null).
+     * @return the value, or null if not in the cache.
+     */
+    public V get(K key);
+
+    /**
+     * Checks whether the cache contains <code>key</code>. Unlike
+     * {@link #get(Object)}, this method affects neither the statistics nor the
+     * eviction order.
+     * 
+     * @param key
+     *            the key (must not be null).
+     * @return true if the key is in the cache, false otherwise.
+     */
+    public boolean containsKey(K key);
+
+    /**
+     * Stores <code>value</code> for <code>key</code>, possibly evicting other
+     * entries.
+     * 
+     * @param key
+     *            the key (must not be null).
+     * @param value
+     *            the value (must not be null).
+     * @return the previous value, or null if there was none.
+     */
+    public V put(K key, V value);
+
+    /**
+     * Removes the entry for <code>key</code>. Removals are not counted as
+     * evictions.
+     * 
+     * @param key
+     *            the key (must not be null).
+     * @return the removed value, or null if there was none.
+     */
+    public V remove(K key);
+
+    /**
+     * Removes all the entries from the cache. The statistics are not reset.
+     */
+    public void clear();
+
+    /**
+     * Gets the number of entries in the cache.
+     * 
+     * @return the number of entries.
+     */
+    public int size();
+
+    /**
+     * Gets a snapshot of the keys in the cache.
+     * 
+     * @return a new set of keys (never null).
+     */
+    public Set<K> keySet();
+
+    /**
+     * Gets a snapshot of the values in the cache.
+     * 
+     * @return a new collection of values (never null).
+     */
+    public Collection<V> values();
+
+    /**
+     * Records that loading a value that was missing from the cache took
+     * <code>loadTimeNanos</code> nanoseconds.
+     * 
+     * @param loadTimeNanos
+     *            the load time in nanoseconds.
+     */
+    public void recordLoad(long loadTimeNanos);
+
+    /**
+     * Gets a snapshot of the statistics of this cache.
+     * 
+     * @return the statistics (never null).
+     */
+    public CacheStatistics getStatistics();
+}
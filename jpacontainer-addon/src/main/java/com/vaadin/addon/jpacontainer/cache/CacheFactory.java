@@ -0,0 +1,39 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import java.io.Serializable;
+
+/**
+ * Factory used by the caching entity providers to create their internal
+ * caches. By plugging in a different factory, the eviction policy of the
+ * caches can be changed.
+ * 
+ * @see com.vaadin.addon.jpacontainer.CachingEntityProvider#setCacheFactory(CacheFactory)
+ * @since 3.2
+ */
+public interface CacheFactory extends Serializable {
+
+    /**
+     * Creates a new cache that holds at most <code>maxSize</code> entries.
+     * 
+     * @param maxSize
+     *            the maximum number of entries, or -1 for an unbounded cache.
+     * @return a new, empty cache (never null).
+     */
+    public <K, V> Cache<K, V> createCache(int maxSize);
+}
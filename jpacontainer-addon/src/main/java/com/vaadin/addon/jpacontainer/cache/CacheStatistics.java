@@ -0,0 +1,125 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import java.io.Serializable;
+
+/**
+ * Immutable snapshot of the statistics of a {@link Cache}.
+ * 
+ * @since 3.2
+ */
+public final class CacheStatistics implements Serializable {
+
+    private static final long serialVersionUID = 4461232706207183215L;
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long loadCount;
+    private final long totalLoadTime;
+
+    /**
+     * Creates a new <code>CacheStatistics</code> instance.
+     * 
+     * @param hitCount
+     *            the number of lookups that found a value.
+     * @param missCount
+     *            the number of lookups that did not find a value.
+     * @param evictionCount
+     *            the number of entries evicted by the eviction policy.
+     * @param loadCount
+     *            the number of recorded loads.
+     * @param totalLoadTime
+     *            the total time spent loading, in nanoseconds.
+     */
+    public CacheStatistics(long hitCount, long missCount, long evictionCount,
+            long loadCount, long totalLoadTime) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.loadCount = loadCount;
+        this.totalLoadTime = totalLoadTime;
+    }
+
+    /**
+     * @return the number of lookups that found a value.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of lookups that did not find a value.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the total number of lookups.
+     */
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * @return the ratio of lookups that found a value, or 1.0 if there have
+     *         been no lookups.
+     */
+    public double getHitRate() {
+        long requestCount = getRequestCount();
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * @return the number of entries evicted by the eviction policy. Explicit
+     *         removals are not included.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return the number of recorded loads.
+     */
+    public long getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * @return the total time spent loading values, in nanoseconds.
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * @return the average time spent loading values, in nanoseconds, or 0 if
+     *         there have been no loads.
+     */
+    public double getAverageLoadPenalty() {
+        return loadCount == 0 ? 0.0 : (double) totalLoadTime / loadCount;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatistics[hitCount=" + hitCount + ", missCount="
+                + missCount + ", evictionCount=" + evictionCount
+                + ", loadCount=" + loadCount + ", totalLoadTime="
+                + totalLoadTime + "]";
+    }
+}
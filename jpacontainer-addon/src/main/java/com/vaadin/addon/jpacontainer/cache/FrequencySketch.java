@@ -0,0 +1,108 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import java.io.Serializable;
+
+/**
+ * Count-min sketch that estimates how often keys have been accessed. Every
+ * counter saturates at 15, and all counters are halved once the number of
+ * recorded accesses reaches ten times the size of the cache, so that the
+ * estimates reflect recent history rather than all time.
+ * <p>
+ * This class is not thread safe, the owning cache is responsible for
+ * synchronization.
+ * 
+ * @since 3.2
+ */
+final class FrequencySketch implements Serializable {
+
+    private static final long serialVersionUID = -1425009519924960339L;
+    static final int MAX_FREQUENCY = 15;
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = { 0x97cb3127, 0xb2d39d61, 0x6b43a9b5,
+            0x3d4d51cb };
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a new sketch for a cache of the specified size.
+     * 
+     * @param maxSize
+     *            the maximum number of entries of the cache.
+     */
+    FrequencySketch(long maxSize) {
+        int size = (int) Math.min(Math.max(maxSize, 16), 1 << 20);
+        // Eight counters per entry keep the estimates of the keys that are
+        // in the cache reasonably free of collisions
+        int width = Integer.highestOneBit(size - 1) << 4;
+        table = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = size * 10;
+    }
+
+    private int indexOf(Object key, int row) {
+        int h = key.hashCode() * SEEDS[row];
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & mask;
+    }
+
+    /**
+     * @return the estimated number of accesses of <code>key</code>, between 0
+     *         and {@link #MAX_FREQUENCY}.
+     */
+    int frequency(Object key) {
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, table[row][indexOf(key, row)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of <code>key</code>.
+     */
+    void increment(Object key) {
+        int frequency = frequency(key);
+        if (frequency == MAX_FREQUENCY) {
+            return;
+        }
+        // Conservative update: only the smallest counters are incremented
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(key, row);
+            if (table[row][index] == frequency) {
+                table[row][index]++;
+            }
+        }
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        additions >>>= 1;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link Cache} that evicts the least recently used entries first. All
+ * operations run in constant time.
+ * 
+ * @since 3.2
+ */
+public class LruCache<K, V> extends AbstractCache<K, V> {
+
+    private static final long serialVersionUID = -6651930787838263170L;
+
+    /**
+     * {@link CacheFactory} that creates {@link LruCache}s.
+     */
+    public static final class Factory implements CacheFactory {
+
+        private static final long serialVersionUID = 3417512376522466082L;
+
+        public <K, V> Cache<K, V> createCache(int maxSize) {
+            return new LruCache<K, V>(maxSize);
+        }
+    }
+
+    private static final class Node<V> implements Serializable {
+
+        private static final long serialVersionUID = -4391749181385296914L;
+        private final V value;
+        private final int weight;
+
+        private Node(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<K, Node<V>>(
+            16, 0.75f, true);
+    private long weight;
+
+    /**
+     * Creates a new cache bounded by the number of entries.
+     * 
+     * @param maxSize
+     *            the maximum number of entries, or -1 for an unbounded cache.
+     */
+    public LruCache(int maxSize) {
+        super(maxSize);
+    }
+
+    /**
+     * Creates a new cache bounded by the total weight of the entries.
+     * 
+     * @param maximumWeight
+     *            the maximum total weight, or -1 for an unbounded cache.
+     * @param weigher
+     *            the weigher used to calculate the weight of every entry (must
+     *            not be null).
+     */
+    public LruCache(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+        super(maximumWeight, weigher);
+    }
+
+    public synchronized V get(K key) {
+        Node<V> node = map.get(key);
+        if (node == null) {
+            recordMiss();
+            return null;
+        }
+        recordHit();
+        return node.value;
+    }
+
+    public synchronized boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    public synchronized V put(K key, V value) {
+        assert key != null : "key must not be null";
+        assert value != null : "value must not be null";
+        Node<V> node = new Node<V>(value, weigh(key, value));
+        Node<V> old = map.put(key, node);
+        weight += node.weight;
+        if (old != null) {
+            weight -= old.weight;
+        }
+        evict();
+        return old == null ? null : old.value;
+    }
+
+    private void evict() {
+        if (!isBounded()) {
+            return;
+        }
+        Iterator<Map.Entry<K, Node<V>>> it = map.entrySet().iterator();
+        while (weight > getMaximumWeight() && it.hasNext()) {
+            Node<V> eldest = it.next().getValue();
+            it.remove();
+            weight -= eldest.weight;
+            recordEviction();
+        }
+    }
+
+    public synchronized V remove(K key) {
+        Node<V> old = map.remove(key);
+        if (old == null) {
+            return null;
+        }
+        weight -= old.weight;
+        return old.value;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * @return the total weight of the entries in the cache.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized Set<K> keySet() {
+        return new HashSet<K>(map.keySet());
+    }
+
+    public synchronized Collection<V> values() {
+        ArrayList<V> values = new ArrayList<V>(map.size());
+        for (Node<V> node : map.values()) {
+            values.add(node.value);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import java.io.Serializable;
+import java.util.concurrent.Executor;
+
+/**
+ * Policy for loading the next chunk of entity identifiers in the background
+ * while the user scrolls through a container. When a caching entity provider
+ * detects that the identifiers are accessed sequentially, and the position
+ * has passed the threshold of the last loaded chunk, the next chunk is loaded
+ * using the executor of the policy. This way, the UI thread does not have to
+ * wait for a query every time it reaches the end of a chunk.
+ * <p>
+ * The queries are run in the threads of the executor, so the entity provider
+ * must get its entity manager from an
+ * {@link com.vaadin.addon.jpacontainer.EntityManagerProvider} that returns an
+ * entity manager that can be used in those threads. Read-ahead is not
+ * performed if the entity manager has been set directly. The executor is not
+ * serialized, so read-ahead is turned off when the entity provider is
+ * deserialized.
+ * 
+ * @see com.vaadin.addon.jpacontainer.CachingEntityProvider#setReadAheadPolicy(ReadAheadPolicy)
+ * @since 3.2
+ */
+public class ReadAheadPolicy implements Serializable {
+
+    private static final long serialVersionUID = -2286466106719755853L;
+    /**
+     * The default threshold.
+     */
+    public static final double DEFAULT_THRESHOLD = 0.5;
+
+    private final transient Executor executor;
+    private final double threshold;
+    private final boolean prefetchEntities;
+
+    /**
+     * Creates a new <code>ReadAheadPolicy</code> that reads ahead when half of
+     * the last chunk has been passed, and prefetches the entities as well.
+     * 
+     * @param executor
+     *            the executor to run the queries with (must not be null).
+     */
+    public ReadAheadPolicy(Executor executor) {
+        this(executor, DEFAULT_THRESHOLD, true);
+    }
+
+    /**
+     * Creates a new <code>ReadAheadPolicy</code>.
+     * 
+     * @param executor
+     *            the executor to run the queries with (must not be null).
+     * @param threshold
+     *            the fraction of the last chunk that has to be passed before
+     *            the next one is loaded, between 0 (exclusive) and 1
+     *            (inclusive).
+     * @param prefetchEntities
+     *            true to load the entities of the next chunk into the entity
+     *            cache as well, false to only load their identifiers.
+     */
+    public ReadAheadPolicy(Executor executor, double threshold,
+            boolean prefetchEntities) {
+        assert executor != null : "executor must not be null";
+        assert threshold > 0 && threshold <= 1 : "threshold must be in (0, 1]";
+        this.executor = executor;
+        this.threshold = threshold;
+        this.prefetchEntities = prefetchEntities;
+    }
+
+    /**
+     * @return the executor to run the queries with, or null if the policy has
+     *         been deserialized.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the fraction of the last chunk that has to be passed before the
+     *         next one is loaded.
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return true if the entities of the next chunk are prefetched as well.
+     */
+    public boolean isPrefetchEntities() {
+        return prefetchEntities;
+    }
+
+    /**
+     * Checks whether the next chunk should be loaded when <code>index</code>
+     * has been accessed sequentially.
+     * 
+     * @param index
+     *            the index of the last accessed identifier.
+     * @param loadedTo
+     *            the index after the last loaded identifier.
+     * @param chunkSize
+     *            the number of identifiers loaded at a time.
+     * @return true to read ahead, false otherwise.
+     */
+    public boolean isReadAheadNeeded(int index, int loadedTo, int chunkSize) {
+        int remaining = loadedTo - index - 1;
+        return remaining <= chunkSize * (1 - threshold);
+    }
+}
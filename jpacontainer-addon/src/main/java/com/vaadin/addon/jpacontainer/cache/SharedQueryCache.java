@@ -0,0 +1,372 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.persistence.EntityManagerFactory;
+
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Thread-safe cache of entity counts and identifier lists that can be shared
+ * by the caching entity providers of many containers and user sessions. Each
+ * provider still keeps its own cache, but consults the shared cache before
+ * querying the database. This way, a hundred users opening the same view run
+ * the count and identifier queries only once.
+ * <p>
+ * The results are keyed by the entity manager factory, the entity class, the
+ * filter, the sort order and the requested range, so that providers of
+ * different persistence units never see each other's results. Entities
+ * themselves are never shared, as they are mutable.
+ * <p>
+ * All the entries of an entity class are invalidated when any mutable local
+ * entity provider in the JVM adds, updates or removes entities of that class
+ * (or of a sub- or superclass). Changes made in some other way, for example
+ * by other applications or by bulk statements, are not detected: either call
+ * {@link #invalidateAll(Class)} or rely on the time to live of the entries.
+ * <p>
+ * The shared cache is not serialized with the entity providers, and has to
+ * be set again on providers that have been deserialized.
+ * 
+ * @see com.vaadin.addon.jpacontainer.CachingEntityProvider#setSharedQueryCache(SharedQueryCache)
+ * @since 3.2
+ */
+public class SharedQueryCache {
+
+    /**
+     * The default maximum number of results to cache.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    /**
+     * The default time to live of a cached result in milliseconds.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = 60000;
+
+    private static final Map<SharedQueryCache, Boolean> instances = new WeakHashMap<SharedQueryCache, Boolean>();
+
+    private static final class Key {
+
+        private final EntityManagerFactory entityManagerFactory;
+        private final Class<?> entityClass;
+        private final Filter filter;
+        private final List<SortBy> sortBy;
+        private final int startIndex;
+        private final int count;
+
+        private Key(EntityManagerFactory entityManagerFactory,
+                Class<?> entityClass, Filter filter, List<SortBy> sortBy,
+                int startIndex, int count) {
+            this.entityManagerFactory = entityManagerFactory;
+            this.entityClass = entityClass;
+            this.filter = filter;
+            this.sortBy = sortBy == null ? null : new ArrayList<SortBy>(
+                    sortBy);
+            this.startIndex = startIndex;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return entityManagerFactory == other.entityManagerFactory
+                    && entityClass == other.entityClass
+                    && startIndex == other.startIndex
+                    && count == other.count
+                    && (filter == null ? other.filter == null : filter
+                            .equals(other.filter))
+                    && (sortBy == null ? other.sortBy == null : sortBy
+                            .equals(other.sortBy));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = entityManagerFactory == null ? 0 : System
+                    .identityHashCode(entityManagerFactory);
+            hash = hash * 31 + entityClass.hashCode();
+            hash = hash * 31 + (filter == null ? 0 : filter.hashCode());
+            hash = hash * 31 + (sortBy == null ? 0 : sortBy.hashCode());
+            hash = hash * 31 + startIndex;
+            return hash * 31 + count;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+        private final long created = System.currentTimeMillis();
+
+        private Entry(Object value) {
+            this.value = value;
+        }
+    }
+
+    private final Cache<Key, Entry> cache;
+    private final long timeToLive;
+    /**
+     * The generations of the entity classes whose results have been queried.
+     * Guarded by the monitor of {@link #cache}, which is also held while the
+     * results are stored and invalidated.
+     */
+    private final Map<Class<?>, Long> generations = new HashMap<Class<?>, Long>();
+
+    /**
+     * Creates a new <code>SharedQueryCache</code> with the default size and
+     * time to live.
+     */
+    public SharedQueryCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * Creates a new <code>SharedQueryCache</code>.
+     * 
+     * @param maxSize
+     *            the maximum number of results to cache, or -1 for no limit.
+     * @param timeToLive
+     *            the time in milliseconds after which a cached result is
+     *            discarded, or -1 to keep the results until they are
+     *            invalidated or evicted.
+     */
+    public SharedQueryCache(int maxSize, long timeToLive) {
+        this.cache = new LruCache<Key, Entry>(maxSize);
+        this.timeToLive = timeToLive;
+        synchronized (instances) {
+            instances.put(this, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Invalidates the results of <code>entityClass</code> in all shared
+     * caches of the JVM. This is called by the mutable entity providers
+     * whenever they change entities.
+     * 
+     * @param entityClass
+     *            the class of the changed entities (must not be null).
+     */
+    public static void invalidateAll(Class<?> entityClass) {
+        assert entityClass != null : "entityClass must not be null";
+        List<SharedQueryCache> caches;
+        synchronized (instances) {
+            caches = new ArrayList<SharedQueryCache>(instances.keySet());
+        }
+        for (SharedQueryCache cache : caches) {
+            cache.invalidate(entityClass);
+        }
+    }
+
+    /**
+     * Invalidates the results of <code>entityClass</code>, its subclasses and
+     * its superclasses.
+     * 
+     * @param entityClass
+     *            the class of the changed entities (must not be null).
+     */
+    public void invalidate(Class<?> entityClass) {
+        assert entityClass != null : "entityClass must not be null";
+        synchronized (cache) {
+            // Results that are being loaded right now must not be stored
+            for (Map.Entry<Class<?>, Long> entry : generations.entrySet()) {
+                if (isRelated(entry.getKey(), entityClass)) {
+                    entry.setValue(entry.getValue() + 1);
+                }
+            }
+            for (Key key : cache.keySet()) {
+                if (isRelated(key.entityClass, entityClass)) {
+                    cache.remove(key);
+                }
+            }
+        }
+    }
+
+    private static boolean isRelated(Class<?> a, Class<?> b) {
+        return a.isAssignableFrom(b) || b.isAssignableFrom(a);
+    }
+
+    /**
+     * Removes all results from the cache.
+     */
+    public void clear() {
+        synchronized (cache) {
+            for (Map.Entry<Class<?>, Long> entry : generations.entrySet()) {
+                entry.setValue(entry.getValue() + 1);
+            }
+            cache.clear();
+        }
+    }
+
+    /**
+     * Gets the current generation of the results of <code>entityClass</code>.
+     * The generation has to be read before the database is queried, and
+     * passed to the <code>put</code> methods, so that results that may have
+     * been invalidated during the query are not stored. Changes to other,
+     * unrelated entity classes do not change the generation.
+     * 
+     * @param entityClass
+     *            the entity class to query (must not be null).
+     * @return the generation.
+     */
+    public long getGeneration(Class<?> entityClass) {
+        assert entityClass != null : "entityClass must not be null";
+        synchronized (cache) {
+            Long generation = generations.get(entityClass);
+            if (generation == null) {
+                generation = 0L;
+                generations.put(entityClass, generation);
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * @return the statistics of the cache (never null).
+     */
+    public CacheStatistics getStatistics() {
+        return cache.getStatistics();
+    }
+
+    private Object get(Key key) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (timeToLive >= 0
+                && System.currentTimeMillis() - entry.created > timeToLive) {
+            cache.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    private void put(Key key, Object value, long generation) {
+        synchronized (cache) {
+            if (generation == getGeneration(key.entityClass)) {
+                cache.put(key, new Entry(value));
+            }
+        }
+    }
+
+    /**
+     * Gets the cached number of entities of <code>entityClass</code> that
+     * match <code>filter</code>.
+     * 
+     * @param entityManagerFactory
+     *            the factory of the persistence unit (may be null).
+     * @param entityClass
+     *            the entity class (must not be null).
+     * @param filter
+     *            the filter (may be null).
+     * @return the entity count, or null if not cached.
+     */
+    public Integer getEntityCount(EntityManagerFactory entityManagerFactory,
+            Class<?> entityClass, Filter filter) {
+        return (Integer) get(new Key(entityManagerFactory, entityClass,
+                filter, null, -1, -1));
+    }
+
+    /**
+     * Stores the number of entities of <code>entityClass</code> that match
+     * <code>filter</code>.
+     * 
+     * @param entityManagerFactory
+     *            the factory of the persistence unit (may be null).
+     * @param entityClass
+     *            the entity class (must not be null).
+     * @param filter
+     *            the filter (may be null).
+     * @param entityCount
+     *            the entity count.
+     * @param generation
+     *            the generation read before the count was queried.
+     */
+    public void putEntityCount(EntityManagerFactory entityManagerFactory,
+            Class<?> entityClass, Filter filter, int entityCount,
+            long generation) {
+        put(new Key(entityManagerFactory, entityClass, filter, null, -1, -1),
+                entityCount, generation);
+    }
+
+    /**
+     * Gets the cached identifiers of the entities of <code>entityClass</code>
+     * that match <code>filter</code>, sorted by <code>sortBy</code>.
+     * 
+     * @param entityManagerFactory
+     *            the factory of the persistence unit (may be null).
+     * @param entityClass
+     *            the entity class (must not be null).
+     * @param filter
+     *            the filter (may be null).
+     * @param sortBy
+     *            the sort order (must not be null).
+     * @param startIndex
+     *            the index of the first identifier.
+     * @param count
+     *            the maximum number of identifiers, or -1 for all.
+     * @return an unmodifiable list of identifiers, or null if not cached.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Object> getEntityIdentifiers(
+            EntityManagerFactory entityManagerFactory, Class<?> entityClass,
+            Filter filter, List<SortBy> sortBy, int startIndex, int count) {
+        return (List<Object>) get(new Key(entityManagerFactory, entityClass,
+                filter, sortBy, startIndex, count));
+    }
+
+    /**
+     * Stores the identifiers of the entities of <code>entityClass</code> that
+     * match <code>filter</code>, sorted by <code>sortBy</code>.
+     * 
+     * @param entityManagerFactory
+     *            the factory of the persistence unit (may be null).
+     * @param entityClass
+     *            the entity class (must not be null).
+     * @param filter
+     *            the filter (may be null).
+     * @param sortBy
+     *            the sort order (must not be null).
+     * @param startIndex
+     *            the index of the first identifier.
+     * @param count
+     *            the maximum number of identifiers that were requested, or -1
+     *            for all.
+     * @param entityIds
+     *            the identifiers (must not be null).
+     * @param generation
+     *            the generation read before the identifiers were queried.
+     */
+    public void putEntityIdentifiers(
+            EntityManagerFactory entityManagerFactory, Class<?> entityClass,
+            Filter filter, List<SortBy> sortBy, int startIndex, int count,
+            List<Object> entityIds, long generation) {
+        put(new Key(entityManagerFactory, entityClass, filter, sortBy,
+                startIndex, count),
+                Collections.unmodifiableList(new ArrayList<Object>(entityIds)),
+                generation);
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link Cache} that implements the W-TinyLFU eviction policy. New entries
+ * are first stored in a small LRU window. When they fall out of the window,
+ * they have to compete for a place in the main area with the entry that would
+ * be evicted from it, and the one that has been accessed less often according
+ * to a {@link FrequencySketch} is evicted. The main area is a segmented LRU
+ * where entries accessed a second time are protected from eviction.
+ * <p>
+ * Compared to {@link LruCache}, this keeps frequently used entries in the
+ * cache even if a large number of entries are accessed once, for instance
+ * when the user scrolls through a table.
+ * 
+ * @since 3.2
+ */
+public class TinyLfuCache<K, V> extends AbstractCache<K, V> {
+
+    private static final long serialVersionUID = 4923051180779785025L;
+
+    /**
+     * {@link CacheFactory} that creates {@link TinyLfuCache}s.
+     */
+    public static final class Factory implements CacheFactory {
+
+        private static final long serialVersionUID = -3181357693806045613L;
+
+        public <K, V> Cache<K, V> createCache(int maxSize) {
+            return new TinyLfuCache<K, V>(maxSize);
+        }
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node<V> implements Serializable {
+
+        private static final long serialVersionUID = 3120979627574003545L;
+        private final V value;
+        private final int weight;
+        private int queue;
+
+        private Node(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /*
+     * The iteration order of all queues is from the least to the most
+     * recently used entry. Entries are only moved by removing and adding them
+     * again, which is why insertion order is enough.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private final LinkedHashMap<K, Node<V>>[] queues = new LinkedHashMap[] {
+            new LinkedHashMap<K, Node<V>>(), new LinkedHashMap<K, Node<V>>(),
+            new LinkedHashMap<K, Node<V>>() };
+    private final long[] weights = new long[3];
+    private final long maxWindowWeight;
+    private final long maxProtectedWeight;
+    private final FrequencySketch sketch;
+
+    /**
+     * Creates a new cache bounded by the number of entries.
+     * 
+     * @param maxSize
+     *            the maximum number of entries, or -1 for an unbounded cache.
+     */
+    public TinyLfuCache(int maxSize) {
+        super(maxSize);
+        maxWindowWeight = getMaxWindowWeight();
+        maxProtectedWeight = getMaxProtectedWeight();
+        sketch = isBounded() ? new FrequencySketch(maxSize) : null;
+    }
+
+    /**
+     * Creates a new cache bounded by the total weight of the entries.
+     * 
+     * @param maximumWeight
+     *            the maximum total weight, or -1 for an unbounded cache.
+     * @param weigher
+     *            the weigher used to calculate the weight of every entry (must
+     *            not be null).
+     */
+    public TinyLfuCache(long maximumWeight,
+            Weigher<? super K, ? super V> weigher) {
+        super(maximumWeight, weigher);
+        maxWindowWeight = getMaxWindowWeight();
+        maxProtectedWeight = getMaxProtectedWeight();
+        sketch = isBounded() ? new FrequencySketch(maximumWeight) : null;
+    }
+
+    private long getMaxWindowWeight() {
+        return isBounded() ? Math.max(1, getMaximumWeight() / 100) : 0;
+    }
+
+    private long getMaxProtectedWeight() {
+        return isBounded() ? (getMaximumWeight() - getMaxWindowWeight()) * 4 / 5
+                : 0;
+    }
+
+    private Node<V> getNode(K key) {
+        for (LinkedHashMap<K, Node<V>> queue : queues) {
+            Node<V> node = queue.get(key);
+            if (node != null) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private void addNode(K key, Node<V> node, int queue) {
+        node.queue = queue;
+        queues[queue].put(key, node);
+        weights[queue] += node.weight;
+    }
+
+    private Node<V> removeNode(K key) {
+        Node<V> node = getNode(key);
+        if (node != null) {
+            queues[node.queue].remove(key);
+            weights[node.queue] -= node.weight;
+        }
+        return node;
+    }
+
+    private K eldestKey(int queue) {
+        Iterator<K> it = queues[queue].keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    public synchronized V get(K key) {
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        Node<V> node = removeNode(key);
+        if (node == null) {
+            recordMiss();
+            return null;
+        }
+        recordHit();
+        if (node.queue == PROBATION && isBounded()) {
+            addNode(key, node, PROTECTED);
+            // Demote the least recently used protected entries
+            while (weights[PROTECTED] > maxProtectedWeight) {
+                K demoted = eldestKey(PROTECTED);
+                addNode(demoted, removeNode(demoted), PROBATION);
+            }
+        } else {
+            addNode(key, node, node.queue);
+        }
+        return node.value;
+    }
+
+    public synchronized boolean containsKey(K key) {
+        return getNode(key) != null;
+    }
+
+    public synchronized V put(K key, V value) {
+        assert key != null : "key must not be null";
+        assert value != null : "value must not be null";
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        Node<V> old = removeNode(key);
+        Node<V> node = new Node<V>(value, weigh(key, value));
+        addNode(key, node, old == null ? WINDOW : old.queue);
+        evict();
+        return old == null ? null : old.value;
+    }
+
+    private long getWeight() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    private void evict() {
+        if (!isBounded()) {
+            return;
+        }
+        while (weights[WINDOW] > maxWindowWeight) {
+            K candidate = eldestKey(WINDOW);
+            addNode(candidate, removeNode(candidate), PROBATION);
+            if (getWeight() > getMaximumWeight()) {
+                K victim = eldestKey(PROBATION);
+                if (!victim.equals(candidate)
+                        && sketch.frequency(candidate) > sketch
+                                .frequency(victim)) {
+                    evict(victim);
+                } else {
+                    evict(candidate);
+                }
+            }
+        }
+        // Entries in the main area may have grown heavier than the bound
+        for (int queue : new int[] { PROBATION, PROTECTED, WINDOW }) {
+            while (getWeight() > getMaximumWeight()
+                    && !queues[queue].isEmpty()) {
+                evict(eldestKey(queue));
+            }
+        }
+    }
+
+    private void evict(K key) {
+        removeNode(key);
+        recordEviction();
+    }
+
+    public synchronized V remove(K key) {
+        Node<V> old = removeNode(key);
+        return old == null ? null : old.value;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < queues.length; i++) {
+            queues[i].clear();
+            weights[i] = 0;
+        }
+    }
+
+    public synchronized int size() {
+        return queues[WINDOW].size() + queues[PROBATION].size()
+                + queues[PROTECTED].size();
+    }
+
+    public synchronized Set<K> keySet() {
+        HashSet<K> keys = new HashSet<K>();
+        for (LinkedHashMap<K, Node<V>> queue : queues) {
+            keys.addAll(queue.keySet());
+        }
+        return keys;
+    }
+
+    public synchronized Collection<V> values() {
+        ArrayList<V> values = new ArrayList<V>(size());
+        for (LinkedHashMap<K, Node<V>> queue : queues) {
+            for (Map.Entry<K, Node<V>> entry : queue.entrySet()) {
+                values.add(entry.getValue().value);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import java.io.Serializable;
+
+/**
+ * Calculates the weight of cache entries for caches that are bounded by
+ * weight instead of the number of entries.
+ * 
+ * @since 3.2
+ */
+public interface Weigher<K, V> extends Serializable {
+
+    /**
+     * Gets the weight of the entry. The weight of an entry is calculated when
+     * it is stored and is not recalculated afterwards.
+     * 
+     * @param key
+     *            the key (never null).
+     * @param value
+     *            the value (never null).
+     * @return the weight, must be at least 0.
+     */
+    public int weigh(K key, V value);
+}
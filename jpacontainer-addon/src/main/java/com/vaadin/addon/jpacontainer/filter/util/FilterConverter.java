@@ -19,11 +19,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import javax.persistence.Query;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.From;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
@@ -60,7 +64,27 @@ public class FilterConverter {
         public boolean canConvert(Filter filter);
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root);
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters);
+
+        /**
+         * Appends the structure of <code>filter</code> to <code>shape</code>,
+         * and the values that {@link #toPredicate} binds as parameters to
+         * <code>values</code>, in the same order.
+         */
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values);
+
+        /**
+         * Appends <code>filter</code> to <code>jpql</code> as a JPQL
+         * conditional expression on the identification variable
+         * <code>alias</code>, binding the values as named parameters that are
+         * added to <code>parameters</code>.
+         * 
+         * @return false if the filter cannot be expressed without joins.
+         */
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds);
     }
 
     /**
@@ -72,9 +96,22 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
             return cb.and(convertFiltersToArray(((And) filter).getFilters(),
-                    cb, root));
+                    cb, root, parameters));
+        }
+
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values) {
+            shape.append("and");
+            appendShapes(((And) filter).getFilters(), shape, values);
+        }
+
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds) {
+            return appendJunctionJPQL(((And) filter).getFilters(), " AND ",
+                    "1 = 1", alias, jpql, parameters, propertyIds);
         }
     }
 
@@ -87,9 +124,22 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
             return cb.or(convertFiltersToArray(((Or) filter).getFilters(), cb,
-                    root));
+                    root, parameters));
+        }
+
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values) {
+            shape.append("or");
+            appendShapes(((Or) filter).getFilters(), shape, values);
+        }
+
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds) {
+            return appendJunctionJPQL(((Or) filter).getFilters(), " OR ",
+                    "1 = 0", alias, jpql, parameters, propertyIds);
         }
     }
 
@@ -103,7 +153,7 @@ public class FilterConverter {
 
         @SuppressWarnings({ "rawtypes", "unchecked" })
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
             Compare compare = (Compare) filter;
             Expression propertyExpr = AdvancedFilterableSupport
                     .getPropertyPath(root, compare.getPropertyId());
@@ -111,9 +161,9 @@ public class FilterConverter {
                     && compare.getValue() == null) {
                 // Make an IS NULL instead if "= null" is passed
                 return convertFilter(new IsNull(compare.getPropertyId()), cb,
-                        root);
+                        root, parameters);
             }
-            Expression valueExpr = cb.literal(compare.getValue());
+            Expression valueExpr = value(cb, compare.getValue(), parameters);
             switch (compare.getOperation()) {
             case EQUAL:
                 return cb.equal(propertyExpr, valueExpr);
@@ -129,6 +179,56 @@ public class FilterConverter {
                 return null;
             }
         }
+
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values) {
+            Compare compare = (Compare) filter;
+            if (Compare.Operation.EQUAL == compare.getOperation()
+                    && compare.getValue() == null) {
+                appendShapeOf(new IsNull(compare.getPropertyId()), shape,
+                        values);
+                return;
+            }
+            shape.append(compare.getOperation()).append('(')
+                    .append(compare.getPropertyId()).append(',');
+            appendValue(compare.getValue(), shape, values);
+            shape.append(')');
+        }
+
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds) {
+            Compare compare = (Compare) filter;
+            if (Compare.Operation.EQUAL == compare.getOperation()
+                    && compare.getValue() == null) {
+                return appendFilterJPQL(new IsNull(compare.getPropertyId()),
+                        alias, jpql, parameters, propertyIds);
+            }
+            String operator;
+            switch (compare.getOperation()) {
+            case EQUAL:
+                operator = " = ";
+                break;
+            case GREATER:
+                operator = " > ";
+                break;
+            case GREATER_OR_EQUAL:
+                operator = " >= ";
+                break;
+            case LESS:
+                operator = " < ";
+                break;
+            case LESS_OR_EQUAL:
+                operator = " <= ";
+                break;
+            default: // Shouldn't happen
+                return false;
+            }
+            appendPath(compare.getPropertyId(), alias, jpql, propertyIds);
+            jpql.append(operator);
+            appendParameter(compare.getValue(), jpql, parameters);
+            return true;
+        }
     }
 
     /**
@@ -140,10 +240,25 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
             return cb.isNull(AdvancedFilterableSupport.getPropertyPath(root,
                     ((IsNull) filter).getPropertyId()));
         }
+
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values) {
+            shape.append("isNull(").append(((IsNull) filter).getPropertyId())
+                    .append(')');
+        }
+
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds) {
+            appendPath(((IsNull) filter).getPropertyId(), alias, jpql,
+                    propertyIds);
+            jpql.append(" IS NULL");
+            return true;
+        }
     }
 
     /**
@@ -155,23 +270,47 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
             SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
-            String filterString = stringFilter.getFilterString();
-            if (stringFilter.isOnlyMatchPrefix()) {
-                filterString = filterString + "%";
-            } else {
-                filterString = "%" + filterString + "%";
-            }
+            String filterString = getLikePattern(stringFilter);
             if (stringFilter.isIgnoreCase()) {
                 return cb.like(cb.upper(AdvancedFilterableSupport
                         .getPropertyPath(root, stringFilter.getPropertyId()
-                                .toString())), cb.upper(cb
-                        .literal(filterString)));
+                                .toString())), cb.upper(value(cb,
+                        filterString, parameters)));
             } else {
                 return cb.like(AdvancedFilterableSupport.getPropertyPath(root,
-                        stringFilter.getPropertyId().toString()), cb
-                        .literal(filterString));
+                        stringFilter.getPropertyId().toString()), value(cb,
+                        filterString, parameters));
+            }
+        }
+
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values) {
+            SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
+            shape.append("string(").append(stringFilter.getPropertyId())
+                    .append(',').append(stringFilter.isIgnoreCase())
+                    .append(',');
+            appendValue(getLikePattern(stringFilter), shape, values);
+            shape.append(')');
+        }
+
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds) {
+            SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
+            appendLikeJPQL(stringFilter.getPropertyId(),
+                    getLikePattern(stringFilter),
+                    !stringFilter.isIgnoreCase(), alias, jpql, parameters,
+                    propertyIds);
+            return true;
+        }
+
+        private String getLikePattern(SimpleStringFilter stringFilter) {
+            if (stringFilter.isOnlyMatchPrefix()) {
+                return stringFilter.getFilterString() + "%";
+            } else {
+                return "%" + stringFilter.getFilterString() + "%";
             }
         }
     }
@@ -185,19 +324,38 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
             Like like = (Like) filter;
             if (like.isCaseSensitive()) {
                 return cb.like(AdvancedFilterableSupport.getPropertyPath(root,
-                        like.getPropertyId().toString()), cb.literal(like
-                        .getValue()));
+                        like.getPropertyId().toString()), value(cb,
+                        like.getValue(), parameters));
             } else {
                 return cb.like(
                         cb.upper(AdvancedFilterableSupport.getPropertyPath(
                                 root, like.getPropertyId().toString())), cb
-                                .upper(cb.literal(like.getValue())));
+                                .upper(value(cb, like.getValue(), parameters)));
             }
         }
+
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values) {
+            Like like = (Like) filter;
+            shape.append("like(").append(like.getPropertyId()).append(',')
+                    .append(like.isCaseSensitive()).append(',');
+            appendValue(like.getValue(), shape, values);
+            shape.append(')');
+        }
+
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds) {
+            Like like = (Like) filter;
+            appendLikeJPQL(like.getPropertyId(), like.getValue(),
+                    like.isCaseSensitive(), alias, jpql, parameters,
+                    propertyIds);
+            return true;
+        }
     }
 
     private static class BetweenConverter implements Converter {
@@ -207,16 +365,39 @@ public class FilterConverter {
 
         @SuppressWarnings({ "unchecked", "rawtypes" })
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
             Between between = (Between) filter;
             Expression<? extends Comparable> field = AdvancedFilterableSupport
                     .getPropertyPath(root, between.getPropertyId());
-            Expression<? extends Comparable> from = cb.literal(between
-                    .getStartValue());
-            Expression<? extends Comparable> to = cb.literal(between
-                    .getEndValue());
+            Expression<? extends Comparable> from = value(cb,
+                    between.getStartValue(), parameters);
+            Expression<? extends Comparable> to = value(cb,
+                    between.getEndValue(), parameters);
             return cb.between(field, from, to);
         }
+
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values) {
+            Between between = (Between) filter;
+            shape.append("between(").append(between.getPropertyId())
+                    .append(',');
+            appendValue(between.getStartValue(), shape, values);
+            shape.append(',');
+            appendValue(between.getEndValue(), shape, values);
+            shape.append(')');
+        }
+
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds) {
+            Between between = (Between) filter;
+            appendPath(between.getPropertyId(), alias, jpql, propertyIds);
+            jpql.append(" BETWEEN ");
+            appendParameter(between.getStartValue(), jpql, parameters);
+            jpql.append(" AND ");
+            appendParameter(between.getEndValue(), jpql, parameters);
+            return true;
+        }
     }
 
     private static class JoinFilterConverter implements Converter {
@@ -225,13 +406,27 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
             JoinFilter hibernateJoin = (JoinFilter) filter;
             From<X, Y> join = root.join(hibernateJoin.getJoinProperty());
             return cb.and(convertFiltersToArray(hibernateJoin.getFilters(), cb,
-                    join));
+                    join, parameters));
         }
 
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values) {
+            JoinFilter joinFilter = (JoinFilter) filter;
+            shape.append("join(").append(joinFilter.getJoinProperty())
+                    .append(')');
+            appendShapes(joinFilter.getFilters(), shape, values);
+        }
+
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds) {
+            // Bulk statements cannot join
+            return false;
+        }
     }
 
     private static class NotFilterConverter implements Converter {
@@ -240,9 +435,28 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
             Not not = (Not) filter;
-            return cb.not(convertFilter(not.getFilter(), cb, root));
+            return cb.not(convertFilter(not.getFilter(), cb, root, parameters));
+        }
+
+        public void appendShape(Filter filter, StringBuilder shape,
+                List<Object> values) {
+            shape.append("not(");
+            appendShapeOf(((Not) filter).getFilter(), shape, values);
+            shape.append(')');
+        }
+
+        public boolean appendJPQL(Filter filter, String alias,
+                StringBuilder jpql, Map<String, Object> parameters,
+                Collection<String> propertyIds) {
+            jpql.append("NOT (");
+            if (!appendFilterJPQL(((Not) filter).getFilter(), alias, jpql,
+                    parameters, propertyIds)) {
+                return false;
+            }
+            jpql.append(')');
+            return true;
         }
     }
 
@@ -256,8 +470,195 @@ public class FilterConverter {
     }
 
     /**
-     * Convert a single {@link Filter} to a criteria {@link Predicate}.
+     * Creates the expression for a filter value. If <code>parameters</code> is
+     * not null, the value is added to it and a parameter expression is
+     * returned. Otherwise, the value is embedded in the query as a literal.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Expression<T> value(CriteriaBuilder cb, T value,
+            Map<ParameterExpression<?>, Object> parameters) {
+        if (parameters == null || value == null) {
+            return cb.literal(value);
+        }
+        ParameterExpression<T> parameter = cb.parameter((Class<T>) value
+                .getClass());
+        parameters.put(parameter, value);
+        return parameter;
+    }
+
+    /**
+     * Appends the shape of a filter value: its class if it is bound as a
+     * parameter, or null if it is embedded as a literal by
+     * {@link #value(CriteriaBuilder, Object, Map)}.
+     */
+    private static void appendValue(Object value, StringBuilder shape,
+            List<Object> values) {
+        if (value == null) {
+            shape.append("null");
+        } else {
+            shape.append(value.getClass().getName());
+            values.add(value);
+        }
+    }
+
+    private static void appendShapeOf(Filter filter, StringBuilder shape,
+            List<Object> values) {
+        for (Converter c : converters) {
+            if (c.canConvert(filter)) {
+                c.appendShape(filter, shape, values);
+                return;
+            }
+        }
+        throw new IllegalStateException("Cannot find any converters for "
+                + filter.getClass().getSimpleName() + " filters!");
+    }
+
+    private static void appendShapes(Collection<Filter> filters,
+            StringBuilder shape, List<Object> values) {
+        shape.append('(');
+        for (Filter filter : filters) {
+            appendShapeOf(filter, shape, values);
+            shape.append(';');
+        }
+        shape.append(')');
+    }
+
+    private static boolean appendFilterJPQL(Filter filter, String alias,
+            StringBuilder jpql, Map<String, Object> parameters,
+            Collection<String> propertyIds) {
+        for (Converter c : converters) {
+            if (c.canConvert(filter)) {
+                return c.appendJPQL(filter, alias, jpql, parameters,
+                        propertyIds);
+            }
+        }
+        return false;
+    }
+
+    private static boolean appendJunctionJPQL(Collection<Filter> filters,
+            String operator, String empty, String alias, StringBuilder jpql,
+            Map<String, Object> parameters, Collection<String> propertyIds) {
+        if (filters.isEmpty()) {
+            jpql.append(empty);
+            return true;
+        }
+        jpql.append('(');
+        boolean first = true;
+        for (Filter filter : filters) {
+            if (!first) {
+                jpql.append(operator);
+            }
+            first = false;
+            jpql.append('(');
+            if (!appendFilterJPQL(filter, alias, jpql, parameters,
+                    propertyIds)) {
+                return false;
+            }
+            jpql.append(')');
+        }
+        jpql.append(')');
+        return true;
+    }
+
+    private static void appendLikeJPQL(Object propertyId, String pattern,
+            boolean caseSensitive, String alias, StringBuilder jpql,
+            Map<String, Object> parameters, Collection<String> propertyIds) {
+        if (caseSensitive) {
+            appendPath(propertyId, alias, jpql, propertyIds);
+            jpql.append(" LIKE ");
+            appendParameter(pattern, jpql, parameters);
+        } else {
+            jpql.append("UPPER(");
+            appendPath(propertyId, alias, jpql, propertyIds);
+            jpql.append(") LIKE UPPER(");
+            appendParameter(pattern, jpql, parameters);
+            jpql.append(')');
+        }
+    }
+
+    private static void appendPath(Object propertyId, String alias,
+            StringBuilder jpql, Collection<String> propertyIds) {
+        jpql.append(alias).append('.').append(propertyId);
+        if (propertyIds != null) {
+            propertyIds.add(propertyId.toString());
+        }
+    }
+
+    private static void appendParameter(Object value, StringBuilder jpql,
+            Map<String, Object> parameters) {
+        String name = "f" + parameters.size();
+        parameters.put(name, value);
+        jpql.append(':').append(name);
+    }
+
+    /**
+     * Converts a filter to a JPQL conditional expression, e.g. for the WHERE
+     * clause of a bulk UPDATE or DELETE statement. The properties are
+     * referred to through the identification variable <code>alias</code>, and
+     * the values are bound as named parameters. Join filters cannot be
+     * converted, as bulk statements cannot join other entities.
+     * 
+     * @param filter
+     *            the {@link Filter} to convert (must not be null).
+     * @param alias
+     *            the identification variable of the entity (must not be null).
+     * @param parameters
+     *            the map to add the names and values of the parameters to
+     *            (must not be null). The names start with <code>f</code>, and
+     *            nothing is added if the filter cannot be converted.
+     * @param propertyIds
+     *            the collection to add the ids of the filtered properties to,
+     *            or null.
+     * @return the JPQL expression, or null if the filter cannot be converted.
+     * @since 3.2
+     */
+    public static String convertFilterToJPQL(Filter filter, String alias,
+            Map<String, Object> parameters, Collection<String> propertyIds) {
+        assert filter != null : "filter must not be null";
+        assert alias != null : "alias must not be null";
+        assert parameters != null : "parameters must not be null";
+        StringBuilder jpql = new StringBuilder();
+        Map<String, Object> filterParameters = new HashMap<String, Object>(
+                parameters);
+        if (!appendFilterJPQL(filter, alias, jpql, filterParameters,
+                propertyIds)) {
+            return null;
+        }
+        parameters.putAll(filterParameters);
+        return jpql.toString();
+    }
+
+    /**
+     * Gets the shape of a filter, i.e. a string that describes the structure
+     * of the predicate that
+     * {@link #convertFilter(Filter, CriteriaBuilder, From, Map)} creates from
+     * it, but not the values of its parameters. Two filters with the same shape
+     * are converted to predicates that only differ by the values of their
+     * parameters, so a criteria query built for one of them can be reused for
+     * the other by binding different values.
+     * 
+     * @param filter
+     *            the {@link Filter} (must not be null).
+     * @param values
+     *            the list to add the parameter values of the filter to, in the
+     *            order that the parameters are created when the filter is
+     *            converted.
+     * @return the shape of the filter (never null).
+     * @since 3.2
+     */
+    public static String getShape(Filter filter, List<Object> values) {
+        assert filter != null : "filter must not be null";
+        assert values != null : "values must not be null";
+        StringBuilder shape = new StringBuilder();
+        appendShapeOf(filter, shape, values);
+        return shape.toString();
+    }
+
+    /**
+     * Convert a single {@link Filter} to a criteria {@link Predicate}. The
+     * filter values are embedded in the predicate as literals.
      * 
+     * @see #convertFilter(Filter, CriteriaBuilder, From, Map)
      * @param filter
      *            the {@link Filter} to convert
      * @param criteriaBuilder
@@ -271,11 +672,41 @@ public class FilterConverter {
      */
     public static <X, Y> Predicate convertFilter(Filter filter,
             CriteriaBuilder criteriaBuilder, From<X, Y> root) {
+        return convertFilter(filter, criteriaBuilder, root, null);
+    }
+
+    /**
+     * Convert a single {@link Filter} to a criteria {@link Predicate} that
+     * refers to the filter values using parameters. The values are added to
+     * <code>parameters</code>, and must be bound to the query using
+     * {@link #setParameters(Query, Map)} before it is executed. This way, the
+     * text of the query only depends on the structure of the filter, and
+     * prepared statements and query plans can be reused when the values
+     * change.
+     * 
+     * @param filter
+     *            the {@link Filter} to convert
+     * @param criteriaBuilder
+     *            the {@link CriteriaBuilder} to use when creating the
+     *            {@link Predicate}
+     * @param root
+     *            the {@link CriteriaQuery} {@link Root} to use for finding
+     *            fields.
+     * @param parameters
+     *            the map to add the parameters and their values to, or null to
+     *            embed the values as literals.
+     * @return a {@link Predicate} representing the {@link Filter} or null if
+     *         conversion failed.
+     * @since 3.2
+     */
+    public static <X, Y> Predicate convertFilter(Filter filter,
+            CriteriaBuilder criteriaBuilder, From<X, Y> root,
+            Map<ParameterExpression<?>, Object> parameters) {
         assert filter != null : "filter must not be null";
 
         for (Converter c : converters) {
             if (c.canConvert(filter)) {
-                return c.toPredicate(filter, criteriaBuilder, root);
+                return c.toPredicate(filter, criteriaBuilder, root, parameters);
             }
         }
 
@@ -293,17 +724,57 @@ public class FilterConverter {
     public static <X, Y> List<Predicate> convertFilters(
             Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
             From<X, Y> root) {
+        return convertFilters(filters, criteriaBuilder, root, null);
+    }
+
+    /**
+     * Converts a collection of {@link Filter} into a list of {@link Predicate}
+     * that refer to the filter values using parameters.
+     * 
+     * @see #convertFilter(Filter, CriteriaBuilder, From, Map)
+     * @param filters
+     *            Collection of {@link Filter}
+     * @param parameters
+     *            the map to add the parameters and their values to, or null to
+     *            embed the values as literals.
+     * @return List of {@link Predicate}
+     * @since 3.2
+     */
+    public static <X, Y> List<Predicate> convertFilters(
+            Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
+            From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
         List<Predicate> result = new ArrayList<Predicate>();
         for (com.vaadin.data.Container.Filter filter : filters) {
-            result.add(convertFilter(filter, criteriaBuilder, root));
+            result.add(convertFilter(filter, criteriaBuilder, root, parameters));
         }
         return result;
     }
 
+    /**
+     * Binds the parameters collected by
+     * {@link #convertFilter(Filter, CriteriaBuilder, From, Map)} to
+     * <code>query</code>.
+     * 
+     * @param query
+     *            the query created from the criteria query (must not be null).
+     * @param parameters
+     *            the parameters and their values (must not be null).
+     * @since 3.2
+     */
+    @SuppressWarnings("unchecked")
+    public static void setParameters(Query query,
+            Map<ParameterExpression<?>, Object> parameters) {
+        for (Map.Entry<ParameterExpression<?>, Object> entry : parameters
+                .entrySet()) {
+            query.setParameter((ParameterExpression<Object>) entry.getKey(),
+                    entry.getValue());
+        }
+    }
+
     private static <X, Y> Predicate[] convertFiltersToArray(
             Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
-            From<X, Y> root) {
+            From<X, Y> root, Map<ParameterExpression<?>, Object> parameters) {
         return CollectionUtil.toArray(Predicate.class,
-                convertFilters(filters, criteriaBuilder, root));
+                convertFilters(filters, criteriaBuilder, root, parameters));
     }
 }
@@ -17,6 +17,7 @@
 package com.vaadin.addon.jpacontainer.metadata;
 
 import java.io.Serializable;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Collection;
@@ -24,6 +25,8 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
@@ -43,6 +46,69 @@ public class ClassMetadata<T> implements Serializable {
     private final Class<T> mappedClass;
     private final Map<String, PropertyMetadata> allProperties = new LinkedHashMap<String, PropertyMetadata>();
     private final Map<String, PersistentPropertyMetadata> persistentProperties = new LinkedHashMap<String, PersistentPropertyMetadata>();
+    /**
+     * The resolved accessor chains of the property names that have been
+     * accessed, so that nested names need not be split and looked up on every
+     * access.
+     */
+    private transient volatile ConcurrentMap<String, PathStep[]> paths;
+
+    /**
+     * One step in the chain of accessors of a (possibly nested) property name.
+     * A step either accesses a property known by the metadata of the parent
+     * class, or calls a plain JavaBean getter if the parent class has no
+     * metadata.
+     */
+    private static final class PathStep {
+
+        final ClassMetadata<Object> parentMetadata;
+        final PropertyMetadata property;
+        final Method getter;
+        final Method setter;
+
+        PathStep(ClassMetadata<Object> parentMetadata,
+                PropertyMetadata property) {
+            this.parentMetadata = parentMetadata;
+            this.property = property;
+            this.getter = null;
+            this.setter = null;
+        }
+
+        PathStep(Method getter, Method setter) {
+            this.parentMetadata = null;
+            this.property = null;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        Object getValue(Object object) throws IllegalArgumentException {
+            if (parentMetadata != null) {
+                return parentMetadata.getPropertyValue(object, property);
+            }
+            try {
+                return getter.invoke(object);
+            } catch (Exception e) {
+                throw new IllegalArgumentException(
+                        "Could not access a nested property", e);
+            }
+        }
+
+        void setValue(Object object, Object value)
+                throws IllegalArgumentException {
+            if (parentMetadata != null) {
+                parentMetadata.setPropertyValue(object, property, value);
+                return;
+            }
+            if (setter == null) {
+                throw new IllegalArgumentException("Property is read only");
+            }
+            try {
+                setter.invoke(object, value);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Could not set the value");
+            }
+        }
+    }
 
     /**
      * Constructs a new <code>ClassMetadata</code> instance. Properties can be
@@ -69,6 +135,7 @@ public class ClassMetadata<T> implements Serializable {
         assert properties != null : "properties must not be null";
         for (PropertyMetadata pm : properties) {
             allProperties.put(pm.getName(), pm);
+            paths = null;
             if (pm instanceof PersistentPropertyMetadata) {
                 persistentProperties.put(pm.getName(),
                         (PersistentPropertyMetadata) pm);
@@ -162,7 +229,12 @@ public class ClassMetadata<T> implements Serializable {
             if (property instanceof PersistentPropertyMetadata) {
                 PersistentPropertyMetadata ppmd = (PersistentPropertyMetadata) property;
                 if (ppmd.field != null) {
-                    return getPropertyValueFromField(object, ppmd);
+                    // Prefer the getter in order to make getter-based lazy
+                    // loading work.
+                    if (ppmd.fieldGetter != null) {
+                        return ppmd.fieldGetter.invoke(object);
+                    }
+                    return getAccessibleField(ppmd).get(object);
                 }
             }
             return property.getter.invoke(object);
@@ -175,34 +247,17 @@ public class ClassMetadata<T> implements Serializable {
         }
     }
 
-    private Object getPropertyValueFromField(T object,
-            PersistentPropertyMetadata ppmd) throws IllegalAccessException,
-            IllegalArgumentException, InvocationTargetException {
-        // First we try to find a getter for the field in order to
-        // make getter-based lazy loading work.
-        Class<?> clazz = ppmd.field.getDeclaringClass();
-        Method getter = null;
-        try {
-            getter = clazz.getMethod("get" + capitalize(ppmd.fieldName));
-        } catch (Exception e) {
-            try {
-                getter = clazz.getMethod("is" + capitalize(ppmd.fieldName));
-            } catch (Exception e1) {
-            }
-        }
-        if (getter == null) {
-            try {
-                ppmd.field.setAccessible(true);
-                return ppmd.field.get(object);
-            } finally {
-                ppmd.field.setAccessible(false);
-            }
+    /**
+     * Gets the field of <code>ppmd</code>, making it accessible the first
+     * time. The field is left accessible, as toggling the flag on every access
+     * is both slow and unsafe when the metadata is shared between threads.
+     */
+    private static Field getAccessibleField(PersistentPropertyMetadata ppmd) {
+        Field field = ppmd.field;
+        if (!field.isAccessible()) {
+            field.setAccessible(true);
         }
-        return getter.invoke(object);
-    }
-
-    private String capitalize(String string) {
-        return string.substring(0, 1).toUpperCase() + string.substring(1);
+        return field;
     }
 
     /**
@@ -231,13 +286,8 @@ public class ClassMetadata<T> implements Serializable {
                     // the setter method does not exist
                     PersistentPropertyMetadata ppmd = (PersistentPropertyMetadata) property;
                     if (ppmd.field != null) {
-                        try {
-                            ppmd.field.setAccessible(true);
-                            ppmd.field.set(object, value);
-                            return;
-                        } finally {
-                            ppmd.field.setAccessible(false);
-                        }
+                        getAccessibleField(ppmd).set(object, value);
+                        return;
                     }
                 }
                 property.setter.invoke(object, value);
@@ -329,6 +379,20 @@ public class ClassMetadata<T> implements Serializable {
         assert object != null : "object must not be null";
         assert propertyName != null : "propertyName must not be null";
 
+        PathStep[] path = getPath(propertyName);
+        if (path != null) {
+            Object currentObject = object;
+            for (PathStep step : path) {
+                currentObject = step.getValue(currentObject);
+                if (currentObject == null) {
+                    return null;
+                }
+            }
+            return currentObject;
+        }
+
+        // The name is invalid, but it is only reported if the chain of
+        // values reaches the invalid part
         StringTokenizer st = new StringTokenizer(propertyName, ".");
         ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) this;
         Class<?> type = null;
@@ -400,6 +464,22 @@ public class ClassMetadata<T> implements Serializable {
         assert object != null : "object must not be null";
         assert propertyName != null : "propertyName must not be null";
 
+        PathStep[] path = getPath(propertyName);
+        if (path != null) {
+            Object currentObject = object;
+            for (int i = 0; i < path.length - 1; i++) {
+                currentObject = path[i].getValue(currentObject);
+                if (currentObject == null) {
+                    throw new IllegalStateException(
+                            "A null value was found in the chain of nested properties");
+                }
+            }
+            path[path.length - 1].setValue(currentObject, value);
+            return;
+        }
+
+        // The name is invalid, but it is only reported if the chain of
+        // values reaches the invalid part
         StringTokenizer st = new StringTokenizer(propertyName, ".");
         ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) this;
         Class<?> type = null;
@@ -469,6 +549,64 @@ public class ClassMetadata<T> implements Serializable {
         }
     }
 
+    /**
+     * Gets the chain of accessors for <code>propertyName</code>, resolving
+     * and caching it the first time the name is used.
+     * 
+     * @param propertyName
+     *            the property name, which may be nested (must not be null).
+     * @return the accessors, or null if the name is invalid.
+     */
+    private PathStep[] getPath(String propertyName) {
+        ConcurrentMap<String, PathStep[]> paths = this.paths;
+        if (paths == null) {
+            paths = new ConcurrentHashMap<String, PathStep[]>();
+            this.paths = paths;
+        }
+        PathStep[] path = paths.get(propertyName);
+        if (path == null) {
+            path = resolvePath(propertyName);
+            if (path != null) {
+                paths.put(propertyName, path);
+            }
+        }
+        return path;
+    }
+
+    @SuppressWarnings("unchecked")
+    private PathStep[] resolvePath(String propertyName) {
+        String[] names = propertyName.split("\\.", -1);
+        PathStep[] path = new PathStep[names.length];
+        ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) this;
+        Class<?> type = null;
+        for (int i = 0; i < names.length; i++) {
+            if (typeMetadata != null) {
+                PropertyMetadata pmd = typeMetadata.getProperty(names[i]);
+                if (pmd == null) {
+                    return null;
+                }
+                path[i] = new PathStep(typeMetadata, pmd);
+                if (pmd instanceof PersistentPropertyMetadata) {
+                    typeMetadata = (ClassMetadata<Object>) ((PersistentPropertyMetadata) pmd)
+                            .getTypeMetadata();
+                } else {
+                    typeMetadata = null;
+                }
+                type = typeMetadata == null ? pmd.getType() : null;
+            } else {
+                Method getter = names[i].length() == 0 ? null
+                        : getGetterMethod(names[i], type);
+                if (getter == null) {
+                    return null;
+                }
+                path[i] = new PathStep(getter, getSetterMethod(names[i],
+                        type, getter.getReturnType()));
+                type = getter.getReturnType();
+            }
+        }
+        return path;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj.getClass() == getClass()) {
@@ -17,12 +17,27 @@
 package com.vaadin.addon.jpacontainer.metadata;
 
 import java.beans.Introspector;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.persistence.ElementCollection;
 import javax.persistence.Embeddable;
@@ -37,20 +52,86 @@ import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.Transient;
 import javax.persistence.Version;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
 
 import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata.AccessType;
 
 /**
  * Factory for creating and populating {@link ClassMetadata} and
  * {@link EntityClassMetadata} instances.
+ * <p>
+ * The factory is thread-safe. Created metadata is cached, but the cache does
+ * not prevent the mapped classes (and thus their class loaders) from being
+ * garbage collected once the application that uses them has been undeployed.
+ * Metadata that is no longer used anywhere else may also be released if memory
+ * is running low, in which case it is created again when it is needed.
+ * <p>
+ * To avoid the cost of creating the metadata when the entities are first
+ * used, it can be created in advance using {@link #warmUp(Metamodel)}.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
 public class MetadataFactory {
 
-    private static MetadataFactory INSTANCE;
-    private Map<Class<?>, ClassMetadata<?>> metadataMap = new HashMap<Class<?>, ClassMetadata<?>>();
+    private static volatile MetadataFactory INSTANCE;
+    private final ConcurrentMap<ClassKey, MetadataReference> metadataMap = new ConcurrentHashMap<ClassKey, MetadataReference>();
+    private final ReferenceQueue<Object> referenceQueue = new ReferenceQueue<Object>();
+    /*
+     * Metadata that is being created by the current thread. It is published in
+     * metadataMap only when it is complete, so that other threads never see
+     * metadata whose properties have not been loaded yet.
+     */
+    private final ThreadLocal<Map<Class<?>, ClassMetadata<?>>> metadataInProgress = new ThreadLocal<Map<Class<?>, ClassMetadata<?>>>();
+
+    /**
+     * Key that refers weakly to a mapped class.
+     */
+    private static final class ClassKey extends WeakReference<Class<?>> {
+
+        private final int hash;
+
+        ClassKey(Class<?> mappedClass, ReferenceQueue<Object> queue) {
+            super(mappedClass, queue);
+            hash = System.identityHashCode(mappedClass);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof ClassKey) {
+                Class<?> mappedClass = get();
+                return mappedClass != null
+                        && mappedClass == ((ClassKey) obj).get();
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Value that refers softly to the metadata of a mapped class. The metadata
+     * refers to the mapped class, so it must not be strongly reachable from
+     * the cache.
+     */
+    private static final class MetadataReference extends
+            SoftReference<ClassMetadata<?>> {
+
+        final ClassKey key;
+
+        MetadataReference(ClassKey key, ClassMetadata<?> metadata,
+                ReferenceQueue<Object> queue) {
+            super(metadata, queue);
+            this.key = key;
+        }
+    }
 
     protected MetadataFactory() {
         // NOP
@@ -62,10 +143,107 @@ public class MetadataFactory {
      * @return the factory instance (never null).
      */
     public static MetadataFactory getInstance() {
-        if (INSTANCE == null) {
-            INSTANCE = new MetadataFactory();
+        MetadataFactory instance = INSTANCE;
+        if (instance == null) {
+            synchronized (MetadataFactory.class) {
+                instance = INSTANCE;
+                if (instance == null) {
+                    instance = new MetadataFactory();
+                    INSTANCE = instance;
+                }
+            }
         }
-        return INSTANCE;
+        return instance;
+    }
+
+    /**
+     * Sets the instance returned by {@link #getInstance()}, e.g. to a
+     * {@link MetamodelMetadataFactory}. This should be done when the
+     * application starts, as containers and entity providers that have already
+     * been created keep using the metadata of the previous instance.
+     * 
+     * @param instance
+     *            the factory instance, or null to use the default one.
+     * @since 3.2
+     */
+    public static void setInstance(MetadataFactory instance) {
+        synchronized (MetadataFactory.class) {
+            INSTANCE = instance;
+        }
+    }
+
+    /**
+     * Creates the metadata of all the entity classes of
+     * <code>metamodel</code> in parallel, using one thread per available
+     * processor. This method can be called when the application starts, so
+     * that the first users of the entities do not have to wait for the
+     * metadata to be created.
+     * 
+     * @see #warmUp(Metamodel, ExecutorService)
+     * @param metamodel
+     *            the metamodel of the persistence unit, typically from
+     *            {@link javax.persistence.EntityManagerFactory#getMetamodel()}
+     *            (must not be null).
+     * @return the number of entity classes whose metadata is available.
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting for the metadata
+     *             to be created.
+     * @since 3.2
+     */
+    public int warmUp(Metamodel metamodel) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime
+                .getRuntime().availableProcessors());
+        try {
+            return warmUp(metamodel, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Creates the metadata of all the entity classes of
+     * <code>metamodel</code> using the threads of <code>executor</code>, and
+     * waits until it has been created. Entity classes whose metadata cannot be
+     * created (e.g. because they are mapped in XML only) are skipped; their
+     * metadata is created as usual if they are used later.
+     * 
+     * @param metamodel
+     *            the metamodel of the persistence unit (must not be null).
+     * @param executor
+     *            the executor to create the metadata with (must not be null).
+     * @return the number of entity classes whose metadata is available.
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting for the metadata
+     *             to be created.
+     * @since 3.2
+     */
+    public int warmUp(Metamodel metamodel, ExecutorService executor)
+            throws InterruptedException {
+        assert metamodel != null : "metamodel must not be null";
+        assert executor != null : "executor must not be null";
+        List<Callable<EntityClassMetadata<?>>> tasks = new ArrayList<Callable<EntityClassMetadata<?>>>();
+        for (EntityType<?> entityType : metamodel.getEntities()) {
+            final Class<?> javaType = entityType.getJavaType();
+            if (javaType != null) {
+                tasks.add(new Callable<EntityClassMetadata<?>>() {
+                    public EntityClassMetadata<?> call() {
+                        return getEntityClassMetadata(javaType);
+                    }
+                });
+            }
+        }
+        int count = 0;
+        for (Future<EntityClassMetadata<?>> result : executor.invokeAll(tasks)) {
+            try {
+                result.get();
+                count++;
+            } catch (ExecutionException e) {
+                Logger.getLogger(MetadataFactory.class.getName()).log(
+                        Level.FINE, "Could not create entity class metadata",
+                        e.getCause());
+            }
+        }
+        return count;
     }
 
     /**
@@ -84,7 +262,7 @@ public class MetadataFactory {
     public <T> EntityClassMetadata<T> getEntityClassMetadata(
             Class<T> mappedClass) throws IllegalArgumentException {
         assert mappedClass != null : "mappedClass must not be null";
-        if (mappedClass.getAnnotation(Entity.class) == null) {
+        if (getEntityName(mappedClass) == null) {
             throw new IllegalArgumentException("The class is not an entity");
         }
         PersistentPropertyMetadata.AccessType accessType = determineAccessType(mappedClass);
@@ -123,23 +301,98 @@ public class MetadataFactory {
         assert accessType != null : "accessType must not be null";
 
         // Check if we already have the metadata in cache
-        ClassMetadata<T> metadata = (ClassMetadata<T>) metadataMap
-                .get(mappedClass);
+        ClassMetadata<T> metadata = getCachedMetadata(mappedClass);
         if (metadata != null) {
             return metadata;
         }
 
+        Map<Class<?>, ClassMetadata<?>> inProgress = metadataInProgress.get();
+        if (inProgress != null) {
+            // Referenced from loadProperties()
+            metadata = (ClassMetadata<T>) inProgress.get(mappedClass);
+            if (metadata == null) {
+                metadata = createClassMetadata(mappedClass, accessType,
+                        inProgress);
+            }
+            return metadata;
+        }
+
+        inProgress = new HashMap<Class<?>, ClassMetadata<?>>();
+        metadataInProgress.set(inProgress);
+        try {
+            metadata = createClassMetadata(mappedClass, accessType, inProgress);
+        } finally {
+            metadataInProgress.remove();
+        }
+        // If another thread has created the same metadata in the meantime,
+        // use the one that was cached first
+        ClassMetadata<T> result = metadata;
+        for (Map.Entry<Class<?>, ClassMetadata<?>> entry : inProgress
+                .entrySet()) {
+            ClassMetadata<?> cached = cacheMetadata(entry.getKey(),
+                    entry.getValue());
+            if (entry.getKey() == mappedClass) {
+                result = (ClassMetadata<T>) cached;
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> ClassMetadata<T> getCachedMetadata(Class<T> mappedClass) {
+        expungeStaleEntries();
+        MetadataReference ref = metadataMap.get(new ClassKey(mappedClass,
+                null));
+        return ref == null ? null : (ClassMetadata<T>) ref.get();
+    }
+
+    private ClassMetadata<?> cacheMetadata(Class<?> mappedClass,
+            ClassMetadata<?> metadata) {
+        ClassKey key = new ClassKey(mappedClass, referenceQueue);
+        MetadataReference ref = new MetadataReference(key, metadata,
+                referenceQueue);
+        while (true) {
+            MetadataReference existing = metadataMap.putIfAbsent(key, ref);
+            if (existing == null) {
+                return metadata;
+            }
+            ClassMetadata<?> existingMetadata = existing.get();
+            if (existingMetadata != null) {
+                return existingMetadata;
+            }
+            if (metadataMap.replace(existing.key, existing, ref)) {
+                return metadata;
+            }
+        }
+    }
+
+    private void expungeStaleEntries() {
+        Reference<?> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            if (ref instanceof MetadataReference) {
+                MetadataReference metadataRef = (MetadataReference) ref;
+                metadataMap.remove(metadataRef.key, metadataRef);
+            } else {
+                metadataMap.remove(ref);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> ClassMetadata<T> createClassMetadata(Class<T> mappedClass,
+            PersistentPropertyMetadata.AccessType accessType,
+            Map<Class<?>, ClassMetadata<?>> inProgress)
+            throws IllegalArgumentException {
+        ClassMetadata<T> metadata;
+
         // Check if we are dealing with an entity class or an embeddable class
-        Entity entity = mappedClass.getAnnotation(Entity.class);
-        Embeddable embeddable = mappedClass.getAnnotation(Embeddable.class);
-        if (entity != null) {
+        String entityName = getEntityName(mappedClass);
+        if (entityName != null) {
             // We have an entity class
-            String entityName = entity.name().length() == 0 ? mappedClass
-                    .getSimpleName() : entity.name();
             metadata = new EntityClassMetadata<T>(mappedClass, entityName);
             // Put the metadata instance in the cache in case it is referenced
             // from loadProperties()
-            metadataMap.put(mappedClass, metadata);
+            inProgress.put(mappedClass, metadata);
             loadProperties(mappedClass, metadata, accessType);
 
             // Locate the version and identifier properties
@@ -147,10 +400,9 @@ public class MetadataFactory {
             for (PersistentPropertyMetadata pm : entityMetadata
                     .getPersistentProperties()) {
 
-                if (pm.getAnnotation(Version.class) != null) {
+                if (isVersion(mappedClass, pm)) {
                     entityMetadata.setVersionPropertyName(pm.getName());
-                } else if (pm.getAnnotation(Id.class) != null
-                        || pm.getAnnotation(EmbeddedId.class) != null) {
+                } else if (isIdentifier(mappedClass, pm)) {
                     entityMetadata.setIdentifierPropertyName(pm.getName());
                 }
                 if (entityMetadata.hasIdentifierProperty()
@@ -160,12 +412,12 @@ public class MetadataFactory {
                     break;
                 }
             }
-        } else if (embeddable != null) {
+        } else if (isEmbeddable(mappedClass)) {
             // We have an embeddable class
             metadata = new ClassMetadata<T>(mappedClass);
             // Put the metadata instance in the cache in case it is referenced
             // from loadProperties()
-            metadataMap.put(mappedClass, metadata);
+            inProgress.put(mappedClass, metadata);
             loadProperties(mappedClass, metadata, accessType);
         } else {
             throw new IllegalArgumentException("The class "
@@ -176,6 +428,70 @@ public class MetadataFactory {
         return metadata;
     }
 
+    /**
+     * Gets the entity name of <code>type</code>, as specified by the
+     * {@link Entity} annotation.
+     * 
+     * @param type
+     *            the class to check (must not be null).
+     * @return the entity name, or null if <code>type</code> is not an entity.
+     * @since 3.2
+     */
+    protected String getEntityName(Class<?> type) {
+        Entity entity = type.getAnnotation(Entity.class);
+        if (entity == null) {
+            return null;
+        }
+        return entity.name().length() == 0 ? type.getSimpleName() : entity
+                .name();
+    }
+
+    /**
+     * Checks if <code>type</code> has the {@link Embeddable} annotation.
+     * 
+     * @param type
+     *            the class to check (must not be null).
+     * @return true if <code>type</code> is embeddable, false otherwise.
+     * @since 3.2
+     */
+    protected boolean isEmbeddable(Class<?> type) {
+        return type.getAnnotation(Embeddable.class) != null;
+    }
+
+    /**
+     * Checks if <code>property</code> is the identifier of the entity class
+     * <code>type</code>, i.e. has the {@link Id} or {@link EmbeddedId}
+     * annotation.
+     * 
+     * @param type
+     *            the entity class (must not be null).
+     * @param property
+     *            the property to check (must not be null).
+     * @return true if the property is the identifier, false otherwise.
+     * @since 3.2
+     */
+    protected boolean isIdentifier(Class<?> type,
+            PersistentPropertyMetadata property) {
+        return property.getAnnotation(Id.class) != null
+                || property.getAnnotation(EmbeddedId.class) != null;
+    }
+
+    /**
+     * Checks if <code>property</code> is the version of the entity class
+     * <code>type</code>, i.e. has the {@link Version} annotation.
+     * 
+     * @param type
+     *            the entity class (must not be null).
+     * @param property
+     *            the property to check (must not be null).
+     * @return true if the property is the version, false otherwise.
+     * @since 3.2
+     */
+    protected boolean isVersion(Class<?> type,
+            PersistentPropertyMetadata property) {
+        return property.getAnnotation(Version.class) != null;
+    }
+
     protected void loadProperties(Class<?> type, ClassMetadata<?> metadata,
             PersistentPropertyMetadata.AccessType accessType) {
 
@@ -303,7 +619,22 @@ public class MetadataFactory {
                 }
             }
         }
-        // Find the transient properties
+        extractTransientProperties(type, metadata);
+    }
+
+    /**
+     * Adds the getter methods declared in <code>type</code> as transient
+     * properties, unless <code>metadata</code> already contains a property
+     * with the same name.
+     * 
+     * @param type
+     *            the class whose methods are checked (must not be null).
+     * @param metadata
+     *            the metadata to add the properties to (must not be null).
+     * @since 3.2
+     */
+    protected void extractTransientProperties(Class<?> type,
+            ClassMetadata<?> metadata) {
         for (Method m : type.getDeclaredMethods()) {
             int mod = m.getModifiers();
             // Synthetic methods are excluded (#4590).
@@ -359,7 +690,7 @@ public class MetadataFactory {
         return f.getType();
     }
 
-    private Class<?> convertPrimitiveType(Class<?> type) {
+    protected Class<?> convertPrimitiveType(Class<?> type) {
         // Vaadin fields don't work with primitive values, use wrapper types for
         // primitives
         if (type.isPrimitive()) {
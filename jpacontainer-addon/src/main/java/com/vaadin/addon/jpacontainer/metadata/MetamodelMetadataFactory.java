@@ -0,0 +1,296 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.IdentifiableType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type.PersistenceType;
+
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata.AccessType;
+
+/**
+ * Metadata factory that builds the metadata of managed classes from the JPA
+ * {@link Metamodel} of one or more persistence units, instead of looking for
+ * annotations. This way, the metadata always matches the mappings of the
+ * persistence provider, including mappings that have been defined in XML, and
+ * the access type, identifiers, versions and associations do not have to be
+ * derived again from the classes.
+ * <p>
+ * Only the transient properties (getters that are not mapped) are still found
+ * by reflection. Classes that are not managed by any of the metamodels are
+ * handled like in {@link MetadataFactory}.
+ * 
+ * @see MetadataFactory#setInstance(MetadataFactory)
+ * @see com.vaadin.addon.jpacontainer.JPAContainerFactory#useMetamodel(javax.persistence.EntityManagerFactory)
+ * @since 3.2
+ */
+public class MetamodelMetadataFactory extends MetadataFactory {
+
+    private final List<Metamodel> metamodels = new CopyOnWriteArrayList<Metamodel>();
+
+    /**
+     * Creates a new <code>MetamodelMetadataFactory</code>.
+     * 
+     * @param metamodels
+     *            the metamodels of the persistence units, typically from
+     *            {@link javax.persistence.EntityManagerFactory#getMetamodel()}.
+     */
+    public MetamodelMetadataFactory(Metamodel... metamodels) {
+        for (Metamodel metamodel : metamodels) {
+            addMetamodel(metamodel);
+        }
+    }
+
+    /**
+     * Adds the metamodel of another persistence unit. The metadata of classes
+     * that has already been created is not affected.
+     * 
+     * @param metamodel
+     *            the metamodel to add (must not be null).
+     */
+    public void addMetamodel(Metamodel metamodel) {
+        assert metamodel != null : "metamodel must not be null";
+        if (!metamodels.contains(metamodel)) {
+            metamodels.add(metamodel);
+        }
+    }
+
+    /**
+     * Gets the managed type of <code>type</code> from the first metamodel that
+     * manages it.
+     * 
+     * @param type
+     *            the class (must not be null).
+     * @return the managed type, or null if <code>type</code> is not managed.
+     */
+    protected ManagedType<?> getManagedType(Class<?> type) {
+        for (Metamodel metamodel : metamodels) {
+            try {
+                ManagedType<?> managedType = metamodel.managedType(type);
+                if (managedType != null) {
+                    return managedType;
+                }
+            } catch (IllegalArgumentException e) {
+                // Not managed by this metamodel
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected String getEntityName(Class<?> type) {
+        ManagedType<?> managedType = getManagedType(type);
+        if (managedType instanceof EntityType) {
+            return ((EntityType<?>) managedType).getName();
+        } else if (managedType != null) {
+            return null;
+        }
+        return super.getEntityName(type);
+    }
+
+    @Override
+    protected boolean isEmbeddable(Class<?> type) {
+        ManagedType<?> managedType = getManagedType(type);
+        if (managedType != null) {
+            return managedType.getPersistenceType() == PersistenceType.EMBEDDABLE;
+        }
+        return super.isEmbeddable(type);
+    }
+
+    @Override
+    protected boolean isIdentifier(Class<?> type,
+            PersistentPropertyMetadata property) {
+        SingularAttribute<?, ?> attribute = getSingularAttribute(type,
+                property.getName());
+        if (attribute != null) {
+            return attribute.isId();
+        }
+        return getManagedType(type) == null
+                && super.isIdentifier(type, property);
+    }
+
+    @Override
+    protected boolean isVersion(Class<?> type,
+            PersistentPropertyMetadata property) {
+        SingularAttribute<?, ?> attribute = getSingularAttribute(type,
+                property.getName());
+        if (attribute != null) {
+            return attribute.isVersion();
+        }
+        return getManagedType(type) == null && super.isVersion(type, property);
+    }
+
+    private SingularAttribute<?, ?> getSingularAttribute(Class<?> type,
+            String name) {
+        ManagedType<?> managedType = getManagedType(type);
+        if (managedType != null) {
+            try {
+                Attribute<?, ?> attribute = managedType.getAttribute(name);
+                if (attribute instanceof SingularAttribute) {
+                    return (SingularAttribute<?, ?>) attribute;
+                }
+            } catch (IllegalArgumentException e) {
+                // No such attribute
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected AccessType determineAccessType(Class<?> type) {
+        ManagedType<?> managedType = getManagedType(type);
+        if (managedType instanceof IdentifiableType) {
+            for (Attribute<?, ?> attribute : managedType.getAttributes()) {
+                if (attribute instanceof SingularAttribute
+                        && ((SingularAttribute<?, ?>) attribute).isId()) {
+                    return attribute.getJavaMember() instanceof Method ? AccessType.METHOD
+                            : AccessType.FIELD;
+                }
+            }
+        }
+        return super.determineAccessType(type);
+    }
+
+    @Override
+    protected void loadProperties(Class<?> type, ClassMetadata<?> metadata,
+            AccessType accessType) {
+        ManagedType<?> managedType = getManagedType(type);
+        if (managedType == null) {
+            super.loadProperties(type, metadata, accessType);
+            return;
+        }
+        // The attributes include the ones of the managed superclasses
+        for (Attribute<?, ?> attribute : managedType.getAttributes()) {
+            addProperty(type, metadata, attribute, accessType);
+        }
+        // Find the transient properties, superclasses first
+        List<Class<?>> hierarchy = new LinkedList<Class<?>>();
+        for (Class<?> c = type; c != null && c != Object.class
+                && (c == type || getManagedType(c) != null); c = c
+                .getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+        for (Class<?> c : hierarchy) {
+            extractTransientProperties(c, metadata);
+        }
+    }
+
+    private void addProperty(Class<?> type, ClassMetadata<?> metadata,
+            Attribute<?, ?> attribute, AccessType accessType) {
+        Member member = attribute.getJavaMember();
+        String name = attribute.getName();
+        Field field = null;
+        Method getter = null;
+        Class<?> memberType;
+        if (member instanceof Field) {
+            field = (Field) member;
+            memberType = field.getType();
+        } else if (member instanceof Method) {
+            getter = (Method) member;
+            memberType = getter.getReturnType();
+        } else {
+            // Virtual attribute, cannot be accessed
+            return;
+        }
+        Method setter;
+        if (getter != null) {
+            setter = getSetter(getter.getDeclaringClass(), name, memberType);
+        } else {
+            setter = getSetter(type, name, memberType);
+        }
+        if (getter != null && setter == null) {
+            metadata.addProperties(new PropertyMetadata(name, memberType,
+                    getter, null));
+            return;
+        }
+
+        PropertyKind kind;
+        switch (attribute.getPersistentAttributeType()) {
+        case EMBEDDED:
+            kind = PropertyKind.EMBEDDED;
+            break;
+        case MANY_TO_ONE:
+            kind = PropertyKind.MANY_TO_ONE;
+            break;
+        case ONE_TO_ONE:
+            kind = PropertyKind.ONE_TO_ONE;
+            break;
+        case ONE_TO_MANY:
+            kind = PropertyKind.ONE_TO_MANY;
+            break;
+        case MANY_TO_MANY:
+            kind = PropertyKind.MANY_TO_MANY;
+            break;
+        case ELEMENT_COLLECTION:
+            kind = PropertyKind.ELEMENT_COLLECTION;
+            break;
+        default:
+            kind = PropertyKind.SIMPLE;
+        }
+
+        if (kind == PropertyKind.EMBEDDED || kind == PropertyKind.MANY_TO_ONE
+                || kind == PropertyKind.ONE_TO_ONE) {
+            // The Java type of the attribute takes targetEntity into account
+            ClassMetadata<?> cm = getClassMetadata(attribute.getJavaType(),
+                    accessType);
+            if (field != null) {
+                metadata.addProperties(new PersistentPropertyMetadata(name,
+                        cm, kind, field, setter));
+            } else {
+                metadata.addProperties(new PersistentPropertyMetadata(name,
+                        cm, kind, getter, setter));
+            }
+        } else {
+            if (kind == PropertyKind.SIMPLE) {
+                memberType = convertPrimitiveType(memberType);
+            }
+            if (field != null) {
+                metadata.addProperties(new PersistentPropertyMetadata(name,
+                        memberType, kind, field, setter));
+            } else {
+                metadata.addProperties(new PersistentPropertyMetadata(name,
+                        memberType, kind, getter, setter));
+            }
+        }
+    }
+
+    private Method getSetter(Class<?> type, String name, Class<?> memberType) {
+        String setterName = "set" + name.substring(0, 1).toUpperCase()
+                + name.substring(1);
+        try {
+            return type.getMethod(setterName, memberType);
+        } catch (NoSuchMethodException e) {
+            try {
+                return type.getDeclaredMethod(setterName, memberType);
+            } catch (NoSuchMethodException e2) {
+                // Setter does not exist
+                return null;
+            }
+        }
+    }
+}
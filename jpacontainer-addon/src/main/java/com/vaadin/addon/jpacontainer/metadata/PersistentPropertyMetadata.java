@@ -54,6 +54,11 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
     private final PropertyKind propertyKind;
     private final ClassMetadata<?> typeMetadata;
     transient final Field field;
+    /**
+     * The getter of {@link #field}, if the declaring class has one. It is used
+     * instead of the field in order to make getter-based lazy loading work.
+     */
+    transient final Method fieldGetter;
     // Required for serialization
     protected final String fieldName;
     protected final Class<?> fieldDeclaringClass;
@@ -86,6 +91,7 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         this.propertyKind = propertyKind;
         typeMetadata = null;
         this.field = field;
+        fieldGetter = findFieldGetter(field);
         fieldName = field.getName();
         fieldDeclaringClass = field.getDeclaringClass();
     }
@@ -122,6 +128,7 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         this.propertyKind = propertyKind;
         typeMetadata = null;
         field = null;
+        fieldGetter = null;
         fieldName = null;
         fieldDeclaringClass = null;
     }
@@ -153,6 +160,7 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         this.propertyKind = propertyKind;
         typeMetadata = type;
         this.field = field;
+        fieldGetter = findFieldGetter(field);
         fieldName = field.getName();
         fieldDeclaringClass = field.getDeclaringClass();
     }
@@ -188,6 +196,7 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         this.propertyKind = propertyKind;
         typeMetadata = type;
         field = null;
+        fieldGetter = null;
         fieldName = null;
         fieldDeclaringClass = null;
     }
@@ -205,14 +214,40 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         this.typeMetadata = typeMetadata;
         this.field = field;
         if (this.field == null) {
+            fieldGetter = null;
             fieldName = null;
             fieldDeclaringClass = null;
         } else {
+            fieldGetter = findFieldGetter(field);
             fieldName = field.getName();
             fieldDeclaringClass = field.getDeclaringClass();
         }
     }
 
+    /**
+     * Looks up the public getter method of <code>field</code> from its
+     * declaring class.
+     * 
+     * @param field
+     *            the field (must not be null).
+     * @return the getter method, or null if there is none.
+     */
+    private static Method findFieldGetter(Field field) {
+        Class<?> clazz = field.getDeclaringClass();
+        String name = field.getName();
+        String capitalized = name.substring(0, 1).toUpperCase()
+                + name.substring(1);
+        try {
+            return clazz.getMethod("get" + capitalized);
+        } catch (Exception e) {
+            try {
+                return clazz.getMethod("is" + capitalized);
+            } catch (Exception e1) {
+                return null;
+            }
+        }
+    }
+
     /**
      * The metadata of the property type, if it is embedded or a reference.
      * Otherwise, this method returns null.
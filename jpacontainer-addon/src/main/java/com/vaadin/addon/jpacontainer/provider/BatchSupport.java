@@ -0,0 +1,296 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider;
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider.BatchUpdateCallback;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+
+/**
+ * Delegate class that implements batch updates for
+ * {@link BatchableLocalEntityProvider} and
+ * {@link CachingBatchableLocalEntityProvider}. This class is internal and
+ * should never be used outside of JPAContainer.
+ * <p>
+ * Inside a batch update, the entities are not flushed one at a time. Instead,
+ * the changes are flushed every {@link #getBatchSize()} entities, and the
+ * persistence context is cleared in between if the entities are detached.
+ * New entities without an identifier are persisted instead of merged.
+ *
+ * @author Petter Holmström (Vaadin Ltd)
+ * @since 3.2
+ */
+class BatchSupport<T> implements Serializable {
+
+    private static final long serialVersionUID = -1795273619437880581L;
+
+    private final MutableLocalEntityProvider<T> entityProvider;
+
+    private int batchSize = BatchableLocalEntityProvider.DEFAULT_BATCH_SIZE;
+
+    /**
+     * The changes of the batch update in progress, or null if there is none.
+     */
+    private transient Batch<T> batch;
+
+    /**
+     * The changes of a batch update.
+     */
+    static final class Batch<T> {
+        final List<T> added = new ArrayList<T>();
+        final List<T> updated = new ArrayList<T>();
+        final List<T> removed = new ArrayList<T>();
+        /**
+         * The new entities that have been persisted, mapped to their original
+         * versions, so that they can be reset if the batch is rolled back.
+         */
+        final Map<T, Object> persisted = new IdentityHashMap<T, Object>();
+        int unflushed;
+    }
+
+    /**
+     * Creates a new <code>BatchSupport</code> instance.
+     *
+     * @param entityProvider
+     *            the entity provider to run the batch updates with, which
+     *            must also implement {@link BatchableEntityProvider} (never
+     *            null).
+     */
+    public BatchSupport(MutableLocalEntityProvider<T> entityProvider) {
+        assert entityProvider instanceof BatchableEntityProvider : "entityProvider must be batchable";
+        this.entityProvider = entityProvider;
+    }
+
+    /**
+     * Sets the number of entities to flush at a time in a batch update.
+     *
+     * @param batchSize
+     *            the batch size (must be positive).
+     */
+    public void setBatchSize(int batchSize) {
+        assert batchSize > 0 : "batchSize must be positive";
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the number of entities to flush at a time in a batch update.
+     *
+     * @return the batch size.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Checks whether a batch update is in progress, i.e. whether
+     * {@link #addEntity(Object)}, {@link #updateEntity(Object)} and
+     * {@link #removeEntity(Object)} may be used.
+     *
+     * @return true if a batch update is in progress, false if not.
+     */
+    public boolean isBatchInProgress() {
+        return batch != null;
+    }
+
+    /**
+     * Runs <code>callback</code> with the entity provider inside a single
+     * transaction and flushes the remaining changes. No events are fired by
+     * the entity provider while the batch update is in progress. If the batch
+     * update fails, the new entities that were persisted get their original
+     * identifiers and versions back, as the transaction has been rolled back.
+     * <p>
+     * If a batch update is already in progress, <code>callback</code> is run
+     * as a part of it.
+     *
+     * @param callback
+     *            the callback to run (never null).
+     * @return the committed changes, or null if the callback was run as a part
+     *         of the batch update in progress.
+     */
+    public Batch<T> batchUpdate(final BatchUpdateCallback<T> callback) {
+        assert callback != null : "callback must not be null";
+        if (batch != null) {
+            callback.batchUpdate(entityProvider);
+            return null;
+        }
+        Batch<T> currentBatch = new Batch<T>();
+        entityProvider.setFireEntityProviderChangeEvents(false);
+        batch = currentBatch;
+        try {
+            entityProvider.runInTransaction(new Runnable() {
+
+                public void run() {
+                    callback.batchUpdate(entityProvider);
+                    flushBatch();
+                }
+            });
+        } catch (RuntimeException e) {
+            resetPersistedEntities(currentBatch);
+            throw e;
+        } finally {
+            batch = null;
+            entityProvider.setFireEntityProviderChangeEvents(true);
+        }
+        return currentBatch;
+    }
+
+    /**
+     * Notifies the listeners of the entity provider once for each kind of
+     * change in <code>batch</code>.
+     *
+     * @param batch
+     *            the committed changes (never null).
+     */
+    @SuppressWarnings("unchecked")
+    public void fireEvents(Batch<T> batch) {
+        if (!batch.added.isEmpty()) {
+            entityProvider.fireEntityProviderChangeEvent(new EntitiesAddedEvent<T>(
+                    entityProvider, toArray(batch.added)));
+        }
+        if (!batch.updated.isEmpty()) {
+            entityProvider
+                    .fireEntityProviderChangeEvent(new EntitiesUpdatedEvent<T>(
+                            entityProvider, toArray(batch.updated)));
+        }
+        if (!batch.removed.isEmpty()) {
+            entityProvider
+                    .fireEntityProviderChangeEvent(new EntitiesRemovedEvent<T>(
+                            entityProvider, toArray(batch.removed)));
+        }
+        entityProvider
+                .fireEntityProviderChangeEvent(new BatchUpdatePerformedEvent<T>(
+                        (BatchableEntityProvider<T>) entityProvider));
+    }
+
+    /**
+     * Adds <code>entity</code> as a part of the batch update in progress. The
+     * entity is not flushed at once.
+     */
+    public T addEntity(T entity) {
+        assert entity != null : "entity must not be null";
+        EntityManager em = entityProvider.getEntityManager();
+        T managedEntity;
+        if (isNew(entity)) {
+            batch.persisted.put(entity, getVersion(entity));
+            em.persist(entity);
+            managedEntity = entity;
+        } else {
+            managedEntity = em.merge(entity);
+        }
+        batch.added.add(managedEntity);
+        entityChanged();
+        return managedEntity;
+    }
+
+    /**
+     * Updates <code>entity</code> as a part of the batch update in progress.
+     * The entity is not flushed at once.
+     */
+    public T updateEntity(T entity) {
+        assert entity != null : "entity must not be null";
+        T managedEntity = entityProvider.getEntityManager().merge(entity);
+        batch.updated.add(managedEntity);
+        entityChanged();
+        return managedEntity;
+    }
+
+    /**
+     * Removes the entity identified by <code>entityId</code> as a part of the
+     * batch update in progress. The removal is not flushed at once.
+     */
+    public void removeEntity(Object entityId) {
+        assert entityId != null : "entityId must not be null";
+        EntityManager em = entityProvider.getEntityManager();
+        T entity = em.find(entityProvider.getEntityClassMetadata()
+                .getMappedClass(), entityId);
+        if (entity != null) {
+            em.remove(entity);
+            batch.removed.add(entity);
+            entityChanged();
+        }
+    }
+
+    /**
+     * Checks whether <code>entity</code> can be persisted instead of merged,
+     * i.e. whether it has no identifier yet.
+     */
+    private boolean isNew(T entity) {
+        EntityClassMetadata<T> metadata = entityProvider
+                .getEntityClassMetadata();
+        return metadata.hasIdentifierProperty()
+                && !metadata.hasEmbeddedIdentifier()
+                && metadata.getPropertyValue(entity, metadata
+                        .getIdentifierProperty().getName()) == null;
+    }
+
+    private Object getVersion(T entity) {
+        EntityClassMetadata<T> metadata = entityProvider
+                .getEntityClassMetadata();
+        return metadata.hasVersionProperty() ? metadata.getPropertyValue(
+                entity, metadata.getVersionProperty().getName()) : null;
+    }
+
+    /**
+     * Clears the identifiers that the persistence provider has generated for
+     * the new entities of a rolled back batch, so that the entities can be
+     * added again.
+     */
+    private void resetPersistedEntities(Batch<T> rolledBack) {
+        EntityClassMetadata<T> metadata = entityProvider
+                .getEntityClassMetadata();
+        for (Map.Entry<T, Object> entry : rolledBack.persisted.entrySet()) {
+            metadata.setPropertyValue(entry.getKey(), metadata
+                    .getIdentifierProperty().getName(), null);
+            if (metadata.hasVersionProperty()) {
+                metadata.setPropertyValue(entry.getKey(), metadata
+                        .getVersionProperty().getName(), entry.getValue());
+            }
+        }
+    }
+
+    private void entityChanged() {
+        if (++batch.unflushed >= batchSize) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Flushes the changes of the batch update in progress, and clears the
+     * persistence context if the entities are detached.
+     */
+    private void flushBatch() {
+        EntityManager em = entityProvider.getEntityManager();
+        em.flush();
+        if (entityProvider.isEntitiesDetached()) {
+            em.clear();
+        }
+        batch.unflushed = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T[] toArray(List<T> entities) {
+        return (T[]) entities.toArray();
+    }
+}
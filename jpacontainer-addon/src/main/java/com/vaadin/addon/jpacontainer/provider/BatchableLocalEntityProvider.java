@@ -26,6 +26,17 @@ import com.vaadin.addon.jpacontainer.BatchableEntityProvider;
  * are performed. On some occations, this can cause trouble in real
  * applications. Please see the {@link BatchableEntityProvider} interface
  * JavaDocs and the JPAContainer manual for more information.
+ * <p>
+ * Inside a batch update, the entities are not flushed one at a time. Instead,
+ * the changes are flushed every {@link #getBatchSize()} entities, and the
+ * persistence context is cleared in between if the entities are detached, so
+ * that the JDBC batching of the persistence provider (e.g.
+ * <code>hibernate.jdbc.batch_size</code> or
+ * <code>eclipselink.jdbc.batch-writing</code>) can group the statements. New
+ * entities without an identifier are persisted instead of merged, and get
+ * their identifiers cleared again if the batch update is rolled back. The
+ * listeners are notified once for each kind of change when the batch update
+ * has been committed.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
@@ -35,6 +46,15 @@ public class BatchableLocalEntityProvider<T> extends
 
     private static final long serialVersionUID = 9174163487778140520L;
 
+    /**
+     * The default number of entities to flush at a time in a batch update.
+     * 
+     * @since 3.2
+     */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    private final BatchSupport<T> batchSupport = new BatchSupport<T>(this);
+
     /**
      * Creates a new <code>BatchableLocalEntityProvider</code>. The entity
      * manager must be set using
@@ -60,20 +80,72 @@ public class BatchableLocalEntityProvider<T> extends
         super(entityClass, entityManager);
     }
 
+    /**
+     * Sets the number of entities to flush at a time in a batch update. This
+     * should match the JDBC batch size of the persistence provider.
+     * 
+     * @param batchSize
+     *            the batch size (must be positive).
+     * @since 3.2
+     */
+    public void setBatchSize(int batchSize) {
+        batchSupport.setBatchSize(batchSize);
+    }
+
+    /**
+     * Returns the number of entities to flush at a time in a batch update.
+     * 
+     * @return the batch size.
+     * @since 3.2
+     */
+    public int getBatchSize() {
+        return batchSupport.getBatchSize();
+    }
+
     public void batchUpdate(final BatchUpdateCallback<T> callback)
             throws UnsupportedOperationException {
-        assert callback != null : "callback must not be null";
-        setFireEntityProviderChangeEvents(false);
-        try {
-            runInTransaction(new Runnable() {
+        BatchSupport.Batch<T> batch = batchSupport.batchUpdate(callback);
+        if (batch != null) {
+            batchSupport.fireEvents(batch);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Inside a batch update, the entity is not flushed at once, and the
+     * returned entity is detached only when the changes are flushed.
+     * Identifiers that are generated by the database may be assigned only
+     * then as well.
+     */
+    @Override
+    public T addEntity(T entity) {
+        if (batchSupport.isBatchInProgress()) {
+            return batchSupport.addEntity(entity);
+        }
+        return super.addEntity(entity);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Inside a batch update, the entity is not flushed at once, and the
+     * returned entity is detached only when the changes are flushed.
+     */
+    @Override
+    public T updateEntity(T entity) {
+        if (batchSupport.isBatchInProgress()) {
+            return batchSupport.updateEntity(entity);
+        }
+        return super.updateEntity(entity);
+    }
 
-                public void run() {
-                    callback.batchUpdate(BatchableLocalEntityProvider.this);
-                }
-            });
-        } finally {
-            setFireEntityProviderChangeEvents(true);
+    @Override
+    public void removeEntity(Object entityId) {
+        if (batchSupport.isBatchInProgress()) {
+            batchSupport.removeEntity(entityId);
+        } else {
+            super.removeEntity(entityId);
         }
-        fireEntityProviderChangeEvent(new BatchUpdatePerformedEvent<T>(this));
     }
 }
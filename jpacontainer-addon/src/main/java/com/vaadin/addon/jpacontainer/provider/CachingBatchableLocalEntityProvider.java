@@ -24,6 +24,10 @@ import com.vaadin.addon.jpacontainer.BatchableEntityProvider;
  * A very simple implementation of {@link BatchableEntityProvider} with caching
  * support that simply passes itself to the {@link BatchUpdateCallback}. No data
  * consistency checks are performed.
+ * <p>
+ * The batch updates work as in {@link BatchableLocalEntityProvider}. The
+ * caches are updated with the changes once the batch update has been
+ * committed.
  * 
  * @see CachingMutableLocalEntityProvider
  * @see BatchableLocalEntityProvider
@@ -37,6 +41,8 @@ public class CachingBatchableLocalEntityProvider<T> extends
 
     private static final long serialVersionUID = 9174163487778140520L;
 
+    private final BatchSupport<T> batchSupport = new BatchSupport<T>(this);
+
     /**
      * Creates a new <code>CachingBatchableLocalEntityProvider</code>. The
      * entity manager must be set using
@@ -62,20 +68,96 @@ public class CachingBatchableLocalEntityProvider<T> extends
         super(entityClass, entityManager);
     }
 
+    /**
+     * Sets the number of entities to flush at a time in a batch update. This
+     * should match the JDBC batch size of the persistence provider.
+     * 
+     * @param batchSize
+     *            the batch size (must be positive).
+     * @since 3.2
+     */
+    public void setBatchSize(int batchSize) {
+        batchSupport.setBatchSize(batchSize);
+    }
+
+    /**
+     * Returns the number of entities to flush at a time in a batch update.
+     * 
+     * @return the batch size.
+     * @since 3.2
+     */
+    public int getBatchSize() {
+        return batchSupport.getBatchSize();
+    }
+
     public void batchUpdate(final BatchUpdateCallback<T> callback)
             throws UnsupportedOperationException {
-        assert callback != null : "callback must not be null";
-        setFireEntityProviderChangeEvents(false);
+        if (batchSupport.isBatchInProgress()) {
+            batchSupport.batchUpdate(callback);
+            return;
+        }
+        BatchSupport.Batch<T> batch;
+        // Nothing loaded before the batch has been committed may be cached
+        getCachingSupport().changeStarted();
         try {
-            runInTransaction(new Runnable() {
-
-                public void run() {
-                    callback.batchUpdate(CachingBatchableLocalEntityProvider.this);
-                }
-            });
+            batch = batchSupport.batchUpdate(callback);
+            for (T entity : batch.added) {
+                getCachingSupport().entityAdded(entity);
+            }
+            for (T entity : batch.updated) {
+                getCachingSupport().entityUpdated(entity);
+            }
+            for (T entity : batch.removed) {
+                getCachingSupport().entityRemoved(getIdentifier(entity));
+            }
+        } catch (RuntimeException e) {
+            // Changes made through other methods than addEntity, updateEntity
+            // and removeEntity have updated the caches, but have been rolled
+            // back
+            flush();
+            throw e;
         } finally {
-            setFireEntityProviderChangeEvents(true);
+            getCachingSupport().changeEnded();
+        }
+        batchSupport.fireEvents(batch);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Inside a batch update, the entity is not flushed at once, and the
+     * returned entity is detached only when the changes are flushed.
+     * Identifiers that are generated by the database may be assigned only
+     * then as well.
+     */
+    @Override
+    public T addEntity(T entity) {
+        if (batchSupport.isBatchInProgress()) {
+            return batchSupport.addEntity(entity);
+        }
+        return super.addEntity(entity);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Inside a batch update, the entity is not flushed at once, and the
+     * returned entity is detached only when the changes are flushed.
+     */
+    @Override
+    public T updateEntity(T entity) {
+        if (batchSupport.isBatchInProgress()) {
+            return batchSupport.updateEntity(entity);
+        }
+        return super.updateEntity(entity);
+    }
+
+    @Override
+    public void removeEntity(Object entityId) {
+        if (batchSupport.isBatchInProgress()) {
+            batchSupport.removeEntity(entityId);
+        } else {
+            super.removeEntity(entityId);
         }
-        fireEntityProviderChangeEvent(new BatchUpdatePerformedEvent<T>(this));
     }
 }
@@ -16,13 +16,20 @@
 
 package com.vaadin.addon.jpacontainer.provider;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 
 import com.vaadin.addon.jpacontainer.CachingEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.cache.CacheFactory;
+import com.vaadin.addon.jpacontainer.cache.CacheStatistics;
+import com.vaadin.addon.jpacontainer.cache.ReadAheadPolicy;
+import com.vaadin.addon.jpacontainer.cache.SharedQueryCache;
 import com.vaadin.data.Container.Filter;
 
 /**
@@ -99,11 +106,77 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
         cachingSupport.setMaxCacheSize(maxSize);
     }
 
+    public CacheFactory getCacheFactory() {
+        return cachingSupport.getCacheFactory();
+    }
+
+    public void setCacheFactory(CacheFactory cacheFactory) {
+        cachingSupport.setCacheFactory(cacheFactory);
+    }
+
+    public CacheStatistics getEntityCacheStatistics() {
+        return cachingSupport.getEntityCacheStatistics();
+    }
+
+    public SharedQueryCache getSharedQueryCache() {
+        return cachingSupport.getSharedQueryCache();
+    }
+
+    public void setSharedQueryCache(SharedQueryCache sharedQueryCache) {
+        cachingSupport.setSharedQueryCache(sharedQueryCache);
+    }
+
+    public ReadAheadPolicy getReadAheadPolicy() {
+        return cachingSupport.getReadAheadPolicy();
+    }
+
+    public void setReadAheadPolicy(ReadAheadPolicy readAheadPolicy) {
+        cachingSupport.setReadAheadPolicy(readAheadPolicy);
+    }
+
+    public int getChunkSize() {
+        return cachingSupport.getChunkSize();
+    }
+
+    public void setChunkSize(int chunkSize) {
+        cachingSupport.setChunkSize(chunkSize);
+    }
+
+    public boolean isAdaptiveChunkSizeEnabled() {
+        return cachingSupport.isAdaptiveChunkSizeEnabled();
+    }
+
+    public void setAdaptiveChunkSizeEnabled(boolean enabled) {
+        cachingSupport.setAdaptiveChunkSizeEnabled(enabled);
+    }
+
+    public int getFilterCacheMaxSize() {
+        return cachingSupport.getMaxFilterCacheSize();
+    }
+
+    public void setFilterCacheMaxSize(int maxSize) {
+        cachingSupport.setMaxFilterCacheSize(maxSize);
+    }
+
+    public int getSortByCacheMaxSize() {
+        return cachingSupport.getMaxSortByCacheSize();
+    }
+
+    public void setSortByCacheMaxSize(int maxSize) {
+        cachingSupport.setMaxSortByCacheSize(maxSize);
+    }
+
     @Override
     public boolean containsEntity(EntityContainer<T> container, Object entityId, Filter filter) {
         return cachingSupport.containsEntity(container, entityId, filter);
     }
 
+    @Override
+    public Set<Object> containsEntities(EntityContainer<T> container,
+            Collection<Object> entityIds, Filter filter) {
+        return cachingSupport.containsEntities(container, entityIds, filter);
+    }
+
     @Override
     public List<Object> getAllEntityIdentifiers(EntityContainer<T> container, Filter filter,
             List<SortBy> sortBy) {
@@ -111,10 +184,16 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
     }
 
     @Override
-    public synchronized T getEntity(EntityContainer<T> container, Object entityId) {
+    public T getEntity(EntityContainer<T> container, Object entityId) {
         return cachingSupport.getEntity(container, entityId);
     }
 
+    @Override
+    public Map<Object, T> getEntities(
+            EntityContainer<T> container, Collection<Object> entityIds) {
+        return cachingSupport.getEntities(container, entityIds);
+    }
+
     @Override
     public boolean isEntitiesDetached() {
         return isCacheEnabled() || super.isEntitiesDetached();
@@ -140,6 +219,14 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
         return cachingSupport.getEntityIdentifierAt(container, filter, sortBy, index);
     }
 
+    @Override
+    public List<Object> getEntityIdentifiersInRange(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count) {
+        return cachingSupport.getEntityIdentifiersInRange(container, filter,
+                sortBy, startIndex, count);
+    }
+
     @Override
     public Object getFirstEntityIdentifier(EntityContainer<T> container, Filter filter, List<SortBy> sortBy) {
         return cachingSupport.getFirstEntityIdentifier(container, filter, sortBy);
@@ -170,6 +257,7 @@ public class CachingLocalEntityProvider<T> extends LocalEntityProvider<T>
      */
     @Override
     public void refresh() {
+        super.refresh();
         cachingSupport.clear();
     }
     
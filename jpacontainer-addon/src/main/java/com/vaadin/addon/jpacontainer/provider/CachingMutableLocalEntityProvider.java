@@ -16,13 +16,20 @@
 
 package com.vaadin.addon.jpacontainer.provider;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 
 import com.vaadin.addon.jpacontainer.CachingEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.cache.CacheFactory;
+import com.vaadin.addon.jpacontainer.cache.CacheStatistics;
+import com.vaadin.addon.jpacontainer.cache.ReadAheadPolicy;
+import com.vaadin.addon.jpacontainer.cache.SharedQueryCache;
 import com.vaadin.data.Container.Filter;
 
 /**
@@ -75,6 +82,15 @@ public class CachingMutableLocalEntityProvider<T> extends
         cachingSupport.flush();
     }
 
+    /**
+     * Gets the delegate that implements the caching.
+     * 
+     * @return the caching support (never null).
+     */
+    CachingSupport<T> getCachingSupport() {
+        return cachingSupport;
+    }
+
     public int getEntityCacheMaxSize() {
         return cachingSupport.getMaxCacheSize();
     }
@@ -95,11 +111,77 @@ public class CachingMutableLocalEntityProvider<T> extends
         cachingSupport.setMaxCacheSize(maxSize);
     }
 
+    public CacheFactory getCacheFactory() {
+        return cachingSupport.getCacheFactory();
+    }
+
+    public void setCacheFactory(CacheFactory cacheFactory) {
+        cachingSupport.setCacheFactory(cacheFactory);
+    }
+
+    public CacheStatistics getEntityCacheStatistics() {
+        return cachingSupport.getEntityCacheStatistics();
+    }
+
+    public SharedQueryCache getSharedQueryCache() {
+        return cachingSupport.getSharedQueryCache();
+    }
+
+    public void setSharedQueryCache(SharedQueryCache sharedQueryCache) {
+        cachingSupport.setSharedQueryCache(sharedQueryCache);
+    }
+
+    public ReadAheadPolicy getReadAheadPolicy() {
+        return cachingSupport.getReadAheadPolicy();
+    }
+
+    public void setReadAheadPolicy(ReadAheadPolicy readAheadPolicy) {
+        cachingSupport.setReadAheadPolicy(readAheadPolicy);
+    }
+
+    public int getChunkSize() {
+        return cachingSupport.getChunkSize();
+    }
+
+    public void setChunkSize(int chunkSize) {
+        cachingSupport.setChunkSize(chunkSize);
+    }
+
+    public boolean isAdaptiveChunkSizeEnabled() {
+        return cachingSupport.isAdaptiveChunkSizeEnabled();
+    }
+
+    public void setAdaptiveChunkSizeEnabled(boolean enabled) {
+        cachingSupport.setAdaptiveChunkSizeEnabled(enabled);
+    }
+
+    public int getFilterCacheMaxSize() {
+        return cachingSupport.getMaxFilterCacheSize();
+    }
+
+    public void setFilterCacheMaxSize(int maxSize) {
+        cachingSupport.setMaxFilterCacheSize(maxSize);
+    }
+
+    public int getSortByCacheMaxSize() {
+        return cachingSupport.getMaxSortByCacheSize();
+    }
+
+    public void setSortByCacheMaxSize(int maxSize) {
+        cachingSupport.setMaxSortByCacheSize(maxSize);
+    }
+
     @Override
     public boolean containsEntity(EntityContainer<T> container, Object entityId, Filter filter) {
         return cachingSupport.containsEntity(container, entityId, filter);
     }
 
+    @Override
+    public Set<Object> containsEntities(EntityContainer<T> container,
+            Collection<Object> entityIds, Filter filter) {
+        return cachingSupport.containsEntities(container, entityIds, filter);
+    }
+
     @Override
     public List<Object> getAllEntityIdentifiers(EntityContainer<T> container, Filter filter,
             List<SortBy> sortBy) {
@@ -107,10 +189,16 @@ public class CachingMutableLocalEntityProvider<T> extends
     }
 
     @Override
-    public synchronized T getEntity(EntityContainer<T> container, Object entityId) {
+    public T getEntity(EntityContainer<T> container, Object entityId) {
         return cachingSupport.getEntity(container, entityId);
     }
 
+    @Override
+    public Map<Object, T> getEntities(
+            EntityContainer<T> container, Collection<Object> entityIds) {
+        return cachingSupport.getEntities(container, entityIds);
+    }
+
     @Override
     public boolean isEntitiesDetached() {
         return isCacheEnabled() || super.isEntitiesDetached();
@@ -136,6 +224,14 @@ public class CachingMutableLocalEntityProvider<T> extends
         return cachingSupport.getEntityIdentifierAt(container, filter, sortBy, index);
     }
 
+    @Override
+    public List<Object> getEntityIdentifiersInRange(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count) {
+        return cachingSupport.getEntityIdentifiersInRange(container, filter,
+                sortBy, startIndex, count);
+    }
+
     @Override
     public Object getFirstEntityIdentifier(EntityContainer<T> container, Filter filter, List<SortBy> sortBy) {
         return cachingSupport.getFirstEntityIdentifier(container, filter, sortBy);
@@ -161,33 +257,84 @@ public class CachingMutableLocalEntityProvider<T> extends
 
     @Override
     public T addEntity(T entity) {
-        T result = super.addEntity(entity);
-        cachingSupport.entityAdded(result);
-        return result;
+        cachingSupport.changeStarted();
+        try {
+            T result = super.addEntity(entity);
+            cachingSupport.entityAdded(result);
+            return result;
+        } finally {
+            cachingSupport.changeEnded();
+        }
     }
 
     @Override
     public void removeEntity(Object entityId) {
-        super.removeEntity(entityId);
-        cachingSupport.entityRemoved(entityId);
+        cachingSupport.changeStarted();
+        try {
+            super.removeEntity(entityId);
+            cachingSupport.entityRemoved(entityId);
+        } finally {
+            cachingSupport.changeEnded();
+        }
     }
 
     @Override
     public T updateEntity(T entity) {
-        T result = super.updateEntity(entity);
-        cachingSupport.invalidate(
-                getEntityClassMetadata().getPropertyValue(
-                        entity,
-                        getEntityClassMetadata().getIdentifierProperty()
-                                .getName()), true);
-        return result;
+        cachingSupport.changeStarted();
+        try {
+            T result = super.updateEntity(entity);
+            cachingSupport.entityUpdated(result);
+            return result;
+        } finally {
+            cachingSupport.changeEnded();
+        }
+    }
+
+    @Override
+    public Object updateEntityProperty(Object entityId, String propertyName,
+            Object propertyValue, Object expectedVersion)
+            throws IllegalArgumentException {
+        cachingSupport.changeStarted();
+        try {
+            Object newVersion = super.updateEntityProperty(entityId,
+                    propertyName, propertyValue, expectedVersion);
+            cachingSupport.entityPropertyUpdated(entityId, propertyName,
+                    propertyValue, newVersion);
+            return newVersion;
+        } finally {
+            cachingSupport.changeEnded();
+        }
+    }
+
+    @Override
+    protected int doRemoveEntities(EntityContainer<T> container, Filter filter) {
+        cachingSupport.changeStarted();
+        try {
+            int count = super.doRemoveEntities(container, filter);
+            if (count > 0) {
+                // The removed entities are not known
+                cachingSupport.flush();
+            }
+            return count;
+        } finally {
+            cachingSupport.changeEnded();
+        }
     }
 
     @Override
-    public void updateEntityProperty(Object entityId, String propertyName,
-            Object propertyValue) throws IllegalArgumentException {
-        super.updateEntityProperty(entityId, propertyName, propertyValue);
-        cachingSupport.invalidate(entityId, true);
+    protected int doUpdateEntities(EntityContainer<T> container,
+            Filter filter, Map<String, Object> propertyValues) {
+        cachingSupport.changeStarted();
+        try {
+            int count = super.doUpdateEntities(container, filter,
+                    propertyValues);
+            if (count > 0) {
+                cachingSupport.entitiesUpdated(propertyValues.keySet());
+            }
+            return count;
+        } finally {
+            cachingSupport.changeEnded();
+        }
     }
 
     /*
@@ -197,6 +344,7 @@ public class CachingMutableLocalEntityProvider<T> extends
      */
     @Override
     public void refresh() {
+        super.refresh();
         cachingSupport.clear();
     }
     
@@ -20,20 +20,38 @@ import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.TypedQuery;
 
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.cache.Cache;
+import com.vaadin.addon.jpacontainer.cache.CacheFactory;
+import com.vaadin.addon.jpacontainer.cache.CacheStatistics;
+import com.vaadin.addon.jpacontainer.cache.LruCache;
+import com.vaadin.addon.jpacontainer.cache.ReadAheadPolicy;
+import com.vaadin.addon.jpacontainer.cache.SharedQueryCache;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Item;
 
@@ -41,6 +59,12 @@ import com.vaadin.data.Item;
  * Delegate class that implements caching for {@link LocalEntityProvider}s and
  * their subclasses. This class is internal and should never be used outside of
  * JPAContainer.
+ * <p>
+ * This class is thread-safe, so that an entity provider can be shared by e.g.
+ * request and push threads. The caches are safe for concurrent use, and the
+ * monitor of this class is only held while updating them in memory, never
+ * during a database query. See {@link FilterCacheEntry} for how the
+ * identifier lists are locked.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
@@ -48,11 +72,14 @@ import com.vaadin.data.Item;
 class CachingSupport<T> implements Serializable {
 
     private final LocalEntityProvider<T> entityProvider;
-    private int maxCacheSize = 1000;
-    private boolean cacheEnabled = true;
-    private boolean cloneCachedEntities = false;
+    private volatile int maxCacheSize = 1000;
+    private volatile boolean cacheEnabled = true;
+    private volatile boolean cloneCachedEntities = false;
+    private CacheFactory cacheFactory = new LruCache.Factory();
+    private transient volatile SharedQueryCache sharedQueryCache;
+    private transient volatile ReadAheadPolicy readAheadPolicy;
     /**
-     * The number of entity IDs to fetch every time a query is made.
+     * The default number of entity IDs to fetch every time a query is made.
      */
     protected static final int CHUNK_SIZE = 150;
     /**
@@ -73,21 +100,34 @@ class CachingSupport<T> implements Serializable {
         }
     };
     /**
-     * The max size of the filter cache (i.e. how many different filters to
-     * cache).
+     * The default max size of the filter cache (i.e. how many different
+     * filters to cache).
      * 
      * @see #getFilterCache()
      */
     public static final int MAX_FILTER_CACHE_SIZE = 10;
     /**
-     * The max size of the sort by cache for each filter. Thus, the maximum
-     * number of cached filter-sortBy combinations is
+     * The default max size of the sort by cache for each filter. Thus, the
+     * maximum number of cached filter-sortBy combinations is
      * <code>MAX_FILTER_CACHE_SIZE * MAX_SORTBY_CACHE_SIZE</code>.
      */
     public static final int MAX_SORTBY_CACHE_SIZE = 10;
+    /**
+     * The max number of keyset pagination anchors to remember for each
+     * filter-sortBy combination.
+     */
+    public static final int MAX_ANCHOR_COUNT = 100;
+    /**
+     * The number of forward accesses in a row needed before the next chunk is
+     * read ahead.
+     */
+    private static final int READ_AHEAD_ACCESSES = 2;
 
-    // TODO Make chunk size, filter cache size and sortBy cache size user
-    // configurable.
+    private volatile int chunkSize = CHUNK_SIZE;
+    private volatile boolean adaptiveChunkSizeEnabled = false;
+    private final ChunkSizeTuner chunkSizeTuner = new ChunkSizeTuner();
+    private volatile int maxFilterCacheSize = MAX_FILTER_CACHE_SIZE;
+    private volatile int maxSortByCacheSize = MAX_SORTBY_CACHE_SIZE;
 
     /**
      * Creates a new <code>CachingSupport</code> for the specified entity
@@ -111,15 +151,59 @@ class CachingSupport<T> implements Serializable {
     static class IdListEntry implements Serializable {
 
         private static final long serialVersionUID = -3552793234160831297L;
-        public ArrayList<Object> idList;
-        public int listOffset = 0;
+        public ArrayList<Object> idList = new ArrayList<Object>();
+        public int listOffset = -1;
         public boolean containsAll = false;
+        /**
+         * The identifiers of {@link #idList} for fast lookups, built when
+         * needed while {@link #containsAll} is true.
+         */
+        public transient HashSet<Object> allIdSet;
+        /**
+         * The sort keys of entities at known positions, used as starting
+         * points for keyset pagination.
+         * 
+         * @see LocalEntityProvider#doGetEntityKeys(EntityContainer, Filter,
+         *      List, Object[], boolean, int, int)
+         */
+        public TreeMap<Integer, Object[]> anchors = new TreeMap<Integer, Object[]>();
+        /**
+         * The index after the last identifier, if a chunk load has reached
+         * it, or -1 if not known.
+         */
+        public int endIndex = -1;
+        /**
+         * The last accessed index, and the number of accesses in a row that
+         * have moved forward from the previous one. Used to detect scrolling
+         * for read-ahead.
+         */
+        public int lastAccessIndex = -1;
+        public int forwardAccesses = 0;
+        public boolean readAheadPending = false;
+        /**
+         * The range of indexes that a read-ahead task is loading without
+         * holding the lock of the entry (empty if none). Threads that need
+         * identifiers in this range wait for the task instead of running the
+         * same query.
+         */
+        public transient int readAheadFrom;
+        public transient int readAheadTo;
     }
 
     /**
      * This class represents a cache for a specific {@link Filter}. The class
      * contains counterparts of most of the methods defined in
      * {@link EntityProvider}.
+     * <p>
+     * The identifier lists are locked separately for every sort order, and
+     * the lock is held while a missing chunk is being loaded, so that
+     * concurrent requests for the same chunk result in a single query. Only
+     * read-ahead tasks load their chunks without holding the lock, and
+     * requests for a chunk that is being read ahead wait for the task. The
+     * monitor of the entry itself is only held for short periods of time.
+     * Changes clear the lists and the count instead of waiting for running
+     * loads, and increment a modification counter so that the results of
+     * loads that overlapped a change are not stored.
      * 
      * @author Petter Holmström (Vaadin Ltd)
      * @since 1.0
@@ -128,11 +212,24 @@ class CachingSupport<T> implements Serializable {
 
         // TODO Optimize the use of lists
         private static final long serialVersionUID = -2978864194978758736L;
-        private Filter filter;
-        private Integer entityCount;
-        public Map<List<SortBy>, IdListEntry> idListMap = new CacheMap<List<SortBy>, IdListEntry>(
-                MAX_SORTBY_CACHE_SIZE);
-        public Set<Object> idSet = new CacheSet<Object>(getMaxCacheSize());
+        private final Filter filter;
+        private volatile Integer entityCount;
+        private final ReentrantLock countLock = new ReentrantLock();
+        public final Cache<List<SortBy>, IdListEntry> idListMap = getCacheFactory()
+                .createCache(getMaxSortByCacheSize());
+        public final Cache<Object, Boolean> idSet = getCacheFactory()
+                .createCache(getMaxCacheSize());
+        /**
+         * The identifiers that are known not to match the filter, or not to
+         * exist at all.
+         */
+        public final Cache<Object, Boolean> absentIdSet = getCacheFactory()
+                .createCache(getMaxCacheSize());
+        /**
+         * The identifiers loaded from the database since the last call to
+         * {@link #takeLoadedIds()}.
+         */
+        private transient List<Object> loadedIds;
 
         /**
          * Creates a new <code>FilterCacheEntry</code>.
@@ -149,32 +246,147 @@ class CachingSupport<T> implements Serializable {
          * 
          * @return the number of entities.
          */
-        public synchronized int getEntityCount(EntityContainer<T> container) {
+        public int getEntityCount(EntityContainer<T> container) {
             if(!isCachingPossible(container)) {
                 return entityProvider.doGetEntityCount(container, getFilter());
             }
-            if (entityCount == null) {
-                entityCount = entityProvider.doGetEntityCount(container, getFilter());
+            Integer count = entityCount;
+            if (count != null) {
+                return count;
+            }
+            // Threads asking for the count at the same time share one query
+            countLock.lock();
+            try {
+                count = entityCount;
+                if (count == null) {
+                    long stamp = getChangeStamp();
+                    count = loadEntityCount(container);
+                    setEntityCount(count, stamp);
+                }
+                return count;
+            } finally {
+                countLock.unlock();
+            }
+        }
+
+        private Integer loadEntityCount(EntityContainer<T> container) {
+            SharedQueryCache shared = getSharedQueryCache(container);
+            if (shared == null) {
+                return entityProvider.doGetEntityCount(container, getFilter());
+            }
+            EntityManagerFactory emf = getEntityManagerFactory();
+            Integer count = shared.getEntityCount(emf, getEntityClass(),
+                    getFilter());
+            if (count == null) {
+                long generation = shared.getGeneration(getEntityClass());
+                count = entityProvider.doGetEntityCount(container, getFilter());
+                shared.putEntityCount(emf, getEntityClass(), getFilter(),
+                        count, generation);
+            }
+            return count;
+        }
+
+        private synchronized void setEntityCount(int count, long stamp) {
+            if (isUnchangedSince(stamp)) {
+                entityCount = count;
             }
-            return entityCount;
+        }
+
+        /**
+         * Gets the identifier list sorted by <code>sortBy</code>, creating it
+         * if needed. The monitor of the returned entry must be held while
+         * accessing it.
+         */
+        private synchronized IdListEntry getIdListEntry(List<SortBy> sortBy) {
+            IdListEntry entry = idListMap.get(sortBy);
+            if (entry == null) {
+                entry = new IdListEntry();
+                idListMap.put(sortBy, entry);
+            }
+            return entry;
         }
 
         /**
          * @see EntityProvider#containsEntity(java.lang.Object,
          *      com.vaadin.addons.jpacontainer.Filter)
          */
-        public synchronized boolean containsId(EntityContainer<T> container,
+        public boolean containsId(EntityContainer<T> container,
                 Object entityId) {
-            if (!idSet.contains(entityId)) {
-                if (entityProvider.doContainsEntity(container, entityId,
-                        getFilter())) {
-                    idSet.add(entityId);
-                    return true;
+            Boolean contains = isContained(entityId);
+            if (contains == null) {
+                long stamp = getChangeStamp();
+                contains = entityProvider.doContainsEntity(container,
+                        entityId, getFilter());
+                setContained(entityId, contains, stamp);
+            }
+            return contains;
+        }
+
+        /**
+         * @see EntityProvider#containsEntities(EntityContainer, Collection,
+         *      Filter)
+         */
+        public Set<Object> containsIds(EntityContainer<T> container,
+                Collection<Object> entityIds) {
+            Set<Object> result = new HashSet<Object>();
+            List<Object> unknownIds = new ArrayList<Object>();
+            for (Object entityId : entityIds) {
+                Boolean contains = isContained(entityId);
+                if (contains == null) {
+                    unknownIds.add(entityId);
+                } else if (contains) {
+                    result.add(entityId);
+                }
+            }
+            if (!unknownIds.isEmpty()) {
+                long stamp = getChangeStamp();
+                Set<Object> found = entityProvider.doContainsEntities(
+                        container, unknownIds, getFilter());
+                for (Object entityId : unknownIds) {
+                    setContained(entityId, found.contains(entityId), stamp);
+                }
+                result.addAll(found);
+            }
+            return result;
+        }
+
+        /**
+         * Checks whether <code>entityId</code> is known to match the filter
+         * without querying the database. Besides the identifiers that have
+         * been checked before, a list that contains all the matching
+         * identifiers answers both ways.
+         * 
+         * @return true or false if known, null if the database has to be
+         *         queried.
+         */
+        private Boolean isContained(Object entityId) {
+            if (idSet.get(entityId) != null) {
+                return Boolean.TRUE;
+            }
+            if (absentIdSet.get(entityId) != null) {
+                return Boolean.FALSE;
+            }
+            for (IdListEntry entry : idListMap.values()) {
+                synchronized (entry) {
+                    if (entry.containsAll) {
+                        if (entry.allIdSet == null) {
+                            entry.allIdSet = new HashSet<Object>(entry.idList);
+                        }
+                        return entry.allIdSet.contains(entityId);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private synchronized void setContained(Object entityId,
+                boolean contains, long stamp) {
+            if (isUnchangedSince(stamp)) {
+                if (contains) {
+                    idSet.put(entityId, Boolean.TRUE);
                 } else {
-                    return false;
+                    absentIdSet.put(entityId, Boolean.TRUE);
                 }
-            } else {
-                return true;
             }
         }
 
@@ -191,103 +403,118 @@ class CachingSupport<T> implements Serializable {
          * @see EntityProvider#getNextEntityIdentifier(java.lang.Object,
          *      com.vaadin.addons.jpacontainer.Filter, java.util.List)
          */
-        public synchronized Object getNextId(EntityContainer<T> container,
+        public Object getNextId(EntityContainer<T> container,
                 Object entityId, List<SortBy> sortBy) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>();
-                entry.listOffset = -1;
-                idListMap.put(sortBy, entry);
-            }
-            int index = entry.idList.indexOf(entityId);
-            if (index == -1) {
-                entry.idList = new ArrayList<Object>(getNextIds(container,
-                        getFilter(), sortBy, entityId, CHUNK_SIZE));
-                if (entry.idList.isEmpty()) {
-                    return null;
+            IdListEntry entry = getIdListEntry(sortBy);
+            int chunkSize = getCurrentChunkSize();
+            Object nextId;
+            ReadAhead readAhead = null;
+            synchronized (entry) {
+                int index = entry.idList.indexOf(entityId);
+                if (index == -1) {
+                    entry.idList = new ArrayList<Object>(loaded(getNextIds(
+                            container, getFilter(), sortBy, entityId, chunkSize)));
+                    // The position of the new list is not known
+                    entry.listOffset = -1;
+                    entry.containsAll = false;
+                    entry.allIdSet = null;
+                    if (entry.idList.isEmpty()) {
+                        nextId = null;
+                    } else {
+                        nextId = entry.idList.get(0);
+                    }
                 } else {
-                    return entry.idList.get(0);
-                }
-            } else {
-                if (index == entry.idList.size() - 1) {
-                    if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
-                        // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
-                            entry.idList.clear();
-                            index = -1;
-                        } else {
-                            entry.idList.subList(0, CHUNK_SIZE).clear();
-                            index -= CHUNK_SIZE;
+                    if (index == entry.idList.size() - 1) {
+                        if (getMaxCacheSize() > -1
+                                && entry.idList.size() + chunkSize > getMaxCacheSize()) {
+                            // Clean up the cache
+                            int removed = Math.min(chunkSize,
+                                    entry.idList.size());
+                            entry.idList.subList(0, removed).clear();
+                            index -= removed;
+                            if (entry.listOffset > -1) {
+                                entry.listOffset += removed;
+                            }
+                            entry.containsAll = false;
+                            entry.allIdSet = null;
+                        }
+                        entry.idList.addAll(loaded(getNextIds(container,
+                                getFilter(), sortBy, entityId, chunkSize)));
+                    }
+                    if (index + 1 == entry.idList.size()) {
+                        nextId = null;
+                    } else {
+                        nextId = entry.idList.get(index + 1);
+                        if (entry.listOffset > -1) {
+                            int nextIndex = entry.listOffset + index + 1;
+                            readAhead = accessed(container, entry, sortBy,
+                                    nextIndex, nextIndex);
                         }
                     }
-                    entry.idList.addAll(getNextIds(container, getFilter(),
-                            sortBy, entityId, CHUNK_SIZE));
-                }
-                if (index + 1 == entry.idList.size()) {
-                    return null;
-                } else {
-                    return entry.idList.get(index + 1);
                 }
             }
+            startReadAhead(readAhead);
+            return nextId;
         }
 
         /**
          * @see EntityProvider#getPreviousEntityIdentifier(java.lang.Object,
          *      com.vaadin.addons.jpacontainer.Filter, java.util.List)
          */
-        public synchronized Object getPreviousId(EntityContainer<T> container,
+        public Object getPreviousId(EntityContainer<T> container,
                 Object entityId, List<SortBy> sortBy) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>();
-                entry.listOffset = -1;
-                idListMap.put(sortBy, entry);
-            }
-            int index = entry.idList.indexOf(entityId);
-            if (index == -1) {
-                List<Object> objects = getPreviousIds(container, getFilter(),
-                        sortBy, entityId, CHUNK_SIZE);
-                // We have to reverse the list
-                entry.idList = new ArrayList<Object>(objects.size());
-                for (int i = objects.size() - 1; i >= 0; i--) {
-                    entry.idList.add(objects.get(i));
-                }
-                if (entry.idList.isEmpty()) {
-                    return null;
-                } else {
-                    return entry.idList.get(entry.idList.size() - 1);
-                }
-            } else {
-                if (index == 0) {
-                    List<Object> objects = getPreviousIds(container,
-                            getFilter(), sortBy, entityId, CHUNK_SIZE);
-                    if (objects.isEmpty()) {
-                        return null;
-                    }
-                    // Store the ID we are looking for
-                    Object theId = objects.get(0);
-                    // Save the rest of the IDs in the cache for future use
-                    ArrayList<Object> l = new ArrayList<Object>();
+            IdListEntry entry = getIdListEntry(sortBy);
+            int chunkSize = getCurrentChunkSize();
+            synchronized (entry) {
+                int index = entry.idList.indexOf(entityId);
+                if (index == -1) {
+                    List<Object> objects = loaded(getPreviousIds(container,
+                            getFilter(), sortBy, entityId, chunkSize));
+                    // We have to reverse the list
+                    entry.idList = new ArrayList<Object>(objects.size());
                     for (int i = objects.size() - 1; i >= 0; i--) {
-                        l.add(objects.get(i));
+                        entry.idList.add(objects.get(i));
                     }
-                    if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
-                        // Clean up the cache
-                        if (entry.idList.size() > CHUNK_SIZE) {
-                            l.addAll(entry.idList.subList(0,
-                                    entry.idList.size() - CHUNK_SIZE));
-                        }
+                    entry.listOffset = -1;
+                    entry.containsAll = false;
+                    entry.allIdSet = null;
+                    if (entry.idList.isEmpty()) {
+                        return null;
                     } else {
-                        l.addAll(entry.idList);
+                        return entry.idList.get(entry.idList.size() - 1);
                     }
-                    entry.idList = l;
-                    return theId;
                 } else {
-                    return entry.idList.get(index - 1);
+                    if (index == 0) {
+                        List<Object> objects = loaded(getPreviousIds(container,
+                                getFilter(), sortBy, entityId, chunkSize));
+                        if (objects.isEmpty()) {
+                            return null;
+                        }
+                        // Store the ID we are looking for
+                        Object theId = objects.get(0);
+                        // Save the rest of the IDs in the cache for future use
+                        ArrayList<Object> l = new ArrayList<Object>();
+                        for (int i = objects.size() - 1; i >= 0; i--) {
+                            l.add(objects.get(i));
+                        }
+                        if (getMaxCacheSize() > -1
+                                && entry.idList.size() + chunkSize > getMaxCacheSize()) {
+                            // Clean up the cache
+                            if (entry.idList.size() > chunkSize) {
+                                l.addAll(entry.idList.subList(0,
+                                        entry.idList.size() - chunkSize));
+                            }
+                        } else {
+                            l.addAll(entry.idList);
+                        }
+                        entry.idList = l;
+                        if (entry.listOffset > -1) {
+                            entry.listOffset -= objects.size();
+                        }
+                        return theId;
+                    } else {
+                        return entry.idList.get(index - 1);
+                    }
                 }
             }
         }
@@ -314,145 +541,1010 @@ class CachingSupport<T> implements Serializable {
             // Clear the caches to force the data to be re-fetched from the
             // database
             // in case the ordering has changed
+            changeGeneration.incrementAndGet();
             idListMap.clear();
             // Removing the entity Id from the Id cache should be enough
             idSet.remove(entityId);
+            absentIdSet.remove(entityId);
+        }
+
+        /**
+         * Forgets the number of entities matching the filter, forcing it to be
+         * fetched from the database when requested the next time.
+         */
+        public synchronized void invalidateEntityCount() {
+            changeGeneration.incrementAndGet();
+            entityCount = null;
+        }
+
+        /**
+         * Informs the cache that an entity matching the filter has been added.
+         * The entity count is adjusted, but the identifier lists are cleared
+         * as the positions of the entities have changed.
+         * 
+         * @param entityId
+         *            the identifier of the added entity.
+         */
+        public synchronized void entityAdded(Object entityId) {
+            if (entityCount != null) {
+                entityCount++;
+            }
+            changeGeneration.incrementAndGet();
+            idListMap.clear();
+            idSet.put(entityId, Boolean.TRUE);
+            absentIdSet.remove(entityId);
+        }
+
+        /**
+         * Informs the cache that an entity matching the filter has been removed
+         * (or no longer matches the filter). The entity count is adjusted, but
+         * the identifier lists are cleared as the positions of the entities
+         * have changed.
+         * 
+         * @param entityId
+         *            the identifier of the removed entity.
+         */
+        public synchronized void entityRemoved(Object entityId) {
+            if (entityCount != null) {
+                entityCount--;
+            }
+            changeGeneration.incrementAndGet();
+            idListMap.clear();
+            idSet.remove(entityId);
+        }
+
+        /**
+         * Informs the cache that an entity has been updated.
+         * 
+         * @param update
+         *            the update (never null).
+         * @param oldPasses
+         *            whether the entity matched the filter before the update.
+         * @param newPasses
+         *            whether the entity matches the filter after the update.
+         */
+        public synchronized void entityUpdated(EntityUpdate update,
+                boolean oldPasses, boolean newPasses) {
+            if (oldPasses && newPasses) {
+                // Only the lists whose order may have changed are dropped
+                for (List<SortBy> sortBy : idListMap.keySet()) {
+                    if (update.isSortOrderChanged(sortBy)) {
+                        idListMap.remove(sortBy);
+                    }
+                }
+                idSet.put(update.entityId, Boolean.TRUE);
+                absentIdSet.remove(update.entityId);
+            } else if (newPasses) {
+                entityAdded(update.entityId);
+            } else if (oldPasses) {
+                entityRemoved(update.entityId);
+            } else {
+                changeGeneration.incrementAndGet();
+                idSet.remove(update.entityId);
+            }
+        }
+
+        /**
+         * Informs the cache that entities matching the filter have been
+         * updated without changing whether they match it. Only the identifier
+         * lists whose order may have changed are dropped.
+         * 
+         * @param update
+         *            the update (never null).
+         */
+        public synchronized void sortOrderChanged(EntityUpdate update) {
+            changeGeneration.incrementAndGet();
+            for (List<SortBy> sortBy : idListMap.keySet()) {
+                if (update.isSortOrderChanged(sortBy)) {
+                    idListMap.remove(sortBy);
+                }
+            }
         }
 
         /**
          * @see EntityProvider#getEntityIdentifierAt(com.vaadin.addons.jpacontainer.Filter,
          *      java.util.List, int)
          */
-        public synchronized Object getIdAt(EntityContainer<T> container,
+        public Object getIdAt(EntityContainer<T> container,
                 List<SortBy> sortBy, int index) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>(CHUNK_SIZE * 2);
-                idListMap.put(sortBy, entry);
+            IdListEntry entry = getIdListEntry(sortBy);
+            int chunkSize = getCurrentChunkSize();
+            Object entityId;
+            ReadAhead readAhead;
+            synchronized (entry) {
+                awaitReadAhead(entry, index, index + 1);
+
+                // listOffset may be -1 if the list has been loaded by a call
+                // to getNextId() or getPreviousId()
+                if (!entry.containsAll
+                        && (entry.idList.isEmpty() || index < entry.listOffset || index >= entry.listOffset
+                                + entry.idList.size())) {
+
+                    // Check if we can concatenate the index lists
+                    if (entry.listOffset > -1 && index == entry.listOffset - 1) {
+                        if (getMaxCacheSize() > -1
+                                && entry.idList.size() + chunkSize > getMaxCacheSize()) {
+                            // Clean up the cache
+                            if (entry.idList.size() <= chunkSize) {
+                                entry.idList.clear();
+                            } else {
+                                entry.idList.subList(
+                                        entry.idList.size() - chunkSize,
+                                        entry.idList.size()).clear();
+                            }
+                        }
+                        ArrayList<Object> l = new ArrayList<Object>(chunkSize
+                                + entry.idList.size());
+                        int startFrom = index - chunkSize;
+                        if (startFrom < 0) {
+                            startFrom = 0;
+                        }
+                        l.addAll(loaded(seekIds(container, entry.anchors, sortBy, startFrom,
+                                index - startFrom + 1)));
+                        l.addAll(entry.idList);
+                        entry.idList = l;
+                        entry.listOffset = startFrom;
+                    } else if (entry.listOffset > -1
+                            && index == entry.listOffset + entry.idList.size()) {
+                        loaded(appendNextChunk(container, entry, sortBy));
+                    } else {
+                        entry.idList.clear();
+                        entry.idList.addAll(loaded(seekIds(container, entry.anchors, sortBy,
+                                index, chunkSize)));
+                        entry.listOffset = index;
+                    }
+                }
+                int i = index - entry.listOffset;
+                if (entry.idList.size() <= i) {
+                    entityId = null;
+                } else {
+                    entityId = entry.idList.get(i);
+                }
+                readAhead = accessed(container, entry, sortBy, index, index);
             }
+            startReadAhead(readAhead);
+            return entityId;
+        }
 
-            // listOffset may be -1 if the list has been loaded by a call
-            // to getNextId() or getPreviousId()
-            if (!entry.containsAll
-                    && (entry.idList.isEmpty() || index < entry.listOffset || index >= entry.listOffset
-                            + entry.idList.size())) {
+        /**
+         * Loads the chunk following the identifiers of <code>entry</code> and
+         * appends it to the list. The position of the list must be known and
+         * the monitor of <code>entry</code> must be held.
+         * 
+         * @return the loaded identifiers.
+         */
+        private List<Object> appendNextChunk(EntityContainer<T> container,
+                IdListEntry entry, List<SortBy> sortBy) {
+            int chunkSize = getCurrentChunkSize();
+            List<Object> ids = seekIds(container, entry.anchors, sortBy,
+                    entry.listOffset + entry.idList.size(), chunkSize);
+            appendChunk(entry, ids, chunkSize);
+            return ids;
+        }
 
-                // Check if we can concatenate the index lists
-                if (entry.listOffset > -1 && index == entry.listOffset - 1) {
-                    if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
-                        // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
-                            entry.idList.clear();
-                        } else {
-                            entry.idList.subList(
-                                    entry.idList.size() - CHUNK_SIZE,
-                                    entry.idList.size()).clear();
+        /**
+         * Appends <code>ids</code>, which were loaded as a chunk of
+         * <code>chunkSize</code> identifiers, to the list of
+         * <code>entry</code>, dropping the first chunk if the list would grow
+         * larger than the max cache size. The position of the list must be
+         * known and the monitor of <code>entry</code> must be held.
+         */
+        private void appendChunk(IdListEntry entry, List<Object> ids,
+                int chunkSize) {
+            int index = entry.listOffset + entry.idList.size();
+            // It is possible that maxCacheSize < chunkSize => we have
+            // to make sure that the list is at least as big as
+            // chunkSize
+            if (getMaxCacheSize() > -1
+                    && entry.idList.size() + chunkSize > getMaxCacheSize()) {
+                // Clean up the cache
+                if (entry.idList.size() <= chunkSize) {
+                    entry.listOffset += entry.idList.size();
+                    entry.idList.clear();
+                } else {
+                    entry.idList.subList(0, chunkSize).clear();
+                    entry.listOffset += chunkSize;
+                }
+            }
+            if (ids.size() < chunkSize) {
+                entry.endIndex = index + ids.size();
+            }
+            entry.idList.addAll(ids);
+        }
+
+        /**
+         * Waits until no read-ahead task is loading identifiers between
+         * <code>startIndex</code> (inclusive) and <code>endIndex</code>
+         * (exclusive) of <code>entry</code>. The monitor of
+         * <code>entry</code> must be held.
+         */
+        private void awaitReadAhead(IdListEntry entry, int startIndex,
+                int endIndex) {
+            while (startIndex < entry.readAheadTo
+                    && endIndex > entry.readAheadFrom) {
+                try {
+                    entry.wait();
+                } catch (InterruptedException e) {
+                    // Load the identifiers without waiting
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Records that the identifiers from <code>index</code> to
+         * <code>lastIndex</code> of <code>entry</code> have been accessed. If
+         * the identifiers are being accessed sequentially and the end of the
+         * loaded ones is near, the entry is marked as having a read-ahead
+         * pending and a task loading the next chunk is returned. The monitor
+         * of <code>entry</code> must be held, and the task must be passed to
+         * {@link #startReadAhead(ReadAhead)} after releasing it. The access is
+         * also recorded for the adaptive chunk size.
+         * 
+         * @return the read-ahead task, or null if no read-ahead is needed.
+         */
+        private ReadAhead accessed(EntityContainer<T> container,
+                IdListEntry entry, List<SortBy> sortBy, int index,
+                int lastIndex) {
+            int chunkSize = getCurrentChunkSize();
+            if (entry.lastAccessIndex > -1 && index > entry.lastAccessIndex
+                    && index - entry.lastAccessIndex <= chunkSize) {
+                entry.forwardAccesses++;
+                recordAccess(lastIndex - index + 1, index
+                        - entry.lastAccessIndex);
+            } else {
+                entry.forwardAccesses = 0;
+                recordAccess(lastIndex - index + 1, 0);
+            }
+            entry.lastAccessIndex = lastIndex;
+            ReadAheadPolicy policy = readAheadPolicy;
+            if (policy == null || policy.getExecutor() == null
+                    || entry.forwardAccesses < READ_AHEAD_ACCESSES
+                    || entry.readAheadPending || entry.containsAll
+                    || entry.listOffset < 0
+                    || !entityProvider.isEntityManagerProvided()) {
+                return null;
+            }
+            if (getMaxCacheSize() > -1
+                    && getMaxCacheSize() < 2 * chunkSize) {
+                // Appending would drop the identifiers being accessed
+                return null;
+            }
+            int loadedTo = entry.listOffset + entry.idList.size();
+            Integer count = entityCount;
+            if ((count != null && loadedTo >= count)
+                    || (entry.endIndex > -1 && loadedTo >= entry.endIndex)
+                    || !policy.isReadAheadNeeded(lastIndex, loadedTo,
+                            chunkSize)) {
+                return null;
+            }
+            entry.readAheadPending = true;
+            return new ReadAhead(container, entry, sortBy, loadedTo, policy);
+        }
+
+        /**
+         * Passes <code>readAhead</code> to the executor of its policy.
+         * 
+         * @param readAhead
+         *            the task to start (may be null).
+         */
+        private void startReadAhead(ReadAhead readAhead) {
+            if (readAhead == null) {
+                return;
+            }
+            Executor executor = readAhead.policy.getExecutor();
+            try {
+                executor.execute(readAhead);
+            } catch (RejectedExecutionException e) {
+                readAhead.done();
+            }
+        }
+
+        /**
+         * @see EntityProvider#getEntityIdentifiersInRange(EntityContainer,
+         *      Filter, List, int, int)
+         */
+        public List<Object> getIdsInRange(
+                EntityContainer<T> container, List<SortBy> sortBy,
+                int startIndex, int count) {
+            IdListEntry entry = getIdListEntry(sortBy);
+            int chunkSize = getCurrentChunkSize();
+            List<Object> entityIds;
+            ReadAhead readAhead;
+            synchronized (entry) {
+                awaitReadAhead(entry, startIndex, startIndex + count);
+
+                // listOffset may be -1 if the list has been loaded by a call
+                // to getNextId() or getPreviousId()
+                if (!entry.containsAll
+                        && (entry.listOffset < 0 || startIndex < entry.listOffset || startIndex
+                                + count > entry.listOffset + entry.idList.size())) {
+                    // Fetch the whole range (but at least one chunk) using a
+                    // single query and make it the new cached window
+                    entry.idList.clear();
+                    entry.idList.addAll(loaded(seekIds(container, entry.anchors, sortBy,
+                            startIndex, Math.max(count, chunkSize))));
+                    entry.listOffset = startIndex;
+                }
+                int from = startIndex - entry.listOffset;
+                int to = Math.min(from + count, entry.idList.size());
+                if (from >= to) {
+                    entityIds = Collections.emptyList();
+                } else {
+                    entityIds = Collections
+                            .unmodifiableList(new ArrayList<Object>(
+                                    entry.idList.subList(from, to)));
+                }
+                readAhead = accessed(container, entry, sortBy, startIndex,
+                        startIndex + count - 1);
+            }
+            startReadAhead(readAhead);
+            return entityIds;
+        }
+
+        /**
+         * @see EntityProvider#getAllEntityIdentifiers(com.vaadin.addons.jpacontainer.Filter,
+         *      java.util.List)
+         */
+        public List<Object> getAllIds(EntityContainer<T> container,
+                List<SortBy> sortBy) {
+            IdListEntry entry = getIdListEntry(sortBy);
+            synchronized (entry) {
+                if (!entry.containsAll) {
+                    entry.idList = new ArrayList<Object>(getSharedIds(container,
+                            sortBy, 0, -1));
+                    entry.listOffset = 0;
+                    entry.containsAll = true;
+                    entry.allIdSet = null;
+                }
+                return Collections.unmodifiableList(entry.idList);
+            }
+        }
+
+        /**
+         * Gets at most <code>count</code> identifiers starting from position
+         * <code>startFrom</code>. If possible, the identifiers are fetched by
+         * seeking from the nearest known anchor (or from the end of the list,
+         * if the entity count is known) instead of using an offset from the
+         * beginning of the list. The first and last fetched entities are
+         * remembered as new anchors.
+         * <p>
+         * Seeking is only possible if the sort keys can be compared in a
+         * filter, see {@link LocalEntityProvider#isKeysetPagingSupported(List)}.
+         * In particular, if a sorted property is nullable, an offset is used
+         * unless the null ordering of the database has been set with
+         * {@link LocalEntityProvider#setNullOrdering(LocalEntityProvider.NullOrdering)}.
+         */
+        private List<Object> seekIds(EntityContainer<T> container,
+                TreeMap<Integer, Object[]> anchors, List<SortBy> sortBy,
+                int startFrom, int count) {
+            SharedQueryCache shared = getSharedQueryCache(container);
+            EntityManagerFactory emf = null;
+            long generation = 0;
+            if (shared != null) {
+                emf = getEntityManagerFactory();
+                List<Object> ids = shared.getEntityIdentifiers(emf,
+                        getEntityClass(), getFilter(), sortBy, startFrom,
+                        count);
+                if (ids != null) {
+                    return ids;
+                }
+                generation = shared.getGeneration(getEntityClass());
+            }
+            long start = System.nanoTime();
+            List<Object> ids = doSeekIds(container, anchors, sortBy,
+                    startFrom, count);
+            recordChunkLoad(System.nanoTime() - start);
+            if (shared != null) {
+                shared.putEntityIdentifiers(emf, getEntityClass(),
+                        getFilter(), sortBy, startFrom, count, ids,
+                        generation);
+            }
+            return ids;
+        }
+
+        /**
+         * Gets identifiers like {@link #getIds(EntityContainer, Filter, List,
+         * int, int)}, but consults the shared query cache first.
+         */
+        private List<Object> getSharedIds(EntityContainer<T> container,
+                List<SortBy> sortBy, int startFrom, int count) {
+            SharedQueryCache shared = getSharedQueryCache(container);
+            if (shared == null) {
+                return getIds(container, getFilter(), sortBy, startFrom, count);
+            }
+            EntityManagerFactory emf = getEntityManagerFactory();
+            List<Object> ids = shared.getEntityIdentifiers(emf,
+                    getEntityClass(), getFilter(), sortBy, startFrom, count);
+            if (ids == null) {
+                long generation = shared.getGeneration(getEntityClass());
+                ids = getIds(container, getFilter(), sortBy, startFrom, count);
+                shared.putEntityIdentifiers(emf, getEntityClass(),
+                        getFilter(), sortBy, startFrom, count, ids, generation);
+            }
+            return ids;
+        }
+
+        private List<Object> doSeekIds(EntityContainer<T> container,
+                TreeMap<Integer, Object[]> anchors, List<SortBy> sortBy,
+                int startFrom, int count) {
+            if (!entityProvider.isKeysetPagingSupported(sortBy)) {
+                return getIds(container, getFilter(), sortBy, startFrom, count);
+            }
+            Integer entityCount = this.entityCount;
+            int endAt = startFrom + count;
+            if (entityCount != null) {
+                endAt = Math.min(endAt, entityCount);
+                if (endAt <= startFrom) {
+                    return Collections.emptyList();
+                }
+            }
+            // By default, skip startFrom rows from the beginning of the list
+            Object[] anchor = null;
+            boolean backwards = false;
+            int skip = startFrom;
+            Map.Entry<Integer, Object[]> floor = anchors
+                    .floorEntry(startFrom - 1);
+            if (floor != null && startFrom - floor.getKey() - 1 < skip) {
+                anchor = floor.getValue();
+                skip = startFrom - floor.getKey() - 1;
+            }
+            boolean reversible = entityProvider.isSortOrderReversible(sortBy);
+            Map.Entry<Integer, Object[]> ceiling = anchors.ceilingEntry(endAt);
+            if (reversible && ceiling != null
+                    && ceiling.getKey() - endAt < skip) {
+                anchor = ceiling.getValue();
+                backwards = true;
+                skip = ceiling.getKey() - endAt;
+            }
+            if (reversible && entityCount != null
+                    && entityCount - endAt < skip) {
+                anchor = null;
+                backwards = true;
+                skip = entityCount - endAt;
+            }
+            List<Object[]> keys = entityProvider.doGetEntityKeys(container,
+                    getFilter(), sortBy, anchor, backwards, skip,
+                    backwards ? endAt - startFrom : count);
+            if (backwards) {
+                Collections.reverse(keys);
+            }
+            if (!keys.isEmpty()) {
+                addAnchor(anchors, startFrom, keys.get(0));
+                addAnchor(anchors, startFrom + keys.size() - 1,
+                        keys.get(keys.size() - 1));
+            }
+            List<Object> ids = new ArrayList<Object>(keys.size());
+            for (Object[] key : keys) {
+                ids.add(key[0]);
+            }
+            return ids;
+        }
+
+        private void addAnchor(TreeMap<Integer, Object[]> anchors,
+                int index, Object[] key) {
+            for (Object value : key) {
+                if (value == null) {
+                    // Null values cannot be seeked from
+                    return;
+                }
+            }
+            if (anchors.size() >= MAX_ANCHOR_COUNT
+                    && !anchors.containsKey(index)) {
+                // Forget the anchor farthest away from the new one
+                if (index - anchors.firstKey() > anchors.lastKey() - index) {
+                    anchors.remove(anchors.firstKey());
+                } else {
+                    anchors.remove(anchors.lastKey());
+                }
+            }
+            anchors.put(index, key);
+        }
+
+        /**
+         * Records that <code>ids</code> have just been loaded from the
+         * database, so that the corresponding entities can be prefetched.
+         * 
+         * @param ids
+         *            the loaded identifiers (never null).
+         * @return <code>ids</code>.
+         */
+        private synchronized List<Object> loaded(List<Object> ids) {
+            if (loadedIds == null) {
+                loadedIds = new ArrayList<Object>(ids);
+            } else {
+                loadedIds.addAll(ids);
+            }
+            return ids;
+        }
+
+        /**
+         * Returns and forgets the identifiers that have been loaded from the
+         * database since the last time this method was called.
+         * 
+         * @return a list of identifiers (never null).
+         */
+        public synchronized List<Object> takeLoadedIds() {
+            if (loadedIds == null) {
+                return Collections.emptyList();
+            }
+            List<Object> ids = loadedIds;
+            loadedIds = null;
+            return ids;
+        }
+
+        /**
+         * Gets the filter for which this cache has been created.
+         * 
+         * @return the filter (may be null).
+         */
+        public Filter getFilter() {
+            return filter == NULL_FILTER ? null : filter;
+        }
+
+        /**
+         * Task that appends the next chunk to an identifier list in the
+         * background, and optionally prefetches its entities. The chunk is
+         * loaded without holding the lock of the list, and appended only if
+         * the list still ends where it did and nothing has been changed in
+         * the meantime. A thread that needs the chunk while it is being
+         * loaded waits for the task instead of loading it again.
+         */
+        private class ReadAhead implements Runnable {
+
+            private final EntityContainer<T> container;
+            private final IdListEntry entry;
+            private final List<SortBy> sortBy;
+            private final int loadedTo;
+            private final ReadAheadPolicy policy;
+
+            ReadAhead(EntityContainer<T> container, IdListEntry entry,
+                    List<SortBy> sortBy, int loadedTo, ReadAheadPolicy policy) {
+                this.container = container;
+                this.entry = entry;
+                this.sortBy = sortBy;
+                this.loadedTo = loadedTo;
+                this.policy = policy;
+            }
+
+            /**
+             * @return true if the list of the entry still ends at
+             *         <code>loadedTo</code>.
+             */
+            private boolean isListEndUnchanged() {
+                return !entry.containsAll && entry.listOffset > -1
+                        && entry.listOffset + entry.idList.size() == loadedTo;
+            }
+
+            public void run() {
+                try {
+                    int chunkSize = getCurrentChunkSize();
+                    TreeMap<Integer, Object[]> anchors;
+                    long stamp;
+                    synchronized (entry) {
+                        // The list may have been moved or extended while the
+                        // task was waiting to be run
+                        if (!isListEndUnchanged()) {
+                            return;
                         }
+                        anchors = new TreeMap<Integer, Object[]>(entry.anchors);
+                        stamp = getChangeStamp();
+                        entry.readAheadFrom = loadedTo;
+                        entry.readAheadTo = loadedTo + chunkSize;
                     }
-                    ArrayList<Object> l = new ArrayList<Object>(CHUNK_SIZE
-                            + entry.idList.size());
-                    int startFrom = index - CHUNK_SIZE;
-                    if (startFrom < 0) {
-                        startFrom = 0;
-                    }
-                    l.addAll(getIds(container, getFilter(), sortBy, startFrom, index
-                            - startFrom + 1));
-                    l.addAll(entry.idList);
-                    entry.idList = l;
-                    entry.listOffset = startFrom;
-                } else if (entry.listOffset > -1
-                        && index == entry.listOffset + entry.idList.size()) {
-                    // It is possible that maxCacheSize < CHUNK_SIZE => we have
-                    // to make sure that the list is at least as big as
-                    // CHUNK_SIZE
-                    if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
-                        // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
-                            entry.listOffset += entry.idList.size();
-                            entry.idList.clear();
-                        } else {
-                            entry.idList.subList(0, CHUNK_SIZE).clear();
-                            entry.listOffset += CHUNK_SIZE;
+                    List<Object> ids = Collections.emptyList();
+                    try {
+                        List<Object> loadedIds = seekIds(container, anchors,
+                                sortBy, loadedTo, chunkSize);
+                        synchronized (entry) {
+                            if (isUnchangedSince(stamp) && isListEndUnchanged()) {
+                                appendChunk(entry, loadedIds, chunkSize);
+                                for (Map.Entry<Integer, Object[]> anchor : anchors
+                                        .entrySet()) {
+                                    if (!entry.anchors.containsKey(anchor
+                                            .getKey())) {
+                                        addAnchor(entry.anchors,
+                                                anchor.getKey(),
+                                                anchor.getValue());
+                                    }
+                                }
+                                ids = loadedIds;
+                            }
+                        }
+                    } finally {
+                        synchronized (entry) {
+                            entry.readAheadFrom = 0;
+                            entry.readAheadTo = 0;
+                            entry.notifyAll();
                         }
                     }
-                    entry.idList.addAll(getIds(container, getFilter(), sortBy, index,
-                            CHUNK_SIZE));
-                } else {
-                    entry.idList.clear();
-                    entry.idList.addAll(getIds(container, getFilter(), sortBy, index,
-                            CHUNK_SIZE));
-                    entry.listOffset = index;
+                    if (policy.isPrefetchEntities()) {
+                        prefetchEntities(ids);
+                    }
+                } catch (RuntimeException e) {
+                    // The chunk is loaded when it is needed instead
+                    Logger.getLogger(CachingSupport.class.getName()).log(
+                            Level.FINE, "Could not read ahead", e);
+                } finally {
+                    done();
+                }
+            }
+
+            void done() {
+                synchronized (entry) {
+                    entry.readAheadPending = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Describes an update of an entity: its state before and after the
+     * update, and which properties are known to have changed.
+     */
+    class EntityUpdate {
+
+        final Object entityId;
+        final T oldEntity;
+        final T newEntity;
+        final Collection<String> changedPropertyIds;
+
+        /**
+         * Creates a new <code>EntityUpdate</code>.
+         * 
+         * @param entityId
+         *            the identifier of the entity (never null).
+         * @param oldEntity
+         *            the state before the update, or null if unknown.
+         * @param newEntity
+         *            the state after the update (never null).
+         * @param changedPropertyIds
+         *            the properties that have changed, or null if unknown.
+         */
+        EntityUpdate(Object entityId, T oldEntity, T newEntity,
+                Collection<String> changedPropertyIds) {
+            this.entityId = entityId;
+            this.oldEntity = oldEntity;
+            this.newEntity = newEntity;
+            this.changedPropertyIds = changedPropertyIds;
+        }
+
+        /**
+         * Checks whether the value of <code>propertyId</code> may have
+         * changed. Nested properties are supported.
+         */
+        boolean isChanged(String propertyId) {
+            if (changedPropertyIds != null) {
+                for (String changed : changedPropertyIds) {
+                    if (propertyId.equals(changed)
+                            || propertyId.startsWith(changed + ".")
+                            || changed.startsWith(propertyId + ".")) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (oldEntity == null) {
+                return true;
+            }
+            try {
+                Object oldValue = getFilterEvaluator().getPropertyValue(
+                        oldEntity, propertyId);
+                Object newValue = getFilterEvaluator().getPropertyValue(
+                        newEntity, propertyId);
+                return oldValue == null ? newValue != null : !oldValue
+                        .equals(newValue);
+            } catch (RuntimeException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Checks whether any of <code>propertyIds</code> may have changed.
+         */
+        boolean isChanged(Collection<String> propertyIds) {
+            for (String propertyId : propertyIds) {
+                if (isChanged(propertyId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Checks whether the position of the entity in a list sorted by
+         * <code>sortBy</code> may have changed.
+         */
+        boolean isSortOrderChanged(List<SortBy> sortBy) {
+            for (SortBy sb : sortBy) {
+                if (isChanged(sb.getPropertyId().toString())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Invalidates the cached data of the entity identified by
+     * <code>entityId</code> when nothing is known about how it has changed.
+     * 
+     * @param entityId
+     *            the identifier of the entity (never null).
+     * @param updated
+     *            true if the entity has been updated, which flushes the filter
+     *            cache as the entity may now match different filters; false if
+     *            it has been removed.
+     */
+    public synchronized void invalidate(Object entityId, boolean updated) {
+        changeGeneration.incrementAndGet();
+        getEntityCache().remove(entityId);
+        if (updated) {
+            getFilterCache().clear();
+        } else {
+            for (FilterCacheEntry fce : getFilterCache().values()) {
+                fce.invalidate(entityId);
+            }
+        }
+    }
+
+    /**
+     * Updates the caches after <code>entity</code> has been added. The entity
+     * is evaluated against the filter of every filter cache entry in memory:
+     * the entity counts of the matching entries are incremented and their
+     * identifier lists cleared, whereas the entries that do not match are left
+     * intact. Entries whose filter cannot be evaluated in memory are dropped.
+     * 
+     * @param entity
+     *            the added entity (never null).
+     */
+    public synchronized void entityAdded(T entity) {
+        Object entityId = getEntityIdentifier(entity);
+        if (entityId == null) {
+            flush();
+            return;
+        }
+        for (FilterCacheEntry fce : getFilterCache().values()) {
+            Boolean passes = getFilterEvaluator().passesFilter(
+                    fce.getFilter(), entity);
+            if (passes == null) {
+                getFilterCache().remove(fce.filter);
+            } else if (passes) {
+                fce.entityAdded(entityId);
+            }
+        }
+    }
+
+    /**
+     * Updates the caches after <code>entity</code> has been updated, see
+     * {@link #entityUpdated(EntityUpdate)}.
+     * 
+     * @param entity
+     *            the updated entity as stored in the database (never null).
+     */
+    public synchronized void entityUpdated(T entity) {
+        Object entityId = getEntityIdentifier(entity);
+        if (entityId == null) {
+            flush();
+            return;
+        }
+        entityUpdated(new EntityUpdate(entityId, removeCachedEntity(entityId,
+                entity), entity, null));
+    }
+
+    /**
+     * Updates the caches after the property <code>propertyName</code> of the
+     * entity identified by <code>entityId</code> has been updated, see
+     * {@link #entityUpdated(EntityUpdate)}. Only the lists sorted by the
+     * updated property are dropped.
+     * 
+     * @param entityId
+     *            the identifier of the entity (never null).
+     * @param propertyName
+     *            the name of the updated property (never null).
+     */
+    public void entityPropertyUpdated(Object entityId, String propertyName) {
+        if (getFilterCache().size() == 0) {
+            removeCachedEntity(entityId, null);
+            return;
+        }
+        // Not loaded while holding the lock
+        T entity = entityProvider.doGetEntity(entityId);
+        synchronized (this) {
+            if (entity == null) {
+                invalidate(entityId, true);
+                return;
+            }
+            entityUpdated(new EntityUpdate(entityId, removeCachedEntity(
+                    entityId, entity), entity, Collections
+                    .singleton(propertyName)));
+        }
+    }
+
+    /**
+     * Updates the caches after the property <code>propertyName</code> of the
+     * entity identified by <code>entityId</code> has been set to
+     * <code>propertyValue</code>. If the entity is cached and the cached
+     * entities are cloned, the cached entity is patched in place, and the
+     * filter cache entries are updated without loading the entity, see
+     * {@link #entityUpdated(EntityUpdate)}. Otherwise, this is the same as
+     * {@link #entityPropertyUpdated(Object, String)}.
+     * 
+     * @param entityId
+     *            the identifier of the entity (never null).
+     * @param propertyName
+     *            the name of the updated property (never null).
+     * @param propertyValue
+     *            the new value of the property.
+     * @param newVersion
+     *            the new value of the version property, or null if the entity
+     *            has no version property or the new version is not known.
+     */
+    public void entityPropertyUpdated(Object entityId, String propertyName,
+            Object propertyValue, Object newVersion) {
+        EntityClassMetadata<T> metadata = entityProvider
+                .getEntityClassMetadata();
+        synchronized (this) {
+            T cachedEntity = getEntityCache().get(entityId);
+            if (cachedEntity != null && isCloneCachedEntities()
+                    && (newVersion != null || !metadata.hasVersionProperty())) {
+                changeGeneration.incrementAndGet();
+                T oldEntity = cloneEntityIfNeeded(cachedEntity);
+                metadata.setPropertyValue(cachedEntity, propertyName,
+                        propertyValue);
+                if (newVersion != null) {
+                    metadata.setPropertyValue(cachedEntity, metadata
+                            .getVersionProperty().getName(), newVersion);
                 }
+                entityUpdated(new EntityUpdate(entityId, oldEntity,
+                        cachedEntity, Collections.singleton(propertyName)));
+                return;
             }
-            int i = index - entry.listOffset;
-            if (entry.idList.size() <= i) {
-                return null;
-            }
-            return entry.idList.get(i);
         }
+        entityPropertyUpdated(entityId, propertyName);
+    }
 
-        /**
-         * @see EntityProvider#getAllEntityIdentifiers(com.vaadin.addons.jpacontainer.Filter,
-         *      java.util.List)
-         */
-        public synchronized List<Object> getAllIds(EntityContainer<T> container, List<SortBy> sortBy) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                idListMap.put(sortBy, entry);
+    /**
+     * Updates the filter cache entries after an entity has been updated. The
+     * entity is evaluated against the filter of every filter cache entry in
+     * memory, both before and after the update:
+     * <ul>
+     * <li>If the entity has started or stopped matching the filter, the entity
+     * count is adjusted and the identifier lists are cleared.</li>
+     * <li>If the entity matches the filter both before and after the update,
+     * only the identifier lists sorted by changed properties are dropped.</li>
+     * <li>If neither or if the outcome cannot be determined in memory, the
+     * entry is left intact or dropped, respectively.</li>
+     * </ul>
+     * 
+     * @param update
+     *            the update (never null).
+     */
+    private void entityUpdated(EntityUpdate update) {
+        for (FilterCacheEntry fce : getFilterCache().values()) {
+            Filter filter = fce.getFilter();
+            Set<String> filterPropertyIds = getFilterEvaluator()
+                    .getPropertyIds(filter);
+            Boolean newPasses = null;
+            Boolean oldPasses = null;
+            if (filterPropertyIds != null) {
+                newPasses = getFilterEvaluator().passesFilter(filter,
+                        update.newEntity);
+                if (!update.isChanged(filterPropertyIds)) {
+                    oldPasses = newPasses;
+                } else if (update.oldEntity != null) {
+                    oldPasses = getFilterEvaluator().passesFilter(filter,
+                            update.oldEntity);
+                } else if (fce.idSet.containsKey(update.entityId)) {
+                    oldPasses = Boolean.TRUE;
+                }
             }
-            if (!entry.containsAll) {
-                entry.idList = new ArrayList<Object>(getIds(container, getFilter(),
-                        sortBy, 0, -1));
-                entry.listOffset = 0;
-                entry.containsAll = true;
+            if (newPasses == null || oldPasses == null) {
+                getFilterCache().remove(fce.filter);
+            } else {
+                fce.entityUpdated(update, oldPasses, newPasses);
             }
-            return Collections.unmodifiableList(entry.idList);
         }
+    }
 
-        /**
-         * Gets the filter for which this cache has been created.
-         * 
-         * @return the filter (may be null).
-         */
-        public Filter getFilter() {
-            return filter == NULL_FILTER ? null : filter;
+    /**
+     * Updates the caches after the properties <code>propertyNames</code> of
+     * some entities have been updated in bulk, without loading the entities.
+     * As the updated entities are not known, the entity cache is cleared, and
+     * the filter cache entries whose filters depend on the updated properties
+     * or cannot be evaluated in memory are dropped. The other entries are
+     * kept, as the updated entities still match them if and only if they did
+     * before, but their identifier lists sorted by the updated properties are
+     * dropped.
+     * 
+     * @param propertyNames
+     *            the names of the updated properties (never null).
+     */
+    public synchronized void entitiesUpdated(Collection<String> propertyNames) {
+        changeGeneration.incrementAndGet();
+        if (entityCache != null) {
+            entityCache.clear();
+        }
+        EntityUpdate update = new EntityUpdate(null, null, null, propertyNames);
+        for (FilterCacheEntry fce : getFilterCache().values()) {
+            Set<String> filterPropertyIds = getFilterEvaluator()
+                    .getPropertyIds(fce.getFilter());
+            if (filterPropertyIds == null
+                    || update.isChanged(filterPropertyIds)) {
+                getFilterCache().remove(fce.filter);
+            } else {
+                fce.sortOrderChanged(update);
+            }
         }
     }
 
     /**
-     * TODO Document me!
+     * Updates the caches after the entity identified by <code>entityId</code>
+     * has been removed. The entity counts of the filter cache entries that the
+     * entity is known to have matched are decremented, and the counts of the
+     * entries for which this is not known are invalidated.
      * 
      * @param entityId
-     * @param updated
+     *            the identifier of the removed entity (never null).
      */
-    public synchronized void invalidate(Object entityId, boolean updated) {
-        getEntityCache().remove(entityId);
-        if (updated) {
-            // TODO Do something smarter than flushing the entire cache!
-            getFilterCache().clear();
-        } else {
-            for (FilterCacheEntry fce : getFilterCache().values()) {
+    public synchronized void entityRemoved(Object entityId) {
+        T oldEntity = removeCachedEntity(entityId, null);
+        for (FilterCacheEntry fce : getFilterCache().values()) {
+            Boolean passed = null;
+            if (oldEntity != null) {
+                passed = getFilterEvaluator().passesFilter(fce.getFilter(),
+                        oldEntity);
+            } else if (fce.getFilter() == null
+                    || fce.idSet.containsKey(entityId)) {
+                passed = Boolean.TRUE;
+            }
+            if (passed == null) {
+                fce.invalidate(entityId);
+                fce.invalidateEntityCount();
+            } else if (passed) {
+                fce.entityRemoved(entityId);
+            } else {
                 fce.invalidate(entityId);
             }
         }
     }
 
     /**
-     * TODO Document me!
+     * Removes the entity identified by <code>entityId</code> from the entity
+     * cache.
      * 
-     * @param entity
+     * @param entityId
+     *            the identifier of the entity.
+     * @param newEntity
+     *            the updated entity instance, if any (may be null).
+     * @return the removed entity if it can be trusted to reflect the state
+     *         before the update, null otherwise.
      */
-    public synchronized void entityAdded(T entity) {
-        // TODO Do something smarter than flushing the entire cache!
-        flush();
-        // This is currently obsolete, but when above todo is implemented,
-        // uncomment this or somehow increment relevat filter caches.
-        // invalidateSize();
+    private synchronized T removeCachedEntity(Object entityId, T newEntity) {
+        changeGeneration.incrementAndGet();
+        T oldEntity = getEntityCache().remove(entityId);
+        // Unless the cached entities are cloned, the cached instance is
+        // handed out and may have been modified by the caller
+        if (!isCloneCachedEntities() || oldEntity == newEntity) {
+            return null;
+        }
+        return oldEntity;
+    }
+
+    private Object getEntityIdentifier(T entity) {
+        return entityProvider.getEntityClassMetadata().getPropertyValue(
+                entity,
+                entityProvider.getEntityClassMetadata()
+                        .getIdentifierProperty().getName());
+    }
 
+    synchronized FilterEvaluator<T> getFilterEvaluator() {
+        if (filterEvaluator == null) {
+            filterEvaluator = new FilterEvaluator<T>(
+                    entityProvider.getEntityClassMetadata());
+        }
+        return filterEvaluator;
     }
 
     /**
@@ -474,15 +1566,16 @@ class CachingSupport<T> implements Serializable {
      */
     protected List<Object> getIds(EntityContainer<T> container, Filter filter,
             List<SortBy> sortBy, int startFrom, int fetchMax) {
+        if (fetchMax > 0) {
+            return entityProvider.doGetEntityIdentifiersInRange(container,
+                    filter, sortBy, startFrom, fetchMax);
+        }
         TypedQuery<Object> query = entityProvider.createFilteredQuery(
                 container,
                 Arrays.asList(entityProvider.getEntityClassMetadata()
                         .getIdentifierProperty().getName()), filter,
                 entityProvider.addPrimaryKeyToSortList(sortBy), false);
         query.setFirstResult(startFrom);
-        if (fetchMax > 0) {
-            query.setMaxResults(fetchMax);
-        }
         return query.getResultList();
     }
 
@@ -507,6 +1600,10 @@ class CachingSupport<T> implements Serializable {
      */
     protected List<Object> getNextIds(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy, Object startFrom, int fetchMax) {
+        if (!entityProvider.isSiblingQuerySupported(sortBy, false)) {
+            return getSiblingIds(container, filter, sortBy, startFrom,
+                    fetchMax, false);
+        }
         TypedQuery<Object> query = entityProvider.createSiblingQuery(container,
                 startFrom, filter, sortBy, false);
         if (fetchMax > 0) {
@@ -536,6 +1633,10 @@ class CachingSupport<T> implements Serializable {
      */
     protected List<Object> getPreviousIds(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy, Object startFrom, int fetchMax) {
+        if (!entityProvider.isSiblingQuerySupported(sortBy, true)) {
+            return getSiblingIds(container, filter, sortBy, startFrom,
+                    fetchMax, true);
+        }
         TypedQuery<Object> query = entityProvider.createSiblingQuery(container,
                 startFrom, filter, sortBy, true);
         if (fetchMax > 0) {
@@ -544,66 +1645,43 @@ class CachingSupport<T> implements Serializable {
         return query.getResultList();
     }
 
-    private Map<Object, T> entityCache;
-    private Map<Filter, FilterCacheEntry> filterCache;
-
     /**
-     * A hash map that will remove the oldest items once its size reaches a
-     * specified max size.
-     * 
-     * @author Petter Holmström (Vaadin Ltd)
-     * @since 1.0
+     * Looks up the siblings of <code>startFrom</code> from the list of all the
+     * identifiers, for when the sibling query cannot be used, see
+     * {@link LocalEntityProvider#isSiblingQuerySupported(List, boolean)}.
      */
-    protected static class CacheMap<K, V> extends HashMap<K, V> {
-
-        private static final long serialVersionUID = 2900939583997256189L;
-        private LinkedList<K> addOrder = new LinkedList<K>();
-        private int maxSize;
-
-        public CacheMap(int maxSize) {
-            super(maxSize);
-            this.maxSize = maxSize;
+    private List<Object> getSiblingIds(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, Object startFrom,
+            int fetchMax, boolean backwards) {
+        List<Object> ids = getIds(container, filter, sortBy, 0, 0);
+        int index = ids.indexOf(startFrom);
+        if (index == -1) {
+            return Collections.emptyList();
         }
-
-        @Override
-        public synchronized V put(K key, V value) {
-            if (size() == maxSize) {
-                // remove oldest item
-                remove(addOrder.removeFirst());
-            }
-            addOrder.add(key);
-            return super.put(key, value);
+        List<Object> siblings;
+        if (backwards) {
+            int from = fetchMax > 0 ? Math.max(0, index - fetchMax) : 0;
+            siblings = new ArrayList<Object>(ids.subList(from, index));
+            Collections.reverse(siblings);
+        } else {
+            int to = fetchMax > 0 ? Math.min(ids.size(), index + 1 + fetchMax)
+                    : ids.size();
+            siblings = new ArrayList<Object>(ids.subList(index + 1, to));
         }
+        return siblings;
     }
 
+    private volatile Cache<Object, T> entityCache;
+    private volatile Cache<Filter, FilterCacheEntry> filterCache;
+    private FilterEvaluator<T> filterEvaluator;
     /**
-     * A hash set that will remove the oldest items once its size reaches a
-     * specified max size.
-     * 
-     * @author Petter Holmström (Vaadin Ltd)
-     * @since 1.0
+     * Incremented whenever the cached data is changed, and at the beginning
+     * and end of every change made through the entity provider, so that the
+     * results of loads that overlapped a change are not stored.
      */
-    protected static class CacheSet<V> extends HashSet<V> {
-
-        private static final long serialVersionUID = 2900939583997256189L;
-        private LinkedList<V> addOrder = new LinkedList<V>();
-        private int maxSize;
-
-        public CacheSet(int maxSize) {
-            super(maxSize);
-            this.maxSize = maxSize;
-        }
-
-        @Override
-        public synchronized boolean add(V e) {
-            if (size() == maxSize) {
-                // remove oldest item
-                remove(addOrder.removeFirst());
-            }
-            addOrder.add(e);
-            return super.add(e);
-        }
-    }
+    private final AtomicLong changeGeneration = new AtomicLong();
+    private final AtomicInteger changesInProgress = new AtomicInteger();
+    private final SingleFlight<Object, T> entityLoads = new SingleFlight<Object, T>();
 
     /**
      * Gets the cache for entity instances. If no cache exists, it will be
@@ -611,11 +1689,18 @@ class CachingSupport<T> implements Serializable {
      * 
      * @return the entity cache (never null).
      */
-    synchronized Map<Object, T> getEntityCache() {
-        if (entityCache == null) {
-            entityCache = new CacheMap<Object, T>(getMaxCacheSize());
+    Cache<Object, T> getEntityCache() {
+        Cache<Object, T> cache = entityCache;
+        if (cache == null) {
+            synchronized (this) {
+                if (entityCache == null) {
+                    entityCache = getCacheFactory().createCache(
+                            getMaxCacheSize());
+                }
+                cache = entityCache;
+            }
         }
-        return entityCache;
+        return cache;
     }
 
     /**
@@ -624,12 +1709,66 @@ class CachingSupport<T> implements Serializable {
      * 
      * @return the filter cache (never null).
      */
-    synchronized Map<Filter, FilterCacheEntry> getFilterCache() {
-        if (filterCache == null) {
-            filterCache = new CacheMap<Filter, FilterCacheEntry>(
-                    MAX_FILTER_CACHE_SIZE);
+    Cache<Filter, FilterCacheEntry> getFilterCache() {
+        Cache<Filter, FilterCacheEntry> cache = filterCache;
+        if (cache == null) {
+            synchronized (this) {
+                if (filterCache == null) {
+                    filterCache = getCacheFactory().createCache(
+                            getMaxFilterCacheSize());
+                }
+                cache = filterCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Informs the cache that entities are about to be changed in the
+     * database. Until {@link #changeEnded()} is called, the results of
+     * concurrent loads are returned but not cached, as they may or may not
+     * reflect the change.
+     */
+    public void changeStarted() {
+        changesInProgress.incrementAndGet();
+        changeGeneration.incrementAndGet();
+    }
+
+    /**
+     * Informs the cache that a change started by {@link #changeStarted()} has
+     * been completed and the caches have been updated.
+     */
+    public void changeEnded() {
+        changeGeneration.incrementAndGet();
+        changesInProgress.decrementAndGet();
+    }
+
+    /**
+     * Gets a stamp to pass to {@link #isUnchangedSince(long)} after loading
+     * data from the database.
+     */
+    long getChangeStamp() {
+        return changeGeneration.get();
+    }
+
+    /**
+     * Checks whether loaded data can be cached, i.e. nothing has been changed
+     * since <code>stamp</code> was read and no change is in progress.
+     */
+    boolean isUnchangedSince(long stamp) {
+        return changesInProgress.get() == 0 && changeGeneration.get() == stamp;
+    }
+
+    /**
+     * Stores <code>entities</code> in the entity cache, unless something has
+     * been changed since <code>stamp</code> was read.
+     */
+    private synchronized void putEntities(Map<Object, T> entities, long stamp) {
+        if (isUnchangedSince(stamp)) {
+            for (Map.Entry<Object, T> e : entities.entrySet()) {
+                getEntityCache().put(e.getKey(), e.getValue());
+            }
         }
-        return filterCache;
     }
 
     /**
@@ -653,6 +1792,7 @@ class CachingSupport<T> implements Serializable {
     }
 
     public synchronized void flush() {
+        changeGeneration.incrementAndGet();
         if (entityCache != null) {
             entityCache.clear();
         }
@@ -726,12 +1866,221 @@ class CachingSupport<T> implements Serializable {
      * @param maxSize
      *            the maximum cache size to set.
      */
-    public void setMaxCacheSize(int maxSize) {
+    public synchronized void setMaxCacheSize(int maxSize) {
         this.maxCacheSize = maxSize;
         entityCache = null;
         filterCache = null;
     }
 
+    public synchronized CacheFactory getCacheFactory() {
+        return cacheFactory;
+    }
+
+    /**
+     * Sets the factory used to create the caches. This method will cause any
+     * existing caches to be flushed and re-created.
+     * 
+     * @param cacheFactory
+     *            the cache factory to use (must not be null).
+     */
+    public synchronized void setCacheFactory(CacheFactory cacheFactory) {
+        assert cacheFactory != null : "cacheFactory must not be null";
+        this.cacheFactory = cacheFactory;
+        entityCache = null;
+        filterCache = null;
+    }
+
+    /**
+     * Gets the shared query cache that is consulted before querying the
+     * database for entity counts and identifiers.
+     * 
+     * @return the shared query cache, or null if none has been set.
+     */
+    public SharedQueryCache getSharedQueryCache() {
+        return sharedQueryCache;
+    }
+
+    /**
+     * Sets the shared query cache. The cache is not serialized, and has to be
+     * set again after deserialization.
+     * 
+     * @param sharedQueryCache
+     *            the shared query cache, or null to not use one.
+     */
+    public void setSharedQueryCache(SharedQueryCache sharedQueryCache) {
+        this.sharedQueryCache = sharedQueryCache;
+    }
+
+    /**
+     * Gets the configured number of identifiers to load at a time.
+     * 
+     * @return the chunk size.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the number of identifiers to load at a time. If the adaptive chunk
+     * size is enabled, this is the smallest chunk size used.
+     * 
+     * @param chunkSize
+     *            the chunk size (must be greater than 0).
+     */
+    public void setChunkSize(int chunkSize) {
+        assert chunkSize > 0 : "chunkSize must be greater than 0";
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isAdaptiveChunkSizeEnabled() {
+        return adaptiveChunkSizeEnabled;
+    }
+
+    /**
+     * Turns the adaptive chunk size on or off. When on, the chunk size grows
+     * from the configured one based on the sizes of the requested ranges,
+     * the scrolling speed and the time it takes to load a chunk.
+     * 
+     * @see ChunkSizeTuner
+     * @param enabled
+     *            true to turn the adaptive chunk size on, false to turn it off.
+     */
+    public void setAdaptiveChunkSizeEnabled(boolean enabled) {
+        this.adaptiveChunkSizeEnabled = enabled;
+    }
+
+    /**
+     * Gets the number of identifiers to load at a time, taking the adaptive
+     * chunk size into account if it is enabled.
+     * 
+     * @return the chunk size.
+     */
+    int getCurrentChunkSize() {
+        if (!adaptiveChunkSizeEnabled) {
+            return chunkSize;
+        }
+        return chunkSizeTuner.getChunkSize(chunkSize, getMaxCacheSize());
+    }
+
+    /**
+     * Informs the chunk size tuner that <code>count</code> identifiers have
+     * been accessed, <code>distance</code> positions forward from the
+     * previous access.
+     */
+    private void recordAccess(int count, int distance) {
+        if (adaptiveChunkSizeEnabled) {
+            chunkSizeTuner.recordAccess(count, distance, System.nanoTime());
+        }
+    }
+
+    /**
+     * Informs the chunk size tuner that loading a chunk took
+     * <code>nanos</code> nanoseconds.
+     */
+    private void recordChunkLoad(long nanos) {
+        if (adaptiveChunkSizeEnabled) {
+            chunkSizeTuner.recordLoad(nanos);
+        }
+    }
+
+    public int getMaxFilterCacheSize() {
+        return maxFilterCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of filters whose results are cached. This
+     * method will cause any existing caches to be flushed and re-created.
+     * 
+     * @param maxSize
+     *            the maximum number of filters (must be greater than 0).
+     */
+    public synchronized void setMaxFilterCacheSize(int maxSize) {
+        assert maxSize > 0 : "maxSize must be greater than 0";
+        this.maxFilterCacheSize = maxSize;
+        filterCache = null;
+    }
+
+    public int getMaxSortByCacheSize() {
+        return maxSortByCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of sort orders whose identifier lists are
+     * cached for each filter. This method will cause any existing caches to
+     * be flushed and re-created.
+     * 
+     * @param maxSize
+     *            the maximum number of sort orders (must be greater than 0).
+     */
+    public synchronized void setMaxSortByCacheSize(int maxSize) {
+        assert maxSize > 0 : "maxSize must be greater than 0";
+        this.maxSortByCacheSize = maxSize;
+        filterCache = null;
+    }
+
+    /**
+     * Gets the policy for loading the next chunk of identifiers in the
+     * background.
+     * 
+     * @return the read-ahead policy, or null if read-ahead is turned off.
+     */
+    public ReadAheadPolicy getReadAheadPolicy() {
+        return readAheadPolicy;
+    }
+
+    /**
+     * Sets the read-ahead policy. The policy is not serialized, and has to be
+     * set again after deserialization.
+     * 
+     * @param readAheadPolicy
+     *            the read-ahead policy, or null to turn read-ahead off.
+     */
+    public void setReadAheadPolicy(ReadAheadPolicy readAheadPolicy) {
+        this.readAheadPolicy = readAheadPolicy;
+    }
+
+    /**
+     * Gets the shared query cache if it can be used for queries made on
+     * behalf of <code>container</code>. Query modifier delegates may change
+     * the results in ways that are specific to a container or a user, so the
+     * shared cache is never used if there is one.
+     * 
+     * @return the shared query cache, or null if it should not be used.
+     */
+    private SharedQueryCache getSharedQueryCache(
+            EntityContainer<T> container) {
+        if (sharedQueryCache == null
+                || entityProvider.getQueryModifierDelegate() != null
+                || (container != null && container.getQueryModifierDelegate() != null)) {
+            return null;
+        }
+        return sharedQueryCache;
+    }
+
+    private Class<T> getEntityClass() {
+        return entityProvider.getEntityClassMetadata().getMappedClass();
+    }
+
+    /**
+     * Gets the factory of the persistence unit that the entity provider
+     * queries, which identifies its results in the shared query cache.
+     * 
+     * @return the entity manager factory, or null if not known.
+     */
+    private EntityManagerFactory getEntityManagerFactory() {
+        EntityManager em = entityProvider.getEntityManager();
+        return em == null ? null : em.getEntityManagerFactory();
+    }
+
+    /**
+     * Gets the statistics of the entity cache.
+     * 
+     * @return the statistics (never null).
+     */
+    public CacheStatistics getEntityCacheStatistics() {
+        return getEntityCache().getStatistics();
+    }
+
     public boolean containsEntity(EntityContainer<T> container,
             Object entityId, Filter filter) {
         if (usesCache(container)) {
@@ -741,6 +2090,17 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    public Set<Object> containsEntities(EntityContainer<T> container,
+            Collection<Object> entityIds, Filter filter) {
+        if (usesCache(container)) {
+            return getFilterCacheEntry(filter).containsIds(container,
+                    entityIds);
+        } else {
+            return entityProvider.doContainsEntities(container, entityIds,
+                    filter);
+        }
+    }
+
     public List<Object> getAllEntityIdentifiers(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
@@ -754,17 +2114,29 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
-    public synchronized T getEntity(EntityContainer<T> container,
-            Object entityId) {
+    public T getEntity(EntityContainer<T> container, final Object entityId) {
         if (usesCache(container)) {
             T entity = getEntityCache().get(entityId);
             if (entity == null) {
-                // TODO Should we fetch several entities at once?
-                entity = entityProvider.doGetEntity(entityId);
+                // Threads missing the same entity share one query
+                entity = entityLoads.load(entityId, new Callable<T>() {
+
+                    public T call() {
+                        long stamp = getChangeStamp();
+                        long start = System.nanoTime();
+                        T entity = entityProvider.doGetEntity(entityId);
+                        getEntityCache().recordLoad(System.nanoTime() - start);
+                        if (entity != null) {
+                            putEntities(
+                                    Collections.singletonMap(entityId, entity),
+                                    stamp);
+                        }
+                        return entity;
+                    }
+                });
                 if (entity == null) {
                     return null;
                 }
-                getEntityCache().put(entityId, entity);
             }
             return cloneEntityIfNeeded(entity);
         } else {
@@ -772,6 +2144,82 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    public Map<Object, T> getEntities(EntityContainer<T> container,
+            Collection<Object> entityIds) {
+        if (!usesCache(container)) {
+            return entityProvider.doGetEntities(entityIds);
+        }
+        Map<Object, T> result = new HashMap<Object, T>();
+        List<Object> missingIds = new ArrayList<Object>();
+        for (Object entityId : entityIds) {
+            T entity = getEntityCache().get(entityId);
+            if (entity == null) {
+                missingIds.add(entityId);
+            } else {
+                result.put(entityId, cloneEntityIfNeeded(entity));
+            }
+        }
+        if (!missingIds.isEmpty()) {
+            long stamp = getChangeStamp();
+            Map<Object, T> loaded = loadEntities(missingIds);
+            putEntities(loaded, stamp);
+            for (Map.Entry<Object, T> e : loaded.entrySet()) {
+                result.put(e.getKey(), cloneEntityIfNeeded(e.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads the entities identified by <code>entityIds</code> that are not
+     * already in the entity cache using a single bulk query, and stores them
+     * in the cache. At most {@link #getMaxCacheSize()} entities are loaded.
+     * 
+     * @param entityIds
+     *            the identifiers of the entities to prefetch (never null).
+     */
+    protected void prefetchEntities(Collection<Object> entityIds) {
+        if (entityIds.isEmpty()) {
+            return;
+        }
+        List<Object> missingIds = new ArrayList<Object>();
+        for (Object entityId : entityIds) {
+            if (getMaxCacheSize() > -1 && missingIds.size() >= getMaxCacheSize()) {
+                break;
+            }
+            if (entityId != null && !getEntityCache().containsKey(entityId)) {
+                missingIds.add(entityId);
+            }
+        }
+        if (!missingIds.isEmpty()) {
+            long stamp = getChangeStamp();
+            putEntities(loadEntities(missingIds), stamp);
+        }
+    }
+
+    /**
+     * Loads the entities identified by <code>entityIds</code> from the
+     * database and records the time it took in the entity cache statistics.
+     */
+    private Map<Object, T> loadEntities(Collection<Object> entityIds) {
+        long start = System.nanoTime();
+        Map<Object, T> entities = entityProvider.doGetEntities(entityIds);
+        getEntityCache().recordLoad(System.nanoTime() - start);
+        return entities;
+    }
+
+    /**
+     * Prefetches the entities whose identifiers have just been loaded into
+     * <code>fce</code>. This must not be called while holding the lock of
+     * <code>fce</code>.
+     * 
+     * @param fce
+     *            the filter cache entry (never null).
+     */
+    private void prefetchLoadedEntities(FilterCacheEntry fce) {
+        prefetchEntities(fce.takeLoadedIds());
+    }
+
     /**
      * Returns a clone of <code>entity</code> if
      * {@link #isCloneCachedEntities() } is true.
@@ -822,6 +2270,11 @@ class CachingSupport<T> implements Serializable {
     }
 
     public int getEntityCount(EntityContainer<T> container, Filter filter) {
+        if (entityProvider.getCountStrategy() != null) {
+            // The strategy decides whether the count is cached
+            return entityProvider.doGetEntityCountUsingStrategy(container,
+                    filter);
+        }
         if (usesCache(container)) {
             return getFilterCacheEntry(filter).getEntityCount(container);
         } else {
@@ -835,20 +2288,47 @@ class CachingSupport<T> implements Serializable {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getIdAt(container, sortBy, index);
+            FilterCacheEntry fce = getFilterCacheEntry(filter);
+            Object entityId = fce.getIdAt(container, sortBy, index);
+            prefetchLoadedEntities(fce);
+            return entityId;
         } else {
             return entityProvider.doGetEntityIdentifierAt(container, filter,
                     sortBy, index);
         }
     }
 
+    public List<Object> getEntityIdentifiersInRange(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        if (usesCache(container)) {
+            FilterCacheEntry fce = getFilterCacheEntry(filter);
+            List<Object> entityIds = fce.getIdsInRange(container, sortBy,
+                    startIndex, count);
+            prefetchLoadedEntities(fce);
+            return entityIds;
+        } else {
+            return entityProvider.doGetEntityIdentifiersInRange(container,
+                    filter, sortBy, startIndex, count);
+        }
+    }
+
     public Object getFirstEntityIdentifier(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getFirstId(container, sortBy);
+            FilterCacheEntry fce = getFilterCacheEntry(filter);
+            Object entityId = fce.getFirstId(container, sortBy);
+            prefetchLoadedEntities(fce);
+            return entityId;
         } else {
             return entityProvider.doGetFirstEntityIdentifier(container, filter,
                     sortBy);
@@ -861,7 +2341,10 @@ class CachingSupport<T> implements Serializable {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getLastId(container, sortBy);
+            FilterCacheEntry fce = getFilterCacheEntry(filter);
+            Object entityId = fce.getLastId(container, sortBy);
+            prefetchLoadedEntities(fce);
+            return entityId;
         } else {
             return entityProvider.doGetLastEntityIdentifier(container, filter,
                     sortBy);
@@ -874,8 +2357,10 @@ class CachingSupport<T> implements Serializable {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getNextId(container, entityId,
-                    sortBy);
+            FilterCacheEntry fce = getFilterCacheEntry(filter);
+            Object nextId = fce.getNextId(container, entityId, sortBy);
+            prefetchLoadedEntities(fce);
+            return nextId;
         } else {
             return entityProvider.doGetNextEntityIdentifier(container,
                     entityId, filter, sortBy);
@@ -888,8 +2373,10 @@ class CachingSupport<T> implements Serializable {
             sortBy = Collections.emptyList();
         }
         if (usesCache(container)) {
-            return getFilterCacheEntry(filter).getPreviousId(container,
-                    entityId, sortBy);
+            FilterCacheEntry fce = getFilterCacheEntry(filter);
+            Object previousId = fce.getPreviousId(container, entityId, sortBy);
+            prefetchLoadedEntities(fce);
+            return previousId;
         } else {
             return entityProvider.doGetPreviousEntityIdentifier(container,
                     entityId, filter, sortBy);
@@ -897,28 +2384,16 @@ class CachingSupport<T> implements Serializable {
     }
 
     public void invalidateSize() {
-        // TODO review synchronization of this whole class
-        Object[] array = filterCache.keySet().toArray();
-        for (Object filter : array) {
-            FilterCacheEntry filterCacheEntry = filterCache.get(filter);
-            if (filterCacheEntry.entityCount != null) {
-                synchronized (filterCacheEntry.entityCount) {
-                    filterCacheEntry.entityCount = null;
-                }
-            }
+        for (FilterCacheEntry filterCacheEntry : getFilterCache().values()) {
+            filterCacheEntry.invalidateEntityCount();
         }
-
-    }
-
-    public void entityRemoved(Object entityId) {
-        invalidate(entityId, false);
-        invalidateSize();
     }
 
     /**
      * Clears the cache.
      */
-    public void clear() {
+    public synchronized void clear() {
+        changeGeneration.incrementAndGet();
         if (entityCache != null) {
             entityCache.clear();
         }
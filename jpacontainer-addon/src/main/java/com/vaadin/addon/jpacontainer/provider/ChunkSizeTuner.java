@@ -0,0 +1,122 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+
+/**
+ * Calculates the number of identifiers to load at a time from the observed
+ * access pattern and query latency. The chunk size is never smaller than the
+ * configured one, but grows so that
+ * <ul>
+ * <li>a chunk holds several of the ranges requested at a time (e.g. the page
+ * length of a table and its cache rows), and</li>
+ * <li>a chunk lasts several times longer than it takes to load one, at the
+ * speed the user is scrolling.</li>
+ * </ul>
+ * All observations are exponentially weighted moving averages, so the chunk
+ * size shrinks back when the user stops scrolling or the database gets faster.
+ * This class is internal and should never be used outside of JPAContainer.
+ * 
+ * @since 3.2
+ */
+final class ChunkSizeTuner implements Serializable {
+
+    private static final long serialVersionUID = -4717815834880738219L;
+    /**
+     * The upper limit of the chunk size if the cache size is unlimited.
+     */
+    static final int MAX_CHUNK_SIZE = 5000;
+    /**
+     * The number of requested ranges a chunk should hold.
+     */
+    static final int RANGES_PER_CHUNK = 3;
+    /**
+     * The number of query latencies a chunk should last while scrolling.
+     */
+    static final int LATENCIES_PER_CHUNK = 4;
+    /**
+     * Accesses further apart than this (in nanoseconds) are not considered
+     * to be part of the same scroll.
+     */
+    private static final long SCROLL_PAUSE = 2000000000L;
+    private static final double WEIGHT = 0.25;
+
+    private double rangeSize;
+    private double rowsPerSecond;
+    private double latencySeconds;
+    private long lastAccessTime = -1;
+
+    /**
+     * Records that <code>count</code> identifiers have been requested at a
+     * time, <code>distance</code> positions forward from the previous
+     * request.
+     * 
+     * @param count
+     *            the number of identifiers requested.
+     * @param distance
+     *            the number of positions moved forward, or 0 if the access
+     *            did not move forward.
+     * @param now
+     *            the current time as returned by {@link System#nanoTime()}.
+     */
+    synchronized void recordAccess(int count, int distance, long now) {
+        rangeSize = average(rangeSize, count);
+        if (distance > 0 && lastAccessTime > -1) {
+            long elapsed = now - lastAccessTime;
+            if (elapsed > 0 && elapsed < SCROLL_PAUSE) {
+                rowsPerSecond = average(rowsPerSecond, distance * 1e9
+                        / elapsed);
+            } else {
+                rowsPerSecond = 0;
+            }
+        } else if (distance <= 0) {
+            rowsPerSecond = average(rowsPerSecond, 0);
+        }
+        lastAccessTime = now;
+    }
+
+    /**
+     * Records that loading a chunk of identifiers took <code>nanos</code>
+     * nanoseconds.
+     */
+    synchronized void recordLoad(long nanos) {
+        latencySeconds = average(latencySeconds, nanos / 1e9);
+    }
+
+    /**
+     * Gets the chunk size to use.
+     * 
+     * @param minSize
+     *            the configured chunk size, which is used as a lower limit.
+     * @param maxCacheSize
+     *            the max cache size, or -1 if unlimited. The chunk size is
+     *            limited to half of it so that the list can hold two chunks.
+     * @return the chunk size.
+     */
+    synchronized int getChunkSize(int minSize, int maxCacheSize) {
+        double size = Math.max(minSize, RANGES_PER_CHUNK * rangeSize);
+        size = Math.max(size, LATENCIES_PER_CHUNK * latencySeconds
+                * rowsPerSecond);
+        int max = maxCacheSize > -1 ? maxCacheSize / 2 : MAX_CHUNK_SIZE;
+        return (int) Math.max(minSize, Math.min(max, Math.ceil(size)));
+    }
+
+    private static double average(double average, double sample) {
+        return average == 0 ? sample : average + WEIGHT * (sample - average);
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.vaadin.addon.jpacontainer.provider;
 
+import java.util.Collection;
+import java.util.Collections;
+
 import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
 import com.vaadin.addon.jpacontainer.MutableEntityProvider;
 
@@ -29,6 +32,7 @@ class EntityPropertyUpdatedEvent<T> extends EntityEvent<T> implements
 
     private static final long serialVersionUID = -7472733082448613781L;
     private String propertyId;
+    private Collection<Object> entityIds;
 
     public EntityPropertyUpdatedEvent(MutableEntityProvider<T> entityProvider,
             String propertyId, T... entities) {
@@ -36,7 +40,24 @@ class EntityPropertyUpdatedEvent<T> extends EntityEvent<T> implements
         this.propertyId = propertyId;
     }
 
+    /**
+     * Creates a new event for entities that have not been loaded.
+     * 
+     * @since 3.2
+     */
+    @SuppressWarnings("unchecked")
+    public EntityPropertyUpdatedEvent(MutableEntityProvider<T> entityProvider,
+            String propertyId, Collection<Object> entityIds) {
+        super(entityProvider);
+        this.propertyId = propertyId;
+        this.entityIds = Collections.unmodifiableCollection(entityIds);
+    }
+
     public String getPropertyId() {
         return propertyId;
     }
+
+    public Collection<Object> getAffectedEntityIds() {
+        return entityIds;
+    }
 }
@@ -0,0 +1,317 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.ObjectProperty;
+import com.vaadin.data.util.filter.AbstractJunctionFilter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Evaluates filters against entity instances in memory using
+ * {@link Filter#passesFilter(Object, Item)}, so that {@link CachingSupport}
+ * can tell whether an added or updated entity belongs to a cached result
+ * without asking the database.
+ * <p>
+ * The in-memory semantics of the Vaadin filters differ from those of the JPQL
+ * they are converted to by
+ * {@link com.vaadin.addon.jpacontainer.filter.util.FilterConverter} in a few
+ * cases (null handling, type coercion, string collation, LIKE wildcards). In
+ * those cases the result is reported as unknown instead, and the caller is
+ * expected to fall back to invalidating the cache. This class is internal and
+ * should never be used outside of JPAContainer.
+ * 
+ * @since 3.2
+ */
+final class FilterEvaluator<T> implements Serializable {
+
+    private static final long serialVersionUID = -8117683405669566216L;
+
+    /**
+     * Thrown by the item view when a property value is such that the result
+     * of the filter could differ from the result of the database query.
+     */
+    private static class UnknownResultException extends RuntimeException {
+
+        private static final long serialVersionUID = 2402051405848738734L;
+    }
+
+    /**
+     * Restrictions on the values of a property for the in-memory result to be
+     * trusted.
+     */
+    private static class PropertyConstraint implements Serializable {
+
+        private static final long serialVersionUID = 7283622606221373418L;
+        /**
+         * True if the property is compared to something else than null, in
+         * which case SQL's three-valued logic applies to null values.
+         */
+        boolean nullSensitive;
+        /**
+         * The exact classes the property value must have.
+         */
+        Set<Class<?>> valueClasses = new HashSet<Class<?>>();
+        /**
+         * True if the property value must be a string.
+         */
+        boolean stringValue;
+    }
+
+    private final EntityClassMetadata<T> entityClassMetadata;
+
+    /**
+     * Creates a new <code>FilterEvaluator</code>.
+     * 
+     * @param entityClassMetadata
+     *            the metadata of the entities to evaluate (must not be null).
+     */
+    FilterEvaluator(EntityClassMetadata<T> entityClassMetadata) {
+        assert entityClassMetadata != null : "entityClassMetadata must not be null";
+        this.entityClassMetadata = entityClassMetadata;
+    }
+
+    /**
+     * Gets the IDs of the properties that <code>filter</code> depends on.
+     * 
+     * @param filter
+     *            the filter (may be null).
+     * @return the property IDs, or null if the filter cannot be evaluated in
+     *         memory.
+     */
+    Set<String> getPropertyIds(Filter filter) {
+        Map<String, PropertyConstraint> constraints = getConstraints(filter);
+        return constraints == null ? null : constraints.keySet();
+    }
+
+    /**
+     * Checks whether <code>entity</code> passes <code>filter</code>.
+     * 
+     * @param filter
+     *            the filter (may be null, in which case all entities pass).
+     * @param entity
+     *            the entity (must not be null).
+     * @return {@link Boolean#TRUE} if the entity passes the filter,
+     *         {@link Boolean#FALSE} if it does not and null if the outcome
+     *         cannot be determined in memory.
+     */
+    Boolean passesFilter(Filter filter, T entity) {
+        assert entity != null : "entity must not be null";
+        if (filter == null) {
+            return Boolean.TRUE;
+        }
+        Map<String, PropertyConstraint> constraints = getConstraints(filter);
+        if (constraints == null) {
+            return null;
+        }
+        try {
+            return filter.passesFilter(null, new EntityItemView(entity,
+                    constraints));
+        } catch (RuntimeException e) {
+            // Includes UnknownResultException, but also e.g. lazy loading
+            // exceptions thrown by detached entities
+            return null;
+        }
+    }
+
+    /**
+     * Gets the value of <code>propertyId</code> from <code>entity</code>.
+     * Nested properties are supported.
+     * 
+     * @throws IllegalArgumentException
+     *             if the property value could not be read.
+     */
+    Object getPropertyValue(T entity, String propertyId)
+            throws IllegalArgumentException {
+        return entityClassMetadata.getPropertyValue(entity, propertyId);
+    }
+
+    private Map<String, PropertyConstraint> getConstraints(Filter filter) {
+        if (filter == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, PropertyConstraint> constraints = new HashMap<String, PropertyConstraint>();
+        return collectConstraints(filter, constraints) ? constraints : null;
+    }
+
+    private static PropertyConstraint getConstraint(
+            Map<String, PropertyConstraint> constraints, Object propertyId) {
+        PropertyConstraint constraint = constraints.get(propertyId.toString());
+        if (constraint == null) {
+            constraint = new PropertyConstraint();
+            constraints.put(propertyId.toString(), constraint);
+        }
+        return constraint;
+    }
+
+    private static boolean isComparableLiteral(Object value) {
+        // The ordering of strings depends on the database collation
+        return value != null && !(value instanceof String);
+    }
+
+    /**
+     * Walks through <code>filter</code> and records the constraints for the
+     * properties it depends on.
+     * 
+     * @return true if the filter can be evaluated in memory, false otherwise.
+     */
+    private static boolean collectConstraints(Filter filter,
+            Map<String, PropertyConstraint> constraints) {
+        if (filter instanceof JoinFilter) {
+            // Matches if any of the joined entities matches
+            return false;
+        } else if (filter instanceof And || filter instanceof Or) {
+            for (Filter f : ((AbstractJunctionFilter) filter).getFilters()) {
+                if (!collectConstraints(f, constraints)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (filter instanceof Not) {
+            return collectConstraints(((Not) filter).getFilter(), constraints);
+        } else if (filter instanceof IsNull) {
+            getConstraint(constraints, ((IsNull) filter).getPropertyId());
+            return true;
+        } else if (filter instanceof Compare) {
+            Compare compare = (Compare) filter;
+            PropertyConstraint constraint = getConstraint(constraints,
+                    compare.getPropertyId());
+            Object value = compare.getValue();
+            if (value == null) {
+                // "= null" is converted to IS NULL
+                return compare.getOperation() == Compare.Operation.EQUAL;
+            }
+            if (compare.getOperation() != Compare.Operation.EQUAL
+                    && !isComparableLiteral(value)) {
+                return false;
+            }
+            constraint.nullSensitive = true;
+            constraint.valueClasses.add(value.getClass());
+            return true;
+        } else if (filter instanceof Between) {
+            Between between = (Between) filter;
+            if (!isComparableLiteral(between.getStartValue())
+                    || !isComparableLiteral(between.getEndValue())) {
+                return false;
+            }
+            PropertyConstraint constraint = getConstraint(constraints,
+                    between.getPropertyId());
+            constraint.nullSensitive = true;
+            constraint.valueClasses.add(between.getStartValue().getClass());
+            constraint.valueClasses.add(between.getEndValue().getClass());
+            return true;
+        } else if (filter instanceof Like) {
+            Like like = (Like) filter;
+            // Like is evaluated as a regular expression in memory, so only
+            // patterns without special characters other than % are supported
+            if (like.getValue() == null
+                    || !like.getValue().matches("[\\p{L}\\p{N}\\s%]*")) {
+                return false;
+            }
+            PropertyConstraint constraint = getConstraint(constraints,
+                    like.getPropertyId());
+            constraint.nullSensitive = true;
+            constraint.stringValue = true;
+            return true;
+        } else if (filter instanceof SimpleStringFilter) {
+            SimpleStringFilter ssf = (SimpleStringFilter) filter;
+            if (ssf.getFilterString().indexOf('%') >= 0
+                    || ssf.getFilterString().indexOf('_') >= 0) {
+                return false;
+            }
+            PropertyConstraint constraint = getConstraint(constraints,
+                    ssf.getPropertyId());
+            constraint.nullSensitive = true;
+            constraint.stringValue = true;
+            return true;
+        }
+        // Unknown filter type, its semantics may be anything
+        return false;
+    }
+
+    /**
+     * Read-only {@link Item} view of an entity that checks the property values
+     * against the constraints collected from the filter.
+     */
+    private class EntityItemView implements Item {
+
+        private static final long serialVersionUID = -5386826005811526391L;
+        private final T entity;
+        private final Map<String, PropertyConstraint> constraints;
+
+        EntityItemView(T entity, Map<String, PropertyConstraint> constraints) {
+            this.entity = entity;
+            this.constraints = constraints;
+        }
+
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        public Property getItemProperty(Object id) {
+            Object value = getPropertyValue(entity, id.toString());
+            PropertyConstraint constraint = constraints.get(id.toString());
+            if (constraint != null) {
+                if (value == null) {
+                    if (constraint.nullSensitive) {
+                        throw new UnknownResultException();
+                    }
+                } else if (constraint.stringValue && !(value instanceof String)) {
+                    throw new UnknownResultException();
+                } else if (!constraint.valueClasses.isEmpty()
+                        && !constraint.valueClasses.equals(Collections
+                                .singleton(value.getClass()))) {
+                    // The database would convert the types
+                    throw new UnknownResultException();
+                }
+            }
+            Class type = value == null ? Object.class : value.getClass();
+            return new ObjectProperty(value, type, true);
+        }
+
+        public Collection<?> getItemPropertyIds() {
+            return entityClassMetadata.getPropertyNames();
+        }
+
+        @SuppressWarnings("rawtypes")
+        public boolean addItemProperty(Object id, Property property)
+                throws UnsupportedOperationException {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean removeItemProperty(Object id)
+                throws UnsupportedOperationException {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -20,13 +20,28 @@ import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
+import javax.persistence.Query;
 import javax.persistence.TransactionRequiredException;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
@@ -34,13 +49,18 @@ import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Join;
 import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
+import com.vaadin.addon.jpacontainer.AsynchronousEntityProvider;
+import com.vaadin.addon.jpacontainer.CountStrategy;
+import com.vaadin.addon.jpacontainer.CountStrategy.CountContext;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
 import com.vaadin.addon.jpacontainer.LazyLoadingDelegate;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.SortBy;
@@ -49,12 +69,15 @@ import com.vaadin.addon.jpacontainer.filter.util.FilterConverter;
 import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
 import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
 import com.vaadin.addon.jpacontainer.util.CollectionUtil;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.util.filter.And;
 import com.vaadin.data.util.filter.Compare.Equal;
 import com.vaadin.data.util.filter.Compare.Greater;
 import com.vaadin.data.util.filter.Compare.Less;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Not;
 import com.vaadin.data.util.filter.Or;
 
 /**
@@ -73,6 +96,8 @@ import com.vaadin.data.util.filter.Or;
  * <li>Uses lazy-loading of entities (when using detached entities, references
  * and collections within the entities should be configured to be fetched
  * eagerly, though)</li>
+ * <li>Can run the count, identifier and entity queries in the background (see
+ * {@link #setQueryExecutor(Executor)})</li>
  * </ul>
  * 
  * This entity provider does not perform very well, as every method call results
@@ -83,9 +108,16 @@ import com.vaadin.data.util.filter.Or;
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
-public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
+public class LocalEntityProvider<T> implements AsynchronousEntityProvider<T>,
+        Serializable {
 
     private static final long serialVersionUID = 1601796410565144708L;
+    /**
+     * The maximum number of identifiers to include in the IN expression of a
+     * single query when fetching entities in bulk. Larger collections of
+     * identifiers are split into several queries.
+     */
+    protected static final int MAX_BULK_FETCH_SIZE = 500;
     private transient EntityManager entityManager;
     private EntityClassMetadata<T> entityClassMetadata;
     private boolean entitiesDetached = true;
@@ -143,6 +175,16 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      * where needed (e.g. when using Hibernate)
      */
     private LazyLoadingDelegate lazyLoadingDelegate;
+    private CountStrategy countStrategy;
+    private transient Executor queryExecutor;
+    private int queryTimeout;
+    private NullOrdering nullOrdering;
+
+    /**
+     * The criteria queries that have been built, by the shape of the query.
+     * Created when first needed.
+     */
+    private transient volatile QueryTemplateCache queryTemplateCache;
 
     // TODO Test serialization of entity manager
     protected Object writeReplace() throws ObjectStreamException {
@@ -215,6 +257,19 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return entityManagerProvider.getEntityManager();
     }
 
+    /**
+     * Checks whether the entity manager is obtained from the entity manager
+     * provider, i.e. whether queries may be run in other threads than the one
+     * that set the entity manager.
+     * 
+     * @return true if no entity manager has been set and there is an entity
+     *         manager provider.
+     * @since 3.2
+     */
+    public boolean isEntityManagerProvided() {
+        return entityManager == null && entityManagerProvider != null;
+    }
+
     /**
      * Gets the entity manager.
      * 
@@ -298,9 +353,32 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      */
     protected Order translateSortBy(SortBy sortBy, boolean swapSortOrder,
             CriteriaBuilder cb, Root<T> root) {
-        String sortedPropId = sortBy.getPropertyId().toString();
+        Path<T> path = translatePropertyPath(sortBy.getPropertyId()
+                .toString(), root);
+
+        // Make and return the Order instances.
+        if (sortBy.isAscending() != swapSortOrder) {
+            return cb.asc(path);
+        } else {
+            return cb.desc(path);
+        }
+    }
+
+    /**
+     * Translates a property id, which possibly is nested (e.g.
+     * address.street), into a Path that can be used in a CriteriaQuery. Nested
+     * references are LEFT JOINed, so that entities with null references are
+     * not dropped from the result.
+     * 
+     * @param propertyId
+     *            the property id to translate (must not be null).
+     * @param root
+     *            the {@link CriteriaQuery} {@link Root} to be used.
+     * @return the path (never null).
+     */
+    protected Path<T> translatePropertyPath(String propertyId, Root<T> root) {
         // First split the id and build a Path.
-        String[] idStrings = sortedPropId.split("\\.");
+        String[] idStrings = propertyId.split("\\.");
         Path<T> path = null;
         if (idStrings.length > 1 && !isEmbedded(idStrings[0])) {
             // This is a nested property, we need to LEFT JOIN
@@ -316,15 +394,9 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         } else {
             // non-nested or embedded, we can select as usual
             path = AdvancedFilterableSupport.getPropertyPathTyped(root,
-                    sortedPropId);
-        }
-
-        // Make and return the Order instances.
-        if (sortBy.isAscending() != swapSortOrder) {
-            return cb.asc(path);
-        } else {
-            return cb.desc(path);
+                    propertyId);
         }
+        return path;
     }
 
     /**
@@ -376,15 +448,28 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         assert fieldsToSelect != null : "fieldsToSelect must not be null";
         assert sortBy == null || !sortBy.isEmpty() : "sortBy must be either null or non-empty";
 
-        CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+        EntityManager em = doGetEntityManager();
+        List<Object> values = new ArrayList<Object>();
+        String key = getQueryKey(container,
+                "select" + fieldsToSelect + getSortKey(sortBy, swapSortOrder),
+                filter, values);
+        QueryTemplateCache.Template<Object> template = getQueryTemplate(key,
+                em);
+        if (template != null) {
+            return applyQueryTimeout(template.createQuery(em, values));
+        }
+
+        CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Object> query = cb.createQuery();
         Root<T> root = query.from(entityClassMetadata.getMappedClass());
 
         tellDelegateQueryWillBeBuilt(container, cb, query);
 
+        Map<ParameterExpression<?>, Object> parameters = new LinkedHashMap<ParameterExpression<?>, Object>();
         List<Predicate> predicates = new ArrayList<Predicate>();
         if (filter != null) {
-            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+            predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                    parameters));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -407,8 +492,7 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
                 || getEntityClassMetadata().hasEmbeddedIdentifier()) {
             List<Path<?>> paths = new ArrayList<Path<?>>();
             for (String fieldPath : fieldsToSelect) {
-                paths.add(AdvancedFilterableSupport.getPropertyPathTyped(root,
-                        fieldPath));
+                paths.add(translatePropertyPath(fieldPath, root));
             }
             query.multiselect(paths.toArray(new Path<?>[paths.size()]));
         } else {
@@ -416,7 +500,110 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
                     fieldsToSelect.get(0)));
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
-        return doGetEntityManager().createQuery(query);
+        TypedQuery<Object> tq = em.createQuery(query);
+        FilterConverter.setParameters(tq, parameters);
+        putQueryTemplate(key, values, em, query, parameters);
+        return applyQueryTimeout(tq);
+    }
+
+    /**
+     * Gets the key of a query in the query template cache. The key consists
+     * of <code>prefix</code>, which describes the rest of the query, and the
+     * shape of <code>filter</code>.
+     * 
+     * @param container
+     *            the container that the query is built for, may be null.
+     * @param prefix
+     *            the description of the query without the filter.
+     * @param filter
+     *            the filter, or null if none.
+     * @param values
+     *            the list to add the parameter values of the filter to.
+     * @return the key, or null if the query may not be cached because it can
+     *         be modified by a {@link QueryModifierDelegate} of this
+     *         provider or of <code>container</code>.
+     */
+    private String getQueryKey(EntityContainer<T> container, String prefix,
+            Filter filter, List<Object> values) {
+        if (queryModifierDelegate != null
+                || (container != null && container.getQueryModifierDelegate() != null)) {
+            return null;
+        }
+        if (filter == null) {
+            return prefix;
+        }
+        return prefix + ':' + FilterConverter.getShape(filter, values);
+    }
+
+    private static String getSortKey(List<SortBy> sortBy,
+            boolean swapSortOrder) {
+        if (sortBy == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("orderBy");
+        for (SortBy sortedProperty : sortBy) {
+            sb.append(sortedProperty.getPropertyId()).append(
+                    sortedProperty.isAscending() != swapSortOrder ? "+" : "-");
+        }
+        return sb.toString();
+    }
+
+    private <R> QueryTemplateCache.Template<R> getQueryTemplate(String key,
+            EntityManager em) {
+        QueryTemplateCache cache = queryTemplateCache;
+        if (key == null || cache == null) {
+            return null;
+        }
+        return cache.get(key, em);
+    }
+
+    /**
+     * Stores a criteria query that has just been built in the query template
+     * cache, unless <code>key</code> is null. The query is not cached if the
+     * values found in the filter do not match the parameters of the query, as
+     * binding them later would give a different result.
+     */
+    private <R> void putQueryTemplate(String key, List<Object> values,
+            EntityManager em, CriteriaQuery<R> query,
+            Map<ParameterExpression<?>, Object> parameters) {
+        if (key == null
+                || !values.equals(new ArrayList<Object>(parameters.values()))) {
+            return;
+        }
+        QueryTemplateCache cache = queryTemplateCache;
+        if (cache == null) {
+            cache = new QueryTemplateCache();
+            queryTemplateCache = cache;
+        }
+        cache.put(key, new QueryTemplateCache.Template<R>(
+                em.getEntityManagerFactory(), query, parameters));
+    }
+
+    /**
+     * @return the number of queries in the query template cache.
+     * @since 3.2
+     */
+    int getQueryTemplateCount() {
+        QueryTemplateCache cache = queryTemplateCache;
+        return cache == null ? 0 : cache.size();
+    }
+
+    /**
+     * Passes the query timeout of this entity provider, if any, to
+     * <code>query</code>.
+     * 
+     * @see #setQueryTimeout(int)
+     * @param query
+     *            the query (must not be null).
+     * @return <code>query</code>.
+     * @since 3.2
+     */
+    protected <Q extends Query> Q applyQueryTimeout(Q query) {
+        int timeout = queryTimeout;
+        if (timeout > 0) {
+            query.setHint(QUERY_TIMEOUT_HINT, timeout);
+        }
+        return query;
     }
 
     protected boolean doContainsEntity(EntityContainer<T> container,
@@ -425,17 +612,31 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         String entityIdPropertyName = getEntityClassMetadata()
                 .getIdentifierProperty().getName();
 
-        CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+        EntityManager em = doGetEntityManager();
+        List<Object> values = new ArrayList<Object>();
+        values.add(entityId);
+        String key = getQueryKey(container, "contains"
+                + entityId.getClass().getName(), filter, values);
+        QueryTemplateCache.Template<Long> template = getQueryTemplate(key, em);
+        if (template != null) {
+            return applyQueryTimeout(template.createQuery(em, values))
+                    .getSingleResult() == 1;
+        }
+
+        CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Long> query = cb.createQuery(Long.class);
         Root<T> root = query.from(getEntityClassMetadata().getMappedClass());
 
         tellDelegateQueryWillBeBuilt(container, cb, query);
 
+        Map<ParameterExpression<?>, Object> parameters = new LinkedHashMap<ParameterExpression<?>, Object>();
         List<Predicate> predicates = new ArrayList<Predicate>();
-        predicates.add(cb.equal(root.get(entityIdPropertyName),
-                cb.literal(entityId)));
+        ParameterExpression<?> idParameter = cb.parameter(entityId.getClass());
+        parameters.put(idParameter, entityId);
+        predicates.add(cb.equal(root.get(entityIdPropertyName), idParameter));
         if (filter != null) {
-            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+            predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                    parameters));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -459,8 +660,10 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             query.select(cb.count(root.get(entityIdPropertyName)));
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
-        TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
-        return tq.getSingleResult() == 1;
+        TypedQuery<Long> tq = em.createQuery(query);
+        FilterConverter.setParameters(tq, parameters);
+        putQueryTemplate(key, values, em, query, parameters);
+        return applyQueryTimeout(tq).getSingleResult() == 1;
     }
 
     public boolean containsEntity(EntityContainer<T> container,
@@ -468,6 +671,83 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doContainsEntity(container, entityId, filter);
     }
 
+    /**
+     * Checks which of the entities exist and match <code>filter</code> using
+     * a single query for every {@link #MAX_BULK_FETCH_SIZE} identifiers.
+     * Entities with embedded identifiers are checked one at a time, as IN
+     * expressions are not portable for them.
+     * 
+     * @param entityIds
+     *            the entity identifiers (must not be null).
+     * @param filter
+     *            the filter that the entities should match (may be null).
+     * @return the identifiers of the entities that exist (never null).
+     * @since 3.2
+     */
+    protected Set<Object> doContainsEntities(EntityContainer<T> container,
+            Collection<Object> entityIds, Filter filter) {
+        assert entityIds != null : "entityIds must not be null";
+        Set<Object> result = new HashSet<Object>();
+        if (entityIds.isEmpty()) {
+            return result;
+        }
+        if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
+            for (Object entityId : entityIds) {
+                if (doContainsEntity(container, entityId, filter)) {
+                    result.add(entityId);
+                }
+            }
+            return result;
+        }
+        String entityIdPropertyName = getEntityClassMetadata()
+                .getIdentifierProperty().getName();
+        List<Object> ids = new ArrayList<Object>(new LinkedHashSet<Object>(
+                entityIds));
+        EntityManager em = doGetEntityManager();
+        for (int i = 0; i < ids.size(); i += MAX_BULK_FETCH_SIZE) {
+            List<Object> idsInQuery = ids.subList(i,
+                    Math.min(i + MAX_BULK_FETCH_SIZE, ids.size()));
+            CriteriaBuilder cb = em.getCriteriaBuilder();
+            CriteriaQuery<Object> query = cb.createQuery();
+            Root<T> root = query.from(getEntityClassMetadata()
+                    .getMappedClass());
+
+            tellDelegateQueryWillBeBuilt(container, cb, query);
+
+            Map<ParameterExpression<?>, Object> parameters = new LinkedHashMap<ParameterExpression<?>, Object>();
+            List<Predicate> predicates = new ArrayList<Predicate>();
+            CriteriaBuilder.In<Object> idsIn = cb.in(root
+                    .get(entityIdPropertyName));
+            for (Object entityId : idsInQuery) {
+                ParameterExpression<?> idParameter = cb.parameter(entityId
+                        .getClass());
+                parameters.put(idParameter, entityId);
+                idsIn.value(idParameter);
+            }
+            predicates.add(idsIn);
+            if (filter != null) {
+                predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                        parameters));
+            }
+            tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
+            if (!predicates.isEmpty()) {
+                query.where(CollectionUtil.toArray(Predicate.class, predicates));
+            }
+            tellDelegateFiltersWereAdded(container, cb, query);
+            query.select(root.get(entityIdPropertyName));
+            tellDelegateQueryHasBeenBuilt(container, cb, query);
+            TypedQuery<Object> tq = em.createQuery(query);
+            FilterConverter.setParameters(tq, parameters);
+            result.addAll(applyQueryTimeout(tq).getResultList());
+        }
+        return result;
+    }
+
+    public Set<Object> containsEntities(EntityContainer<T> container,
+            Collection<Object> entityIds, Filter filter) {
+        return doContainsEntities(container, entityIds, filter);
+    }
+
     protected T doGetEntity(Object entityId) {
         assert entityId != null : "entityId must not be null";
         T entity = doGetEntityManager().find(
@@ -479,6 +759,60 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doGetEntity(entityId);
     }
 
+    protected Map<Object, T> doGetEntities(Collection<Object> entityIds) {
+        assert entityIds != null : "entityIds must not be null";
+        Map<Object, T> result = new HashMap<Object, T>();
+        if (entityIds.isEmpty()) {
+            return result;
+        }
+        if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
+            // IN expressions are not portable for embedded identifiers
+            for (Object entityId : entityIds) {
+                T entity = doGetEntity(entityId);
+                if (entity != null) {
+                    result.put(entityId, entity);
+                }
+            }
+            return result;
+        }
+        String entityIdPropertyName = getEntityClassMetadata()
+                .getIdentifierProperty().getName();
+        List<Object> ids = new ArrayList<Object>(new LinkedHashSet<Object>(
+                entityIds));
+        EntityManager em = doGetEntityManager();
+        for (int i = 0; i < ids.size(); i += MAX_BULK_FETCH_SIZE) {
+            List<Object> idsInQuery = ids.subList(i,
+                    Math.min(i + MAX_BULK_FETCH_SIZE, ids.size()));
+            CriteriaBuilder cb = em.getCriteriaBuilder();
+            CriteriaQuery<T> query = cb.createQuery(getEntityClassMetadata()
+                    .getMappedClass());
+            Root<T> root = query.from(getEntityClassMetadata()
+                    .getMappedClass());
+            query.select(root);
+            Map<ParameterExpression<?>, Object> parameters = new LinkedHashMap<ParameterExpression<?>, Object>();
+            CriteriaBuilder.In<Object> idsIn = cb.in(root
+                    .get(entityIdPropertyName));
+            for (Object entityId : idsInQuery) {
+                ParameterExpression<?> idParameter = cb.parameter(entityId
+                        .getClass());
+                parameters.put(idParameter, entityId);
+                idsIn.value(idParameter);
+            }
+            query.where(idsIn);
+            TypedQuery<T> tq = em.createQuery(query);
+            FilterConverter.setParameters(tq, parameters);
+            for (T entity : applyQueryTimeout(tq).getResultList()) {
+                result.put(getIdentifier(entity), detachEntity(entity));
+            }
+        }
+        return result;
+    }
+
+    public Map<Object, T> getEntities(EntityContainer<T> container,
+            Collection<Object> entityIds) {
+        return doGetEntities(entityIds);
+    }
+
     protected Object doGetEntityIdentifierAt(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy, int index) {
         if (sortBy == null) {
@@ -503,19 +837,96 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doGetEntityIdentifierAt(container, filter, sortBy, index);
     }
 
+    protected List<Object> doGetEntityIdentifiersInRange(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        TypedQuery<Object> query = createFilteredQuery(container,
+                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
+                        .getName()), filter, addPrimaryKeyToSortList(sortBy),
+                false);
+        query.setFirstResult(startIndex);
+        query.setMaxResults(count);
+        return Collections.unmodifiableList(query.getResultList());
+    }
+
+    public List<Object> getEntityIdentifiersInRange(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count) {
+        return doGetEntityIdentifiersInRange(container, filter, sortBy,
+                startIndex, count);
+    }
+
+    protected List<Object[]> doGetEntityPropertyValuesInRange(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count, List<String> propertyIds) {
+        assert propertyIds != null : "propertyIds must not be null";
+        if (propertyIds.isEmpty()) {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (Object entityId : doGetEntityIdentifiersInRange(container,
+                    filter, sortBy, startIndex, count)) {
+                rows.add(new Object[] { entityId });
+            }
+            return Collections.unmodifiableList(rows);
+        }
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        List<String> fieldsToSelect = new ArrayList<String>(
+                propertyIds.size() + 1);
+        fieldsToSelect.add(getEntityClassMetadata().getIdentifierProperty()
+                .getName());
+        fieldsToSelect.addAll(propertyIds);
+        TypedQuery<Object> query = createFilteredQuery(container,
+                fieldsToSelect, filter, addPrimaryKeyToSortList(sortBy), false);
+        query.setFirstResult(startIndex);
+        query.setMaxResults(count);
+        List<Object[]> rows = new ArrayList<Object[]>(count);
+        for (Object row : query.getResultList()) {
+            rows.add((Object[]) row);
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    public List<Object[]> getEntityPropertyValuesInRange(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            int startIndex, int count, List<String> propertyIds) {
+        return doGetEntityPropertyValuesInRange(container, filter, sortBy,
+                startIndex, count, propertyIds);
+    }
+
     protected int doGetEntityCount(EntityContainer<T> container, Filter filter) {
         String entityIdPropertyName = getEntityClassMetadata()
                 .getIdentifierProperty().getName();
 
-        CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+        EntityManager em = doGetEntityManager();
+        List<Object> values = new ArrayList<Object>();
+        String key = getQueryKey(container, "count", filter, values);
+        QueryTemplateCache.Template<Long> template = getQueryTemplate(key, em);
+        if (template != null) {
+            return applyQueryTimeout(template.createQuery(em, values))
+                    .getSingleResult().intValue();
+        }
+
+        CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Long> query = cb.createQuery(Long.class);
         Root<T> root = query.from(getEntityClassMetadata().getMappedClass());
 
         tellDelegateQueryWillBeBuilt(container, cb, query);
 
+        Map<ParameterExpression<?>, Object> parameters = new LinkedHashMap<ParameterExpression<?>, Object>();
         List<Predicate> predicates = new ArrayList<Predicate>();
         if (filter != null) {
-            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+            predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                    parameters));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -539,12 +950,280 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             query.select(cb.count(root.get(entityIdPropertyName)));
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
-        TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
-        return tq.getSingleResult().intValue();
+        TypedQuery<Long> tq = em.createQuery(query);
+        FilterConverter.setParameters(tq, parameters);
+        putQueryTemplate(key, values, em, query, parameters);
+        return applyQueryTimeout(tq).getSingleResult().intValue();
     }
 
     public int getEntityCount(EntityContainer<T> container, Filter filter) {
-        return doGetEntityCount(container, filter);
+        return doGetEntityCountUsingStrategy(container, filter);
+    }
+
+    /**
+     * Gets the number of entities using the count strategy, or counts them
+     * exactly if there is no strategy.
+     * 
+     * @see #setCountStrategy(CountStrategy)
+     * @param container
+     *            the container that asks for the count, or null.
+     * @param filter
+     *            the filter, or null if all entities are counted.
+     * @return the exact or approximate number of entities.
+     * @since 3.2
+     */
+    protected int doGetEntityCountUsingStrategy(EntityContainer<T> container,
+            Filter filter) {
+        CountStrategy strategy = countStrategy;
+        if (strategy == null) {
+            return doGetEntityCount(container, filter);
+        }
+        return strategy.getEntityCount(new LocalCountContext(container,
+                filter));
+    }
+
+    /**
+     * The {@link CountContext} that counts the entities using this entity
+     * provider.
+     */
+    private class LocalCountContext implements CountContext {
+
+        private final EntityContainer<T> container;
+        private final Filter filter;
+
+        LocalCountContext(EntityContainer<T> container, Filter filter) {
+            this.container = container;
+            this.filter = filter;
+        }
+
+        public EntityContainer<?> getEntityContainer() {
+            return container;
+        }
+
+        public Class<?> getEntityClass() {
+            return getEntityClassMetadata().getMappedClass();
+        }
+
+        public Filter getFilter() {
+            return filter;
+        }
+
+        public EntityManager getEntityManager() throws IllegalStateException {
+            return doGetEntityManager();
+        }
+
+        public int getExactCount() {
+            return doGetEntityCount(container, filter);
+        }
+
+        public int getCountUpTo(int maxCount) {
+            if (maxCount <= 0) {
+                return 0;
+            }
+            // No sorting, so that the database can stop at maxCount
+            TypedQuery<Object> query = createUnsortedFilteredQuery(container,
+                    Arrays.asList(getEntityClassMetadata()
+                            .getIdentifierProperty().getName()), filter);
+            query.setMaxResults(maxCount);
+            return query.getResultList().size();
+        }
+
+        public boolean isConcurrentAccessSupported() {
+            return isEntityManagerProvided();
+        }
+
+        @SuppressWarnings("unchecked")
+        public void countChanged() {
+            if (container instanceof EntityProviderChangeListener) {
+                ((EntityProviderChangeListener<T>) container)
+                        .entityProviderChange(new EntityCountChangedEvent<T>(
+                                LocalEntityProvider.this));
+            }
+        }
+    }
+
+    public void setCountStrategy(CountStrategy countStrategy) {
+        this.countStrategy = countStrategy;
+    }
+
+    public CountStrategy getCountStrategy() {
+        return countStrategy;
+    }
+
+    public void setQueryExecutor(Executor executor) {
+        this.queryExecutor = executor;
+    }
+
+    public Executor getQueryExecutor() {
+        return queryExecutor;
+    }
+
+    public void setQueryTimeout(int timeout) {
+        assert timeout >= 0 : "timeout must not be negative";
+        this.queryTimeout = timeout;
+    }
+
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * The ways in which a database may sort null values, named after the
+     * corresponding methods of {@link java.sql.DatabaseMetaData}.
+     * 
+     * @since 3.2
+     */
+    public enum NullOrdering {
+        /**
+         * Nulls are sorted before all other values in ascending order and
+         * after them in descending order, as done by e.g. H2, MySQL and SQL
+         * Server.
+         */
+        LOW,
+        /**
+         * Nulls are sorted after all other values in ascending order and
+         * before them in descending order, as done by e.g. PostgreSQL and
+         * Oracle.
+         */
+        HIGH,
+        /**
+         * Nulls are sorted first regardless of the sort order, as done by
+         * e.g. HSQLDB 2.2.
+         */
+        FIRST,
+        /**
+         * Nulls are sorted last regardless of the sort order.
+         */
+        LAST;
+
+        /**
+         * @param ascending
+         *            true for ascending order, false for descending order.
+         * @return true if nulls come before all other values in the given
+         *         order, false if they come after them.
+         */
+        public boolean isNullFirst(boolean ascending) {
+            switch (this) {
+            case LOW:
+                return ascending;
+            case HIGH:
+                return !ascending;
+            case FIRST:
+                return true;
+            default:
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Tells the entity provider how the database sorts null values, which it
+     * needs to know to compare sort keys containing nulls when seeking to a
+     * position or counting the entities before a given entity. The ordering
+     * can be determined from the <code>nullsAreSorted...</code> methods of
+     * {@link java.sql.DatabaseMetaData}.
+     * <p>
+     * By default, the null ordering is unknown. Lists sorted by nullable
+     * properties are then paged by offset, and the index and siblings of an
+     * entity are looked up from the list of all the entity identifiers.
+     * 
+     * @param nullOrdering
+     *            the null ordering of the database, or null if it is unknown.
+     * @since 3.2
+     */
+    public void setNullOrdering(NullOrdering nullOrdering) {
+        this.nullOrdering = nullOrdering;
+    }
+
+    /**
+     * @see #setNullOrdering(NullOrdering)
+     * @return the null ordering of the database, or null if it is unknown.
+     * @since 3.2
+     */
+    public NullOrdering getNullOrdering() {
+        return nullOrdering;
+    }
+
+    public Future<Integer> getEntityCountAsync(
+            final EntityContainer<T> entityContainer, final Filter filter,
+            Callback<Integer> callback) {
+        return runAsync(new Callable<Integer>() {
+            public Integer call() {
+                return getEntityCount(entityContainer, filter);
+            }
+        }, callback);
+    }
+
+    public Future<List<Object>> getEntityIdentifiersInRangeAsync(
+            final EntityContainer<T> entityContainer, final Filter filter,
+            final List<SortBy> sortBy, final int startIndex,
+            final int count, Callback<List<Object>> callback) {
+        return runAsync(new Callable<List<Object>>() {
+            public List<Object> call() {
+                return getEntityIdentifiersInRange(entityContainer, filter,
+                        sortBy, startIndex, count);
+            }
+        }, callback);
+    }
+
+    public Future<Map<Object, T>> getEntitiesAsync(
+            final EntityContainer<T> entityContainer,
+            final Collection<Object> entityIds,
+            Callback<Map<Object, T>> callback) {
+        assert entityIds != null : "entityIds must not be null";
+        return runAsync(new Callable<Map<Object, T>>() {
+            public Map<Object, T> call() {
+                return getEntities(entityContainer, entityIds);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs <code>query</code> using the query executor, if the entity manager
+     * may be used in its threads. Otherwise, or if the executor rejects the
+     * query, it is run at once in the calling thread.
+     * 
+     * @param query
+     *            the query to run.
+     * @param callback
+     *            the callback to notify when the query has finished, or null.
+     * @return the future result of the query.
+     */
+    private <V> Future<V> runAsync(Callable<V> query,
+            final Callback<V> callback) {
+        FutureTask<V> task = new FutureTask<V>(query) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+                V result;
+                try {
+                    result = get();
+                } catch (ExecutionException e) {
+                    callback.failed(e.getCause());
+                    return;
+                } catch (CancellationException e) {
+                    return;
+                } catch (InterruptedException e) {
+                    // Cannot happen, the task is done
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                callback.completed(result);
+            }
+        };
+        Executor executor = queryExecutor;
+        if (executor != null && isEntityManagerProvided()) {
+            try {
+                executor.execute(task);
+                return task;
+            } catch (RejectedExecutionException e) {
+                // Run the query here instead
+            }
+        }
+        task.run();
+        return task;
     }
 
     protected Object doGetFirstEntityIdentifier(EntityContainer<T> container,
@@ -627,6 +1306,17 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      */
     protected Object getSibling(EntityContainer<T> container, Object entityId,
             Filter filter, List<SortBy> sortBy, boolean backwards) {
+        if (!isSiblingQuerySupported(sortBy, backwards)) {
+            List<Object> entityIds = doGetAllEntityIdentifiers(container,
+                    filter, sortBy);
+            int index = entityIds.indexOf(entityId);
+            if (index == -1) {
+                return null;
+            }
+            index += backwards ? -1 : 1;
+            return index >= 0 && index < entityIds.size() ? entityIds
+                    .get(index) : null;
+        }
         TypedQuery<Object> query = createSiblingQuery(container, entityId,
                 filter, sortBy, backwards);
         query.setMaxResults(1);
@@ -668,13 +1358,9 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         sortBy = addPrimaryKeyToSortList(sortBy);
         if (sortBy.size() == 1) {
             // The list is sorted by primary key
-            if (backwards) {
-                limitingFilter = new Less(getEntityClassMetadata()
-                        .getIdentifierProperty().getName(), entityId);
-            } else {
-                limitingFilter = new Greater(getEntityClassMetadata()
-                        .getIdentifierProperty().getName(), entityId);
-            }
+            limitingFilter = createSiblingFilter(
+                    Collections.<Object, Object> singletonMap(sortBy.get(0)
+                            .getPropertyId(), entityId), sortBy, backwards);
         } else {
             // We have to fetch the values of the sorted fields
             T currentEntity = getEntity(container, entityId);
@@ -690,44 +1376,375 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
                         getEntityClassMetadata().getPropertyValue(
                                 currentEntity, sb.getPropertyId().toString()));
             }
+            limitingFilter = createSiblingFilter(filterValues, sortBy,
+                    backwards);
+        }
+        // Now, we can create the query
+        Filter queryFilter;
+        if (filter == null) {
+            queryFilter = limitingFilter;
+        } else {
+            queryFilter = new And(filter, limitingFilter);
+        }
+        TypedQuery<Object> query = createFilteredQuery(container,
+                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
+                        .getName()), queryFilter, sortBy, backwards);
+        return query;
+    }
+
+    /**
+     * Creates a filter that only matches the entities that come after (or
+     * before, if <code>backwards</code> is true) the entity whose sorted
+     * properties have the values <code>filterValues</code>. Null values are
+     * compared according to {@link #getNullOrdering()}, which must be known
+     * if any of the sorted properties is nullable.
+     * 
+     * @param filterValues
+     *            a map of the values of the sorted properties, keyed by
+     *            property id (must not be null).
+     * @param sortBy
+     *            the order in which the list is sorted, including the primary
+     *            key (must not be null).
+     * @param backwards
+     *            true to match the preceding entities, false to match the
+     *            following entities.
+     * @return the filter (never null).
+     */
+    protected Filter createSiblingFilter(Map<Object, Object> filterValues,
+            List<SortBy> sortBy, boolean backwards) {
+        if (sortBy.size() == 1) {
+            // The list is sorted by primary key
+            Object entityId = filterValues.get(sortBy.get(0).getPropertyId());
+            if (!sortBy.get(0).isAscending() ^ backwards) {
+                return new Less(getEntityClassMetadata()
+                        .getIdentifierProperty().getName(), entityId);
+            } else {
+                return new Greater(getEntityClassMetadata()
+                        .getIdentifierProperty().getName(), entityId);
+            }
+        } else {
             // Now we can build a filter that limits the query to the entities
-            // below entityId
+            // below entityId: an entity comes after it if, for some i, the
+            // first i sorted properties are equal and the next one comes after
             List<Filter> orFilters = new ArrayList<Filter>();
             for (int i = sortBy.size() - 1; i >= 0; i--) {
-                // TODO Document this code snippet once it works
-                // TODO What happens with null values?
+                SortBy sb = sortBy.get(i);
+                Filter successorFilter = createSuccessorFilter(sb
+                        .getPropertyId().toString(),
+                        filterValues.get(sb.getPropertyId()),
+                        sb.isAscending() ^ backwards, nullOrdering != null
+                                && nullOrdering.isNullFirst(sb.isAscending()) == backwards);
+                if (successorFilter == null) {
+                    // Nothing can come after the value
+                    continue;
+                }
                 List<Filter> caseFilters = new ArrayList<Filter>();
-                SortBy sb;
                 for (int j = 0; j < i; j++) {
                     sb = sortBy.get(j);
+                    // Equal with a null value is converted to IS NULL
                     caseFilters.add(new Equal(sb.getPropertyId(), filterValues
                             .get(sb.getPropertyId())));
                 }
-                sb = sortBy.get(i);
-                if (sb.isAscending() ^ backwards) {
-                    caseFilters.add(new Greater(sb.getPropertyId(),
-                            filterValues.get(sb.getPropertyId())));
-                } else {
-                    caseFilters.add(new Less(sb.getPropertyId(), filterValues
-                            .get(sb.getPropertyId())));
-                }
+                caseFilters.add(successorFilter);
                 orFilters.add(new And(CollectionUtil.toArray(Filter.class,
                         caseFilters)));
             }
-            limitingFilter = new Or(CollectionUtil.toArray(Filter.class,
-                    orFilters));
+            return new Or(CollectionUtil.toArray(Filter.class, orFilters));
         }
-        // Now, we can create the query
-        Filter queryFilter;
-        if (filter == null) {
-            queryFilter = limitingFilter;
-        } else {
-            queryFilter = new And(filter, limitingFilter);
+    }
+
+    /**
+     * Creates a filter that matches the values of <code>propertyId</code> that
+     * are sorted after <code>value</code>, in the direction that the list is
+     * walked.
+     * 
+     * @param propertyId
+     *            the sorted property.
+     * @param value
+     *            the value to compare to (may be null).
+     * @param greater
+     *            true if the greater values come after <code>value</code>,
+     *            false if the lesser values do.
+     * @param nullsAfter
+     *            true if the null values come after all other values, false
+     *            if they come before them.
+     * @return the filter, or null if no value can be sorted after
+     *         <code>value</code>.
+     */
+    private Filter createSuccessorFilter(String propertyId, Object value,
+            boolean greater, boolean nullsAfter) {
+        if (value == null) {
+            return nullsAfter ? null : new Not(new IsNull(propertyId));
+        }
+        Filter compare = greater ? new Greater(propertyId, value) : new Less(
+                propertyId, value);
+        if (nullsAfter && isNullable(propertyId)) {
+            return new Or(compare, new IsNull(propertyId));
+        }
+        return compare;
+    }
+
+    /**
+     * Checks whether the list of entities sorted by <code>sortBy</code> can be
+     * paged using keyset pagination, i.e. by seeking from the sort key of a
+     * known entity instead of skipping rows using an offset. This requires the
+     * entity to have a simple identifier and every sorted property to be a
+     * basic property, either of the entity or of an embedded property, as
+     * properties of referenced entities are joined differently when sorting
+     * and filtering. If any of the sorted properties is nullable, the null
+     * ordering of the database must also be known.
+     * 
+     * @see #doGetEntityKeys(EntityContainer, Filter, List, Object[], boolean,
+     *      int, int)
+     * @param sortBy
+     *            the properties to sort by (must not be null).
+     * @return true if keyset pagination can be used, false otherwise.
+     */
+    protected boolean isKeysetPagingSupported(List<SortBy> sortBy) {
+        if (getEntityClassMetadata().hasEmbeddedIdentifier()
+                || !isNullOrderingKnown(sortBy)) {
+            return false;
+        }
+        for (String propertyId : getSortKeyPropertyIds(sortBy)) {
+            PropertyKind expectedKind = PropertyKind.SIMPLE;
+            int dot = propertyId.indexOf('.');
+            if (dot > -1) {
+                propertyId = propertyId.substring(0, dot);
+                expectedKind = PropertyKind.EMBEDDED;
+            }
+            PropertyMetadata property = getEntityClassMetadata().getProperty(
+                    propertyId);
+            if (property == null
+                    || property.getPropertyKind() != expectedKind) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether swapping the sort order of <code>sortBy</code> exactly
+     * reverses the list of entities. This is not the case if the database
+     * sorts null values first (or last) regardless of the sort order, or if
+     * the null ordering is unknown, and any of the sorted properties is
+     * nullable.
+     * 
+     * @see #getNullOrdering()
+     * @param sortBy
+     *            the properties to sort by (must not be null).
+     * @return true if the list can be walked backwards by swapping the sort
+     *         order, false otherwise.
+     * @since 3.2
+     */
+    protected boolean isSortOrderReversible(List<SortBy> sortBy) {
+        if (nullOrdering != null
+                && nullOrdering.isNullFirst(true) != nullOrdering
+                        .isNullFirst(false)) {
+            return true;
+        }
+        return !hasNullableSortKey(sortBy);
+    }
+
+    /**
+     * Checks whether
+     * {@link #createSiblingQuery(EntityContainer, Object, Filter, List, boolean)}
+     * returns the siblings of an entity in the right order. This requires the
+     * null ordering of the database to be known if any of the sorted
+     * properties is nullable, and, when walking the list backwards, the sort
+     * order to be reversible.
+     * 
+     * @see #isSortOrderReversible(List)
+     * @param sortBy
+     *            the properties to sort by (must not be null).
+     * @param backwards
+     *            true to walk the list backwards, false to walk it forwards.
+     * @return true if the sibling query can be used, false if the siblings
+     *         must be looked up from the list of all the entity identifiers.
+     * @since 3.2
+     */
+    protected boolean isSiblingQuerySupported(List<SortBy> sortBy,
+            boolean backwards) {
+        return isNullOrderingKnown(sortBy)
+                && (!backwards || isSortOrderReversible(sortBy));
+    }
+
+    /**
+     * Checks whether the sort keys of <code>sortBy</code> can be compared in a
+     * filter, i.e. whether the null ordering is known or none of the sorted
+     * properties is nullable.
+     */
+    private boolean isNullOrderingKnown(List<SortBy> sortBy) {
+        return nullOrdering != null || !hasNullableSortKey(sortBy);
+    }
+
+    private boolean hasNullableSortKey(List<SortBy> sortBy) {
+        for (String propertyId : getSortKeyPropertyIds(sortBy)) {
+            if (isNullable(propertyId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether <code>propertyId</code> may have null values. Properties
+     * of embedded properties are assumed to be nullable.
+     */
+    private boolean isNullable(String propertyId) {
+        if (propertyId.equals(getEntityClassMetadata().getIdentifierProperty()
+                .getName())) {
+            return false;
+        }
+        PropertyMetadata property = getEntityClassMetadata().getProperty(
+                propertyId);
+        return property == null || !isNonNullable(property);
+    }
+
+    private boolean isNonNullable(PropertyMetadata property) {
+        if (property.getType().isPrimitive()) {
+            return true;
+        }
+        Column column = property.getAnnotation(Column.class);
+        if (column != null && !column.nullable()) {
+            return true;
+        }
+        Basic basic = property.getAnnotation(Basic.class);
+        return basic != null && !basic.optional();
+    }
+
+    /**
+     * Gets the ids of the sorted properties, excluding the primary key.
+     * 
+     * @param sortBy
+     *            the properties to sort by (must not be null).
+     * @return a list of property ids (never null).
+     */
+    protected List<String> getSortKeyPropertyIds(List<SortBy> sortBy) {
+        String idPropertyName = getEntityClassMetadata()
+                .getIdentifierProperty().getName();
+        List<String> propertyIds = new ArrayList<String>(sortBy.size());
+        for (SortBy sb : sortBy) {
+            String propertyId = sb.getPropertyId().toString();
+            if (!propertyId.equals(idPropertyName)) {
+                propertyIds.add(propertyId);
+            }
+        }
+        return propertyIds;
+    }
+
+    /**
+     * Gets the sort keys of at most <code>count</code> entities in the list
+     * determined by <code>filter</code> and <code>sortBy</code>. If
+     * <code>anchor</code> is null, the list starts at the first entity (or the
+     * last, if <code>backwards</code> is true). Otherwise it starts next to
+     * (or prior to) the entity whose sort key is <code>anchor</code>, which
+     * allows the database to seek directly to the requested rows instead of
+     * scanning and skipping <code>skip</code> rows.
+     * <p>
+     * A sort key is an array containing the entity identifier followed by the
+     * values of {@link #getSortKeyPropertyIds(List)}.
+     * 
+     * @param filter
+     *            the filter to apply, if any (may be null).
+     * @param sortBy
+     *            the properties to sort by (must not be null).
+     * @param anchor
+     *            the sort key to seek from, or null to start from the
+     *            beginning (or end) of the list.
+     * @param backwards
+     *            true to walk the list backwards, false to walk it forwards.
+     * @param skip
+     *            the number of rows to skip.
+     * @param count
+     *            the maximum number of sort keys to fetch.
+     * @return a list of sort keys in the order they were walked (never null).
+     */
+    protected List<Object[]> doGetEntityKeys(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, Object[] anchor,
+            boolean backwards, int skip, int count) {
+        sortBy = addPrimaryKeyToSortList(sortBy);
+        List<String> keyPropertyIds = getSortKeyPropertyIds(sortBy);
+        List<String> fieldsToSelect = new ArrayList<String>(
+                keyPropertyIds.size() + 1);
+        fieldsToSelect.add(getEntityClassMetadata().getIdentifierProperty()
+                .getName());
+        fieldsToSelect.addAll(keyPropertyIds);
+        Filter queryFilter = filter;
+        if (anchor != null) {
+            Map<Object, Object> filterValues = new HashMap<Object, Object>();
+            for (int i = 0; i < fieldsToSelect.size(); i++) {
+                filterValues.put(fieldsToSelect.get(i), anchor[i]);
+            }
+            Filter limitingFilter = createSiblingFilter(filterValues, sortBy,
+                    backwards);
+            queryFilter = filter == null ? limitingFilter : new And(filter,
+                    limitingFilter);
         }
         TypedQuery<Object> query = createFilteredQuery(container,
-                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
-                        .getName()), queryFilter, sortBy, backwards);
-        return query;
+                fieldsToSelect, queryFilter, sortBy, backwards);
+        query.setFirstResult(skip);
+        query.setMaxResults(count);
+        List<Object[]> keys = new ArrayList<Object[]>(count);
+        for (Object row : query.getResultList()) {
+            keys.add(fieldsToSelect.size() == 1 ? new Object[] { row }
+                    : (Object[]) row);
+        }
+        return keys;
+    }
+
+    /**
+     * Gets the index of the entity identified by <code>entityId</code> by
+     * fetching its sort key and counting the entities that are sorted before
+     * it, using the same conditions as {@link #createSiblingFilter(Map, List,
+     * boolean)}. If the entities cannot be compared that way, as described
+     * in {@link #isKeysetPagingSupported(List)}, the index is looked up from
+     * the list of all the entity identifiers instead.
+     * 
+     * @param entityId
+     *            the entity identifier (must not be null).
+     * @param filter
+     *            the filter to apply, if any (may be null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @return the index of the entity, or -1 if not found.
+     * @since 3.2
+     */
+    protected int doGetEntityIndex(EntityContainer<T> container,
+            Object entityId, Filter filter, List<SortBy> sortBy) {
+        assert entityId != null : "entityId must not be null";
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        sortBy = addPrimaryKeyToSortList(sortBy);
+        if (!isKeysetPagingSupported(sortBy)) {
+            return doGetAllEntityIdentifiers(container, filter, sortBy)
+                    .indexOf(entityId);
+        }
+        String idPropertyName = getEntityClassMetadata()
+                .getIdentifierProperty().getName();
+        Filter idFilter = new Equal(idPropertyName, entityId);
+        List<Object[]> keys = doGetEntityKeys(container,
+                filter == null ? idFilter : new And(filter, idFilter),
+                sortBy, null, false, 0, 1);
+        if (keys.isEmpty()) {
+            return -1;
+        }
+        Object[] key = keys.get(0);
+        List<String> keyPropertyIds = getSortKeyPropertyIds(sortBy);
+        Map<Object, Object> filterValues = new HashMap<Object, Object>();
+        filterValues.put(idPropertyName, key[0]);
+        for (int i = 0; i < keyPropertyIds.size(); i++) {
+            filterValues.put(keyPropertyIds.get(i), key[i + 1]);
+        }
+        Filter precedingFilter = createSiblingFilter(filterValues, sortBy,
+                true);
+        return doGetEntityCount(container, filter == null ? precedingFilter
+                : new And(filter, precedingFilter));
+    }
+
+    public int getEntityIndex(EntityContainer<T> container, Object entityId,
+            Filter filter, List<SortBy> sortBy) {
+        return doGetEntityIndex(container, entityId, filter, sortBy);
     }
 
     protected Object doGetNextEntityIdentifier(EntityContainer<T> container,
@@ -950,7 +1967,11 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      * @see com.vaadin.addon.jpacontainer.EntityProvider#refresh()
      */
     public void refresh() {
-        // Nothing to do in this implementation, since we don't keep any
-        // items/entities cached.
+        // We don't keep any items/entities cached, but the count strategy
+        // may remember counts.
+        CountStrategy strategy = countStrategy;
+        if (strategy != null) {
+            strategy.invalidate();
+        }
     }
 }
@@ -17,16 +17,35 @@
 package com.vaadin.addon.jpacontainer.provider;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Query;
 
+import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
 import com.vaadin.addon.jpacontainer.EntityProviderChangeNotifier;
 import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+import com.vaadin.addon.jpacontainer.cache.SharedQueryCache;
+import com.vaadin.addon.jpacontainer.filter.util.FilterConverter;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
+import com.vaadin.data.Container.Filter;
 
 /**
  * Extended version of {@link LocalEntityProvider} that provides editing
@@ -96,6 +115,37 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
         return transactionsHandled;
     }
 
+    private boolean singleColumnUpdatesEnabled = false;
+
+    /**
+     * Specifies whether
+     * {@link #updateEntityProperty(Object, String, Object, Object)} may update
+     * the property with a single JPQL UPDATE statement instead of loading and
+     * merging the entity. This is much faster, but as with all bulk
+     * statements, lifecycle callbacks, entity listeners and Bean Validation
+     * are bypassed, and the whole persistence context is cleared afterwards.
+     * Only enable this if the entities do not rely on any of them.
+     * 
+     * @param singleColumnUpdatesEnabled
+     *            true to update single properties with UPDATE statements when
+     *            possible, false to always merge the entity (the default).
+     * @since 3.2
+     */
+    public void setSingleColumnUpdatesEnabled(
+            boolean singleColumnUpdatesEnabled) {
+        this.singleColumnUpdatesEnabled = singleColumnUpdatesEnabled;
+    }
+
+    /**
+     * @see #setSingleColumnUpdatesEnabled(boolean)
+     * @return true if single properties are updated with UPDATE statements
+     *         when possible, false if the entity is always merged.
+     * @since 3.2
+     */
+    public boolean isSingleColumnUpdatesEnabled() {
+        return singleColumnUpdatesEnabled;
+    }
+
     /**
      * If {@link #isTransactionsHandledByProvider() } is true,
      * <code>operation</code> will be executed inside a transaction that is
@@ -187,12 +237,32 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
         return dEntity;
     }
 
+    public void updateEntityProperty(Object entityId, String propertyName,
+            Object propertyValue) throws IllegalArgumentException {
+        updateEntityProperty(entityId, propertyName, propertyValue, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If single column updates are enabled, the entities are detached and the
+     * property is a simple or single valued persistent property of the entity
+     * or of an embedded object, the property is updated with a single JPQL
+     * UPDATE statement that also increments the version property, without
+     * loading the entity. Otherwise, the entity is loaded, updated and merged. The fired
+     * {@link EntityProviderChangeEvent.EntityPropertyUpdatedEvent} contains
+     * the updated entity or its identifier, respectively.
+     */
     @SuppressWarnings("unchecked")
-    public void updateEntityProperty(final Object entityId,
-            final String propertyName, final Object propertyValue)
-            throws IllegalArgumentException {
+    public Object updateEntityProperty(final Object entityId,
+            final String propertyName, final Object propertyValue,
+            final Object expectedVersion) throws IllegalArgumentException {
         assert entityId != null : "entityId must not be null";
         assert propertyName != null : "propertyName must not be null";
+        if (isSingleColumnUpdatePossible(propertyName)) {
+            return updateEntityColumn(entityId, propertyName, propertyValue,
+                    expectedVersion);
+        }
         final Object[] entityA = new Object[1];
         runInTransaction(new Runnable() {
 
@@ -203,6 +273,12 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
                 if (entity != null) {
                     // make sure we are working with the latest versions
                     em.refresh(entity);
+                    if (expectedVersion != null
+                            && !expectedVersion.equals(getVersion(entity))) {
+                        throw new OptimisticLockException(
+                                "The entity has been updated since version "
+                                        + expectedVersion, null, entity);
+                    }
                     getEntityClassMetadata().setPropertyValue(entity,
                             propertyName, propertyValue);
                     // re-attach also referenced entities to the persistence
@@ -213,10 +289,502 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
                 }
             }
         });
-        if (entityA[0] != null) {
-            fireEntityProviderChangeEvent(new EntityPropertyUpdatedEvent(this,
-                    propertyName, entityA));
+        if (entityA[0] == null) {
+            return null;
+        }
+        fireEntityProviderChangeEvent(new EntityPropertyUpdatedEvent(this,
+                propertyName, entityA));
+        return getVersion((T) entityA[0]);
+    }
+
+    /**
+     * Updates a single column of the entity identified by
+     * <code>entityId</code> without loading the entity, see
+     * {@link #updateEntityProperty(Object, String, Object, Object)}.
+     */
+    private Object updateEntityColumn(final Object entityId,
+            String propertyName, final Object propertyValue,
+            final Object expectedVersion) {
+        final EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        StringBuilder sb = new StringBuilder("UPDATE ");
+        sb.append(metadata.getEntityName()).append(" e SET e.")
+                .append(propertyName).append(" = :value");
+        final boolean versionChecked = metadata.hasVersionProperty()
+                && expectedVersion != null;
+        if (metadata.hasVersionProperty()) {
+            String version = metadata.getVersionProperty().getName();
+            sb.append(", e.").append(version).append(" = e.").append(version)
+                    .append(" + 1");
+        }
+        sb.append(" WHERE e.")
+                .append(metadata.getIdentifierProperty().getName())
+                .append(" = :entityId");
+        if (versionChecked) {
+            sb.append(" AND e.")
+                    .append(metadata.getVersionProperty().getName())
+                    .append(" = :expectedVersion");
+        }
+        final String statement = sb.toString();
+        final boolean[] updated = new boolean[1];
+        final Object[] newVersion = new Object[1];
+        runInTransaction(new Runnable() {
+
+            public void run() {
+                EntityManager em = getEntityManager();
+                em.flush();
+                Query query = em.createQuery(statement)
+                        .setParameter("value", propertyValue)
+                        .setParameter("entityId", entityId);
+                if (versionChecked) {
+                    query.setParameter("expectedVersion", expectedVersion);
+                }
+                if (query.executeUpdate() == 0) {
+                    if (versionChecked && exists(em, entityId)) {
+                        throw new OptimisticLockException(
+                                "The entity has been updated since version "
+                                        + expectedVersion);
+                    }
+                    return;
+                }
+                updated[0] = true;
+                if (metadata.hasVersionProperty() && !versionChecked) {
+                    newVersion[0] = em
+                            .createQuery(
+                                    "SELECT e."
+                                            + metadata.getVersionProperty()
+                                                    .getName()
+                                            + " FROM "
+                                            + metadata.getEntityName()
+                                            + " e WHERE e."
+                                            + metadata
+                                                    .getIdentifierProperty()
+                                                    .getName()
+                                            + " = :entityId")
+                            .setParameter("entityId", entityId)
+                            .getSingleResult();
+                }
+                // The managed entities may no longer reflect the database
+                em.clear();
+            }
+        });
+        if (!updated[0]) {
+            return null;
         }
+        fireEntityProviderChangeEvent(new EntityPropertyUpdatedEvent<T>(this,
+                propertyName, Collections.singleton(entityId)));
+        return versionChecked ? incrementVersion(expectedVersion)
+                : newVersion[0];
+    }
+
+    private boolean exists(EntityManager em, Object entityId) {
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        Number count = (Number) em
+                .createQuery(
+                        "SELECT COUNT(e) FROM " + metadata.getEntityName()
+                                + " e WHERE e."
+                                + metadata.getIdentifierProperty().getName()
+                                + " = :entityId")
+                .setParameter("entityId", entityId).getSingleResult();
+        return count.longValue() > 0;
+    }
+
+    /**
+     * Checks whether <code>propertyName</code> can be updated with a single
+     * UPDATE statement, see
+     * {@link #updateEntityProperty(Object, String, Object, Object)}.
+     */
+    private boolean isSingleColumnUpdatePossible(String propertyName) {
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        if (!singleColumnUpdatesEnabled || !isEntitiesDetached()
+                || !metadata.hasIdentifierProperty()
+                || metadata.hasEmbeddedIdentifier()
+                || getBulkUpdateError(propertyName) != null) {
+            return false;
+        }
+        if (!metadata.hasVersionProperty()) {
+            return true;
+        }
+        Class<?> type = metadata.getVersionProperty().getType();
+        return type == Integer.class || type == Integer.TYPE
+                || type == Long.class || type == Long.TYPE
+                || type == Short.class || type == Short.TYPE;
+    }
+
+    private static Object incrementVersion(Object version) {
+        if (version instanceof Integer) {
+            return (Integer) version + 1;
+        } else if (version instanceof Long) {
+            return (Long) version + 1;
+        } else if (version instanceof Short) {
+            return (short) ((Short) version + 1);
+        }
+        return null;
+    }
+
+    private Object getVersion(T entity) {
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        if (!metadata.hasVersionProperty()) {
+            return null;
+        }
+        return metadata.getPropertyValue(entity, metadata.getVersionProperty()
+                .getName());
+    }
+
+    /**
+     * Removes all the entities that match <code>filter</code> using a single
+     * JPQL bulk DELETE statement, without loading the entities. The WHERE
+     * clause of the statement is built from <code>filter</code>.
+     * <p>
+     * If the filter cannot be expressed in a bulk statement (e.g. it contains
+     * a {@link com.vaadin.addon.jpacontainer.filter.JoinFilter} or refers to
+     * properties of related entities), or if there is a query modifier
+     * delegate, the identifiers of the matching entities are queried first,
+     * and the entities are then deleted {@link #MAX_BULK_FETCH_SIZE} at a time.
+     * These statements only match the identifiers, so unless the transaction
+     * isolation level prevents it, an entity that is changed by someone else
+     * in between so that it no longer matches the filter is removed anyway,
+     * and an entity that starts to match it is not removed.
+     * <p>
+     * As with all bulk statements, cascades, lifecycle callbacks and the
+     * persistence context are bypassed. Pending changes are flushed first, and
+     * the persistence context is cleared afterwards if
+     * {@link #isEntitiesDetached()} is true. A single
+     * {@link EntityProviderChangeEvent.EntitiesRemovedEvent} without any
+     * affected entities is fired if any entities were removed.
+     * 
+     * @param container
+     *            the container whose query modifier delegate, if any, is used
+     *            to find the entities (must not be null).
+     * @param filter
+     *            the filter that the entities to remove must match, or null to
+     *            remove all entities.
+     * @return the number of removed entities.
+     * @throws RuntimeException
+     *             if an error occurs while removing the entities from the
+     *             persistence storage.
+     * @since 3.2
+     */
+    @SuppressWarnings("unchecked")
+    public int removeEntities(EntityContainer<T> container, Filter filter)
+            throws RuntimeException {
+        assert container != null : "container must not be null";
+        int count = doRemoveEntities(container, filter);
+        if (count > 0) {
+            fireEntityProviderChangeEvent(new EntitiesRemovedEvent<T>(this));
+        }
+        return count;
+    }
+
+    /**
+     * Sets the properties <code>propertyValues</code> of all the entities that
+     * match <code>filter</code> using a single JPQL bulk UPDATE statement,
+     * without loading the entities. The WHERE clause of the statement is built
+     * from <code>filter</code>. The version property, if any, is incremented.
+     * <p>
+     * If the filter cannot be expressed in a bulk statement (e.g. it contains
+     * a {@link com.vaadin.addon.jpacontainer.filter.JoinFilter} or refers to
+     * properties of related entities), or if there is a query modifier
+     * delegate, the identifiers of the matching entities are queried first,
+     * and the entities are then updated {@link #MAX_BULK_FETCH_SIZE} at a time.
+     * These statements only match the identifiers, so unless the transaction
+     * isolation level prevents it, an entity that is changed by someone else
+     * in between so that it no longer matches the filter is updated anyway,
+     * and an entity that starts to match it is not updated.
+     * <p>
+     * As with all bulk statements, lifecycle callbacks and the persistence
+     * context are bypassed. Pending changes are flushed first, and the
+     * persistence context is cleared afterwards if {@link #isEntitiesDetached()}
+     * is true. A single {@link EntityProviderChangeEvent.EntitiesUpdatedEvent}
+     * without any affected entities is fired if any entities were updated.
+     * 
+     * @param container
+     *            the container whose query modifier delegate, if any, is used
+     *            to find the entities (must not be null).
+     * @param filter
+     *            the filter that the entities to update must match, or null to
+     *            update all entities.
+     * @param propertyValues
+     *            the new values of the properties by property name (must not
+     *            be null). Properties of embedded objects may be given using
+     *            dotted names.
+     * @return the number of updated entities.
+     * @throws IllegalArgumentException
+     *             if a property name does not refer to a simple or single
+     *             valued persistent property, or refers to the identifier or
+     *             version property.
+     * @throws RuntimeException
+     *             if an error occurs while updating the entities in the
+     *             persistence storage.
+     * @since 3.2
+     */
+    @SuppressWarnings("unchecked")
+    public int updateEntities(EntityContainer<T> container, Filter filter,
+            Map<String, Object> propertyValues)
+            throws IllegalArgumentException, RuntimeException {
+        assert container != null : "container must not be null";
+        assert propertyValues != null : "propertyValues must not be null";
+        if (propertyValues.isEmpty()) {
+            return 0;
+        }
+        for (String propertyName : propertyValues.keySet()) {
+            checkBulkUpdateProperty(propertyName);
+        }
+        int count = doUpdateEntities(container, filter, propertyValues);
+        if (count > 0) {
+            fireEntityProviderChangeEvent(new EntitiesUpdatedEvent<T>(this));
+        }
+        return count;
+    }
+
+    /**
+     * Removes the entities that match <code>filter</code>, see
+     * {@link #removeEntities(EntityContainer, Filter)}. No events are fired.
+     * 
+     * @return the number of removed entities.
+     * @since 3.2
+     */
+    protected int doRemoveEntities(final EntityContainer<T> container,
+            final Filter filter) {
+        final int[] count = new int[1];
+        runInTransaction(new Runnable() {
+
+            public void run() {
+                count[0] = runBulkStatement(container, filter, "DELETE FROM "
+                        + getEntityClassMetadata().getEntityName() + " e",
+                        Collections.<String, Object> emptyMap());
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Updates the entities that match <code>filter</code>, see
+     * {@link #updateEntities(EntityContainer, Filter, Map)}. No events are
+     * fired.
+     * 
+     * @return the number of updated entities.
+     * @since 3.2
+     */
+    protected int doUpdateEntities(final EntityContainer<T> container,
+            final Filter filter, final Map<String, Object> propertyValues) {
+        EntityClassMetadata<T> metadata = getEntityClassMetadata();
+        StringBuilder sb = new StringBuilder("UPDATE ");
+        sb.append(metadata.getEntityName()).append(" e SET ");
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : propertyValues.entrySet()) {
+            String parameter = "p" + parameters.size();
+            if (!parameters.isEmpty()) {
+                sb.append(", ");
+            }
+            sb.append("e.").append(entry.getKey()).append(" = :")
+                    .append(parameter);
+            parameters.put(parameter, entry.getValue());
+        }
+        if (metadata.hasVersionProperty()) {
+            String version = metadata.getVersionProperty().getName();
+            Class<?> type = metadata.getVersionProperty().getType();
+            if (Date.class.isAssignableFrom(type)
+                    || Calendar.class.isAssignableFrom(type)) {
+                sb.append(", e.").append(version).append(" = CURRENT_TIMESTAMP");
+            } else {
+                sb.append(", e.").append(version).append(" = e.")
+                        .append(version).append(" + 1");
+            }
+        }
+        final String statement = sb.toString();
+        final int[] count = new int[1];
+        runInTransaction(new Runnable() {
+
+            public void run() {
+                count[0] = runBulkStatement(container, filter, statement,
+                        parameters);
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Runs the bulk <code>statement</code> (without a WHERE clause, using
+     * <code>e</code> as the identification variable) for all the entities
+     * that match <code>filter</code>, and returns the number of affected
+     * entities. Must be called inside a transaction.
+     */
+    private int runBulkStatement(EntityContainer<T> container, Filter filter,
+            String statement, Map<String, Object> parameters) {
+        EntityManager em = getEntityManager();
+        em.flush();
+        int count;
+        Map<String, Object> filterParameters = new HashMap<String, Object>(
+                parameters);
+        String where = getBulkWhereClause(container, filter, filterParameters);
+        if (where != null) {
+            Query query = em.createQuery(where.length() == 0 ? statement
+                    : statement + " WHERE " + where);
+            setParameters(query, filterParameters);
+            count = query.executeUpdate();
+        } else {
+            count = runBulkStatementById(container, filter, statement,
+                    parameters);
+        }
+        if (count > 0 && isEntitiesDetached()) {
+            // The managed entities may no longer reflect the database
+            em.clear();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the WHERE clause of a bulk statement that matches the entities
+     * that match <code>filter</code>, adding its parameters to
+     * <code>parameters</code>. Returns an empty string if all entities match,
+     * and null if the filter cannot be expressed in a bulk statement or may be
+     * modified by a query modifier delegate.
+     */
+    private String getBulkWhereClause(EntityContainer<T> container,
+            Filter filter, Map<String, Object> parameters) {
+        if (getQueryModifierDelegate() != null
+                || (container != null && container.getQueryModifierDelegate() != null)) {
+            return null;
+        }
+        if (filter == null) {
+            return "";
+        }
+        List<String> propertyIds = new ArrayList<String>();
+        String where = FilterConverter.convertFilterToJPQL(filter, "e",
+                parameters, propertyIds);
+        if (where == null) {
+            return null;
+        }
+        for (String propertyId : propertyIds) {
+            if (!isBulkFilterProperty(propertyId)) {
+                return null;
+            }
+        }
+        return where;
+    }
+
+    /**
+     * Checks whether <code>propertyId</code> can be filtered by in a bulk
+     * statement, i.e. whether it refers to a single valued persistent property
+     * of the entity or of its embedded objects. Paths to the properties of
+     * related entities would require joins, which bulk statements do not
+     * support.
+     */
+    private boolean isBulkFilterProperty(String propertyId) {
+        ClassMetadata<?> metadata = getEntityClassMetadata();
+        String[] names = propertyId.split("\\.");
+        for (int i = 0; i < names.length; i++) {
+            PropertyMetadata property = metadata == null ? null : metadata
+                    .getProperty(names[i]);
+            if (!(property instanceof PersistentPropertyMetadata)) {
+                return false;
+            }
+            PropertyKind kind = property.getPropertyKind();
+            if (i < names.length - 1) {
+                metadata = kind == PropertyKind.EMBEDDED ? ((PersistentPropertyMetadata) property)
+                        .getTypeMetadata() : null;
+            } else if (kind == PropertyKind.ONE_TO_MANY
+                    || kind == PropertyKind.MANY_TO_MANY
+                    || kind == PropertyKind.ELEMENT_COLLECTION) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queries the identifiers of the entities that match <code>filter</code>,
+     * and runs the bulk <code>statement</code> for them
+     * {@link #MAX_BULK_FETCH_SIZE} at a time. Returns the number of affected
+     * entities.
+     */
+    private int runBulkStatementById(EntityContainer<T> container,
+            Filter filter, String statement, Map<String, Object> parameters) {
+        EntityManager em = getEntityManager();
+        List<Object> entityIds = createFilteredQuery(
+                container,
+                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
+                        .getName()), filter, null, false).getResultList();
+        if (entityIds.isEmpty()) {
+            return 0;
+        }
+        String idPath = "e."
+                + getEntityClassMetadata().getIdentifierProperty().getName();
+        int count = 0;
+        if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
+            // IN expressions are not portable for embedded identifiers
+            Query query = em.createQuery(statement + " WHERE " + idPath
+                    + " = :entityId");
+            setParameters(query, parameters);
+            for (Object entityId : entityIds) {
+                count += query.setParameter("entityId", entityId)
+                        .executeUpdate();
+            }
+        } else {
+            Query query = em.createQuery(statement + " WHERE " + idPath
+                    + " IN :entityIds");
+            setParameters(query, parameters);
+            for (int i = 0; i < entityIds.size(); i += MAX_BULK_FETCH_SIZE) {
+                count += query.setParameter(
+                        "entityIds",
+                        entityIds.subList(i,
+                                Math.min(i + MAX_BULK_FETCH_SIZE,
+                                        entityIds.size()))).executeUpdate();
+            }
+        }
+        return count;
+    }
+
+    private static void setParameters(Query query,
+            Map<String, Object> parameters) {
+        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+            query.setParameter(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Checks that <code>propertyName</code> can be set with a bulk UPDATE
+     * statement.
+     */
+    private void checkBulkUpdateProperty(String propertyName)
+            throws IllegalArgumentException {
+        String error = getBulkUpdateError(propertyName);
+        if (error != null) {
+            throw new IllegalArgumentException(error + ": " + propertyName);
+        }
+    }
+
+    /**
+     * Returns the reason why <code>propertyName</code> cannot be set with a
+     * bulk UPDATE statement, or null if it can.
+     */
+    private String getBulkUpdateError(String propertyName) {
+        EntityClassMetadata<T> entityMetadata = getEntityClassMetadata();
+        if (propertyName.equals(entityMetadata.getIdentifierProperty()
+                .getName())
+                || (entityMetadata.hasVersionProperty() && propertyName
+                        .equals(entityMetadata.getVersionProperty().getName()))) {
+            return "The identifier and version properties cannot be updated";
+        }
+        ClassMetadata<?> metadata = entityMetadata;
+        String[] names = propertyName.split("\\.");
+        for (int i = 0; i < names.length; i++) {
+            PropertyMetadata property = metadata == null ? null : metadata
+                    .getProperty(names[i]);
+            if (!(property instanceof PersistentPropertyMetadata)) {
+                return "Not a persistent property";
+            }
+            PropertyKind kind = property.getPropertyKind();
+            if (i < names.length - 1) {
+                metadata = kind == PropertyKind.EMBEDDED ? ((PersistentPropertyMetadata) property)
+                        .getTypeMetadata() : null;
+            } else if (kind != PropertyKind.SIMPLE
+                    && kind != PropertyKind.MANY_TO_ONE
+                    && kind != PropertyKind.ONE_TO_ONE) {
+                return "Only simple and single valued properties can be updated in bulk";
+            }
+        }
+        return null;
     }
 
     /*
@@ -275,7 +843,9 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
 
     /**
      * Sends <code>event</code> to all registered listeners if
-     * {@link #isFireEntityProviderChangeEvent() } is true.
+     * {@link #isFireEntityProviderChangeEvent() } is true. The shared query
+     * caches and the count strategy are always invalidated, as they may be
+     * used by entity providers that do not listen to this one.
      * 
      * @param event
      *            the event to send (must not be null).
@@ -283,6 +853,11 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
     @SuppressWarnings("unchecked")
     protected void fireEntityProviderChangeEvent(
             final EntityProviderChangeEvent<T> event) {
+        SharedQueryCache.invalidateAll(getEntityClassMetadata()
+                .getMappedClass());
+        if (getCountStrategy() != null) {
+            getCountStrategy().invalidate();
+        }
         LinkedList<WeakReference<EntityProviderChangeListener<T>>> list;
         synchronized (getListeners()) {
             assert event != null : "event must not be null";
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+
+/**
+ * Cache of criteria queries that have been built for a certain shape of query,
+ * i.e. the selected fields, the structure of the filter and the sort order.
+ * The filter values are bound as parameters, so a query built once can be
+ * reused by binding new values, instead of building the criteria query again
+ * for every call. The persistence providers cache the translation of the
+ * query as well, as its text stays the same.
+ * <p>
+ * The cache holds at most {@link #MAX_SIZE} templates, and discards the least
+ * recently used ones. This class is internal and should never be used outside
+ * of JPAContainer.
+ * 
+ * @since 3.2
+ */
+final class QueryTemplateCache {
+
+    /**
+     * The maximum number of templates to cache.
+     */
+    static final int MAX_SIZE = 100;
+
+    /**
+     * A criteria query and its parameters, in the order in which their values
+     * are bound.
+     */
+    static final class Template<R> {
+
+        private final EntityManagerFactory entityManagerFactory;
+        private final CriteriaQuery<R> query;
+        private final List<ParameterExpression<?>> parameters;
+
+        /**
+         * Creates a new <code>Template</code>.
+         * 
+         * @param entityManagerFactory
+         *            the factory of the entity manager that built the query.
+         * @param query
+         *            the criteria query.
+         * @param parameters
+         *            the parameters of the query, in the order in which their
+         *            values are bound.
+         */
+        Template(EntityManagerFactory entityManagerFactory,
+                CriteriaQuery<R> query,
+                Map<ParameterExpression<?>, Object> parameters) {
+            this.entityManagerFactory = entityManagerFactory;
+            this.query = query;
+            this.parameters = new ArrayList<ParameterExpression<?>>(
+                    parameters.keySet());
+        }
+
+        /**
+         * Checks whether the query can be run by <code>entityManager</code>.
+         */
+        boolean isUsableBy(EntityManager entityManager) {
+            return entityManagerFactory == entityManager
+                    .getEntityManagerFactory();
+        }
+
+        /**
+         * Creates a query from the template and binds <code>values</code> to
+         * its parameters.
+         * 
+         * @param entityManager
+         *            the entity manager to create the query with.
+         * @param values
+         *            the parameter values, in the order of the parameters.
+         * @return the query.
+         * @throws IllegalStateException
+         *             if the number of values does not match the parameters.
+         */
+        @SuppressWarnings("unchecked")
+        TypedQuery<R> createQuery(EntityManager entityManager,
+                List<Object> values) throws IllegalStateException {
+            if (values.size() != parameters.size()) {
+                throw new IllegalStateException("Expected "
+                        + parameters.size() + " parameter values, got "
+                        + values.size());
+            }
+            TypedQuery<R> tq;
+            // Some providers modify the criteria query while translating it
+            synchronized (this) {
+                tq = entityManager.createQuery(query);
+            }
+            for (int i = 0; i < values.size(); i++) {
+                tq.setParameter((ParameterExpression<Object>) parameters.get(i),
+                        values.get(i));
+            }
+            return tq;
+        }
+    }
+
+    private final Map<String, Template<?>> templates = new LinkedHashMap<String, Template<?>>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = -1840431475463738126L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, Template<?>> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    /**
+     * Gets the template of <code>key</code>, if it can be used by
+     * <code>entityManager</code>.
+     * 
+     * @param key
+     *            the shape of the query.
+     * @param entityManager
+     *            the entity manager that will run the query.
+     * @return the template, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <R> Template<R> get(String key, EntityManager entityManager) {
+        Template<R> template = (Template<R>) templates.get(key);
+        if (template != null && !template.isUsableBy(entityManager)) {
+            templates.remove(key);
+            return null;
+        }
+        return template;
+    }
+
+    /**
+     * Stores the template of <code>key</code>.
+     */
+    synchronized void put(String key, Template<?> template) {
+        templates.put(key, template);
+    }
+
+    /**
+     * @return the number of cached templates.
+     */
+    synchronized int size() {
+        return templates.size();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Makes sure that only one load per key is in progress at a time. Threads
+ * that ask for a key that is already being loaded wait for the running load
+ * and share its result, instead of querying the database again. This class is
+ * internal and should never be used outside of JPAContainer.
+ * 
+ * @since 3.2
+ */
+final class SingleFlight<K, V> implements Serializable {
+
+    private static final long serialVersionUID = 3585404318305446287L;
+    private transient ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Loads the value of <code>key</code> using <code>loader</code>, unless
+     * another thread is already loading it, in which case the result of that
+     * load is returned.
+     * 
+     * @param key
+     *            the key to load (must not be null).
+     * @param loader
+     *            the loader to call (must not be null).
+     * @return the loaded value.
+     * @throws IllegalStateException
+     *             if the thread was interrupted while waiting, or if the
+     *             loader threw a checked exception.
+     */
+    V load(K key, Callable<V> loader) throws IllegalStateException {
+        assert key != null : "key must not be null";
+        assert loader != null : "loader must not be null";
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> running = calls.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                calls.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading "
+                    + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Could not load " + key, cause);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        calls = new ConcurrentHashMap<K, FutureTask<V>>();
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.util;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vaadin.addon.jpacontainer.CountStrategy;
+
+/**
+ * A {@link CountStrategy} that remembers the counts of another strategy for a
+ * fixed time. Counts are remembered by entity class and filter, and discarded
+ * when they expire or when the strategy is invalidated. Changes made to the
+ * database by others are thus not seen until the count expires.
+ * <p>
+ * At most {@link #MAX_ENTRIES} counts are remembered at a time, the least
+ * recently used ones are discarded first.
+ * 
+ * @since 3.2
+ */
+public class CachedCountStrategy implements CountStrategy {
+
+    private static final long serialVersionUID = -8713986217536651478L;
+
+    /**
+     * The maximum number of counts to remember.
+     */
+    public static final int MAX_ENTRIES = 100;
+
+    private static class CountEntry implements Serializable {
+
+        private static final long serialVersionUID = 6021749035712880961L;
+        final int count;
+        final long expires;
+
+        CountEntry(int count, long expires) {
+            this.count = count;
+            this.expires = expires;
+        }
+    }
+
+    private final long timeToLive;
+    private final CountStrategy countStrategy;
+    private final Map<CountKey, CountEntry> counts = new LinkedHashMap<CountKey, CountEntry>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = 2851164359104227823L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<CountKey, CountEntry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    /**
+     * Incremented on every invalidation, so that counts that were being
+     * loaded at the time are not remembered.
+     */
+    private long generation;
+
+    /**
+     * Creates a new <code>CachedCountStrategy</code> that remembers exact
+     * counts.
+     * 
+     * @param timeToLive
+     *            the time in milliseconds to remember a count.
+     */
+    public CachedCountStrategy(long timeToLive) {
+        this(timeToLive, new ExactCountStrategy());
+    }
+
+    /**
+     * Creates a new <code>CachedCountStrategy</code>.
+     * 
+     * @param timeToLive
+     *            the time in milliseconds to remember a count.
+     * @param countStrategy
+     *            the strategy to get the counts from (must not be null). It
+     *            should not refine its counts later, as the refined counts
+     *            would not be seen until the remembered ones expire.
+     */
+    public CachedCountStrategy(long timeToLive, CountStrategy countStrategy) {
+        assert timeToLive >= 0 : "timeToLive must not be negative";
+        assert countStrategy != null : "countStrategy must not be null";
+        this.timeToLive = timeToLive;
+        this.countStrategy = countStrategy;
+    }
+
+    /**
+     * @return the time in milliseconds to remember a count.
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @return the strategy to get the counts from.
+     */
+    public CountStrategy getCountStrategy() {
+        return countStrategy;
+    }
+
+    public int getEntityCount(CountContext context) {
+        CountKey key = new CountKey(context);
+        long loadGeneration;
+        synchronized (counts) {
+            CountEntry entry = counts.get(key);
+            if (entry != null && entry.expires - currentTimeMillis() > 0) {
+                return entry.count;
+            }
+            loadGeneration = generation;
+        }
+        int count = countStrategy.getEntityCount(context);
+        synchronized (counts) {
+            if (loadGeneration == generation) {
+                counts.put(key, new CountEntry(count, currentTimeMillis()
+                        + timeToLive));
+            }
+        }
+        return count;
+    }
+
+    public void invalidate() {
+        synchronized (counts) {
+            counts.clear();
+            generation++;
+        }
+        countStrategy.invalidate();
+    }
+
+    /**
+     * Gets the current time. May be overridden for testing.
+     * 
+     * @return the current time in milliseconds.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
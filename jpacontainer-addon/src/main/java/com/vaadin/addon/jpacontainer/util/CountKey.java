@@ -0,0 +1,59 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.util;
+
+import java.io.Serializable;
+
+import com.vaadin.addon.jpacontainer.CountStrategy.CountContext;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * The entity class and filter of a count, used as a key by the count
+ * strategies that remember counts.
+ * 
+ * @since 3.2
+ */
+final class CountKey implements Serializable {
+
+    private static final long serialVersionUID = -4129403870513627390L;
+    private final Class<?> entityClass;
+    private final Filter filter;
+
+    CountKey(CountContext context) {
+        this.entityClass = context.getEntityClass();
+        this.filter = context.getFilter();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof CountKey)) {
+            return false;
+        }
+        CountKey other = (CountKey) obj;
+        return entityClass.equals(other.entityClass)
+                && (filter == null ? other.filter == null : filter
+                        .equals(other.filter));
+    }
+
+    @Override
+    public int hashCode() {
+        return entityClass.hashCode() * 31
+                + (filter == null ? 0 : filter.hashCode());
+    }
+}
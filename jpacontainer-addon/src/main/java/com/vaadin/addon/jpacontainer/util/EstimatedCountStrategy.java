@@ -0,0 +1,113 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.PersistenceException;
+
+import com.vaadin.addon.jpacontainer.CountStrategy;
+
+/**
+ * A {@link CountStrategy} that estimates the number of all entities using a
+ * native query, typically one that reads the row count from the statistics of
+ * the database instead of scanning the table. For example, on PostgreSQL:
+ * 
+ * <pre>
+ * new EstimatedCountStrategy(
+ *         &quot;SELECT reltuples FROM pg_class WHERE relname = 'audit_entry'&quot;);
+ * </pre>
+ * 
+ * The statistics do not tell how many rows match a filter, so filtered counts
+ * are delegated to another strategy. If the native query fails or does not
+ * return a number, the exact count is used instead.
+ * 
+ * @since 3.2
+ */
+public class EstimatedCountStrategy implements CountStrategy {
+
+    private static final long serialVersionUID = 2170465409733839713L;
+
+    private final String nativeQuery;
+    private final CountStrategy filteredCountStrategy;
+
+    /**
+     * Creates a new <code>EstimatedCountStrategy</code> that counts filtered
+     * entities exactly.
+     * 
+     * @param nativeQuery
+     *            the SQL query that returns the estimated number of entities
+     *            as a single number (must not be null).
+     */
+    public EstimatedCountStrategy(String nativeQuery) {
+        this(nativeQuery, new ExactCountStrategy());
+    }
+
+    /**
+     * Creates a new <code>EstimatedCountStrategy</code>.
+     * 
+     * @param nativeQuery
+     *            the SQL query that returns the estimated number of entities
+     *            as a single number (must not be null).
+     * @param filteredCountStrategy
+     *            the strategy to use when the entities are filtered (must not
+     *            be null).
+     */
+    public EstimatedCountStrategy(String nativeQuery,
+            CountStrategy filteredCountStrategy) {
+        assert nativeQuery != null : "nativeQuery must not be null";
+        assert filteredCountStrategy != null : "filteredCountStrategy must not be null";
+        this.nativeQuery = nativeQuery;
+        this.filteredCountStrategy = filteredCountStrategy;
+    }
+
+    /**
+     * @return the SQL query that returns the estimated number of entities.
+     */
+    public String getNativeQuery() {
+        return nativeQuery;
+    }
+
+    /**
+     * @return the strategy to use when the entities are filtered.
+     */
+    public CountStrategy getFilteredCountStrategy() {
+        return filteredCountStrategy;
+    }
+
+    public int getEntityCount(CountContext context) {
+        if (context.getFilter() != null) {
+            return filteredCountStrategy.getEntityCount(context);
+        }
+        try {
+            Object result = context.getEntityManager()
+                    .createNativeQuery(nativeQuery).getSingleResult();
+            if (result instanceof Number) {
+                return (int) Math.min(Integer.MAX_VALUE,
+                        Math.max(0, ((Number) result).longValue()));
+            }
+        } catch (PersistenceException e) {
+            Logger.getLogger(getClass().getName()).log(Level.FINE,
+                    "Could not estimate the number of entities", e);
+        }
+        return context.getExactCount();
+    }
+
+    public void invalidate() {
+        filteredCountStrategy.invalidate();
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.util;
+
+import com.vaadin.addon.jpacontainer.CountStrategy;
+
+/**
+ * A {@link CountStrategy} that runs an exact COUNT query every time. This is
+ * what the entity providers do when no strategy has been set.
+ * 
+ * @since 3.2
+ */
+public class ExactCountStrategy implements CountStrategy {
+
+    private static final long serialVersionUID = 4925658718893420917L;
+
+    public int getEntityCount(CountContext context) {
+        return context.getExactCount();
+    }
+
+    public void invalidate() {
+        // Nothing is remembered
+    }
+}
@@ -26,6 +26,7 @@ import java.util.Set;
 import javax.persistence.Id;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Root;
 
 import com.vaadin.addon.jpacontainer.EntityProvider;
@@ -75,8 +76,13 @@ public class HibernateLazyLoadingDelegate implements LazyLoadingDelegate {
         CriteriaQuery<Object> q = cb.createQuery();
         Root<? extends Object> root = q.from(entity.getClass());
         q.select(root.get(prop));
-        q.where(cb.equal(root.get("id"), cb.literal(tryGetEntityId(entity))));
-        return entityProvider.getEntityManager().createQuery(q).getResultList();
+        Object id = tryGetEntityId(entity);
+        @SuppressWarnings("unchecked")
+        ParameterExpression<Object> idParameter = (ParameterExpression<Object>) cb
+                .parameter(id.getClass());
+        q.where(cb.equal(root.get("id"), idParameter));
+        return entityProvider.getEntityManager().createQuery(q)
+                .setParameter(idParameter, id).getResultList();
     }
 
     /**
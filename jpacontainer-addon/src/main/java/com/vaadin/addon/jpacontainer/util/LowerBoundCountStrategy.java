@@ -0,0 +1,198 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.util;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.addon.jpacontainer.CountStrategy;
+
+/**
+ * A {@link CountStrategy} that first counts the entities only up to a limit,
+ * which is fast even on very large tables, and refines the count in the
+ * background. If there are more entities than the limit, the lower bound is
+ * returned at once and the exact count is run using the executor of the
+ * strategy. When it is done, the exact count is remembered and the container
+ * is told that the count has changed, so it fires an ItemSetChangeEvent.
+ * <p>
+ * The exact count runs in a thread of the executor, so the entity provider
+ * must get its entity manager from an
+ * {@link com.vaadin.addon.jpacontainer.EntityManagerProvider}, and the
+ * listeners of the container are notified in that thread. Applications that
+ * update the UI from the listeners should use an executor that runs the tasks
+ * with the session locked, e.g. using <code>UI.access()</code>. If the
+ * executor is missing or rejects the task, the exact count is run at once.
+ * The executor is not serialized.
+ * <p>
+ * The exact counts are remembered until the strategy is invalidated. At most
+ * {@link #MAX_ENTRIES} counts are remembered at a time, the least recently
+ * used ones are discarded first.
+ * 
+ * @since 3.2
+ */
+public class LowerBoundCountStrategy implements CountStrategy {
+
+    private static final long serialVersionUID = 1093467409577838211L;
+
+    /**
+     * The maximum number of counts to remember.
+     */
+    public static final int MAX_ENTRIES = 100;
+
+    private final int limit;
+    private final transient Executor executor;
+    private final Map<CountKey, Integer> counts = new LinkedHashMap<CountKey, Integer>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = -6510209327658939306L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<CountKey, Integer> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    /**
+     * The counts that are being refined in the background.
+     */
+    private transient Set<CountKey> refining;
+    /**
+     * Incremented on every invalidation, so that counts that were being
+     * loaded at the time are not remembered.
+     */
+    private long generation;
+
+    /**
+     * Creates a new <code>LowerBoundCountStrategy</code>.
+     * 
+     * @param limit
+     *            the number of entities to count at once (must be positive).
+     * @param executor
+     *            the executor to run the exact counts with (must not be
+     *            null).
+     */
+    public LowerBoundCountStrategy(int limit, Executor executor) {
+        assert limit > 0 : "limit must be positive";
+        assert executor != null : "executor must not be null";
+        this.limit = limit;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the number of entities to count at once.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the executor to run the exact counts with, or null if the
+     *         strategy has been deserialized.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public int getEntityCount(final CountContext context) {
+        final CountKey key = new CountKey(context);
+        final long loadGeneration;
+        synchronized (this) {
+            Integer count = counts.get(key);
+            if (count != null) {
+                return count;
+            }
+            loadGeneration = generation;
+        }
+        int lowerBound = context.getCountUpTo(limit + 1);
+        if (lowerBound <= limit) {
+            // Counted all of them
+            remember(key, lowerBound, loadGeneration);
+            return lowerBound;
+        }
+        if (executor == null || !context.isConcurrentAccessSupported()) {
+            int count = context.getExactCount();
+            remember(key, count, loadGeneration);
+            return count;
+        }
+        synchronized (this) {
+            if (!getRefining().add(key)) {
+                return lowerBound;
+            }
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    refine(context, key, loadGeneration);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                getRefining().remove(key);
+            }
+            int count = context.getExactCount();
+            remember(key, count, loadGeneration);
+            return count;
+        }
+        return lowerBound;
+    }
+
+    private void refine(CountContext context, CountKey key,
+            long loadGeneration) {
+        boolean remembered = false;
+        try {
+            remembered = remember(key, context.getExactCount(),
+                    loadGeneration);
+        } catch (RuntimeException e) {
+            Logger.getLogger(getClass().getName()).log(Level.WARNING,
+                    "Could not count the entities", e);
+        } finally {
+            synchronized (this) {
+                getRefining().remove(key);
+            }
+        }
+        if (remembered) {
+            context.countChanged();
+        }
+    }
+
+    private synchronized boolean remember(CountKey key, int count,
+            long loadGeneration) {
+        if (loadGeneration != generation) {
+            return false;
+        }
+        counts.put(key, count);
+        return true;
+    }
+
+    private Set<CountKey> getRefining() {
+        if (refining == null) {
+            refining = new HashSet<CountKey>();
+        }
+        return refining;
+    }
+
+    public synchronized void invalidate() {
+        counts.clear();
+        getRefining().clear();
+        generation++;
+    }
+}
@@ -25,6 +25,8 @@ import javax.persistence.Persistence;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.metadata.MetamodelMetadataFactory;
 import com.vaadin.addon.jpacontainer.provider.BatchableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.CachingBatchableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider;
@@ -155,4 +157,20 @@ public class JPAContainerFactoryTest {
         assertEquals(LocalEntityProvider.class, c.getEntityProvider()
                 .getClass());
     }
+
+    @Test
+    public void testUseMetamodel() {
+        try {
+            JPAContainerFactory.useMetamodel("eclipselink-in-memory");
+            assertEquals(MetamodelMetadataFactory.class, MetadataFactory
+                    .getInstance().getClass());
+            JPAContainer<Person> c = JPAContainerFactory.make(Person.class,
+                    "eclipselink-in-memory");
+            assertEquals("Person", c.getEntityClassMetadata().getEntityName());
+            assertEquals("id", c.getEntityClassMetadata()
+                    .getIdentifierProperty().getName());
+        } finally {
+            MetadataFactory.setInstance(null);
+        }
+    }
 }
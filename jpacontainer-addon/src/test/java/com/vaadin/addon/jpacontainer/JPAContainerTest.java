@@ -18,6 +18,7 @@ package com.vaadin.addon.jpacontainer;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.isA;
@@ -27,6 +28,7 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -42,6 +44,12 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.OptimisticLockException;
 
 import org.easymock.Capture;
 import org.easymock.EasyMock;
@@ -50,6 +58,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.vaadin.addon.jpacontainer.JPAContainer.AllItemsRefreshedEvent;
+import com.vaadin.addon.jpacontainer.JPAContainer.WriteFailedListener;
+import com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.testdata.Address;
 import com.vaadin.addon.jpacontainer.testdata.Person;
 import com.vaadin.data.Container;
@@ -349,22 +359,12 @@ public class JPAContainerTest {
 
     @Test
     public void testIndexOfId_WriteThrough() {
-        expect(entityProviderMock.getEntityCount(container, null)).andStubReturn(5);
-        expect(
-                entityProviderMock.getEntityIdentifierAt(container, null,
-                        new LinkedList<SortBy>(), 0)).andStubReturn("id1");
         expect(
-                entityProviderMock.getEntityIdentifierAt(container, null,
-                        new LinkedList<SortBy>(), 1)).andStubReturn("id2");
-        expect(
-                entityProviderMock.getEntityIdentifierAt(container, null,
-                        new LinkedList<SortBy>(), 2)).andStubReturn("id3");
+                entityProviderMock.getEntityIndex(container, "id4", null,
+                        new LinkedList<SortBy>())).andReturn(3);
         expect(
-                entityProviderMock.getEntityIdentifierAt(container, null,
-                        new LinkedList<SortBy>(), 3)).andStubReturn("id4");
-        expect(
-                entityProviderMock.getEntityIdentifierAt(container, null,
-                        new LinkedList<SortBy>(), 4)).andStubReturn(null);
+                entityProviderMock.getEntityIndex(container, "id5", null,
+                        new LinkedList<SortBy>())).andReturn(-1);
         replay(entityProviderMock);
 
         container.setEntityProvider(entityProviderMock);
@@ -379,29 +379,16 @@ public class JPAContainerTest {
     @Test
     public void testIndexOfId_Buffered() {
         LinkedList<SortBy> sortby = new LinkedList<SortBy>();
-        expect(batchableEntityProviderMock.getEntityCount(container, null)).andStubReturn(
-                5);
-        expect(
-                batchableEntityProviderMock.getEntityIdentifierAt(container, null, sortby,
-                        0)).andStubReturn("id1");
-        expect(
-                batchableEntityProviderMock.getEntityIdentifierAt(container, null, sortby,
-                        1)).andStubReturn("id2");
-        expect(
-                batchableEntityProviderMock.getEntityIdentifierAt(container, null, sortby,
-                        2)).andStubReturn("id3");
-        expect(
-                batchableEntityProviderMock.getEntityIdentifierAt(container, null, sortby,
-                        3)).andStubReturn("id4");
-        expect(
-                batchableEntityProviderMock.getEntityIdentifierAt(container, null, sortby,
-                        4)).andStubReturn(null);
+        expect(batchableEntityProviderMock.getEntityIndex(container, "id2",
+                null, sortby)).andStubReturn(1);
+        expect(batchableEntityProviderMock.getEntityIndex(container, "id4",
+                null, sortby)).andStubReturn(3);
+        expect(batchableEntityProviderMock.getEntityIndex(container, "id5",
+                null, sortby)).andStubReturn(-1);
+        expect(batchableEntityProviderMock.containsEntity(container, "id2", null))
+                .andStubReturn(true);
         expect(batchableEntityProviderMock.containsEntity(container, "id4", null))
                 .andStubReturn(true);
-        expect(
-                batchableEntityProviderMock.getAllEntityIdentifiers(container, null,
-                        sortby)).andReturn(
-                Arrays.asList(new Object[] { "id1", "id2", "id3", "id4" }));
         replay(batchableEntityProviderMock);
 
         container.setEntityProvider(batchableEntityProviderMock);
@@ -416,7 +403,12 @@ public class JPAContainerTest {
         assertEquals(4, container.indexOfId("id4"));
         assertEquals(-1, container.indexOfId("id5"));
 
-        // Delete last item
+        // Delete an item before id4
+        container.removeItem("id2");
+        assertEquals(-1, container.indexOfId("id2"));
+        assertEquals(3, container.indexOfId("id4"));
+
+        // Delete id4 itself
         container.removeItem("id4");
         // Item should not be there, marked for deletion
         assertEquals(-1, container.indexOfId("id4"));
@@ -472,9 +464,8 @@ public class JPAContainerTest {
         expect(batchableEntityProviderMock.containsEntity(container, "id3", null))
                 .andStubReturn(true);
         expect(
-                batchableEntityProviderMock.getAllEntityIdentifiers(container, filter,
-                        orderby)).andStubReturn(
-                Arrays.asList(new Object[] { "id1", "id2", "id3" }));
+                batchableEntityProviderMock.getEntityIndex(container, "id3",
+                        filter, orderby)).andReturn(2);
         expect(batchableEntityProviderMock.containsEntity(container, "id3", filter))
                 .andStubReturn(true);
         replay(batchableEntityProviderMock);
@@ -516,6 +507,66 @@ public class JPAContainerTest {
         verify(batchableEntityProviderMock);
     }
 
+    @Test
+    public void testGetIdByIndex_BufferedDeletesOutOfOrder() {
+        LinkedList<SortBy> sortby = new LinkedList<SortBy>();
+        LinkedList<SortBy> orderby = new LinkedList<SortBy>();
+        orderby.add(new SortBy("firstName", true));
+        expect(batchableEntityProviderMock.containsEntity(container, "id2", null))
+                .andStubReturn(true);
+        expect(batchableEntityProviderMock.containsEntity(container, "id4", null))
+                .andStubReturn(true);
+        // The deleted positions are computed when first needed
+        expect(
+                batchableEntityProviderMock.getEntityIndex(container, "id4",
+                        null, sortby)).andReturn(3);
+        expect(
+                batchableEntityProviderMock.getEntityIndex(container, "id2",
+                        null, sortby)).andReturn(1);
+        expect(
+                batchableEntityProviderMock.getEntityIdentifierAt(container,
+                        null, sortby, 0)).andReturn("id1");
+        expect(
+                batchableEntityProviderMock.getEntityIdentifierAt(container,
+                        null, sortby, 2)).andReturn("id3");
+        expect(
+                batchableEntityProviderMock.getEntityIdentifierAt(container,
+                        null, sortby, 4)).andReturn("id5");
+        // ... and again after the sort order has changed
+        expect(
+                batchableEntityProviderMock.getEntityIndex(container, "id4",
+                        null, orderby)).andReturn(0);
+        expect(
+                batchableEntityProviderMock.getEntityIndex(container, "id2",
+                        null, orderby)).andReturn(4);
+        expect(
+                batchableEntityProviderMock.getEntityIdentifierAt(container,
+                        null, orderby, 1)).andReturn("id5");
+        expect(
+                batchableEntityProviderMock.getEntityIdentifierAt(container,
+                        null, orderby, 3)).andReturn("id1");
+        expect(
+                batchableEntityProviderMock.getEntityIdentifierAt(container,
+                        null, orderby, 5)).andReturn(null);
+        replay(batchableEntityProviderMock);
+
+        container.setEntityProvider(batchableEntityProviderMock);
+        container.setWriteThrough(false);
+
+        container.removeItem("id4");
+        container.removeItem("id2");
+        assertEquals("id1", container.getIdByIndex(0));
+        assertEquals("id3", container.getIdByIndex(1));
+        assertEquals("id5", container.getIdByIndex(2));
+
+        container.sort(new Object[] { "firstName" }, new boolean[] { true });
+        assertEquals("id5", container.getIdByIndex(0));
+        assertEquals("id1", container.getIdByIndex(2));
+        assertNull(container.getIdByIndex(3));
+
+        verify(batchableEntityProviderMock);
+    }
+
     @Test
     public void testGetItemIds_WriteThrough() {
         LinkedList<SortBy> orderby = new LinkedList<SortBy>();
@@ -590,6 +641,109 @@ public class JPAContainerTest {
         verify(batchableEntityProviderMock);
     }
 
+    @Test
+    public void testGetItemIdsRange_WriteThrough() {
+        LinkedList<SortBy> orderby = new LinkedList<SortBy>();
+        orderby.add(new SortBy("firstName", true));
+        expect(
+                entityProviderMock.getEntityIdentifiersInRange(container, null,
+                        orderby, 2, 3)).andReturn(
+                Arrays.asList(new Object[] { "id3", "id4" }));
+        replay(entityProviderMock);
+
+        container.setEntityProvider(entityProviderMock);
+        container.setWriteThrough(true);
+        container.sort(new Object[] { "firstName" }, new boolean[] { true });
+
+        List<?> ids = container.getItemIds(2, 3);
+        assertEquals(Arrays.asList("id3", "id4"), ids);
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testGetItemIdsRange_Projection() {
+        container.addNestedContainerProperty("address.street");
+        List<String> propertyIds = container.getProjectablePropertyIds();
+        assertTrue(propertyIds.contains("firstName"));
+        assertTrue(propertyIds.contains("address.street"));
+        assertFalse(propertyIds.contains("skills"));
+        assertFalse(propertyIds.contains("manager"));
+        assertFalse(propertyIds.contains("tempData"));
+
+        Object[] row1 = new Object[propertyIds.size() + 1];
+        row1[0] = "id1";
+        row1[propertyIds.indexOf("firstName") + 1] = "Joe";
+        row1[propertyIds.indexOf("address.street") + 1] = "Street 1";
+        Object[] row2 = new Object[propertyIds.size() + 1];
+        row2[0] = "id2";
+        row2[propertyIds.indexOf("firstName") + 1] = "Jane";
+        LinkedList<SortBy> sortby = new LinkedList<SortBy>();
+        expect(
+                entityProviderMock.getEntityPropertyValuesInRange(container,
+                        null, sortby, 0, 2, propertyIds)).andReturn(
+                Arrays.asList(row1, row2));
+        replay(entityProviderMock);
+
+        container.setEntityProvider(entityProviderMock);
+        container.setProjectionMode(true);
+        assertTrue(container.isProjectionMode());
+
+        assertEquals(Arrays.asList("id1", "id2"), container.getItemIds(0, 2));
+        // The items must not load any entities
+        EntityItem<Person> item = container.getItem("id1");
+        assertTrue(item instanceof ProjectedEntityItem);
+        assertEquals("id1", item.getItemId());
+        assertEquals("Joe", item.getItemProperty("firstName").getValue());
+        assertEquals("Street 1", item.getItemProperty("address.street")
+                .getValue());
+        assertTrue(item.getItemProperty("firstName").isReadOnly());
+        assertEquals("Jane",
+                container.getContainerProperty("id2", "firstName").getValue());
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testGetItemIdsRange_Buffered() {
+        LinkedList<SortBy> sortby = new LinkedList<SortBy>();
+        expect(
+                batchableEntityProviderMock.getEntityIdentifiersInRange(
+                        container, null, sortby, 0, 3)).andReturn(
+                Arrays.asList(new Object[] { "id1", "id2", "id3" }));
+        expect(
+                batchableEntityProviderMock.getEntityIdentifiersInRange(
+                        container, null, sortby, 0, 2)).andReturn(
+                Arrays.asList(new Object[] { "id1", "id2" }));
+        expect(
+                batchableEntityProviderMock.getEntityIdentifiersInRange(
+                        container, null, sortby, 1, 3)).andReturn(
+                Arrays.asList(new Object[] { "id2", "id3", "id4" }));
+        expect(batchableEntityProviderMock.containsEntity(container, "id1", null))
+                .andStubReturn(true);
+        expect(
+                batchableEntityProviderMock.getEntityIndex(container, "id1",
+                        null, sortby)).andReturn(0);
+        replay(batchableEntityProviderMock);
+
+        container.setEntityProvider(batchableEntityProviderMock);
+        container.setWriteThrough(false);
+
+        assertEquals(Arrays.asList("id1", "id2", "id3"),
+                container.getItemIds(0, 3));
+
+        // Add an item, it should be listed first
+        Object id = container.addEntity(new Person());
+        assertEquals(Arrays.asList(id, "id1", "id2"),
+                container.getItemIds(0, 3));
+
+        // Remove the first database item, it should be skipped
+        container.removeItem("id1");
+        assertEquals(Arrays.asList("id2", "id3"), container.getItemIds(1, 2));
+
+        verify(batchableEntityProviderMock);
+    }
+
     @Test
     public void testGetItem_Null() {
         assertNull(container.getItem(null));
@@ -641,10 +795,6 @@ public class JPAContainerTest {
                 .andStubReturn(true);
         expect(batchableEntityProviderMock.getEntity(container, "nonExistent"))
                 .andStubReturn(null);
-        expect(
-                batchableEntityProviderMock.getAllEntityIdentifiers(container, null,
-                        Collections.EMPTY_LIST)).andReturn(
-                Collections.EMPTY_LIST);
         replay(batchableEntityProviderMock);
 
         container.setEntityProvider(batchableEntityProviderMock);
@@ -760,10 +910,6 @@ public class JPAContainerTest {
         expect(
                 batchableEntityProviderMock.containsEntity(container, "id2", new Equal(
                         "firstName", "Hello"))).andStubReturn(false);
-        expect(
-                batchableEntityProviderMock.getAllEntityIdentifiers(container, null,
-                        Collections.EMPTY_LIST)).andStubReturn(
-                Collections.EMPTY_LIST);
         replay(batchableEntityProviderMock);
 
         container.setEntityProvider(batchableEntityProviderMock);
@@ -1593,9 +1739,10 @@ public class JPAContainerTest {
         p.setId(123l);
         p.setFirstName("Joe");
         p.setLastName("Cool");
+        p.setVersion(1l);
         expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
-        mutableEntityProviderMock.updateEntityProperty(p.getId(), "firstName",
-                "John");
+        expect(mutableEntityProviderMock.updateEntityProperty(p.getId(),
+                "firstName", "John", null)).andReturn(2l);
         replay(mutableEntityProviderMock);
 
         container.setEntityProvider(mutableEntityProviderMock);
@@ -1615,9 +1762,286 @@ public class JPAContainerTest {
         assertEquals(0, listener.getCalled());
 
         assertEquals("John", p.getFirstName());
+        assertEquals(2l, p.getVersion().longValue());
+
+        verify(mutableEntityProviderMock);
+
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testWriteBehind_CoalescesEdits() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        p.setLastName("Cool");
+        p.setVersion(1l);
+        Person updated = p.clone();
+        updated.setVersion(2l);
+        ScheduledExecutorService executorMock = createMock(ScheduledExecutorService.class);
+        Capture<Runnable> taskCapture = new Capture<Runnable>();
+        expect(
+                executorMock.schedule(capture(taskCapture), eq(200l),
+                        eq(TimeUnit.MILLISECONDS))).andReturn(null);
+        replay(executorMock);
+        QueuedExecutor resultExecutor = new QueuedExecutor();
+        expect(mutableEntityProviderMock.getEntityManagerProvider())
+                .andStubReturn(createMock(EntityManagerProvider.class));
+        expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
+        Capture<Person> writtenCapture = new Capture<Person>();
+        expect(mutableEntityProviderMock.updateEntity(capture(writtenCapture)))
+                .andReturn(updated);
+        replay(mutableEntityProviderMock);
 
+        container.setEntityProvider(mutableEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setWriteBehind(executorMock, 200, resultExecutor);
+        assertTrue(container.isWriteBehind());
+
+        EntityItem<Person> item = container.getItem(123l);
+        item.getItemProperty("firstName").setValue("John");
+        item.getItemProperty("lastName").setValue("Smith");
+        item.getItemProperty("firstName").setValue("Jack");
+        assertTrue(container.isModified());
+        assertTrue(item.isDirty());
+
+        // Only one update is written, when the scheduled task is run
+        taskCapture.getValue().run();
+        assertFalse(container.isModified());
+        assertNotSame(p, writtenCapture.getValue());
+        assertEquals("Jack", writtenCapture.getValue().getFirstName());
+        assertEquals("Smith", writtenCapture.getValue().getLastName());
+
+        // The results are only applied through the result executor
+        assertTrue(item.isDirty());
+        assertEquals(1l, p.getVersion().longValue());
+        resultExecutor.runAll();
+        assertFalse(item.isDirty());
+        assertEquals(2l, p.getVersion().longValue());
+        assertEquals("Jack", p.getFirstName());
+        assertEquals("Smith", p.getLastName());
+
+        verify(executorMock);
+        verify(mutableEntityProviderMock);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testWriteBehind_WritesSnapshot() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        p.setVersion(1l);
+        ScheduledExecutorService executorMock = createMock(ScheduledExecutorService.class);
+        Capture<Runnable> taskCapture = new Capture<Runnable>();
+        expect(
+                executorMock.schedule(capture(taskCapture), eq(200l),
+                        eq(TimeUnit.MILLISECONDS))).andReturn(null).times(2);
+        replay(executorMock);
+        QueuedExecutor resultExecutor = new QueuedExecutor();
+        expect(mutableEntityProviderMock.getEntityManagerProvider())
+                .andStubReturn(createMock(EntityManagerProvider.class));
+        expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
+        final List<Person> written = new LinkedList<Person>();
+        final List<EntityItem<Person>> items = new LinkedList<EntityItem<Person>>();
+        expect(mutableEntityProviderMock.updateEntity(isA(Person.class)))
+                .andAnswer(new IAnswer<Person>() {
+
+                    public Person answer() throws Throwable {
+                        Person entity = (Person) EasyMock
+                                .getCurrentArguments()[0];
+                        written.add(entity.clone());
+                        if (written.size() == 1) {
+                            // The item is edited while the change is written
+                            items.get(0).getItemProperty("firstName")
+                                    .setValue("Jim");
+                        }
+                        Person updated = entity.clone();
+                        updated.setVersion(entity.getVersion() + 1);
+                        return updated;
+                    }
+                }).times(2);
+        replay(mutableEntityProviderMock);
+
+        container.setEntityProvider(mutableEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setWriteBehind(executorMock, 200, resultExecutor);
+
+        EntityItem<Person> item = container.getItem(123l);
+        items.add(item);
+        item.getItemProperty("firstName").setValue("John");
+        taskCapture.getValue().run();
+
+        // The edit made during the write is not part of it
+        assertEquals(1, written.size());
+        assertEquals("John", written.get(0).getFirstName());
+        assertEquals(1l, written.get(0).getVersion().longValue());
+        assertTrue(container.isModified());
+
+        resultExecutor.runAll();
+        assertTrue(item.isDirty());
+        assertEquals(2l, p.getVersion().longValue());
+
+        // The pending snapshot was written with the new version
+        taskCapture.getValue().run();
+        assertEquals(2, written.size());
+        assertEquals("Jim", written.get(1).getFirstName());
+        assertEquals(2l, written.get(1).getVersion().longValue());
+        resultExecutor.runAll();
+        assertFalse(container.isModified());
+        assertFalse(item.isDirty());
+        assertEquals(3l, p.getVersion().longValue());
+
+        verify(executorMock);
+        verify(mutableEntityProviderMock);
+    }
+
+    @Test
+    public void testWriteBehind_WriteFailed() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        OptimisticLockException error = new OptimisticLockException();
+        ScheduledExecutorService executorMock = createMock(ScheduledExecutorService.class);
+        replay(executorMock);
+        expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
+        expect(mutableEntityProviderMock.updateEntity(isA(Person.class)))
+                .andThrow(error);
+        expect(mutableEntityProviderMock.updateEntity(isA(Person.class)))
+                .andReturn(p);
+        replay(mutableEntityProviderMock);
+
+        container.setEntityProvider(mutableEntityProviderMock);
+        container.setWriteThrough(true);
+        // Written only when the container is committed
+        container.setWriteBehind(executorMock, 0, new QueuedExecutor());
+        TestItemSetChangeListener itemSetChangeListener = new TestItemSetChangeListener();
+        container.addListener(itemSetChangeListener);
+        final List<JPAContainer<?>.WriteFailedEvent> events = new LinkedList<JPAContainer<?>.WriteFailedEvent>();
+        container.addWriteFailedListener(new WriteFailedListener() {
+
+            private static final long serialVersionUID = 1L;
+
+            public void writeFailed(JPAContainer<?>.WriteFailedEvent event) {
+                events.add(event);
+            }
+        });
+
+        EntityItem<Person> item = container.getItem(123l);
+        item.getItemProperty("firstName").setValue("John");
+        container.commit();
+
+        assertEquals(1, events.size());
+        JPAContainer<?>.WriteFailedEvent event = events.get(0);
+        assertSame(container, event.getContainer());
+        assertEquals(123l, event.getItemId());
+        assertSame(item, event.getItem());
+        assertSame(error, event.getError());
+        assertEquals(0, itemSetChangeListener.getCalled());
+        // The item is queued again
+        assertTrue(item.isDirty());
+        assertTrue(container.isModified());
+
+        container.commit();
+        assertEquals(1, events.size());
+        assertFalse(item.isDirty());
+        assertFalse(container.isModified());
+
+        verify(executorMock);
+        verify(mutableEntityProviderMock);
+    }
+
+    @Test
+    public void testWriteBehind_Discard() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        Person refreshed = new Person();
+        refreshed.setId(123l);
+        refreshed.setFirstName("Joe");
+        ScheduledExecutorService executorMock = createMock(ScheduledExecutorService.class);
+        replay(executorMock);
+        expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
+        expect(mutableEntityProviderMock.refreshEntity(p)).andReturn(refreshed);
+        replay(mutableEntityProviderMock);
+
+        container.setEntityProvider(mutableEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setWriteBehind(executorMock, 0, new QueuedExecutor());
+
+        EntityItem<Person> item = container.getItem(123l);
+        item.getItemProperty("firstName").setValue("John");
+        assertTrue(container.isModified());
+        container.discard();
+
+        assertFalse(container.isModified());
+        assertFalse(item.isDirty());
+        assertEquals("Joe", item.getItemProperty("firstName").getValue());
+        // Nothing is written when the container is committed
+        container.commit();
+
+        verify(executorMock);
+        verify(mutableEntityProviderMock);
+    }
+
+    @Test
+    public void testWriteBehind_NoEntityManagerProvider() {
+        Person p = new Person();
+        p.setId(123l);
+        p.setFirstName("Joe");
+        ScheduledExecutorService executorMock = createMock(ScheduledExecutorService.class);
+        replay(executorMock);
+        expect(mutableEntityProviderMock.getEntityManagerProvider())
+                .andStubReturn(null);
+        expect(mutableEntityProviderMock.getEntity(container, 123l)).andReturn(p);
+        expect(mutableEntityProviderMock.updateEntity(isA(Person.class)))
+                .andReturn(p);
+        replay(mutableEntityProviderMock);
+
+        container.setEntityProvider(mutableEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setWriteBehind(executorMock, 200, new QueuedExecutor());
+
+        // The shared entity manager is not used in the executor
+        EntityItem<Person> item = container.getItem(123l);
+        item.getItemProperty("firstName").setValue("John");
+        assertFalse(container.isModified());
+        assertFalse(item.isDirty());
+
+        verify(executorMock);
         verify(mutableEntityProviderMock);
+    }
 
+    @Test
+    public void testWriteBehindSupported_SharedEntityManager() {
+        MutableLocalEntityProvider<Person> provider = new MutableLocalEntityProvider<Person>(
+                Person.class);
+        provider.setEntityManagerProvider(createMock(EntityManagerProvider.class));
+        container.setEntityProvider(provider);
+        assertTrue(container.isWriteBehindSupported());
+
+        // The shared entity manager would be used in the executor
+        provider.setEntityManager(createMock(EntityManager.class));
+        assertFalse(container.isWriteBehindSupported());
+    }
+
+    /**
+     * Executor that queues the tasks until they are run by the test, like
+     * <code>UI.access()</code> while the session is locked by another thread.
+     */
+    static class QueuedExecutor implements Executor {
+
+        private final List<Runnable> tasks = new LinkedList<Runnable>();
+
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
     }
 
     public static class TestItemSetChangeListener implements
@@ -460,6 +460,36 @@ public class PropertyListTest {
                 "address.street"));
     }
 
+    @Test
+    public void testChildListSharesParentSets() {
+        assertSame(propertyList.getAllAvailablePropertyNames(),
+                childPropertyList.getAllAvailablePropertyNames());
+        assertSame(propertyList.getSortablePropertyMap(),
+                childPropertyList.getSortablePropertyMap());
+
+        // Changes to the parent are visible in the child
+        propertyList.addNestedProperty("address.street");
+        assertTrue(childPropertyList.getAllAvailablePropertyNames().contains(
+                "address.street"));
+        assertSame(propertyList.getAllAvailablePropertyNames(),
+                childPropertyList.getAllAvailablePropertyNames());
+        assertFalse(childPropertyList.removeProperty("address.street"));
+
+        // The merged view is cached until either list changes
+        childPropertyList.addNestedProperty("address.postalCode");
+        assertSame(childPropertyList.getAllAvailablePropertyNames(),
+                childPropertyList.getAllAvailablePropertyNames());
+        assertFalse(propertyList.getAllAvailablePropertyNames().contains(
+                "address.postalCode"));
+        propertyList.addNestedProperty("address.postOffice");
+        assertTrue(childPropertyList.getAllAvailablePropertyNames().contains(
+                "address.postOffice"));
+        assertTrue(childPropertyList.getAllAvailablePropertyNames().contains(
+                "address.postalCode"));
+        assertTrue(childPropertyList.getAllAvailablePropertyNames().contains(
+                "address.street"));
+    }
+
     @Test
     public void testRemoveNestedProperty_ChildList() {
         propertyList.addNestedProperty("address.street");
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link LruCache}.
+ * 
+ * @since 3.2
+ */
+public class LruCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LruCache<Integer, String> cache = new LruCache<Integer, String>(3);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(3, "three");
+        // Touch 1 so that 2 becomes the least recently used entry
+        assertEquals("one", cache.get(1));
+        cache.put(4, "four");
+
+        assertEquals(3, cache.size());
+        assertTrue(cache.containsKey(1));
+        assertFalse(cache.containsKey(2));
+        assertTrue(cache.containsKey(3));
+        assertTrue(cache.containsKey(4));
+    }
+
+    @Test
+    public void testReplaceDoesNotEvict() {
+        LruCache<Integer, String> cache = new LruCache<Integer, String>(2);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        assertEquals("one", cache.put(1, "uno"));
+
+        assertEquals(2, cache.size());
+        assertEquals("uno", cache.get(1));
+        assertEquals("two", cache.get(2));
+        assertEquals(0, cache.getStatistics().getEvictionCount());
+    }
+
+    @Test
+    public void testUnbounded() {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(-1);
+        for (int i = 0; i < 5000; i++) {
+            cache.put(i, i);
+        }
+        assertEquals(5000, cache.size());
+        assertEquals(0, cache.getStatistics().getEvictionCount());
+    }
+
+    @Test
+    public void testWeightBound() {
+        LruCache<String, String> cache = new LruCache<String, String>(10,
+                new Weigher<String, String>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    public int weigh(String key, String value) {
+                        return value.length();
+                    }
+                });
+        cache.put("a", "12345");
+        cache.put("b", "1234");
+        assertEquals(9, cache.getWeight());
+        cache.put("c", "123");
+
+        assertFalse(cache.containsKey("a"));
+        assertTrue(cache.containsKey("b"));
+        assertTrue(cache.containsKey("c"));
+        assertEquals(7, cache.getWeight());
+
+        cache.remove("b");
+        assertEquals(3, cache.getWeight());
+        cache.clear();
+        assertEquals(0, cache.getWeight());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testStatistics() {
+        LruCache<Integer, String> cache = new LruCache<Integer, String>(2);
+        assertEquals(1.0, cache.getStatistics().getHitRate(), 0.0);
+        assertNull(cache.get(1));
+        cache.put(1, "one");
+        cache.recordLoad(100);
+        assertEquals("one", cache.get(1));
+        assertEquals("one", cache.get(1));
+        cache.put(2, "two");
+        cache.put(3, "three");
+
+        CacheStatistics stats = cache.getStatistics();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(3, stats.getRequestCount());
+        assertEquals(2.0 / 3.0, stats.getHitRate(), 0.0001);
+        assertEquals(1, stats.getEvictionCount());
+        assertEquals(1, stats.getLoadCount());
+        assertEquals(100, stats.getTotalLoadTime());
+        assertEquals(100.0, stats.getAverageLoadPenalty(), 0.0);
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import static org.easymock.EasyMock.createMock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.Compare;
+
+/**
+ * Test case for {@link SharedQueryCache}.
+ * 
+ * @since 3.2
+ */
+public class SharedQueryCacheTest {
+
+    private final Filter filter = new Compare.Equal("lastName", "Smith");
+    private final List<SortBy> sortBy = Arrays.asList(new SortBy("firstName",
+            true));
+    private final List<Object> ids = Arrays.<Object> asList(1L, 2L, 3L);
+    private final EntityManagerFactory emf = createMock(EntityManagerFactory.class);
+
+    @Test
+    public void testPutAndGet() {
+        SharedQueryCache cache = new SharedQueryCache();
+        cache.putEntityCount(emf, Person.class, filter, 42,
+                cache.getGeneration(Person.class));
+        cache.putEntityIdentifiers(emf, Person.class, filter, sortBy, 0, 3,
+                ids, cache.getGeneration(Person.class));
+
+        assertEquals(Integer.valueOf(42),
+                cache.getEntityCount(emf, Person.class, new Compare.Equal(
+                        "lastName", "Smith")));
+        assertNull(cache.getEntityCount(emf, Person.class, null));
+        assertNull(cache.getEntityCount(emf, Skill.class, filter));
+        assertEquals(ids, cache.getEntityIdentifiers(emf, Person.class, filter,
+                Arrays.asList(new SortBy("firstName", true)), 0, 3));
+        assertNull(cache.getEntityIdentifiers(emf, Person.class, filter,
+                sortBy, 3, 3));
+        assertNull(cache.getEntityIdentifiers(emf, Person.class, filter,
+                Arrays.asList(new SortBy("firstName", false)), 0, 3));
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        SharedQueryCache first = new SharedQueryCache();
+        SharedQueryCache second = new SharedQueryCache();
+        for (SharedQueryCache cache : Arrays.asList(first, second)) {
+            cache.putEntityCount(emf, Person.class, filter, 42,
+                    cache.getGeneration(Person.class));
+            cache.putEntityCount(emf, Skill.class, null, 10,
+                    cache.getGeneration(Skill.class));
+        }
+        SharedQueryCache.invalidateAll(Person.class);
+        for (SharedQueryCache cache : Arrays.asList(first, second)) {
+            assertNull(cache.getEntityCount(emf, Person.class, filter));
+            assertEquals(Integer.valueOf(10),
+                    cache.getEntityCount(emf, Skill.class, null));
+        }
+        // Invalidating a superclass invalidates the subclasses as well
+        first.invalidate(Object.class);
+        assertNull(first.getEntityCount(emf, Skill.class, null));
+    }
+
+    @Test
+    public void testResultsLoadedBeforeInvalidationAreIgnored() {
+        SharedQueryCache cache = new SharedQueryCache();
+        long generation = cache.getGeneration(Person.class);
+        // Another provider changes entities while the count is being queried
+        cache.invalidate(Person.class);
+        cache.putEntityCount(emf, Person.class, filter, 42, generation);
+        assertNull(cache.getEntityCount(emf, Person.class, filter));
+
+        cache.putEntityCount(emf, Person.class, filter, 43, cache.getGeneration(Person.class));
+        assertEquals(Integer.valueOf(43),
+                cache.getEntityCount(emf, Person.class, filter));
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        SharedQueryCache cache = new SharedQueryCache(10, 500);
+        cache.putEntityCount(emf, Person.class, filter, 42, cache.getGeneration(Person.class));
+        assertEquals(Integer.valueOf(42),
+                cache.getEntityCount(emf, Person.class, filter));
+        Thread.sleep(600);
+        assertNull(cache.getEntityCount(emf, Person.class, filter));
+    }
+
+    @Test
+    public void testResultsAreKeyedByEntityManagerFactory() {
+        SharedQueryCache cache = new SharedQueryCache();
+        EntityManagerFactory otherEmf = createMock(EntityManagerFactory.class);
+        cache.putEntityCount(emf, Person.class, filter, 42,
+                cache.getGeneration(Person.class));
+        assertNull(cache.getEntityCount(otherEmf, Person.class, filter));
+        assertEquals(Integer.valueOf(42),
+                cache.getEntityCount(emf, Person.class, filter));
+    }
+
+    @Test
+    public void testUnrelatedInvalidationDoesNotDiscardResults() {
+        SharedQueryCache cache = new SharedQueryCache();
+        long generation = cache.getGeneration(Person.class);
+        // Skills are changed while persons are being counted
+        cache.invalidate(Skill.class);
+        cache.putEntityCount(emf, Person.class, filter, 42, generation);
+        assertEquals(Integer.valueOf(42),
+                cache.getEntityCount(emf, Person.class, filter));
+    }
+
+    @Test
+    public void testConcurrentInvalidation() throws Exception {
+        final SharedQueryCache cache = new SharedQueryCache();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger committed = new AtomicInteger();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    // The count changes, then the caches are invalidated
+                    committed.incrementAndGet();
+                    cache.invalidate(Person.class);
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int i = 0; i < 100000; i++) {
+                long generation = cache.getGeneration(Person.class);
+                int count = committed.get();
+                cache.putEntityCount(emf, Person.class, filter, count,
+                        generation);
+                Integer cached = cache.getEntityCount(emf, Person.class,
+                        filter);
+                // A count read before an invalidation must not be cached
+                // after it
+                if (cached != null && cached.intValue() < count) {
+                    throw new AssertionError("Stale count was cached");
+                }
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+}
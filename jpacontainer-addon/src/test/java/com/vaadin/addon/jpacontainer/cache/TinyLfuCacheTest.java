@@ -0,0 +1,118 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link TinyLfuCache}.
+ * 
+ * @since 3.2
+ */
+public class TinyLfuCacheTest {
+
+    @Test
+    public void testSizeBound() {
+        TinyLfuCache<Integer, Integer> cache = new TinyLfuCache<Integer, Integer>(
+                100);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(900, cache.getStatistics().getEvictionCount());
+    }
+
+    @Test
+    public void testHotEntriesSurviveScan() {
+        TinyLfuCache<Integer, Integer> tinyLfu = new TinyLfuCache<Integer, Integer>(
+                100);
+        LruCache<Integer, Integer> lru = new LruCache<Integer, Integer>(100);
+        for (Cache<Integer, Integer> cache : new Cache[] { tinyLfu, lru }) {
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 50; i++) {
+                    if (cache.get(i) == null) {
+                        cache.put(i, i);
+                    }
+                }
+            }
+            // Scan through a large number of entries that are used once
+            for (int i = 1000; i < 2000; i++) {
+                cache.put(i, i);
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue("Hot entry " + i + " was evicted",
+                    tinyLfu.containsKey(i));
+            assertFalse(lru.containsKey(i));
+        }
+    }
+
+    @Test
+    public void testRecentEntriesAdmitted() {
+        TinyLfuCache<Integer, Integer> cache = new TinyLfuCache<Integer, Integer>(
+                100);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+        // A newly used entry becomes popular and must eventually be admitted
+        for (int i = 0; i < 10; i++) {
+            cache.get(500);
+        }
+        cache.put(500, 500);
+        for (int i = 100; i < 110; i++) {
+            cache.put(i, i);
+        }
+        assertTrue(cache.containsKey(500));
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(
+                10);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.get(1);
+        cache.get(1);
+        assertEquals("one", cache.remove(1));
+        assertFalse(cache.containsKey(1));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.values().size());
+        assertEquals(1, cache.keySet().size());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testStatistics() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(
+                10);
+        cache.get(1);
+        cache.put(1, "one");
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+        CacheStatistics stats = cache.getStatistics();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+        assertEquals(0.5, stats.getHitRate(), 0.0);
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Root;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Test case for {@link FilterConverter}.
+ * 
+ * @since 3.2
+ */
+public class FilterConverterTest {
+
+    private static EntityManagerFactory emf = Persistence
+            .createEntityManagerFactory("eclipselink-in-memory");
+
+    private EntityManager entityManager;
+
+    @Before
+    public void setUp() {
+        entityManager = emf.createEntityManager();
+        entityManager.getTransaction().begin();
+        Person p = new Person();
+        p.setFirstName("Alice");
+        p.setLastName("Smith");
+        p.setPrimitiveDouble(5.0);
+        entityManager.persist(p);
+        entityManager.flush();
+    }
+
+    @After
+    public void tearDown() {
+        entityManager.getTransaction().rollback();
+        entityManager.close();
+    }
+
+    private Filter createFilter(String firstName, double min) {
+        return new And(new Compare.Equal("firstName", firstName),
+                new SimpleStringFilter("lastName", "mi", true, false),
+                new Not(new Like("lastName", "X%")), new Between(
+                        "primitiveDouble", min, 10.0));
+    }
+
+    private TypedQuery<Person> createQuery(Filter filter,
+            Map<ParameterExpression<?>, Object> parameters) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Person> query = cb.createQuery(Person.class);
+        Root<Person> root = query.from(Person.class);
+        query.where(FilterConverter.convertFilter(filter, cb, root,
+                parameters));
+        TypedQuery<Person> tq = entityManager.createQuery(query);
+        if (parameters != null) {
+            FilterConverter.setParameters(tq, parameters);
+        }
+        return tq;
+    }
+
+    @Test
+    public void testConvertFilter_Parameters() {
+        Map<ParameterExpression<?>, Object> parameters = new HashMap<ParameterExpression<?>, Object>();
+        TypedQuery<Person> query = createQuery(createFilter("Alice", 1.0),
+                parameters);
+        assertEquals(5, parameters.size());
+        assertTrue(parameters.values().containsAll(
+                Arrays.asList("Alice", "%mi%", "X%", 1.0, 10.0)));
+        assertEquals(1, query.getResultList().size());
+
+        parameters.clear();
+        query = createQuery(createFilter("Alice", 6.0), parameters);
+        assertEquals(0, query.getResultList().size());
+        parameters.clear();
+        query = createQuery(createFilter("Bob", 1.0), parameters);
+        assertEquals(0, query.getResultList().size());
+    }
+
+    @Test
+    public void testConvertFilter_Literals() {
+        assertEquals(1, createQuery(createFilter("Alice", 1.0), null)
+                .getResultList().size());
+        assertEquals(0, createQuery(createFilter("Bob", 1.0), null)
+                .getResultList().size());
+    }
+
+    @Test
+    public void testConvertFilter_EqualNull() {
+        Map<ParameterExpression<?>, Object> parameters = new HashMap<ParameterExpression<?>, Object>();
+        createQuery(new Compare.Equal("dateOfBirth", null), parameters);
+        assertTrue(parameters.isEmpty());
+
+        // Other tests may have left persons without a date of birth in the
+        // shared database, so only look for the one created in setUp()
+        TypedQuery<Person> query = createQuery(new And(new Compare.Equal(
+                "firstName", "Alice"), new Compare.Equal("lastName", "Smith"),
+                new Compare.Equal("dateOfBirth", null)), parameters);
+        assertEquals(2, parameters.size());
+        assertEquals(1, query.getResultList().size());
+    }
+
+    @Test
+    public void testGetShape_SameStructure() {
+        List<Object> values = new ArrayList<Object>();
+        String shape = FilterConverter.getShape(createFilter("Alice", 1.0),
+                values);
+        assertEquals(Arrays.asList("Alice", "%mi%", "X%", 1.0, 10.0), values);
+
+        List<Object> otherValues = new ArrayList<Object>();
+        assertEquals(shape, FilterConverter.getShape(createFilter("Bob", 6.0),
+                otherValues));
+        assertEquals(Arrays.asList("Bob", "%mi%", "X%", 6.0, 10.0),
+                otherValues);
+    }
+
+    @Test
+    public void testGetShape_ParameterOrder() {
+        Map<ParameterExpression<?>, Object> parameters = new LinkedHashMap<ParameterExpression<?>, Object>();
+        createQuery(createFilter("Alice", 1.0), parameters);
+        List<Object> values = new ArrayList<Object>();
+        FilterConverter.getShape(createFilter("Alice", 1.0), values);
+        assertEquals(new ArrayList<Object>(parameters.values()), values);
+    }
+
+    @Test
+    public void testGetShape_DifferentStructure() {
+        List<Object> values = new ArrayList<Object>();
+        String shape = FilterConverter.getShape(new Compare.Equal(
+                "firstName", "Alice"), values);
+        assertFalse(shape.equals(FilterConverter.getShape(new Compare.Equal(
+                "lastName", "Alice"), values)));
+        assertFalse(shape.equals(FilterConverter.getShape(new Compare.Greater(
+                "firstName", "Alice"), values)));
+        assertFalse(shape.equals(FilterConverter.getShape(new Compare.Equal(
+                "firstName", 1), values)));
+        assertFalse(shape.equals(FilterConverter.getShape(new Not(
+                new Compare.Equal("firstName", "Alice")), values)));
+
+        // Null values are embedded as literals
+        values.clear();
+        assertFalse(shape.equals(FilterConverter.getShape(new Compare.Equal(
+                "firstName", null), values)));
+        assertTrue(values.isEmpty());
+    }
+
+    private Query createJPQLQuery(Filter filter) {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        String where = FilterConverter.convertFilterToJPQL(filter, "p",
+                parameters, null);
+        Query query = entityManager.createQuery("SELECT p FROM Person p WHERE "
+                + where);
+        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+            query.setParameter(entry.getKey(), entry.getValue());
+        }
+        return query;
+    }
+
+    @Test
+    public void testConvertFilterToJPQL() {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        List<String> propertyIds = new ArrayList<String>();
+        assertEquals(
+                "((p.firstName = :f0) AND (UPPER(p.lastName) LIKE UPPER(:f1))"
+                        + " AND (NOT (p.lastName LIKE :f2))"
+                        + " AND (p.primitiveDouble BETWEEN :f3 AND :f4))",
+                FilterConverter.convertFilterToJPQL(createFilter("Alice", 1.0),
+                        "p", parameters, propertyIds));
+        assertEquals(Arrays.asList("Alice", "%mi%", "X%", 1.0, 10.0),
+                Arrays.asList(parameters.get("f0"), parameters.get("f1"),
+                        parameters.get("f2"), parameters.get("f3"),
+                        parameters.get("f4")));
+        assertEquals(Arrays.asList("firstName", "lastName", "lastName",
+                "primitiveDouble"), propertyIds);
+
+        assertEquals(1, createJPQLQuery(createFilter("Alice", 1.0))
+                .getResultList().size());
+        assertEquals(0, createJPQLQuery(createFilter("Alice", 6.0))
+                .getResultList().size());
+        assertEquals(0, createJPQLQuery(createFilter("Bob", 1.0))
+                .getResultList().size());
+    }
+
+    @Test
+    public void testConvertFilterToJPQL_EqualNull() {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        assertEquals("p.dateOfBirth IS NULL",
+                FilterConverter.convertFilterToJPQL(new Compare.Equal(
+                        "dateOfBirth", null), "p", parameters, null));
+        assertTrue(parameters.isEmpty());
+        assertEquals(1, createJPQLQuery(new And(new Compare.Equal(
+                "firstName", "Alice"), new Compare.Equal("lastName", "Smith"),
+                new Compare.Equal("dateOfBirth", null))).getResultList()
+                .size());
+    }
+
+    @Test
+    public void testConvertFilterToJPQL_JoinFilter() {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("p0", "value");
+        assertNull(FilterConverter.convertFilterToJPQL(new And(
+                new Compare.Equal("firstName", "Alice"), new JoinFilter(
+                        "skills", new Compare.Equal("skill.name", "Java"))),
+                "p", parameters, null));
+        // Nothing is added if the filter cannot be converted
+        assertEquals(1, parameters.size());
+    }
+}
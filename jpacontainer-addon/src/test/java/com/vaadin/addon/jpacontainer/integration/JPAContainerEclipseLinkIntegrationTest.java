@@ -16,6 +16,7 @@
 package com.vaadin.addon.jpacontainer.integration;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -24,6 +25,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -34,18 +39,35 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.vaadin.addon.jpacontainer.AsynchronousEntityProvider;
+import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityItem;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.EntityItemProperty;
 import com.vaadin.addon.jpacontainer.JPAContainer;
 import com.vaadin.addon.jpacontainer.JPAContainerFactory;
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.provider.BatchableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider.NullOrdering;
+import com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider;
 import com.vaadin.addon.jpacontainer.testdata.Skill;
+import com.vaadin.addon.jpacontainer.util.LowerBoundCountStrategy;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Container.ItemSetChangeEvent;
+import com.vaadin.data.Container.ItemSetChangeListener;
 import com.vaadin.data.Property.ValueChangeEvent;
 import com.vaadin.data.Property.ValueChangeListener;
 import com.vaadin.data.util.filter.Compare.Equal;
 import com.vaadin.data.util.filter.Or;
 
 public class JPAContainerEclipseLinkIntegrationTest {
+
     private static final int NUM_SKILLS = 50;
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
     private EntityManagerFactory emf = Persistence
             .createEntityManagerFactory("eclipselink-in-memory");
     private EntityManager em;
@@ -95,6 +117,224 @@ public class JPAContainerEclipseLinkIntegrationTest {
         assertEquals(2, c.size());
     }
 
+    @Test
+    public void testLowerBoundCountStrategyRefinesSize() {
+        JPAContainer<Skill> c = JPAContainerFactory.make(Skill.class, em);
+        // The count is refined using the entity manager provider
+        c.getEntityProvider().setEntityManager(null);
+        c.getEntityProvider().setEntityManagerProvider(
+                new EntityManagerProvider() {
+                    public EntityManager getEntityManager() {
+                        return em;
+                    }
+                });
+        final AtomicInteger sizeDuringEvent = new AtomicInteger(-1);
+        final JPAContainer<Skill> container = c;
+        c.addItemSetChangeListener(new ItemSetChangeListener() {
+            public void containerItemSetChange(ItemSetChangeEvent event) {
+                sizeDuringEvent.set(container.size());
+            }
+        });
+        // Defer the exact count until the lower bound has been returned
+        final Runnable[] pending = new Runnable[1];
+        c.getEntityProvider().setCountStrategy(
+                new LowerBoundCountStrategy(10, new Executor() {
+                    public void execute(Runnable command) {
+                        pending[0] = command;
+                    }
+                }));
+
+        assertEquals(11, c.size());
+        assertEquals(-1, sizeDuringEvent.get());
+        pending[0].run();
+        assertEquals(NUM_SKILLS, sizeDuringEvent.get());
+        assertEquals(NUM_SKILLS, c.size());
+
+        // Counts below the limit are exact at once
+        c.addContainerFilter(new Equal("skillName", "Skill 1"));
+        assertEquals(1, c.size());
+    }
+
+    @Test
+    public void testAsynchronousSizeCancelsSupersededCounts() {
+        JPAContainer<Skill> c = JPAContainerFactory.make(Skill.class, em);
+        c.getEntityProvider().setEntityManager(null);
+        c.getEntityProvider().setEntityManagerProvider(
+                new EntityManagerProvider() {
+                    public EntityManager getEntityManager() {
+                        return em;
+                    }
+                });
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        ((AsynchronousEntityProvider<Skill>) c.getEntityProvider())
+                .setQueryExecutor(new Executor() {
+                    public void execute(Runnable command) {
+                        queued.add(command);
+                    }
+                });
+        c.setAsynchronousSize(true, DIRECT_EXECUTOR);
+        final List<Integer> countedSizes = new ArrayList<Integer>();
+        final JPAContainer<Skill> container = c;
+        c.addItemSetChangeListener(new ItemSetChangeListener() {
+            public void containerItemSetChange(ItemSetChangeEvent event) {
+                int size = container.size();
+                if (event instanceof JPAContainer.ItemsCountedEvent) {
+                    countedSizes.add(size);
+                }
+            }
+        });
+
+        assertEquals(0, c.size());
+        assertEquals(1, queued.size());
+        // Changing the filter supersedes the first count
+        c.addContainerFilter(new Equal("skillName", "Skill 1"));
+        assertEquals(0, c.size());
+        assertEquals(2, queued.size());
+
+        for (Runnable r : queued) {
+            r.run();
+        }
+        assertEquals(1, countedSizes.size());
+        assertEquals(1, countedSizes.get(0).intValue());
+        assertEquals(1, c.size());
+        assertEquals(2, queued.size());
+    }
+
+    @Test
+    public void testAsynchronousSizeDeliversCountThroughCompletionExecutor() {
+        JPAContainer<Skill> c = JPAContainerFactory.make(Skill.class, em);
+        c.getEntityProvider().setEntityManager(null);
+        c.getEntityProvider().setEntityManagerProvider(
+                new EntityManagerProvider() {
+                    public EntityManager getEntityManager() {
+                        return em;
+                    }
+                });
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        ((AsynchronousEntityProvider<Skill>) c.getEntityProvider())
+                .setQueryExecutor(new Executor() {
+                    public void execute(Runnable command) {
+                        queued.add(command);
+                    }
+                });
+        final List<Runnable> completions = new ArrayList<Runnable>();
+        c.setAsynchronousSize(true, new Executor() {
+            public void execute(Runnable command) {
+                completions.add(command);
+            }
+        });
+        final List<Integer> countedSizes = new ArrayList<Integer>();
+        c.addItemSetChangeListener(new ItemSetChangeListener() {
+            public void containerItemSetChange(ItemSetChangeEvent event) {
+                if (event instanceof JPAContainer.ItemsCountedEvent) {
+                    countedSizes.add(((JPAContainer<?>.ItemsCountedEvent) event)
+                            .getCount());
+                }
+            }
+        });
+
+        assertEquals(0, c.size());
+        queued.remove(0).run();
+        // The query is done, but the count is not delivered until the
+        // completion executor runs it
+        assertEquals(1, completions.size());
+        assertTrue(countedSizes.isEmpty());
+        assertEquals(0, c.size());
+        assertTrue(queued.isEmpty());
+
+        completions.remove(0).run();
+        assertEquals(1, countedSizes.size());
+        assertEquals(NUM_SKILLS, countedSizes.get(0).intValue());
+        assertEquals(NUM_SKILLS, c.size());
+    }
+
+    @Test
+    public void testAsynchronousSizeKeepsLastCountWhileRecounting() {
+        JPAContainer<Skill> c = JPAContainerFactory.make(Skill.class, em);
+        c.getEntityProvider().setEntityManager(null);
+        c.getEntityProvider().setEntityManagerProvider(
+                new EntityManagerProvider() {
+                    public EntityManager getEntityManager() {
+                        return em;
+                    }
+                });
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        ((AsynchronousEntityProvider<Skill>) c.getEntityProvider())
+                .setQueryExecutor(new Executor() {
+                    public void execute(Runnable command) {
+                        queued.add(command);
+                    }
+                });
+        c.setAsynchronousSize(true, DIRECT_EXECUTOR);
+
+        assertEquals(0, c.size());
+        queued.remove(0).run();
+        assertEquals(NUM_SKILLS, c.size());
+
+        // Adding an entity starts a new count, but the table should not go
+        // empty while it runs
+        Skill s = new Skill();
+        s.setSkillName("New skill");
+        c.addEntity(s);
+        assertEquals(NUM_SKILLS, c.size());
+        assertEquals(1, queued.size());
+        queued.remove(0).run();
+        assertEquals(NUM_SKILLS + 1, c.size());
+
+        // A count of other filters is not reused
+        c.addContainerFilter(new Equal("skillName", "Skill 1"));
+        assertEquals(0, c.size());
+        queued.remove(0).run();
+        assertEquals(1, c.size());
+    }
+
+    @Test
+    public void testAsynchronousSizeKeepsLastCountAfterFailure() {
+        JPAContainer<Skill> c = JPAContainerFactory.make(Skill.class, em);
+        final boolean[] failing = new boolean[1];
+        c.getEntityProvider().setEntityManager(null);
+        c.getEntityProvider().setEntityManagerProvider(
+                new EntityManagerProvider() {
+                    public EntityManager getEntityManager() {
+                        if (failing[0]) {
+                            throw new IllegalStateException("Database down");
+                        }
+                        return em;
+                    }
+                });
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        ((AsynchronousEntityProvider<Skill>) c.getEntityProvider())
+                .setQueryExecutor(new Executor() {
+                    public void execute(Runnable command) {
+                        queued.add(command);
+                    }
+                });
+        c.setAsynchronousSize(true, DIRECT_EXECUTOR);
+
+        assertEquals(0, c.size());
+        queued.remove(0).run();
+        assertEquals(NUM_SKILLS, c.size());
+
+        c.refresh();
+        assertEquals(NUM_SKILLS, c.size());
+        assertEquals(1, queued.size());
+        failing[0] = true;
+        queued.remove(0).run();
+        failing[0] = false;
+
+        // The failed count is not retried on every call
+        assertEquals(NUM_SKILLS, c.size());
+        assertEquals(NUM_SKILLS, c.size());
+        assertEquals(0, queued.size());
+
+        // But it is after a refresh
+        c.refresh();
+        assertEquals(NUM_SKILLS, c.size());
+        assertEquals(1, queued.size());
+        queued.remove(0).run();
+        assertEquals(NUM_SKILLS, c.size());
+    }
+
     static class TestProxyListener implements ValueChangeListener {
         transient ValueChangeListener vcl;
 
@@ -117,6 +357,75 @@ public class JPAContainerEclipseLinkIntegrationTest {
      * @throws ClassNotFoundException
      */
     @SuppressWarnings("unchecked")
+    @Test
+    public void testBufferedRemoveSortedByNullableColumnCountsPrecedingRows() {
+        EntityTransaction t = em.getTransaction();
+        t.begin();
+        em.createQuery(
+                "UPDATE Skill s SET s.skillName = NULL"
+                        + " WHERE s.skillName LIKE '%5'").executeUpdate();
+        t.commit();
+        em.clear();
+
+        BatchableLocalEntityProvider<Skill> provider = new BatchableLocalEntityProvider<Skill>(
+                Skill.class, em) {
+            @Override
+            protected List<Object> doGetAllEntityIdentifiers(
+                    EntityContainer<Skill> container, Filter filter,
+                    List<SortBy> sortBy) {
+                throw new AssertionError("All the identifiers were loaded");
+            }
+        };
+        // HSQLDB 2.2 sorts null values first regardless of the sort order
+        provider.setNullOrdering(NullOrdering.FIRST);
+        JPAContainer<Skill> c = new JPAContainer<Skill>(Skill.class);
+        c.setEntityProvider(provider);
+        c.setBuffered(true);
+        c.sort(new Object[] { "skillName" }, new boolean[] { true });
+
+        List<Object> ids = new ArrayList<Object>();
+        for (int i = 0; i < NUM_SKILLS; i++) {
+            ids.add(c.getIdByIndex(i));
+        }
+        assertEquals(null, c.getItem(ids.get(1)).getEntity().getSkillName());
+        c.removeItem(ids.get(20));
+        c.removeItem(ids.get(1));
+        ids.remove(20);
+        ids.remove(1);
+
+        assertEquals(NUM_SKILLS - 2, c.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i), c.getIdByIndex(i));
+        }
+    }
+
+    @Test
+    public void testSingleColumnUpdateKeepsItemVersionForFullCommit() {
+        MutableLocalEntityProvider<Skill> provider = new MutableLocalEntityProvider<Skill>(
+                Skill.class, em);
+        provider.setTransactionsHandledByProvider(true);
+        provider.setSingleColumnUpdatesEnabled(true);
+        JPAContainer<Skill> c = new JPAContainer<Skill>(Skill.class);
+        c.setEntityProvider(provider);
+
+        Object id = c.getIdByIndex(0);
+        EntityItem<Skill> item = c.getItem(id);
+        Long version = item.getEntity().getVersion();
+
+        item.getItemProperty("skillName").setValue("Edited");
+        assertEquals(version + 1, item.getEntity().getVersion().longValue());
+
+        // A full commit of the same item must not be based on a stale version
+        item.setBuffered(true);
+        item.getItemProperty("skillName").setValue("Committed");
+        item.commit();
+
+        em.clear();
+        Skill s = em.find(Skill.class, id);
+        assertEquals("Committed", s.getSkillName());
+        assertEquals(version + 2, s.getVersion().longValue());
+    }
+
     @Test
     public void testSerialization() throws FileNotFoundException, IOException,
             ClassNotFoundException {
@@ -175,6 +175,42 @@ public class ClassMetadataTest {
 				"address.street"));
 	}
 
+	@Test
+	public void testGetNestedPropertyValue_InvalidName() throws Exception {
+		ClassMetadata<Address_F> addressMetadata = new ClassMetadata<Address_F>(
+				Address_F.class);
+		addressMetadata.addProperties(new PersistentPropertyMetadata("street",
+				String.class, PropertyKind.SIMPLE,
+				Address_F.class.getDeclaredField("street"), null));
+
+		ClassMetadata<Person_F> metadata = new ClassMetadata<Person_F>(
+				Person_F.class);
+		metadata.addProperties(new PersistentPropertyMetadata("address",
+				addressMetadata,
+				PropertyKind.EMBEDDED,
+				Person_F.class.getDeclaredField("address"), null));
+
+		Person_F person = new Person_F();
+		// The invalid part of the name is never reached
+		assertNull(metadata.getPropertyValue(person, "address.nonexistent"));
+
+		person.address = new Address_F();
+		person.address.street = "Street";
+		try {
+			metadata.getPropertyValue(person, "address.nonexistent");
+			fail("No exception thrown");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+		// Resolved paths are reused
+		for (int i = 0; i < 3; i++) {
+			assertEquals("Street", metadata.getPropertyValue(person,
+					"address.street"));
+		}
+		person.address = null;
+		assertNull(metadata.getPropertyValue(person, "address.street"));
+	}
+
 	@Test
 	public void testSetPersistentPropertyValue_Field() throws Exception {
 		ClassMetadata<Person_F> metadata = new ClassMetadata<Person_F>(
@@ -16,6 +16,9 @@
 
 package com.vaadin.addon.jpacontainer.metadata;
 
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -24,10 +27,17 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.persistence.Id;
 import javax.persistence.Version;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -362,4 +372,62 @@ public class MetadataFactoryTest {
         Class<?> type = metadata.getProperty("manyToMany").getType();
         assertEquals(Set.class, type);
     }
+
+    @Test
+    public void testGetMetadata_Concurrently() throws Exception {
+        final MetadataFactory newFactory = new MetadataFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Set<Future<EntityClassMetadata<Person_F>>> results = new HashSet<Future<EntityClassMetadata<Person_F>>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor
+                        .submit(new Callable<EntityClassMetadata<Person_F>>() {
+                            public EntityClassMetadata<Person_F> call() {
+                                return newFactory
+                                        .getEntityClassMetadata(Person_F.class);
+                            }
+                        }));
+            }
+            EntityClassMetadata<Person_F> metadata = newFactory
+                    .getEntityClassMetadata(Person_F.class);
+            for (Future<EntityClassMetadata<Person_F>> result : results) {
+                // Only complete metadata is ever shared between threads
+                assertSame(metadata, result.get());
+            }
+            assertTrue(metadata.hasIdentifierProperty());
+            assertTrue(metadata.hasVersionProperty());
+            assertSame(newFactory.getClassMetadata(Address_F.class,
+                    PersistentPropertyMetadata.AccessType.FIELD),
+                    ((PersistentPropertyMetadata) metadata
+                            .getProperty("address")).getTypeMetadata());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWarmUp() throws Exception {
+        EntityType<Person_F> person = createMock(EntityType.class);
+        expect(person.getJavaType()).andReturn(Person_F.class).anyTimes();
+        // Not an entity, skipped
+        EntityType<Address_F> address = createMock(EntityType.class);
+        expect(address.getJavaType()).andReturn(Address_F.class).anyTimes();
+        Set<EntityType<?>> entities = new HashSet<EntityType<?>>();
+        entities.add(person);
+        entities.add(address);
+        Metamodel metamodel = createMock(Metamodel.class);
+        expect(metamodel.getEntities()).andReturn(entities).anyTimes();
+        replay(person, address, metamodel);
+
+        MetadataFactory newFactory = new MetadataFactory();
+        assertEquals(1, newFactory.warmUp(metamodel));
+        EntityClassMetadata<Person_F> metadata = newFactory
+                .getEntityClassMetadata(Person_F.class);
+        assertSame(metadata, newFactory.getEntityClassMetadata(Person_F.class));
+        assertSame(newFactory.getClassMetadata(Address_F.class,
+                PersistentPropertyMetadata.AccessType.FIELD),
+                ((PersistentPropertyMetadata) metadata.getProperty("address"))
+                        .getTypeMetadata());
+    }
 }
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.metamodel.Metamodel;
+
+import org.hibernate.ejb.Ejb3Configuration;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.metadata.TestClasses.Person_F;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
+import com.vaadin.addon.jpacontainer.testdata.Name;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.testdata.PersonSkill;
+import com.vaadin.addon.jpacontainer.testdata.Skill;
+
+/**
+ * Test case for {@link MetamodelMetadataFactory}. The metadata built from the
+ * metamodels of EclipseLink and Hibernate should be equal to the metadata
+ * built from the annotations.
+ * 
+ * @since 3.2
+ */
+public class MetamodelMetadataFactoryTest {
+
+    private static final Class<?>[] ENTITY_CLASSES = { Person.class,
+            EmbeddedIdPerson.class, PersonSkill.class, Skill.class };
+
+    private static Metamodel eclipseLinkMetamodel;
+    private static Metamodel hibernateMetamodel;
+
+    private static synchronized Metamodel getEclipseLinkMetamodel() {
+        if (eclipseLinkMetamodel == null) {
+            eclipseLinkMetamodel = Persistence.createEntityManagerFactory(
+                    "eclipselink-in-memory").getMetamodel();
+        }
+        return eclipseLinkMetamodel;
+    }
+
+    private static synchronized Metamodel getHibernateMetamodel() {
+        if (hibernateMetamodel == null) {
+            Ejb3Configuration cfg = new Ejb3Configuration()
+                    .setProperty("hibernate.dialect",
+                            "org.hibernate.dialect.HSQLDialect")
+                    .setProperty("hibernate.connection.driver_class",
+                            "org.hsqldb.jdbcDriver")
+                    .setProperty("hibernate.connection.url",
+                            "jdbc:hsqldb:mem:metamodeltest")
+                    .setProperty("hibernate.connection.username", "sa")
+                    .setProperty("hibernate.connection.password", "")
+                    .addAnnotatedClass(Person.class)
+                    .addAnnotatedClass(Address.class)
+                    .addAnnotatedClass(EmbeddedIdPerson.class)
+                    .addAnnotatedClass(Name.class)
+                    .addAnnotatedClass(PersonSkill.class)
+                    .addAnnotatedClass(Skill.class);
+            EntityManagerFactory emf = cfg.buildEntityManagerFactory();
+            hibernateMetamodel = emf.getMetamodel();
+        }
+        return hibernateMetamodel;
+    }
+
+    private void assertSameAsAnnotations(Metamodel metamodel) {
+        MetadataFactory annotationFactory = new MetadataFactory();
+        MetadataFactory metamodelFactory = new MetamodelMetadataFactory(
+                metamodel);
+        for (Class<?> entityClass : ENTITY_CLASSES) {
+            EntityClassMetadata<?> expected = annotationFactory
+                    .getEntityClassMetadata(entityClass);
+            EntityClassMetadata<?> actual = metamodelFactory
+                    .getEntityClassMetadata(entityClass);
+            assertEquals(expected, actual);
+            assertEquals(expected.getEntityName(), actual.getEntityName());
+            assertEquals(expected.getIdentifierProperty(),
+                    actual.getIdentifierProperty());
+            assertEquals(expected.hasEmbeddedIdentifier(),
+                    actual.hasEmbeddedIdentifier());
+            assertEquals(expected.getVersionProperty(),
+                    actual.getVersionProperty());
+        }
+    }
+
+    @Test
+    public void testGetMetadata_EclipseLink() {
+        assertSameAsAnnotations(getEclipseLinkMetamodel());
+    }
+
+    @Test
+    public void testGetMetadata_Hibernate() {
+        assertSameAsAnnotations(getHibernateMetamodel());
+    }
+
+    @Test
+    public void testGetMetadata_NotManaged() {
+        // Falls back to the annotations
+        MetadataFactory factory = new MetamodelMetadataFactory(
+                getEclipseLinkMetamodel());
+        EntityClassMetadata<Person_F> metadata = factory
+                .getEntityClassMetadata(Person_F.class);
+        assertEquals(new MetadataFactory()
+                .getEntityClassMetadata(Person_F.class), metadata);
+        assertTrue(metadata.hasIdentifierProperty());
+        assertTrue(metadata.hasVersionProperty());
+        assertFalse(metadata.hasEmbeddedIdentifier());
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.performance;
+
+import java.lang.reflect.Method;
+import java.util.StringTokenizer;
+
+import org.junit.Test;
+
+import com.carrotsearch.junitbenchmarks.AbstractBenchmark;
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Compares reading property values through the cached accessors of
+ * {@link EntityClassMetadata} with looking up the getter methods on every
+ * read, which is what rendering a table used to cost per cell.
+ */
+@BenchmarkOptions(benchmarkRounds = 20, warmupRounds = 5)
+public class PropertyAccessPerformance extends AbstractBenchmark {
+
+    private static final int ROWS = 100;
+    private static final int READS_PER_ROW = 30;
+    private static final String[] PROPERTIES = { "firstName", "lastName",
+            "address.street", "address.postalCode" };
+
+    private final EntityClassMetadata<Person> metadata = MetadataFactory
+            .getInstance().getEntityClassMetadata(Person.class);
+    private final Person[] persons = new Person[ROWS];
+    private Object sink;
+
+    public PropertyAccessPerformance() {
+        for (int i = 0; i < ROWS; i++) {
+            Person p = new Person();
+            p.setFirstName("First " + i);
+            p.setLastName("Last " + i);
+            p.setAddress(new Address());
+            p.getAddress().setStreet("Street " + i);
+            p.getAddress().setPostalCode("" + i);
+            persons[i] = p;
+        }
+    }
+
+    @Test
+    public void testCachedAccessors() {
+        for (int repaint = 0; repaint < 100; repaint++) {
+            for (Person p : persons) {
+                for (int i = 0; i < READS_PER_ROW; i++) {
+                    sink = metadata.getPropertyValue(p, PROPERTIES[i
+                            % PROPERTIES.length]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLookupOnEveryRead() throws Exception {
+        for (int repaint = 0; repaint < 100; repaint++) {
+            for (Person p : persons) {
+                for (int i = 0; i < READS_PER_ROW; i++) {
+                    sink = lookupAndGet(p, PROPERTIES[i % PROPERTIES.length]);
+                }
+            }
+        }
+    }
+
+    private static Object lookupAndGet(Object object, String propertyName)
+            throws Exception {
+        StringTokenizer st = new StringTokenizer(propertyName, ".");
+        while (st.hasMoreTokens() && object != null) {
+            String name = st.nextToken();
+            Method getter = object.getClass().getMethod(
+                    "get" + name.substring(0, 1).toUpperCase()
+                            + name.substring(1));
+            object = getter.invoke(object);
+        }
+        return object;
+    }
+}
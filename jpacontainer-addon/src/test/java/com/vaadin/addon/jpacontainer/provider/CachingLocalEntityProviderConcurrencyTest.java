@@ -0,0 +1,191 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+
+/**
+ * Stress test that checks that the caching entity providers do not serialize
+ * the threads that read entities. Every query waits until all the threads are
+ * querying at the same time, so the test fails if the provider lets only one
+ * thread in at a time.
+ *
+ * @since 3.2
+ */
+public class CachingLocalEntityProviderConcurrencyTest {
+
+    private static final int THREAD_COUNT = 8;
+
+    private static Map<Object, Person> awaitOthers(CyclicBarrier barrier,
+            Collection<Object> entityIds) {
+        try {
+            barrier.await(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException(
+                    "The threads were not let in at the same time", e);
+        }
+        Map<Object, Person> result = new HashMap<Object, Person>();
+        for (Object entityId : entityIds) {
+            Person p = new Person();
+            p.setId((Long) entityId);
+            result.put(entityId, p);
+        }
+        return result;
+    }
+
+    private static class BarrierCachingLocalEntityProvider extends
+            CachingLocalEntityProvider<Person> {
+
+        private static final long serialVersionUID = 1L;
+        final CyclicBarrier barrier = new CyclicBarrier(THREAD_COUNT);
+
+        BarrierCachingLocalEntityProvider() {
+            super(Person.class);
+        }
+
+        @Override
+        protected Person doGetEntity(Object entityId) {
+            return awaitOthers(barrier, Collections.singleton(entityId)).get(
+                    entityId);
+        }
+
+        @Override
+        protected Map<Object, Person> doGetEntities(
+                Collection<Object> entityIds) {
+            return awaitOthers(barrier, entityIds);
+        }
+    }
+
+    private static class BarrierCachingMutableLocalEntityProvider extends
+            CachingMutableLocalEntityProvider<Person> {
+
+        private static final long serialVersionUID = 1L;
+        final CyclicBarrier barrier = new CyclicBarrier(THREAD_COUNT);
+
+        BarrierCachingMutableLocalEntityProvider() {
+            super(Person.class);
+        }
+
+        @Override
+        protected Person doGetEntity(Object entityId) {
+            return awaitOthers(barrier, Collections.singleton(entityId)).get(
+                    entityId);
+        }
+
+        @Override
+        protected Map<Object, Person> doGetEntities(
+                Collection<Object> entityIds) {
+            return awaitOthers(barrier, entityIds);
+        }
+    }
+
+    /**
+     * Runs <code>task</code> in {@link #THREAD_COUNT} threads that are started
+     * at the same time, passing each its own index, and fails if any of them
+     * throws.
+     */
+    private void runConcurrently(final IndexedTask task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int index = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        task.run(index);
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(60000);
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.peek());
+        }
+    }
+
+    private interface IndexedTask {
+        void run(int index);
+    }
+
+    private void assertGetEntityIsConcurrent(
+            final EntityProvider<Person> provider) throws Exception {
+        runConcurrently(new IndexedTask() {
+            public void run(int index) {
+                assertEquals(Long.valueOf(index),
+                        provider.getEntity(null, Long.valueOf(index)).getId());
+            }
+        });
+    }
+
+    private void assertGetEntitiesIsConcurrent(
+            final EntityProvider<Person> provider) throws Exception {
+        runConcurrently(new IndexedTask() {
+            public void run(int index) {
+                List<Object> ids = new ArrayList<Object>();
+                ids.add(Long.valueOf(100 + 2 * index));
+                ids.add(Long.valueOf(101 + 2 * index));
+                assertEquals(2, provider.getEntities(null, ids).size());
+            }
+        });
+    }
+
+    @Test
+    public void testGetEntityIsConcurrent() throws Exception {
+        assertGetEntityIsConcurrent(new BarrierCachingLocalEntityProvider());
+    }
+
+    @Test
+    public void testGetEntitiesIsConcurrent() throws Exception {
+        assertGetEntitiesIsConcurrent(new BarrierCachingLocalEntityProvider());
+    }
+
+    @Test
+    public void testGetEntityIsConcurrent_Mutable() throws Exception {
+        assertGetEntityIsConcurrent(new BarrierCachingMutableLocalEntityProvider());
+    }
+
+    @Test
+    public void testGetEntitiesIsConcurrent_Mutable() throws Exception {
+        assertGetEntitiesIsConcurrent(new BarrierCachingMutableLocalEntityProvider());
+    }
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.cache.ReadAheadPolicy;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Stress test for the thread-safety of {@link CachingSupport}. The entity
+ * provider serves the entities from memory, and pauses on every query so that
+ * the queries of different threads overlap.
+ * 
+ * @since 3.2
+ */
+public class CachingSupportConcurrencyTest {
+
+    private static final int THREAD_COUNT = 8;
+    private static final List<SortBy> SORT_BY = Collections.emptyList();
+
+    private static class InMemoryEntityProvider extends
+            LocalEntityProvider<Person> {
+
+        private static final long serialVersionUID = 1L;
+        final List<Person> persons = new CopyOnWriteArrayList<Person>();
+        final AtomicInteger countQueries = new AtomicInteger();
+        final AtomicInteger identifierQueries = new AtomicInteger();
+        final AtomicInteger entityQueries = new AtomicInteger();
+        /**
+         * If set, the identifier queries that do not start from the beginning
+         * count this down and wait for {@link #releaseQuery}.
+         */
+        volatile CountDownLatch queryStarted;
+        volatile CountDownLatch releaseQuery;
+
+        InMemoryEntityProvider() {
+            super(Person.class);
+        }
+
+        private void pause() {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected int doGetEntityCount(EntityContainer<Person> container,
+                Filter filter) {
+            countQueries.incrementAndGet();
+            pause();
+            return persons.size();
+        }
+
+        @Override
+        protected boolean isKeysetPagingSupported(List<SortBy> sortBy) {
+            return false;
+        }
+
+        @Override
+        protected List<Object> doGetEntityIdentifiersInRange(
+                EntityContainer<Person> container, Filter filter,
+                List<SortBy> sortBy, int startIndex, int count) {
+            identifierQueries.incrementAndGet();
+            pause();
+            if (queryStarted != null && startIndex > 0) {
+                queryStarted.countDown();
+                try {
+                    releaseQuery.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            List<Person> snapshot = new ArrayList<Person>(persons);
+            List<Object> ids = new ArrayList<Object>();
+            for (int i = startIndex; i < Math.min(startIndex + count,
+                    snapshot.size()); i++) {
+                ids.add(snapshot.get(i).getId());
+            }
+            return ids;
+        }
+
+        @Override
+        protected Person doGetEntity(Object entityId) {
+            entityQueries.incrementAndGet();
+            pause();
+            for (Person p : persons) {
+                if (p.getId().equals(entityId)) {
+                    return p;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected Map<Object, Person> doGetEntities(
+                Collection<Object> entityIds) {
+            pause();
+            Map<Object, Person> result = new HashMap<Object, Person>();
+            for (Person p : persons) {
+                if (entityIds.contains(p.getId())) {
+                    result.put(p.getId(), p);
+                }
+            }
+            return result;
+        }
+    }
+
+    private InMemoryEntityProvider entityProvider;
+    private CachingSupport<Person> cachingSupport;
+
+    @Before
+    public void setUp() {
+        entityProvider = new InMemoryEntityProvider();
+        for (long id = 0; id < 1000; id++) {
+            entityProvider.persons.add(createPerson(id));
+        }
+        cachingSupport = new CachingSupport<Person>(entityProvider);
+    }
+
+    private static Person createPerson(long id) {
+        Person p = new Person();
+        p.setId(id);
+        p.setLastName("Person " + id);
+        return p;
+    }
+
+    /**
+     * Runs <code>task</code> in {@link #THREAD_COUNT} threads that are started
+     * at the same time, and fails if any of them throws.
+     */
+    private void runConcurrently(final Runnable task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        task.run();
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(60000);
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.peek());
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesAreLoadedOnce() throws Exception {
+        runConcurrently(new Runnable() {
+            public void run() {
+                assertEquals(1000, cachingSupport.getEntityCount(null, null));
+                assertEquals(0L, cachingSupport.getEntityIdentifierAt(null,
+                        null, SORT_BY, 0));
+                // Not in the prefetched chunk
+                assertEquals(999L, cachingSupport.getEntity(null, 999L)
+                        .getId().longValue());
+            }
+        });
+        assertEquals(1, entityProvider.countQueries.get());
+        assertEquals(1, entityProvider.identifierQueries.get());
+        assertEquals(1, entityProvider.entityQueries.get());
+    }
+
+    @Test
+    public void testReadsDuringChanges() throws Exception {
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (long id = 1000; id < 1100; id++) {
+                        // Like CachingMutableLocalEntityProvider does
+                        Person p = createPerson(id);
+                        cachingSupport.changeStarted();
+                        entityProvider.persons.add(p);
+                        cachingSupport.entityAdded(p);
+                        cachingSupport.changeEnded();
+                        cachingSupport.changeStarted();
+                        Person removed = entityProvider.persons.remove(0);
+                        cachingSupport.entityRemoved(removed.getId());
+                        cachingSupport.changeEnded();
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    writing.set(false);
+                }
+            }
+        };
+        writer.start();
+        runConcurrently(new Runnable() {
+            public void run() {
+                while (writing.get()) {
+                    int count = cachingSupport.getEntityCount(null, null);
+                    assertTrue(count >= 999 && count <= 1001);
+                    for (int i = 0; i < 1000; i += 50) {
+                        Object id = cachingSupport.getEntityIdentifierAt(null,
+                                null, SORT_BY, i);
+                        if (id != null) {
+                            cachingSupport.getEntity(null, id);
+                        }
+                    }
+                }
+            }
+        });
+        writer.join();
+
+        // No stale results may have been stored
+        List<Person> persons = entityProvider.persons;
+        assertEquals(persons.size(), cachingSupport.getEntityCount(null, null));
+        for (int i = 0; i < persons.size(); i++) {
+            assertEquals(persons.get(i).getId(),
+                    cachingSupport.getEntityIdentifierAt(null, null, SORT_BY, i));
+        }
+        assertEquals(null, cachingSupport.getEntity(null, 0L));
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        // Only entity managers from a provider may be used in other threads
+        entityProvider.setEntityManagerProvider(new EntityManagerProvider() {
+            public EntityManager getEntityManager() {
+                return null;
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        cachingSupport.setReadAheadPolicy(new ReadAheadPolicy(executor));
+        for (int i = 0; i < 100; i++) {
+            assertEquals((long) i, cachingSupport.getEntityIdentifierAt(null,
+                    null, SORT_BY, i));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(2, entityProvider.identifierQueries.get());
+
+        // The second chunk and its entities have been loaded in the background
+        for (int i = 100; i < 300; i++) {
+            assertEquals((long) i, cachingSupport.getEntityIdentifierAt(null,
+                    null, SORT_BY, i));
+        }
+        assertEquals(2, entityProvider.identifierQueries.get());
+        assertEquals(250L, cachingSupport.getEntity(null, 250L).getId()
+                .longValue());
+        assertEquals(0, entityProvider.entityQueries.get());
+
+        // The executor rejects new tasks, so the next chunk is loaded when
+        // needed
+        assertEquals(300L, cachingSupport.getEntityIdentifierAt(null, null,
+                SORT_BY, 300));
+        assertEquals(3, entityProvider.identifierQueries.get());
+    }
+
+    @Test
+    public void testReadAheadDoesNotBlockReaders() throws Exception {
+        entityProvider.setEntityManagerProvider(new EntityManagerProvider() {
+            public EntityManager getEntityManager() {
+                return null;
+            }
+        });
+        entityProvider.queryStarted = new CountDownLatch(1);
+        entityProvider.releaseQuery = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        cachingSupport.setReadAheadPolicy(new ReadAheadPolicy(executor));
+        for (int i = 0; i < 100; i++) {
+            assertEquals((long) i, cachingSupport.getEntityIdentifierAt(null,
+                    null, SORT_BY, i));
+        }
+        assertTrue(entityProvider.queryStarted.await(10, TimeUnit.SECONDS));
+
+        // The loaded identifiers can be read while the next chunk is loaded
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    cachingSupport.getEntityIdentifierAt(null, null, SORT_BY, i);
+                }
+            }
+        };
+        reader.start();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+
+        // A thread that needs the chunk waits for the read-ahead
+        final Object[] result = new Object[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                result[0] = cachingSupport.getEntityIdentifierAt(null, null,
+                        SORT_BY, 150);
+            }
+        };
+        waiter.start();
+        waiter.join(100);
+        assertTrue(waiter.isAlive());
+        entityProvider.releaseQuery.countDown();
+        waiter.join(10000);
+        assertFalse(waiter.isAlive());
+        assertEquals(150L, result[0]);
+        assertEquals(2, entityProvider.identifierQueries.get());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Tests for the existence checks of {@link CachingSupport}. The entity
+ * provider serves the entities from memory and counts the queries.
+ * 
+ * @since 3.2
+ */
+public class CachingSupportContainsTest {
+
+    private static final List<SortBy> SORT_BY = Collections.emptyList();
+
+    private static class InMemoryEntityProvider extends
+            LocalEntityProvider<Person> {
+
+        private static final long serialVersionUID = 1L;
+        final Set<Object> ids = new HashSet<Object>();
+        final List<Collection<Object>> bulkQueries = new ArrayList<Collection<Object>>();
+        int singleQueries;
+
+        InMemoryEntityProvider() {
+            super(Person.class);
+        }
+
+        @Override
+        protected boolean doContainsEntity(EntityContainer<Person> container,
+                Object entityId, Filter filter) {
+            singleQueries++;
+            return ids.contains(entityId);
+        }
+
+        @Override
+        protected Set<Object> doContainsEntities(
+                EntityContainer<Person> container,
+                Collection<Object> entityIds, Filter filter) {
+            bulkQueries.add(new ArrayList<Object>(entityIds));
+            Set<Object> result = new HashSet<Object>(entityIds);
+            result.retainAll(ids);
+            return result;
+        }
+    }
+
+    private InMemoryEntityProvider entityProvider;
+    private CachingSupport<Person> cachingSupport;
+
+    @Before
+    public void setUp() {
+        entityProvider = new InMemoryEntityProvider();
+        for (long id = 0; id < 10; id++) {
+            entityProvider.ids.add(id);
+        }
+        cachingSupport = new CachingSupport<Person>(entityProvider) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected List<Object> getIds(EntityContainer<Person> container,
+                    Filter filter, List<SortBy> sortBy, int startFrom,
+                    int fetchMax) {
+                return new ArrayList<Object>(entityProvider.ids);
+            }
+        };
+    }
+
+    private static Person createPerson(long id) {
+        Person p = new Person();
+        p.setId(id);
+        return p;
+    }
+
+    @Test
+    public void testMissingEntitiesAreCached() {
+        assertFalse(cachingSupport.containsEntity(null, 100L, null));
+        assertFalse(cachingSupport.containsEntity(null, 100L, null));
+        assertTrue(cachingSupport.containsEntity(null, 1L, null));
+        assertTrue(cachingSupport.containsEntity(null, 1L, null));
+        assertEquals(2, entityProvider.singleQueries);
+    }
+
+    @Test
+    public void testAddedEntityIsNoLongerMissing() {
+        assertFalse(cachingSupport.containsEntity(null, 100L, null));
+        entityProvider.ids.add(100L);
+        cachingSupport.entityAdded(createPerson(100L));
+
+        assertTrue(cachingSupport.containsEntity(null, 100L, null));
+    }
+
+    @Test
+    public void testRemovedEntityIsChecked() {
+        assertTrue(cachingSupport.containsEntity(null, 1L, null));
+        entityProvider.ids.remove(1L);
+        cachingSupport.entityRemoved(1L);
+
+        assertFalse(cachingSupport.containsEntity(null, 1L, null));
+        assertEquals(2, entityProvider.singleQueries);
+    }
+
+    @Test
+    public void testCompleteListAnswersWithoutQueries() {
+        cachingSupport.getAllEntityIdentifiers(null, null, SORT_BY);
+
+        assertTrue(cachingSupport.containsEntity(null, 5L, null));
+        assertFalse(cachingSupport.containsEntity(null, 100L, null));
+        assertEquals(0, entityProvider.singleQueries);
+        assertTrue(entityProvider.bulkQueries.isEmpty());
+    }
+
+    @Test
+    public void testContainsEntitiesQueriesUnknownIdsOnce() {
+        assertTrue(cachingSupport.containsEntity(null, 1L, null));
+        assertFalse(cachingSupport.containsEntity(null, 100L, null));
+
+        Set<Object> found = cachingSupport.containsEntities(null,
+                Arrays.<Object> asList(1L, 2L, 3L, 100L, 200L), null);
+        assertEquals(new HashSet<Object>(Arrays.<Object> asList(1L, 2L, 3L)),
+                found);
+        assertEquals(1, entityProvider.bulkQueries.size());
+        assertEquals(Arrays.<Object> asList(2L, 3L, 200L),
+                entityProvider.bulkQueries.get(0));
+
+        // All of them are known now
+        assertFalse(cachingSupport.containsEntity(null, 200L, null));
+        assertTrue(cachingSupport.containsEntity(null, 2L, null));
+        assertEquals(2, entityProvider.singleQueries);
+        assertEquals(1, entityProvider.bulkQueries.size());
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link ChunkSizeTuner}.
+ * 
+ * @since 3.2
+ */
+public class ChunkSizeTunerTest {
+
+    private static final long MILLISECOND = 1000000L;
+
+    @Test
+    public void testConfiguredSizeIsMinimum() {
+        ChunkSizeTuner tuner = new ChunkSizeTuner();
+        assertEquals(150, tuner.getChunkSize(150, 1000));
+        tuner.recordAccess(1, 0, 0);
+        tuner.recordLoad(MILLISECOND);
+        assertEquals(150, tuner.getChunkSize(150, 1000));
+        // Even if the cache is too small for two chunks
+        assertEquals(150, tuner.getChunkSize(150, 100));
+    }
+
+    @Test
+    public void testGrowsWithRangeSize() {
+        ChunkSizeTuner tuner = new ChunkSizeTuner();
+        for (int i = 0; i < 20; i++) {
+            tuner.recordAccess(200, 0, i * 5000 * MILLISECOND);
+        }
+        assertEquals(ChunkSizeTuner.RANGES_PER_CHUNK * 200,
+                tuner.getChunkSize(150, -1));
+        // Limited to half of the cache size
+        assertEquals(500, tuner.getChunkSize(150, 1000));
+    }
+
+    @Test
+    public void testGrowsWithScrollSpeedAndLatency() {
+        ChunkSizeTuner tuner = new ChunkSizeTuner();
+        // 100 rows every 100 ms, loading takes 500 ms
+        for (int i = 0; i < 50; i++) {
+            tuner.recordAccess(10, 100, i * 100 * MILLISECOND);
+            tuner.recordLoad(500 * MILLISECOND);
+        }
+        int size = tuner.getChunkSize(150, -1);
+        assertTrue("size = " + size, size >= 1900 && size <= 2100);
+
+        // The user stops scrolling
+        for (int i = 0; i < 50; i++) {
+            tuner.recordAccess(10, 0, (5000 + i * 100) * MILLISECOND);
+        }
+        assertEquals(150, tuner.getChunkSize(150, -1));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Test case for {@link FilterEvaluator}.
+ * 
+ * @since 3.2
+ */
+public class FilterEvaluatorTest {
+
+    private FilterEvaluator<Person> evaluator;
+    private Person person;
+
+    @Before
+    public void setUp() {
+        evaluator = new FilterEvaluator<Person>(new LocalEntityProvider<Person>(
+                Person.class).getEntityClassMetadata());
+        person = new Person();
+        person.setFirstName("Joe");
+        person.setLastName("Smith");
+        person.setPrimitiveDouble(12.5);
+        person.setAddress(new Address());
+        person.getAddress().setStreet("Main Street");
+    }
+
+    @Test
+    public void testNullFilter() {
+        assertEquals(Boolean.TRUE, evaluator.passesFilter(null, person));
+        assertEquals(0, evaluator.getPropertyIds(null).size());
+    }
+
+    @Test
+    public void testSimpleFilters() {
+        assertEquals(Boolean.TRUE, evaluator.passesFilter(new Compare.Equal(
+                "lastName", "Smith"), person));
+        assertEquals(Boolean.FALSE, evaluator.passesFilter(new Compare.Equal(
+                "lastName", "Jones"), person));
+        assertEquals(Boolean.TRUE, evaluator.passesFilter(new Like(
+                "lastName", "s%", false), person));
+        assertEquals(Boolean.FALSE, evaluator.passesFilter(new Like(
+                "lastName", "s%", true), person));
+        assertEquals(Boolean.TRUE, evaluator.passesFilter(
+                new SimpleStringFilter("address.street", "main", true, true),
+                person));
+        assertEquals(Boolean.TRUE, evaluator.passesFilter(new Compare.Greater(
+                "primitiveDouble", 10.0), person));
+        assertEquals(Boolean.FALSE, evaluator.passesFilter(new Between(
+                "primitiveDouble", 0.0, 10.0), person));
+        assertEquals(Boolean.TRUE, evaluator.passesFilter(
+                new IsNull("manager"), person));
+        assertEquals(Boolean.TRUE, evaluator.passesFilter(new Compare.Equal(
+                "dateOfBirth", null), person));
+    }
+
+    @Test
+    public void testCompositeFilters() {
+        assertEquals(Boolean.TRUE, evaluator.passesFilter(new And(
+                new Compare.Equal("lastName", "Smith"), new Not(new IsNull(
+                        "firstName"))), person));
+        assertEquals(Boolean.FALSE, evaluator.passesFilter(new Or(
+                new Compare.Equal("lastName", "Jones"), new Compare.Equal(
+                        "firstName", "Bob")), person));
+        assertEquals(
+                new HashSet<String>(Arrays.asList("lastName", "firstName")),
+                evaluator.getPropertyIds(new Or(new Compare.Equal("lastName",
+                        "Jones"), new Compare.Equal("firstName", "Bob"))));
+    }
+
+    @Test
+    public void testUnknownResults() {
+        // SQL three-valued logic: NOT (NULL = 'Bob') does not match
+        person.setFirstName(null);
+        assertNull(evaluator.passesFilter(new Not(new Compare.Equal(
+                "firstName", "Bob")), person));
+        // The database would convert the types
+        assertNull(evaluator.passesFilter(new Compare.Greater(
+                "primitiveDouble", 10), person));
+        // String ordering depends on the collation
+        assertNull(evaluator.passesFilter(new Compare.Greater("lastName",
+                "A"), person));
+        // _ is a wildcard in SQL but not in memory
+        assertNull(evaluator.passesFilter(new Like("lastName", "Smi_h",
+                true), person));
+        assertNull(evaluator.getPropertyIds(new JoinFilter("skills",
+                new Compare.Equal("skill.name", "Java"))));
+        assertNull(evaluator.passesFilter(new JoinFilter("skills",
+                new Compare.Equal("skill.name", "Java")), person));
+    }
+}
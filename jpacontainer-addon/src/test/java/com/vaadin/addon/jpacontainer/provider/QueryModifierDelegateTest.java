@@ -16,6 +16,7 @@
 package com.vaadin.addon.jpacontainer.provider;
 
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
@@ -23,6 +24,7 @@ import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.List;
 
@@ -44,6 +46,7 @@ import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.testdata.Person;
 import com.vaadin.addon.jpacontainer.util.DefaultQueryModifierDelegate;
+import com.vaadin.data.util.filter.Compare;
 
 @SuppressWarnings({"rawtypes","unchecked"})
 public class QueryModifierDelegateTest {
@@ -214,4 +217,59 @@ public class QueryModifierDelegateTest {
         assertEquals("firstName9", person.getFirstName());
         entityProvider.setQueryModifierDelegate(null);
     }
+
+    @Test
+    public void testQueryTemplatesAreReused() {
+        assertEquals(1, entityProvider.getEntityCount(container,
+                new Compare.Equal("firstName", "firstName3")));
+        assertEquals(1, entityProvider.getQueryTemplateCount());
+        // Same shape, different value
+        assertEquals(0, entityProvider.getEntityCount(container,
+                new Compare.Equal("firstName", "nobody")));
+        assertEquals(1, entityProvider.getQueryTemplateCount());
+        // Different shape
+        assertEquals(20, entityProvider.getEntityCount(container,
+                new Compare.Greater("firstName", "a")));
+        assertEquals(2, entityProvider.getQueryTemplateCount());
+
+        Object entityId = entityProvider.getFirstEntityIdentifier(container,
+                null, null);
+        assertTrue(entityProvider.containsEntity(container, entityId,
+                new Compare.Equal("lastName", "lastName0")));
+        assertFalse(entityProvider.containsEntity(container, entityId,
+                new Compare.Equal("lastName", "lastName1")));
+        assertEquals(4, entityProvider.getQueryTemplateCount());
+    }
+
+    @Test
+    public void testQueryTemplatesNotCachedWithQueryModifierDelegate() {
+        entityProvider.setQueryModifierDelegate(
+                createDelegateAddingFirstNameEqualFilter("firstName9"));
+        assertEquals(1, entityProvider.getEntityCount(container, null));
+        entityProvider.setQueryModifierDelegate(
+                createDelegateAddingFirstNameEqualFilter("this does not exist"));
+        assertEquals(0, entityProvider.getEntityCount(container, null));
+        entityProvider.setQueryModifierDelegate(null);
+        assertEquals(0, entityProvider.getQueryTemplateCount());
+        assertEquals(20, entityProvider.getEntityCount(container, null));
+
+        EntityContainer first = createContainerWithDelegate(
+                createDelegateAddingFirstNameEqualFilter("firstName9"));
+        EntityContainer second = createContainerWithDelegate(
+                createDelegateAddingFirstNameEqualFilter("this does not exist"));
+        assertEquals(1, entityProvider.getQueryTemplateCount());
+        assertEquals(1, entityProvider.getEntityCount(first, null));
+        assertEquals(0, entityProvider.getEntityCount(second, null));
+        assertEquals(1, entityProvider.getEntityCount(first, null));
+        assertEquals(1, entityProvider.getQueryTemplateCount());
+        assertEquals(20, entityProvider.getEntityCount(container, null));
+    }
+
+    private EntityContainer createContainerWithDelegate(
+            QueryModifierDelegate delegate) {
+        EntityContainer c = EasyMock.createNiceMock(EntityContainer.class);
+        expect(c.getQueryModifierDelegate()).andReturn(delegate).anyTimes();
+        replay(c);
+        return c;
+    }
 }
@@ -16,14 +16,33 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.BatchableEntityProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
+import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.BatchUpdatePerformedEvent;
 import com.vaadin.addon.jpacontainer.provider.BatchableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
 
 /**
  * Base class for the {@link BatchableLocalEntityProvider} Entity Manager tests.
- *
+ * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
@@ -44,5 +63,99 @@ public abstract class AbstractBatchableLocalEntityProviderEMTest extends Abstrac
 		provider.setTransactionsHandledByProvider(true);
 		return provider;
 	}
-	
+
+	protected void setBatchSize(int batchSize) {
+		((BatchableLocalEntityProvider<Person>) entityProvider).setBatchSize(batchSize);
+	}
+
+	@Test
+	public void testBatchUpdateInSlices() {
+		MutableLocalEntityProvider<Person> provider = (MutableLocalEntityProvider<Person>) entityProvider;
+		setBatchSize(3);
+		final List<EntityProviderChangeEvent<Person>> events = new ArrayList<EntityProviderChangeEvent<Person>>();
+		EntityProviderChangeListener<Person> listener = new EntityProviderChangeListener<Person>() {
+
+			public void entityProviderChange(EntityProviderChangeEvent<Person> event) {
+				events.add(event);
+			}
+		};
+		provider.addListener(listener);
+
+		int entityCount = provider.getEntityCount(container, null);
+		final Person updatedPerson = DataGenerator.getTestDataSortedByName().get(1).clone();
+		updatedPerson.setFirstName("Changed in a batch");
+		final Person removedPerson = DataGenerator.getTestDataSortedByName().get(0);
+		final List<Person> addedPersons = new ArrayList<Person>();
+
+		((BatchableEntityProvider<Person>) provider).batchUpdate(new BatchableEntityProvider.BatchUpdateCallback<Person>() {
+
+			public void batchUpdate(MutableEntityProvider<Person> batchEnabledEntityProvider) {
+				for (int i = 0; i < 7; i++) {
+					Person p = new Person();
+					p.setFirstName("Batch");
+					p.setLastName("Person " + i);
+					addedPersons.add(batchEnabledEntityProvider.addEntity(p));
+				}
+				batchEnabledEntityProvider.updateEntity(updatedPerson);
+				batchEnabledEntityProvider.removeEntity(removedPerson.getId());
+			}
+		});
+
+		assertEquals(entityCount + 6, provider.getEntityCount(container, null));
+		for (Person p : addedPersons) {
+			assertNotNull(p.getId());
+			assertTrue(provider.containsEntity(container, p.getId(), null));
+		}
+		assertEquals("Changed in a batch", provider.getEntity(container, updatedPerson.getId()).getFirstName());
+		assertFalse(provider.containsEntity(container, removedPerson.getId(), null));
+
+		// One event for each kind of change
+		assertEquals(4, events.size());
+		assertTrue(events.get(0) instanceof EntityProviderChangeEvent.EntitiesAddedEvent);
+		assertEquals(7, events.get(0).getAffectedEntities().size());
+		assertTrue(events.get(1) instanceof EntityProviderChangeEvent.EntitiesUpdatedEvent);
+		assertEquals(1, events.get(1).getAffectedEntities().size());
+		assertTrue(events.get(2) instanceof EntityProviderChangeEvent.EntitiesRemovedEvent);
+		assertEquals(removedPerson.getId(), events.get(2).getAffectedEntities().iterator().next().getId());
+		assertTrue(events.get(3) instanceof BatchUpdatePerformedEvent);
+		provider.removeListener(listener);
+	}
+
+	@Test
+	public void testBatchUpdateRollbackClearsGeneratedIdentifiers() {
+		@SuppressWarnings("unchecked")
+		final BatchableEntityProvider<Person> provider = (BatchableEntityProvider<Person>) entityProvider;
+		setBatchSize(1);
+		int entityCount = provider.getEntityCount(container, null);
+		final Person p = new Person();
+		p.setFirstName("Rolled");
+		p.setLastName("Back");
+
+		try {
+			provider.batchUpdate(new BatchableEntityProvider.BatchUpdateCallback<Person>() {
+
+				public void batchUpdate(MutableEntityProvider<Person> batchEnabledEntityProvider) {
+					batchEnabledEntityProvider.addEntity(p);
+					assertNotNull(p.getId());
+					throw new IllegalStateException("Failed batch");
+				}
+			});
+			fail("The batch update should have failed");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertNull(p.getId());
+		assertNull(p.getVersion());
+		assertEquals(entityCount, provider.getEntityCount(container, null));
+
+		// The entity can be added again
+		provider.batchUpdate(new BatchableEntityProvider.BatchUpdateCallback<Person>() {
+
+			public void batchUpdate(MutableEntityProvider<Person> batchEnabledEntityProvider) {
+				batchEnabledEntityProvider.addEntity(p);
+			}
+		});
+		assertNotNull(p.getId());
+		assertEquals(entityCount + 1, provider.getEntityCount(container, null));
+	}
 }
@@ -16,10 +16,23 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.cache.CacheStatistics;
+import com.vaadin.addon.jpacontainer.cache.TinyLfuCache;
 import com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
 
 /**
  * Base class for the {@link CachingLocalEntityProvider} Entity Manager tests.
@@ -49,5 +62,111 @@ public abstract class AbstractCachingLocalEntityProviderEMTest extends
 		return provider;
 	}
 
+	@Test
+	public void testEntityCacheStatistics() {
+		System.out.println("testEntityCacheStatistics");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		Person person = DataGenerator.getTestDataSortedByName().get(0);
+		provider.getEntity(null, person.getId());
+		provider.getEntity(null, person.getId());
+		CacheStatistics stats = provider.getEntityCacheStatistics();
+		assertEquals(1, stats.getHitCount());
+		assertEquals(1, stats.getMissCount());
+		assertEquals(1, stats.getLoadCount());
+		assertTrue(stats.getTotalLoadTime() > 0);
+	}
+
+	@Test
+	public void testGetEntity_TinyLfu() {
+		System.out.println("testGetEntity_TinyLfu");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		provider.setCacheFactory(new TinyLfuCache.Factory());
+		doTestGetEntity(DataGenerator.getTestDataSortedByName());
+		doTestGetEntityIdentifierAt(DataGenerator.getTestDataSortedByName(),
+				null, DataGenerator.getSortByName());
+		assertTrue(provider.getEntityCacheStatistics().getHitCount() > 0);
+	}
+
+	@Test
+	public void testGetEntityIdentifierAt_ConfiguredSizes() {
+		System.out.println("testGetEntityIdentifierAt_ConfiguredSizes");
+		CachingLocalEntityProvider<Person> provider = (CachingLocalEntityProvider<Person>) entityProvider;
+		provider.setChunkSize(7);
+		provider.setAdaptiveChunkSizeEnabled(true);
+		provider.setFilterCacheMaxSize(1);
+		provider.setSortByCacheMaxSize(1);
+		assertEquals(7, provider.getChunkSize());
+		assertTrue(provider.isAdaptiveChunkSizeEnabled());
+		assertEquals(1, provider.getFilterCacheMaxSize());
+		assertEquals(1, provider.getSortByCacheMaxSize());
+		doTestGetEntityIdentifierAt(DataGenerator.getTestDataSortedByName(),
+				null, DataGenerator.getSortByName());
+		doTestGetEntityIdentifierAtBackwards(
+				DataGenerator.getTestDataSortedByName(), null,
+				DataGenerator.getSortByName());
+		doTestGetEntityIdentifierAt_Scattered(
+				DataGenerator.getTestDataSortedByName(), null,
+				DataGenerator.getSortByName(), false);
+		doTestGetEntityIdentifiersInRange(
+				DataGenerator.getTestDataSortedByName(), null,
+				DataGenerator.getSortByName());
+	}
+
+	@Test
+	public void testGetEntityIdentifierAt_SortedByNullableProperty()
+			throws Exception {
+		System.out.println("testGetEntityIdentifierAt_SortedByNullableProperty");
+		CachingLocalEntityProvider<Person> provider = new CachingLocalEntityProvider<Person>(
+				Person.class, getEntityManager()) {
+			@Override
+			protected List<Object> doGetEntityIdentifiersInRange(
+					EntityContainer<Person> container, Filter filter,
+					List<SortBy> sortBy, int startIndex, int count) {
+				throw new AssertionError("The identifiers were paged by offset");
+			}
+		};
+		provider.setCacheEnabled(true);
+		provider.setChunkSize(7);
+		provider.setNullOrdering(TEST_DATABASE_NULL_ORDERING);
+		entityProvider = provider;
+		clearSomeStreets();
+		for (boolean ascending : new boolean[] { true, false }) {
+			List<Person> testData = getTestDataSortedByStreet(ascending);
+			List<SortBy> sortBy = getSortByStreet(ascending);
+			doTestGetEntityIdentifierAt(testData, null, sortBy);
+			doTestGetEntityIdentifierAtBackwards(testData, null, sortBy);
+			doTestGetEntityIdentifierAt_Scattered(testData, null, sortBy, true);
+		}
+	}
+
+	@Test
+	public void testGetEntityIdentifierAt_SortedByNullableProperty_DefaultNullOrdering()
+			throws Exception {
+		System.out.println("testGetEntityIdentifierAt_SortedByNullableProperty_DefaultNullOrdering");
+		// Without knowing where the database sorts nulls, seeking from an
+		// anchor could skip or repeat rows, so an offset must be used instead
+		CachingLocalEntityProvider<Person> provider = new CachingLocalEntityProvider<Person>(
+				Person.class, getEntityManager()) {
+			@Override
+			protected List<Object[]> doGetEntityKeys(
+					EntityContainer<Person> container, Filter filter,
+					List<SortBy> sortBy, Object[] anchor, boolean backwards,
+					int skip, int count) {
+				throw new AssertionError("The identifiers were paged by keyset");
+			}
+		};
+		provider.setCacheEnabled(true);
+		provider.setChunkSize(7);
+		entityProvider = provider;
+		clearSomeStreets();
+		for (boolean ascending : new boolean[] { true, false }) {
+			List<Person> testData = getTestDataSortedByStreet(ascending);
+			List<SortBy> sortBy = getSortByStreet(ascending);
+			doTestGetEntityIdentifierAt(testData, null, sortBy);
+			doTestGetEntityIdentifierAtBackwards(testData, null, sortBy);
+			doTestGetEntityIdentifierAt_Scattered(testData, null, sortBy, true);
+		}
+	}
+
 	// TODO Add some test cases that try out the caching features as well
 }
@@ -16,10 +16,26 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.cache.SharedQueryCache;
 import com.vaadin.addon.jpacontainer.provider.CachingMutableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.Address;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.Compare.Equal;
 
 /**
  * Base class for the {@link CachingMutableLocalEntityProvider} Entity Manager tests.
@@ -51,5 +67,157 @@ public abstract class AbstractCachingMutableLocalEntityProviderEMTest extends
 		return provider;
 	}
 
-	// TODO Add some test cases that try out the caching features as well
+	private void assertSameAsDatabase(Filter filter, List<SortBy> sortBy)
+			throws Exception {
+		LocalEntityProvider<Person> database = new LocalEntityProvider<Person>(
+				Person.class, getEntityManager());
+		int count = database.getEntityCount(container, filter);
+		assertEquals(count, entityProvider.getEntityCount(container, filter));
+		List<Object> ids = database.getEntityIdentifiersInRange(container,
+				filter, sortBy, 0, count);
+		for (int i = 0; i < count; i++) {
+			assertEquals(ids.get(i), entityProvider.getEntityIdentifierAt(
+					container, filter, sortBy, i));
+		}
+	}
+
+	@Test
+	public void testCacheConsistentAfterChanges() throws Exception {
+		System.out.println("testCacheConsistentAfterChanges");
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		Filter filter = DataGenerator.getTestFilter();
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+		Person cached = DataGenerator.getTestDataSortedByName().get(0);
+		provider.getEntity(container, cached.getId());
+
+		// Does not pass the filter
+		Person p = new Person();
+		p.setFirstName("Hello");
+		p.setLastName("World");
+		p.setAddress(new Address());
+		p = provider.addEntity(p);
+		// The entity cache has not been flushed
+		long hitCount = provider.getEntityCacheStatistics().getHitCount();
+		provider.getEntity(container, cached.getId());
+		assertEquals(hitCount + 1, provider.getEntityCacheStatistics()
+				.getHitCount());
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+
+		// Starts passing the filter
+		p.setLastName("Sorensen");
+		p = provider.updateEntity(p);
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+
+		// Passes the filter both before and after
+		provider.updateEntityProperty(p.getId(), "lastName", "Svensson");
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+
+		// Does not affect the sort order
+		provider.updateEntityProperty(p.getId(), "primitiveDouble", 1.0);
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+
+		provider.removeEntity(p.getId());
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+	}
+
+	@Test
+	public void testCacheConsistentAfterBulkChanges() throws Exception {
+		System.out.println("testCacheConsistentAfterBulkChanges");
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		Filter filter = DataGenerator.getTestFilter();
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+		List<SortBy> sortByStreet = Arrays.asList(new SortBy("address.street", true));
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+		assertSameAsDatabase(filter, sortByStreet);
+		Person cached = DataGenerator.getFilteredTestDataSortedByName().get(0);
+		provider.getEntity(container, cached.getId());
+
+		// Does not affect the filter or the name order
+		assertTrue(provider.updateEntities(container, filter, Collections.<String, Object> singletonMap("address.street", "Bulk Street")) > 0);
+		assertEquals("Bulk Street", provider.getEntity(container, cached.getId()).getAddress().getStreet());
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+		assertSameAsDatabase(filter, sortByStreet);
+
+		// Makes the entities stop passing the filter
+		assertTrue(provider.updateEntities(container, new Equal("lastName", "Smith"), Collections.<String, Object> singletonMap("lastName", "Jones")) > 0);
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+
+		assertTrue(provider.removeEntities(container, filter) > 0);
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+	}
+
+	@Test
+	public void testCachedEntityPatchedAfterPropertyUpdate() throws Exception {
+		System.out.println("testCachedEntityPatchedAfterPropertyUpdate");
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) entityProvider;
+		provider.setSingleColumnUpdatesEnabled(true);
+		Filter filter = DataGenerator.getTestFilter();
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+		Person cached = provider.getEntity(container, DataGenerator.getFilteredTestDataSortedByName().get(0).getId());
+
+		// Stops passing the filter
+		Object version = provider.updateEntityProperty(cached.getId(), "lastName", "Jones", cached.getVersion());
+		assertEquals(cached.getVersion() + 1, version);
+		long hitCount = provider.getEntityCacheStatistics().getHitCount();
+		Person patched = provider.getEntity(container, cached.getId());
+		assertEquals(hitCount + 1, provider.getEntityCacheStatistics().getHitCount());
+		assertEquals("Jones", patched.getLastName());
+		assertEquals(version, patched.getVersion());
+		assertSameAsDatabase(null, sortBy);
+		assertSameAsDatabase(filter, sortBy);
+	}
+
+	private CachingMutableLocalEntityProvider<Person> createSharingProvider(
+			SharedQueryCache sharedQueryCache) throws Exception {
+		CachingMutableLocalEntityProvider<Person> provider = (CachingMutableLocalEntityProvider<Person>) createEntityProvider();
+		provider.setSharedQueryCache(sharedQueryCache);
+		return provider;
+	}
+
+	@Test
+	public void testSharedQueryCache() throws Exception {
+		System.out.println("testSharedQueryCache");
+		SharedQueryCache shared = new SharedQueryCache();
+		Filter filter = DataGenerator.getTestFilter();
+		List<SortBy> sortBy = DataGenerator.getSortByName();
+		int count = DataGenerator.getFilteredTestDataSortedByName().size();
+
+		CachingMutableLocalEntityProvider<Person> first = createSharingProvider(shared);
+		assertEquals(count, first.getEntityCount(container, filter));
+		Object firstId = first.getFirstEntityIdentifier(container, filter,
+				sortBy);
+		long hitCount = shared.getStatistics().getHitCount();
+
+		// The second provider gets the results from the shared cache
+		CachingMutableLocalEntityProvider<Person> second = createSharingProvider(shared);
+		assertEquals(count, second.getEntityCount(container, filter));
+		assertEquals(firstId,
+				second.getFirstEntityIdentifier(container, filter, sortBy));
+		assertEquals(hitCount + 2, shared.getStatistics().getHitCount());
+
+		// Changes made through any provider invalidate the shared results
+		Person p = new Person();
+		p.setFirstName("Hello");
+		p.setLastName("Saaby");
+		p.setAddress(new Address());
+		p = ((CachingMutableLocalEntityProvider<Person>) entityProvider)
+				.addEntity(p);
+		CachingMutableLocalEntityProvider<Person> third = createSharingProvider(shared);
+		assertEquals(count + 1, third.getEntityCount(container, filter));
+		assertEquals(p.getId(),
+				third.getFirstEntityIdentifier(container, filter, sortBy));
+	}
 }
@@ -23,7 +23,11 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -48,6 +52,8 @@ import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
 import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider.NullOrdering;
 import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
@@ -93,6 +99,11 @@ public abstract class AbstractEntityProviderEMTest {
         return entityManager;
     }
 
+    /**
+     * HSQLDB 2.2 sorts null values first regardless of the sort order.
+     */
+    protected static final NullOrdering TEST_DATABASE_NULL_ORDERING = NullOrdering.FIRST;
+
     protected EntityProvider<Person> entityProvider;
     protected EntityProvider<EmbeddedIdPerson> entityProvider_EmbeddedId;
 
@@ -116,6 +127,10 @@ public abstract class AbstractEntityProviderEMTest {
         entityManager = createEntityManager();
         entityProvider = createEntityProvider();
         entityProvider_EmbeddedId = createEntityProvider_EmbeddedId();
+        if (entityProvider instanceof LocalEntityProvider) {
+            ((LocalEntityProvider<Person>) entityProvider)
+                    .setNullOrdering(TEST_DATABASE_NULL_ORDERING);
+        }
         DataGenerator.persistTestData(entityManager);
     }
 
@@ -131,6 +146,56 @@ public abstract class AbstractEntityProviderEMTest {
     protected abstract EntityProvider<Person> createEntityProvider()
             throws Exception;
 
+    /**
+     * Clears the street address of every seventh test person, so that the
+     * test data contains null values to sort by.
+     */
+    protected void clearSomeStreets() throws Exception {
+        List<Long> ids = new ArrayList<Long>();
+        List<Person> testData = DataGenerator.getTestDataSortedByPrimaryKey();
+        for (int i = 0; i < testData.size(); i += 7) {
+            ids.add(testData.get(i).getId());
+        }
+        EntityManager em = getEntityManager();
+        em.getTransaction().begin();
+        em.createQuery(
+                "UPDATE Person p SET p.address.street = NULL WHERE p.id IN :ids")
+                .setParameter("ids", ids).executeUpdate();
+        em.getTransaction().commit();
+        // The persisted instances are still managed, keep them in sync
+        for (int i = 0; i < testData.size(); i += 7) {
+            testData.get(i).getAddress().setStreet(null);
+        }
+    }
+
+    protected List<SortBy> getSortByStreet(boolean ascending) {
+        return Arrays.asList(new SortBy("address.street", ascending));
+    }
+
+    /**
+     * Gets the test data sorted by street address and primary key, with null
+     * streets sorted first like the test database does.
+     */
+    protected List<Person> getTestDataSortedByStreet(final boolean ascending) {
+        List<Person> testData = new ArrayList<Person>(
+                DataGenerator.getTestDataSortedByPrimaryKey());
+        Collections.sort(testData, new Comparator<Person>() {
+            public int compare(Person o1, Person o2) {
+                String s1 = o1.getAddress().getStreet();
+                String s2 = o2.getAddress().getStreet();
+                int result;
+                if (s1 == null || s2 == null) {
+                    result = (s1 == null ? 0 : 1) - (s2 == null ? 0 : 1);
+                } else {
+                    result = ascending ? s1.compareTo(s2) : s2.compareTo(s1);
+                }
+                return result == 0 ? o1.getId().compareTo(o2.getId())
+                        : result;
+            }
+        });
+        return testData;
+    }
+
     protected abstract EntityProvider<EmbeddedIdPerson> createEntityProvider_EmbeddedId()
             throws Exception;
 
@@ -145,6 +210,24 @@ public abstract class AbstractEntityProviderEMTest {
         }
     }
 
+    protected void doTestGetEntities(final List<Person> testData) {
+        List<Object> ids = new ArrayList<Object>();
+        for (Person p : testData) {
+            ids.add(p.getId());
+        }
+        ids.add(-1L);
+        // Duplicates are fetched only once
+        ids.addAll(new ArrayList<Object>(ids));
+        Map<Object, Person> returned = entityProvider.getEntities(null, ids);
+        assertEquals(testData.size(), returned.size());
+        for (Person p : testData) {
+            assertEquals(p, returned.get(p.getId()));
+        }
+        assertFalse(returned.containsKey(-1L));
+        assertTrue(entityProvider.getEntities(null,
+                Collections.<Object> emptyList()).isEmpty());
+    }
+
     protected void doTestGetEntity_EmbeddedId(
             final List<EmbeddedIdPerson> testData) {
         for (EmbeddedIdPerson p : testData) {
@@ -169,6 +252,27 @@ public abstract class AbstractEntityProviderEMTest {
                 entityProvider_EmbeddedId.getEntityCount(container, filter));
     }
 
+    protected void doTestContainsEntities(final List<Person> testData,
+            final Filter filter) {
+        Set<Object> expected = new HashSet<Object>();
+        List<Object> ids = new ArrayList<Object>();
+        long maxKey = 0;
+        for (Person p : testData) {
+            maxKey = Math.max(maxKey, p.getId());
+            expected.add(p.getId());
+            ids.add(p.getId());
+        }
+        ids.add(maxKey + 1);
+        for (Person p : DataGenerator.getTestDataSortedByPrimaryKey()) {
+            ids.add(p.getId());
+        }
+        assertEquals(expected,
+                entityProvider.containsEntities(container, ids, filter));
+        assertTrue(entityProvider.containsEntities(container,
+                Collections.<Object> singletonList(maxKey + 1), filter)
+                .isEmpty());
+    }
+
     protected void doTestContainsEntity(final List<Person> testData,
             final Filter filter) {
         long maxKey = 0;
@@ -278,6 +382,18 @@ public abstract class AbstractEntityProviderEMTest {
                 testData.size()));
     }
 
+    protected void doTestGetEntityIndex(final List<Person> testData,
+            final Filter filter, final List<SortBy> sortBy) {
+        long maxKey = 0;
+        for (int i = 0; i < testData.size(); i++) {
+            assertEquals(i, entityProvider.getEntityIndex(container, testData
+                    .get(i).getId(), filter, sortBy));
+            maxKey = Math.max(maxKey, testData.get(i).getId());
+        }
+        assertEquals(-1, entityProvider.getEntityIndex(container, maxKey + 1,
+                filter, sortBy));
+    }
+
     protected void doTestGetEntityIdentifierAtBackwards(
             final List<Person> testData, final Filter filter,
             final List<SortBy> sortBy) {
@@ -293,6 +409,28 @@ public abstract class AbstractEntityProviderEMTest {
         }
     }
 
+    protected void doTestGetEntityIdentifierAt_Scattered(
+            final List<Person> testData, final Filter filter,
+            final List<SortBy> sortBy, boolean countFirst) {
+        if (countFirst) {
+            assertEquals(testData.size(),
+                    entityProvider.getEntityCount(container, filter));
+        }
+        // Visit every index exactly once, jumping back and forth
+        int size = testData.size();
+        int step = 211;
+        while (size % step == 0) {
+            step++;
+        }
+        for (int n = 0, i = size / 2; n < size; n++, i = (i + step) % size) {
+            assertEquals(testData.get(i).getId(),
+                    entityProvider.getEntityIdentifierAt(container, filter,
+                            sortBy, i));
+        }
+        assertNull(entityProvider.getEntityIdentifierAt(container, filter,
+                sortBy, size));
+    }
+
     protected void doTestGetEntityIdentifierAt_EmbeddedId(
             final List<EmbeddedIdPerson> testData, final Filter filter,
             final List<SortBy> sortBy) {
@@ -317,12 +455,60 @@ public abstract class AbstractEntityProviderEMTest {
                 sortBy, testData.size()));
     }
 
+    protected void doTestGetEntityIdentifiersInRange(
+            final List<Person> testData, final Filter filter,
+            final List<SortBy> sortBy) {
+        int pageLength = 7;
+        for (int start = 0; start < testData.size(); start += pageLength) {
+            List<Object> ids = entityProvider.getEntityIdentifiersInRange(
+                    container, filter, sortBy, start, pageLength);
+            int expectedSize = Math.min(pageLength, testData.size() - start);
+            assertEquals(expectedSize, ids.size());
+            for (int i = 0; i < expectedSize; i++) {
+                assertEquals(testData.get(start + i).getId(), ids.get(i));
+            }
+        }
+        assertTrue(entityProvider.getEntityIdentifiersInRange(container,
+                filter, sortBy, testData.size(), pageLength).isEmpty());
+    }
+
+    protected void doTestGetEntityPropertyValuesInRange(
+            final List<Person> testData, final Filter filter,
+            final List<SortBy> sortBy) {
+        List<String> propertyIds = Arrays.asList("firstName",
+                "address.street", "manager.firstName");
+        int pageLength = 7;
+        for (int start = 0; start < testData.size(); start += pageLength) {
+            List<Object[]> rows = entityProvider
+                    .getEntityPropertyValuesInRange(container, filter, sortBy,
+                            start, pageLength, propertyIds);
+            int expectedSize = Math.min(pageLength, testData.size() - start);
+            assertEquals(expectedSize, rows.size());
+            for (int i = 0; i < expectedSize; i++) {
+                Person p = testData.get(start + i);
+                Object[] row = rows.get(i);
+                assertEquals(4, row.length);
+                assertEquals(p.getId(), row[0]);
+                assertEquals(p.getFirstName(), row[1]);
+                assertEquals(p.getAddress().getStreet(), row[2]);
+                // Persons without a manager must not be dropped
+                assertNull(row[3]);
+            }
+        }
+    }
+
     @Test
     public void testGetEntity() {
         System.out.println("testGetEntity");
         doTestGetEntity(DataGenerator.getTestDataSortedByName());
     }
 
+    @Test
+    public void testGetEntities() {
+        System.out.println("testGetEntities");
+        doTestGetEntities(DataGenerator.getTestDataSortedByName());
+    }
+
     @Test
     public void testGetEntity_EmbeddedId() {
         System.out.println("testGetEntity_EmbeddedId");
@@ -441,6 +627,61 @@ public abstract class AbstractEntityProviderEMTest {
                 DataGenerator.getTestDataEmbeddedIdSortedByName(), null, null);
     }
 
+    @Test
+    public void testGetEntityIdentifiersInRange() {
+        System.out.println("testGetEntityIdentifiersInRange");
+        doTestGetEntityIdentifiersInRange(
+                DataGenerator.getTestDataSortedByName(), null,
+                DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetEntityIdentifiersInRange_Filtered() {
+        System.out.println("testGetEntityIdentifiersInRange_Filtered");
+        doTestGetEntityIdentifiersInRange(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetEntityPropertyValuesInRange() {
+        System.out.println("testGetEntityPropertyValuesInRange");
+        doTestGetEntityPropertyValuesInRange(
+                DataGenerator.getTestDataSortedByName(), null,
+                DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetEntityPropertyValuesInRange_Filtered() {
+        System.out.println("testGetEntityPropertyValuesInRange_Filtered");
+        doTestGetEntityPropertyValuesInRange(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetEntityIdentifierAt_Scattered() {
+        System.out.println("testGetEntityIdentifierAt_Scattered");
+        doTestGetEntityIdentifierAt_Scattered(
+                DataGenerator.getTestDataSortedByPrimaryKey(), null, null,
+                false);
+        doTestGetEntityIdentifierAt_Scattered(
+                DataGenerator.getTestDataSortedByPrimaryKey(), null,
+                Arrays.asList(new SortBy("primitiveDouble", true)), true);
+        doTestGetEntityIdentifierAt_Scattered(
+                DataGenerator.getFilteredTestDataSortedByPrimaryKey(),
+                DataGenerator.getTestFilter(),
+                Arrays.asList(new SortBy("primitiveDouble", false)), false);
+    }
+
+    @Test
+    public void testGetEntityIdentifierAt_ScatteredSortedByName() {
+        System.out.println("testGetEntityIdentifierAt_ScatteredSortedByName");
+        doTestGetEntityIdentifierAt_Scattered(
+                DataGenerator.getTestDataSortedByName(), null,
+                DataGenerator.getSortByName(), true);
+    }
+
     // TODO Add tests for container with duplicate sorted values
 
     @Test
@@ -536,6 +777,104 @@ public abstract class AbstractEntityProviderEMTest {
                 DataGenerator.getTestDataSortedByPrimaryKey(), null, null);
     }
 
+    @Test
+    public void testGetEntityIndex_SortedByPrimaryKey() {
+        System.out.println("testGetEntityIndex_SortedByPrimaryKey");
+        doTestGetEntityIndex(DataGenerator.getTestDataSortedByPrimaryKey(),
+                null, null);
+    }
+
+    @Test
+    public void testGetEntityIndex_Filtered_SortedByPrimaryKey() {
+        System.out.println("testGetEntityIndex_Filtered_SortedByPrimaryKey");
+        doTestGetEntityIndex(
+                DataGenerator.getFilteredTestDataSortedByPrimaryKey(),
+                DataGenerator.getTestFilter(), null);
+        // Entities that are filtered out have no index
+        for (Person p : DataGenerator.getTestDataSortedByPrimaryKey()) {
+            if (!DataGenerator.getFilteredTestDataSortedByPrimaryKey()
+                    .contains(p)) {
+                assertEquals(-1, entityProvider.getEntityIndex(container,
+                        p.getId(), DataGenerator.getTestFilter(), null));
+            }
+        }
+    }
+
+    @Test
+    public void testGetEntityIndex_SortedByName() {
+        System.out.println("testGetEntityIndex_SortedByName");
+        doTestGetEntityIndex(DataGenerator.getTestDataSortedByName(), null,
+                DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetEntityIndex_SortedByNonNullableProperties() {
+        System.out.println("testGetEntityIndex_SortedByNonNullableProperties");
+        List<SortBy> sortBy = Arrays.asList(new SortBy("male", true),
+                new SortBy("primitiveDouble", false));
+        List<Object> ids = entityProvider.getAllEntityIdentifiers(container,
+                null, sortBy);
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i,
+                    entityProvider.getEntityIndex(container, ids.get(i), null,
+                            sortBy));
+        }
+    }
+
+    @Test
+    public void testGetEntityIndex_SortedByNullableProperty() throws Exception {
+        System.out.println("testGetEntityIndex_SortedByNullableProperty");
+        clearSomeStreets();
+        doTestGetEntityIndex(getTestDataSortedByStreet(true), null,
+                getSortByStreet(true));
+        doTestGetEntityIndex(getTestDataSortedByStreet(false), null,
+                getSortByStreet(false));
+    }
+
+    @Test
+    public void testGetNextEntity_SortedByNullableProperty() throws Exception {
+        System.out.println("testGetNextEntity_SortedByNullableProperty");
+        clearSomeStreets();
+        doTestGetNextEntity(getTestDataSortedByStreet(true), null,
+                getSortByStreet(true));
+    }
+
+    @Test
+    public void testSortedByNullableProperty_DefaultNullOrdering()
+            throws Exception {
+        System.out
+                .println("testSortedByNullableProperty_DefaultNullOrdering");
+        // The null ordering of the database is not set, so it must not be
+        // assumed
+        entityProvider = createEntityProvider();
+        if (entityProvider instanceof LocalEntityProvider) {
+            assertNull(((LocalEntityProvider<Person>) entityProvider)
+                    .getNullOrdering());
+        }
+        clearSomeStreets();
+        for (boolean ascending : new boolean[] { true, false }) {
+            List<Person> testData = getTestDataSortedByStreet(ascending);
+            List<SortBy> sortBy = getSortByStreet(ascending);
+            doTestGetEntityIdentifierAt(testData, null, sortBy);
+            doTestGetEntityIdentifierAtBackwards(testData, null, sortBy);
+            doTestGetEntityIdentifierAt_Scattered(testData, null, sortBy, true);
+            doTestGetEntityIndex(testData, null, sortBy);
+            doTestGetNextEntity(testData, null, sortBy);
+            doTestGetPreviousEntity(testData, null, sortBy);
+        }
+    }
+
+    @Test
+    public void testGetEntityIndex_EmbeddedId() {
+        System.out.println("testGetEntityIndex_EmbeddedId");
+        List<EmbeddedIdPerson> testData = DataGenerator
+                .getTestDataEmbeddedIdSortedByName();
+        for (int i = 0; i < testData.size(); i++) {
+            assertEquals(i, entityProvider_EmbeddedId.getEntityIndex(
+                    container, testData.get(i).getName(), null, null));
+        }
+    }
+
     @Test
     public void testGetEntityCount_Filtered() {
         System.out.println("testGetEntityCount_Filtered");
@@ -543,6 +882,20 @@ public abstract class AbstractEntityProviderEMTest {
                 DataGenerator.getTestFilter());
     }
 
+    @Test
+    public void testContainsEntities() {
+        System.out.println("testContainsEntities");
+        doTestContainsEntities(DataGenerator.getTestDataSortedByName(), null);
+    }
+
+    @Test
+    public void testContainsEntities_Filtered() {
+        System.out.println("testContainsEntities_Filtered");
+        doTestContainsEntities(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter());
+    }
+
     @Test
     public void testGetContainsEntity_Filtered() {
         System.out.println("testGetContainsEntity_Filtered");
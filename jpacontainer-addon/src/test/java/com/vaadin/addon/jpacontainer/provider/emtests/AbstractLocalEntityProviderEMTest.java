@@ -16,10 +16,32 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.AsynchronousEntityProvider.Callback;
+import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
 
 /**
  * Base class for the {@link LocalEntityProvider} Entity Manager tests.
@@ -44,5 +66,134 @@ public abstract class AbstractLocalEntityProviderEMTest extends
 		return provider;
 	}
 
+	@Test
+	public void testGetEntityIndex_SortedByNullableProperty_CountsPrecedingEntities()
+			throws Exception {
+		entityProvider = new LocalEntityProvider<Person>(Person.class,
+				getEntityManager()) {
+			@Override
+			protected List<Object> doGetAllEntityIdentifiers(
+					EntityContainer<Person> container, Filter filter,
+					List<SortBy> sortBy) {
+				throw new AssertionError("All the identifiers were loaded");
+			}
+		};
+		((LocalEntityProvider<Person>) entityProvider)
+				.setNullOrdering(TEST_DATABASE_NULL_ORDERING);
+		clearSomeStreets();
+		doTestGetEntityIndex(getTestDataSortedByStreet(true), null,
+				getSortByStreet(true));
+		doTestGetEntityIndex(getTestDataSortedByStreet(false), null,
+				getSortByStreet(false));
+	}
+
+	@Test
+	public void testGetEntityCountAsync_RunsInCallingThreadWithoutProvider()
+			throws Exception {
+		LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		provider.setQueryExecutor(new Executor() {
+			public void execute(Runnable command) {
+				queued.add(command);
+			}
+		});
+		RecordingCallback<Integer> callback = new RecordingCallback<Integer>();
+		Future<Integer> future = provider.getEntityCountAsync(container,
+				DataGenerator.getTestFilter(), callback);
+
+		// The entity manager has been set, so it may not be used elsewhere
+		assertTrue(queued.isEmpty());
+		assertTrue(future.isDone());
+		int expected = DataGenerator.getFilteredTestDataSortedByName().size();
+		assertEquals(expected, future.get().intValue());
+		assertEquals(expected, callback.result.intValue());
+	}
+
+	@Test
+	public void testAsyncQueries_RunOnExecutorWithEntityManagerProvider()
+			throws Exception {
+		LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+		final EntityManager em = getEntityManager();
+		provider.setEntityManager(null);
+		provider.setEntityManagerProvider(new EntityManagerProvider() {
+			public EntityManager getEntityManager() {
+				return em;
+			}
+		});
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		provider.setQueryExecutor(new Executor() {
+			public void execute(Runnable command) {
+				queued.add(command);
+			}
+		});
+		provider.setQueryTimeout(10000);
+
+		RecordingCallback<Integer> countCallback = new RecordingCallback<Integer>();
+		Future<Integer> count = provider.getEntityCountAsync(container, null,
+				countCallback);
+		RecordingCallback<List<Object>> idsCallback = new RecordingCallback<List<Object>>();
+		Future<List<Object>> ids = provider.getEntityIdentifiersInRangeAsync(
+				container, null, DataGenerator.getSortByName(), 0, 5,
+				idsCallback);
+		List<Person> testData = DataGenerator.getTestDataSortedByName();
+		RecordingCallback<Map<Object, Person>> entitiesCallback = new RecordingCallback<Map<Object, Person>>();
+		Future<Map<Object, Person>> entities = provider.getEntitiesAsync(
+				container, Arrays.<Object> asList(testData.get(0).getId()),
+				entitiesCallback);
+		assertEquals(3, queued.size());
+		assertFalse(count.isDone());
 
+		for (Runnable r : queued) {
+			r.run();
+		}
+		assertEquals(testData.size(), count.get().intValue());
+		assertEquals(testData.size(), countCallback.result.intValue());
+		assertEquals(5, ids.get().size());
+		assertEquals(testData.get(0).getId(), ids.get().get(0));
+		assertEquals(ids.get(), idsCallback.result);
+		assertEquals(testData.get(0).getId(),
+				entities.get().get(testData.get(0).getId()).getId());
+		assertEquals(1, entitiesCallback.result.size());
+	}
+
+	@Test
+	public void testGetEntityCountAsync_Cancelled() throws Exception {
+		LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+		final EntityManager em = getEntityManager();
+		provider.setEntityManager(null);
+		provider.setEntityManagerProvider(new EntityManagerProvider() {
+			public EntityManager getEntityManager() {
+				return em;
+			}
+		});
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		provider.setQueryExecutor(new Executor() {
+			public void execute(Runnable command) {
+				queued.add(command);
+			}
+		});
+		RecordingCallback<Integer> callback = new RecordingCallback<Integer>();
+		Future<Integer> future = provider.getEntityCountAsync(container, null,
+				callback);
+		assertTrue(future.cancel(true));
+		queued.get(0).run();
+
+		assertTrue(future.isCancelled());
+		assertNull(callback.result);
+		assertNull(callback.error);
+	}
+
+	private static class RecordingCallback<V> implements Callback<V> {
+
+		V result;
+		Throwable error;
+
+		public void completed(V result) {
+			this.result = result;
+		}
+
+		public void failed(Throwable error) {
+			this.error = error;
+		}
+	}
 }
@@ -16,10 +16,32 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.OptimisticLockException;
+
+import org.junit.Test;
+
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
 import com.vaadin.addon.jpacontainer.provider.MutableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.addon.jpacontainer.util.DefaultQueryModifierDelegate;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Compare.Equal;
 
 /**
  * Base class for the {@link MutableLocalEntityProvider} Entity Manager tests.
@@ -45,5 +67,140 @@ public abstract class AbstractMutableLocalEntityProviderEMTest extends
 		provider.setTransactionsHandledByProvider(true);
 		return provider;
 	}
-	
+
+	private static int countByLastName(String lastName) {
+		int count = 0;
+		for (Person p : DataGenerator.getTestDataSortedByName()) {
+			if (p.getLastName().equals(lastName)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void testRemoveEntities() {
+		MutableLocalEntityProvider<Person> provider = (MutableLocalEntityProvider<Person>) entityProvider;
+		final List<EntityProviderChangeEvent<Person>> events = new ArrayList<EntityProviderChangeEvent<Person>>();
+		EntityProviderChangeListener<Person> listener = new EntityProviderChangeListener<Person>() {
+
+			public void entityProviderChange(EntityProviderChangeEvent<Person> event) {
+				events.add(event);
+			}
+		};
+		provider.addListener(listener);
+		Equal filter = new Equal("lastName", "Cool");
+		int entityCount = provider.getEntityCount(container, null);
+		int removed = countByLastName("Cool");
+		assertTrue(removed > 0);
+
+		assertEquals(removed, provider.removeEntities(container, filter));
+		assertEquals(entityCount - removed, provider.getEntityCount(container, null));
+		assertEquals(0, provider.getEntityCount(container, filter));
+		assertEquals(1, events.size());
+		assertTrue(events.get(0) instanceof EntityProviderChangeEvent.EntitiesRemovedEvent);
+
+		// Nothing left to remove
+		assertEquals(0, provider.removeEntities(container, filter));
+		assertEquals(1, events.size());
+		provider.removeListener(listener);
+	}
+
+	@Test
+	public void testUpdateEntities() {
+		MutableLocalEntityProvider<Person> provider = (MutableLocalEntityProvider<Person>) entityProvider;
+		Equal filter = new Equal("lastName", "Cool");
+		Person before = null;
+		for (Person p : DataGenerator.getTestDataSortedByName()) {
+			if (p.getLastName().equals("Cool")) {
+				before = provider.getEntity(container, p.getId());
+				break;
+			}
+		}
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("address.postOffice", "Bulk Office");
+		values.put("address.street", "Bulk Street");
+
+		int updated = countByLastName("Cool");
+		assertEquals(updated, provider.updateEntities(container, filter, values));
+		assertEquals(updated, provider.getEntityCount(container, new And(filter, new Equal("address.postOffice", "Bulk Office"))));
+		assertEquals(updated, provider.getEntityCount(container, new Equal("address.street", "Bulk Street")));
+
+		Person after = provider.getEntity(container, before.getId());
+		assertEquals("Bulk Office", after.getAddress().getPostOffice());
+		assertEquals("Bulk Street", after.getAddress().getStreet());
+		assertEquals(before.getFirstName(), after.getFirstName());
+		assertEquals(before.getVersion() + 1, after.getVersion().longValue());
+	}
+
+	@Test
+	public void testUpdateEntities_ByIdentifier() {
+		// A query modifier delegate may change the query, so the identifiers
+		// are queried first instead of filtering in the bulk statement
+		MutableLocalEntityProvider<Person> provider = (MutableLocalEntityProvider<Person>) entityProvider;
+		provider.setQueryModifierDelegate(new DefaultQueryModifierDelegate());
+		try {
+			Equal filter = new Equal("lastName", "Cool");
+			Map<String, Object> values = new HashMap<String, Object>();
+			values.put("address.street", "Identified Street");
+
+			int updated = countByLastName("Cool");
+			assertEquals(updated, provider.updateEntities(container, filter, values));
+			assertEquals(updated, provider.getEntityCount(container, new Equal("address.street", "Identified Street")));
+			assertEquals(updated, provider.getEntityCount(container, new And(filter, new Equal("address.street", "Identified Street"))));
+		} finally {
+			provider.setQueryModifierDelegate(null);
+		}
+	}
+
+	@Test
+	public void testUpdateEntityProperty_Versioned() {
+		MutableLocalEntityProvider<Person> provider = (MutableLocalEntityProvider<Person>) entityProvider;
+		assertFalse(provider.isSingleColumnUpdatesEnabled());
+		doTestUpdateEntityProperty_Versioned(provider, 0);
+	}
+
+	@Test
+	public void testUpdateEntityProperty_VersionedSingleColumn() {
+		MutableLocalEntityProvider<Person> provider = (MutableLocalEntityProvider<Person>) entityProvider;
+		provider.setSingleColumnUpdatesEnabled(true);
+		doTestUpdateEntityProperty_Versioned(provider, 1);
+	}
+
+	private void doTestUpdateEntityProperty_Versioned(MutableLocalEntityProvider<Person> provider, int index) {
+		Person p = provider.getEntity(container, DataGenerator.getTestDataSortedByName().get(index).getId());
+		Long version = p.getVersion();
+
+		assertEquals(version + 1, provider.updateEntityProperty(p.getId(), "address.street", "Versioned Street", version));
+		Person updated = provider.getEntity(container, p.getId());
+		assertEquals("Versioned Street", updated.getAddress().getStreet());
+		assertEquals(version + 1, updated.getVersion().longValue());
+		assertEquals(p.getFirstName(), updated.getFirstName());
+
+		// Based on an outdated version
+		try {
+			provider.updateEntityProperty(p.getId(), "address.street", "Stale Street", version);
+			fail("The update should have failed");
+		} catch (OptimisticLockException e) {
+			// Expected
+		}
+		assertEquals("Versioned Street", provider.getEntity(container, p.getId()).getAddress().getStreet());
+
+		// Nothing happens if the entity is not found
+		assertNull(provider.updateEntityProperty(-1l, "address.street", "No Street", version));
+	}
+
+	@Test
+	public void testUpdateEntities_InvalidProperty() {
+		MutableLocalEntityProvider<Person> provider = (MutableLocalEntityProvider<Person>) entityProvider;
+		for (String propertyName : new String[] { "id", "version", "skills", "nonExisting", "address.nonExisting" }) {
+			try {
+				provider.updateEntities(container, null, Collections.<String, Object> singletonMap(propertyName, null));
+				fail("Updating " + propertyName + " should not be allowed");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+		assertFalse(provider.getEntityCount(container, null) == 0);
+	}
 }
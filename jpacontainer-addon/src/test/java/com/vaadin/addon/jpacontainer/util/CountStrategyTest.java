@@ -0,0 +1,243 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.util;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.CountStrategy.CountContext;
+import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.Compare;
+
+/**
+ * Test case for the {@link com.vaadin.addon.jpacontainer.CountStrategy}
+ * implementations.
+ * 
+ * @since 3.2
+ */
+public class CountStrategyTest {
+
+    private static class TestCountContext implements CountContext {
+
+        int count = 1000;
+        int exactCounts;
+        int countsUpTo;
+        int countChanges;
+        boolean concurrentAccessSupported = true;
+        Filter filter;
+        EntityManager entityManager;
+
+        public EntityContainer<?> getEntityContainer() {
+            return null;
+        }
+
+        public Class<?> getEntityClass() {
+            return Person.class;
+        }
+
+        public Filter getFilter() {
+            return filter;
+        }
+
+        public EntityManager getEntityManager() {
+            return entityManager;
+        }
+
+        public int getExactCount() {
+            exactCounts++;
+            return count;
+        }
+
+        public int getCountUpTo(int maxCount) {
+            countsUpTo++;
+            return Math.min(count, maxCount);
+        }
+
+        public boolean isConcurrentAccessSupported() {
+            return concurrentAccessSupported;
+        }
+
+        public void countChanged() {
+            countChanges++;
+        }
+    }
+
+    private static class QueueExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+
+    private TestCountContext context;
+
+    @Before
+    public void setUp() {
+        context = new TestCountContext();
+    }
+
+    @Test
+    public void testExact() {
+        ExactCountStrategy strategy = new ExactCountStrategy();
+        assertEquals(1000, strategy.getEntityCount(context));
+        assertEquals(1000, strategy.getEntityCount(context));
+        assertEquals(2, context.exactCounts);
+    }
+
+    @Test
+    public void testCached() {
+        final long[] now = { 0 };
+        CachedCountStrategy strategy = new CachedCountStrategy(1000) {
+            @Override
+            protected long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        assertEquals(1000, strategy.getEntityCount(context));
+        context.count = 1001;
+        now[0] = 999;
+        assertEquals(1000, strategy.getEntityCount(context));
+        assertEquals(1, context.exactCounts);
+
+        // Filters are counted separately
+        context.filter = new Compare.Equal("firstName", "Alice");
+        assertEquals(1001, strategy.getEntityCount(context));
+        assertEquals(2, context.exactCounts);
+
+        // Expired
+        context.filter = null;
+        now[0] = 1000;
+        assertEquals(1001, strategy.getEntityCount(context));
+        assertEquals(3, context.exactCounts);
+
+        context.count = 1002;
+        strategy.invalidate();
+        assertEquals(1002, strategy.getEntityCount(context));
+        assertEquals(4, context.exactCounts);
+    }
+
+    @Test
+    public void testEstimated() {
+        context.entityManager = createMock(EntityManager.class);
+        Query query = createMock(Query.class);
+        expect(context.entityManager.createNativeQuery("ESTIMATE"))
+                .andReturn(query).times(2);
+        expect(query.getSingleResult()).andReturn(Float.valueOf(995.0f));
+        expect(query.getSingleResult()).andThrow(
+                new PersistenceException("no statistics"));
+        replay(context.entityManager, query);
+
+        EstimatedCountStrategy strategy = new EstimatedCountStrategy(
+                "ESTIMATE");
+        assertEquals(995, strategy.getEntityCount(context));
+        assertEquals(0, context.exactCounts);
+        // Falls back to the exact count
+        assertEquals(1000, strategy.getEntityCount(context));
+        assertEquals(1, context.exactCounts);
+        // Filtered counts are not estimated
+        context.filter = new Compare.Equal("firstName", "Alice");
+        assertEquals(1000, strategy.getEntityCount(context));
+        assertEquals(2, context.exactCounts);
+        verify(context.entityManager, query);
+    }
+
+    @Test
+    public void testLowerBound() {
+        QueueExecutor executor = new QueueExecutor();
+        LowerBoundCountStrategy strategy = new LowerBoundCountStrategy(100,
+                executor);
+        assertEquals(101, strategy.getEntityCount(context));
+        assertEquals(101, strategy.getEntityCount(context));
+        // Only one refinement is started
+        assertEquals(1, executor.tasks.size());
+        assertEquals(0, context.exactCounts);
+
+        executor.runAll();
+        assertEquals(1, context.exactCounts);
+        assertEquals(1, context.countChanges);
+        assertEquals(1000, strategy.getEntityCount(context));
+        assertEquals(2, context.countsUpTo);
+
+        // Small counts are exact at once
+        context.filter = new Compare.Equal("firstName", "Alice");
+        context.count = 5;
+        assertEquals(5, strategy.getEntityCount(context));
+        assertEquals(5, strategy.getEntityCount(context));
+        assertEquals(3, context.countsUpTo);
+        assertEquals(0, executor.tasks.size());
+    }
+
+    @Test
+    public void testLowerBound_InvalidatedWhileRefining() {
+        QueueExecutor executor = new QueueExecutor();
+        LowerBoundCountStrategy strategy = new LowerBoundCountStrategy(100,
+                executor);
+        assertEquals(101, strategy.getEntityCount(context));
+        strategy.invalidate();
+        context.count = 2000;
+        executor.runAll();
+        // The stale count is not remembered
+        assertEquals(0, context.countChanges);
+        assertEquals(101, strategy.getEntityCount(context));
+        executor.runAll();
+        assertEquals(1, context.countChanges);
+        assertEquals(2000, strategy.getEntityCount(context));
+    }
+
+    @Test
+    public void testLowerBound_Synchronous() {
+        LowerBoundCountStrategy strategy = new LowerBoundCountStrategy(100,
+                new Executor() {
+                    public void execute(Runnable command) {
+                        throw new RejectedExecutionException();
+                    }
+                });
+        assertEquals(1000, strategy.getEntityCount(context));
+        assertEquals(0, context.countChanges);
+
+        strategy.invalidate();
+        context.concurrentAccessSupported = false;
+        context.count = 2000;
+        assertEquals(2000, strategy.getEntityCount(context));
+        assertEquals(2, context.exactCounts);
+    }
+}